@@ -0,0 +1,102 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.neutron.v2.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.jclouds.http.HttpRequest;
+import org.jclouds.openstack.neutron.v2.domain.Port;
+import org.jclouds.rest.binders.BindToJsonPayloadWrappedWith;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.google.inject.Injector;
+
+/**
+ * Measures the {@code @WrapWith} payload binding of {@code PortApi.createBulk} and {@code PortApi.update}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NeutronBindBenchmark {
+
+   @Param({ "10", "1000", "50000" })
+   public int size;
+
+   private BindToJsonPayloadWrappedWith wrapWithPort;
+   private BindToJsonPayloadWrappedWith wrapWithPorts;
+   private HttpRequest createRequest;
+   private HttpRequest updateRequest;
+   private List<Port.CreatePort> createPorts;
+   private List<Port.UpdatePort> updatePorts;
+
+   @Setup(Level.Trial)
+   public void setup() {
+      Injector injector = NeutronInjector.create();
+      BindToJsonPayloadWrappedWith.Factory factory = injector.getInstance(BindToJsonPayloadWrappedWith.Factory.class);
+      wrapWithPort = factory.create("port");
+      wrapWithPorts = factory.create("ports");
+      createRequest = HttpRequest.builder().method("POST").endpoint("http://localhost:9696/v2.0/ports").build();
+      updateRequest = HttpRequest.builder().method("PUT")
+            .endpoint("http://localhost:9696/v2.0/ports/24e6637e-c521-45fc-8b8b-d7331aa3c99f").build();
+      createPorts = NeutronPayloads.createPorts(size);
+      updatePorts = NeutronPayloads.updatePorts(size);
+   }
+
+   /**
+    * Binds all ports as a single bulk create request.
+    */
+   @Benchmark
+   public HttpRequest bindCreateBulk() {
+      return wrapWithPorts.bindToRequest(createRequest, createPorts);
+   }
+
+   /**
+    * Binds one create request per port.
+    */
+   @Benchmark
+   public void bindCreate(Blackhole blackhole) {
+      for (Port.CreatePort port : createPorts) {
+         blackhole.consume(wrapWithPort.bindToRequest(createRequest, port));
+      }
+   }
+
+   /**
+    * Binds one update request per port.
+    */
+   @Benchmark
+   public void bindUpdate(Blackhole blackhole) {
+      for (Port.UpdatePort port : updatePorts) {
+         blackhole.consume(wrapWithPort.bindToRequest(updateRequest, port));
+      }
+   }
+}
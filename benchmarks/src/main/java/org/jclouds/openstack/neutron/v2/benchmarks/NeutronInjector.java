@@ -0,0 +1,40 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.neutron.v2.benchmarks;
+
+import org.jclouds.ContextBuilder;
+import org.jclouds.openstack.neutron.v2.NeutronApiMetadata;
+
+import com.google.inject.Injector;
+
+/**
+ * Builds the injector of a Neutron context, so benchmarks use the same Json, parsers and binders as a real api.
+ * <p/>
+ * No request is sent: the endpoint and credentials are never used.
+ */
+final class NeutronInjector {
+
+   private NeutronInjector() {
+   }
+
+   static Injector create() {
+      return ContextBuilder.newBuilder(new NeutronApiMetadata())
+            .endpoint("http://localhost:5000/v2.0/")
+            .credentials("tenant:user", "password")
+            .buildInjector();
+   }
+}
@@ -0,0 +1,151 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.neutron.v2.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jclouds.http.HttpResponse;
+import org.jclouds.openstack.neutron.v2.domain.FirewallRules;
+import org.jclouds.openstack.neutron.v2.domain.Networks;
+import org.jclouds.openstack.neutron.v2.domain.Ports;
+import org.jclouds.openstack.neutron.v2.domain.Rules;
+import org.jclouds.openstack.neutron.v2.domain.SecurityGroups;
+import org.jclouds.openstack.neutron.v2.domain.Subnets;
+import org.jclouds.openstack.neutron.v2.domain.lbaas.v1.Pools;
+import org.jclouds.openstack.neutron.v2.domain.lbaas.v1.VIPs;
+import org.jclouds.openstack.neutron.v2.functions.ParseFirewallRules;
+import org.jclouds.openstack.neutron.v2.functions.ParseNetworks;
+import org.jclouds.openstack.neutron.v2.functions.ParsePorts;
+import org.jclouds.openstack.neutron.v2.functions.ParseRules;
+import org.jclouds.openstack.neutron.v2.functions.ParseSecurityGroups;
+import org.jclouds.openstack.neutron.v2.functions.ParseSubnets;
+import org.jclouds.openstack.neutron.v2.functions.lbaas.v1.ParsePools;
+import org.jclouds.openstack.neutron.v2.functions.lbaas.v1.ParseVIPs;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.base.Charsets;
+import com.google.inject.Injector;
+
+/**
+ * Measures the response parsers of the Neutron list operations over synthetic responses.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NeutronParseBenchmark {
+
+   @Param({ "10", "1000", "50000" })
+   public int size;
+
+   private ParsePorts parsePorts;
+   private ParseNetworks parseNetworks;
+   private ParseSubnets parseSubnets;
+   private ParseSecurityGroups parseSecurityGroups;
+   private ParseRules parseRules;
+   private ParseFirewallRules parseFirewallRules;
+   private ParsePools parsePools;
+   private ParseVIPs parseVIPs;
+
+   private byte[] ports;
+   private byte[] networks;
+   private byte[] subnets;
+   private byte[] securityGroups;
+   private byte[] rules;
+   private byte[] firewallRules;
+   private byte[] pools;
+   private byte[] vips;
+
+   @Setup(Level.Trial)
+   public void setup() {
+      Injector injector = NeutronInjector.create();
+      parsePorts = injector.getInstance(ParsePorts.class);
+      parseNetworks = injector.getInstance(ParseNetworks.class);
+      parseSubnets = injector.getInstance(ParseSubnets.class);
+      parseSecurityGroups = injector.getInstance(ParseSecurityGroups.class);
+      parseRules = injector.getInstance(ParseRules.class);
+      parseFirewallRules = injector.getInstance(ParseFirewallRules.class);
+      parsePools = injector.getInstance(ParsePools.class);
+      parseVIPs = injector.getInstance(ParseVIPs.class);
+
+      ports = NeutronPayloads.ports(size).getBytes(Charsets.UTF_8);
+      networks = NeutronPayloads.networks(size).getBytes(Charsets.UTF_8);
+      subnets = NeutronPayloads.subnets(size).getBytes(Charsets.UTF_8);
+      securityGroups = NeutronPayloads.securityGroups(size).getBytes(Charsets.UTF_8);
+      rules = NeutronPayloads.rules(size).getBytes(Charsets.UTF_8);
+      firewallRules = NeutronPayloads.firewallRules(size).getBytes(Charsets.UTF_8);
+      pools = NeutronPayloads.pools(size).getBytes(Charsets.UTF_8);
+      vips = NeutronPayloads.vips(size).getBytes(Charsets.UTF_8);
+   }
+
+   @Benchmark
+   public Ports parsePorts() {
+      return parsePorts.apply(response(ports));
+   }
+
+   @Benchmark
+   public Networks parseNetworks() {
+      return parseNetworks.apply(response(networks));
+   }
+
+   @Benchmark
+   public Subnets parseSubnets() {
+      return parseSubnets.apply(response(subnets));
+   }
+
+   @Benchmark
+   public SecurityGroups parseSecurityGroups() {
+      return parseSecurityGroups.apply(response(securityGroups));
+   }
+
+   @Benchmark
+   public Rules parseRules() {
+      return parseRules.apply(response(rules));
+   }
+
+   @Benchmark
+   public FirewallRules parseFirewallRules() {
+      return parseFirewallRules.apply(response(firewallRules));
+   }
+
+   @Benchmark
+   public Pools parsePools() {
+      return parsePools.apply(response(pools));
+   }
+
+   @Benchmark
+   public VIPs parseVIPs() {
+      return parseVIPs.apply(response(vips));
+   }
+
+   private static HttpResponse response(byte[] body) {
+      return HttpResponse.builder().statusCode(200).message("OK").payload(body).build();
+   }
+}
@@ -0,0 +1,166 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.neutron.v2.benchmarks;
+
+import java.util.List;
+
+import org.jclouds.openstack.neutron.v2.domain.IP;
+import org.jclouds.openstack.neutron.v2.domain.Port;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+/**
+ * Builds synthetic Neutron list responses and request objects of a given size.
+ * <p/>
+ * The elements are modeled on the responses used by the mock tests of openstack-neutron, with every id made unique.
+ */
+public final class NeutronPayloads {
+
+   private static final String PORT = "{\"admin_state_up\": true, \"device_id\": \"%1$s\", \"device_owner\": \"compute:nova\","
+         + " \"fixed_ips\": [{\"ip_address\": \"10.0.%2$d.%3$d\", \"subnet_id\": \"22b44fc2-4ffb-4de4-b0f9-69d58b37ae27\"}],"
+         + " \"id\": \"%1$s\", \"mac_address\": \"fa:16:3e:0f:%2$02x:%3$02x\", \"name\": \"port-%4$d\","
+         + " \"network_id\": \"6aeaf34a-c482-4bd3-9dc3-7faf36412f12\", \"status\": \"ACTIVE\","
+         + " \"security_groups\": [\"85cc3048-abc3-43cc-89b3-377341426ac5\"], \"binding:vnic_type\": \"normal\","
+         + " \"tenant_id\": \"cf1a5775e766426cb1968766d0191908\"}";
+
+   private static final String NETWORK = "{\"admin_state_up\": true, \"id\": \"%1$s\", \"name\": \"network-%4$d\","
+         + " \"provider:network_type\": \"vxlan\", \"provider:segmentation_id\": %4$d, \"router:external\": false,"
+         + " \"shared\": false, \"status\": \"ACTIVE\", \"subnets\": [\"22b44fc2-4ffb-4de4-b0f9-69d58b37ae27\"],"
+         + " \"tenant_id\": \"cf1a5775e766426cb1968766d0191908\"}";
+
+   private static final String SUBNET = "{\"allocation_pools\": [{\"start\": \"10.%2$d.%3$d.2\", \"end\": \"10.%2$d.%3$d.254\"}],"
+         + " \"cidr\": \"10.%2$d.%3$d.0/24\", \"dns_nameservers\": [\"8.8.8.8\"], \"enable_dhcp\": true,"
+         + " \"gateway_ip\": \"10.%2$d.%3$d.1\", \"host_routes\": [], \"id\": \"%1$s\", \"ip_version\": 4,"
+         + " \"name\": \"subnet-%4$d\", \"network_id\": \"6aeaf34a-c482-4bd3-9dc3-7faf36412f12\","
+         + " \"tenant_id\": \"cf1a5775e766426cb1968766d0191908\"}";
+
+   private static final String RULE = "{\"direction\": \"ingress\", \"ethertype\": \"IPv4\", \"id\": \"%1$s\","
+         + " \"port_range_max\": %5$d, \"port_range_min\": %5$d, \"protocol\": \"tcp\", \"remote_group_id\": null,"
+         + " \"remote_ip_prefix\": \"10.%2$d.%3$d.0/24\", \"security_group_id\": \"85cc3048-abc3-43cc-89b3-377341426ac5\","
+         + " \"tenant_id\": \"e4f50856753b4dc6afee5fa6b9b6c550\"}";
+
+   private static final String SECURITY_GROUP = "{\"description\": \"group %4$d\", \"id\": \"%1$s\", \"name\": \"group-%4$d\","
+         + " \"security_group_rules\": [" + RULE + ", " + RULE + "], \"tenant_id\": \"e4f50856753b4dc6afee5fa6b9b6c550\"}";
+
+   private static final String FIREWALL_RULE = "{\"action\": \"allow\", \"description\": \"rule %4$d\","
+         + " \"destination_ip_address\": \"10.%2$d.%3$d.1\", \"destination_port\": \"%5$d\", \"enabled\": true,"
+         + " \"firewall_policy_id\": null, \"id\": \"%1$s\", \"ip_version\": 4, \"name\": \"fw-rule-%4$d\","
+         + " \"position\": null, \"protocol\": \"tcp\", \"shared\": false, \"source_ip_address\": null,"
+         + " \"source_port\": null, \"tenant_id\": \"3e00d5716204446c8d3c47a466eec25a\"}";
+
+   private static final String POOL = "{\"admin_state_up\": true, \"description\": \"\","
+         + " \"health_monitors\": [\"466c8345-28d8-4f84-a246-e04380b0461d\"],"
+         + " \"health_monitors_status\": [{\"monitor_id\": \"466c8345-28d8-4f84-a246-e04380b0461d\", \"status\": \"ACTIVE\"}],"
+         + " \"id\": \"%1$s\", \"lb_method\": \"ROUND_ROBIN\", \"members\": [\"701b531b-111a-4f21-ad85-4795b7b12af6\"],"
+         + " \"name\": \"pool-%4$d\", \"protocol\": \"HTTP\", \"status\": \"ACTIVE\","
+         + " \"subnet_id\": \"8032909d-47a1-4715-90af-5153ffe39861\", \"tenant_id\": \"83657cfcdfe44cd5920adaf26c48ceea\","
+         + " \"vip_id\": \"4ec89087-d057-4e2c-911f-60a3b47ee304\"}";
+
+   private static final String VIP = "{\"address\": \"10.%2$d.%3$d.10\", \"admin_state_up\": true, \"connection_limit\": 1000,"
+         + " \"description\": \"\", \"id\": \"%1$s\", \"name\": \"vip-%4$d\", \"pool_id\": \"72741b06-df4d-4715-b142-276b6bce75ab\","
+         + " \"port_id\": \"b5a743d6-056b-468b-862d-fb13a9aa694e\", \"protocol\": \"HTTP\", \"protocol_port\": %5$d,"
+         + " \"session_persistence\": {\"cookie_name\": \"MyAppCookie\", \"type\": \"APP_COOKIE\"}, \"status\": \"ACTIVE\","
+         + " \"subnet_id\": \"8032909d-47a1-4715-90af-5153ffe39861\", \"tenant_id\": \"83657cfcdfe44cd5920adaf26c48ceea\"}";
+
+   private NeutronPayloads() {
+   }
+
+   public static String ports(int count) {
+      return collection("ports", PORT, count);
+   }
+
+   public static String networks(int count) {
+      return collection("networks", NETWORK, count);
+   }
+
+   public static String subnets(int count) {
+      return collection("subnets", SUBNET, count);
+   }
+
+   public static String securityGroups(int count) {
+      return collection("security_groups", SECURITY_GROUP, count);
+   }
+
+   public static String rules(int count) {
+      return collection("security_group_rules", RULE, count);
+   }
+
+   public static String firewallRules(int count) {
+      return collection("firewall_rules", FIREWALL_RULE, count);
+   }
+
+   public static String pools(int count) {
+      return collection("pools", POOL, count);
+   }
+
+   public static String vips(int count) {
+      return collection("vips", VIP, count);
+   }
+
+   /**
+    * @return ports to create, each on its own fixed IP
+    */
+   public static List<Port.CreatePort> createPorts(int count) {
+      List<Port.CreatePort> ports = Lists.newArrayListWithCapacity(count);
+      for (int i = 0; i < count; i++) {
+         ports.add(Port.createBuilder("6aeaf34a-c482-4bd3-9dc3-7faf36412f12")
+               .name("port-" + i)
+               .adminStateUp(true)
+               .fixedIps(ImmutableSet.of(IP.builder().subnetId("22b44fc2-4ffb-4de4-b0f9-69d58b37ae27")
+                     .ipAddress(ipAddress(i)).build()))
+               .securityGroups(ImmutableSet.of("85cc3048-abc3-43cc-89b3-377341426ac5"))
+               .build());
+      }
+      return ports;
+   }
+
+   /**
+    * @return port updates, each renaming a port and moving it to a new fixed IP
+    */
+   public static List<Port.UpdatePort> updatePorts(int count) {
+      List<Port.UpdatePort> ports = Lists.newArrayListWithCapacity(count);
+      for (int i = 0; i < count; i++) {
+         ports.add(Port.updateBuilder()
+               .name("renamed-port-" + i)
+               .fixedIps(ImmutableSet.of(IP.builder().subnetId("22b44fc2-4ffb-4de4-b0f9-69d58b37ae27")
+                     .ipAddress(ipAddress(i)).build()))
+               .build());
+      }
+      return ports;
+   }
+
+   private static String ipAddress(int i) {
+      return "10." + ((i >> 16) & 0xff) + "." + ((i >> 8) & 0xff) + "." + (i & 0xff);
+   }
+
+   private static String collection(String key, String template, int count) {
+      StringBuilder json = new StringBuilder(count * template.length() + 64);
+      json.append("{\"").append(key).append("\": [");
+      for (int i = 0; i < count; i++) {
+         if (i > 0)
+            json.append(", ");
+         json.append(String.format(template, id(i), (i >> 8) & 0xff, i & 0xff, i, 1 + i % 65535));
+      }
+      json.append("], \"").append(key).append("_links\": []}");
+      return json.toString();
+   }
+
+   private static String id(int i) {
+      return String.format("%08x-0000-4000-8000-%012x", i, (long) i);
+   }
+}
@@ -20,22 +20,39 @@ package org.jclouds.openstack.glance.functions;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
+import static org.jclouds.openstack.glance.v1_0.config.GlanceProperties.VERSION_NEGOTIATION_CACHE_FILE;
+import static org.jclouds.openstack.glance.v1_0.config.GlanceProperties.VERSION_NEGOTIATION_FALLBACK;
+import static org.jclouds.openstack.glance.v1_0.config.GlanceProperties.VERSION_NEGOTIATION_FALLBACK_TTL;
+import static org.jclouds.openstack.glance.v1_0.config.GlanceProperties.VERSION_NEGOTIATION_TTL;
+import static org.jclouds.openstack.glance.v1_0.config.GlanceProperties.VERSION_NEGOTIATION_WARM_UP;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Pattern;
 
+import javax.annotation.Resource;
 import javax.inject.Inject;
+import javax.inject.Named;
 import javax.inject.Singleton;
 
+import org.jclouds.Constants;
 import org.jclouds.http.HttpRequest;
 import org.jclouds.json.Json;
 import org.jclouds.location.Region;
+import org.jclouds.logging.Logger;
 import org.jclouds.rest.HttpClient;
 import org.jclouds.rest.annotations.ApiVersion;
 import org.jclouds.util.Strings2;
@@ -49,7 +66,21 @@ import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Maps;
+import com.google.common.io.Closeables;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
 
+/**
+ * Resolves the endpoint of a region to the endpoint of the configured Glance API version, by asking the unversioned
+ * endpoint which versions it supports.
+ * <p/>
+ * Negotiated endpoints are cached. With {@link org.jclouds.openstack.glance.v1_0.config.GlanceProperties} they can
+ * also be persisted to a file shared by later processes, negotiated again in the background once they are older than
+ * a time to live, negotiated for all regions at once, and replaced by a fallback endpoint when negotiation fails. The
+ * age of an endpoint is counted from its negotiation, even by the processes reading it from the file, while a fallback
+ * endpoint is only kept until negotiation is tried again after a time to live of its own.
+ */
 @Singleton
 public class RegionToEndpointNegotiateVersion implements Function<Object, URI> {
 
@@ -70,57 +101,75 @@ public class RegionToEndpointNegotiateVersion implements Function<Object, URI> {
       public List<Version> versions;
    }
 
+   @Resource
+   protected Logger logger = Logger.NULL;
+
    private final Supplier<Map<String, Supplier<URI>>> regionToEndpointSupplier;
    private final String apiVersion;
-   private final LoadingCache<URI, URI> endpointCache;
+   private final HttpClient client;
+   private final Json json;
+   private final ListeningExecutorService userExecutor;
+   private final File cacheFile;
+   private final long ttlMillis;
+   private final boolean warmUp;
+   private final String fallback;
+   private final long fallbackTtlMillis;
+   private final AtomicBoolean warmedUp = new AtomicBoolean();
+   private final LoadingCache<URI, Endpoint> endpointCache;
 
    @Inject
    public RegionToEndpointNegotiateVersion(@Region Supplier<Map<String, Supplier<URI>>> regionToEndpointSupplier,
-         @ApiVersion String rawApiVersionString, final HttpClient client, final Json json) {
+         @ApiVersion String rawApiVersionString, final HttpClient client, final Json json,
+         @Named(Constants.PROPERTY_USER_THREADS) ListeningExecutorService userExecutor,
+         @Named(VERSION_NEGOTIATION_CACHE_FILE) String cacheFile, @Named(VERSION_NEGOTIATION_TTL) long ttlSeconds,
+         @Named(VERSION_NEGOTIATION_WARM_UP) boolean warmUp, @Named(VERSION_NEGOTIATION_FALLBACK) String fallback,
+         @Named(VERSION_NEGOTIATION_FALLBACK_TTL) long fallbackTtlSeconds) {
       this.regionToEndpointSupplier = checkNotNull(regionToEndpointSupplier, "regionToEndpointSupplier");
       if (!rawApiVersionString.startsWith("v")) {
          this.apiVersion = "v" + rawApiVersionString;
       } else {
          this.apiVersion = rawApiVersionString;
       }
-      this.endpointCache = CacheBuilder.newBuilder()
-         .build(
-            new CacheLoader<URI, URI>() {
-               public URI load(URI baseEndpointUri) {
+      this.client = checkNotNull(client, "client");
+      this.json = checkNotNull(json, "json");
+      this.userExecutor = checkNotNull(userExecutor, "userExecutor");
+      checkArgument(ttlSeconds >= 0, "%s must not be negative", VERSION_NEGOTIATION_TTL);
+      checkArgument(fallbackTtlSeconds >= 0, "%s must not be negative", VERSION_NEGOTIATION_FALLBACK_TTL);
+      this.cacheFile = cacheFile.isEmpty() ? null : new File(cacheFile);
+      this.ttlMillis = TimeUnit.SECONDS.toMillis(ttlSeconds);
+      this.warmUp = warmUp;
+      this.fallback = fallback;
+      this.fallbackTtlMillis = TimeUnit.SECONDS.toMillis(fallbackTtlSeconds);
+
+      // endpoints are refreshed by apply, as the time to live counts from the negotiation rather than the load
+      this.endpointCache = CacheBuilder.newBuilder().build(new CacheLoader<URI, Endpoint>() {
+         @Override
+         public Endpoint load(URI baseEndpointUri) {
+            return negotiateOrFallBack(baseEndpointUri);
+         }
+
+         /**
+          * Negotiates again off the calling thread, which keeps using the previous endpoint meanwhile. Should that fail,
+          * the previous endpoint is kept until negotiation is tried again after the time to live of a fallback, rather
+          * than on the next call.
+          */
+         @Override
+         public ListenableFuture<Endpoint> reload(final URI baseEndpointUri, final Endpoint oldValue) {
+            return RegionToEndpointNegotiateVersion.this.userExecutor.submit(new Callable<Endpoint>() {
+               @Override
+               public Endpoint call() {
                   try {
-                     List<String> baseEndpointPathParts = Splitter.on('/').omitEmptyStrings().splitToList(baseEndpointUri.getPath());
-                     if (!baseEndpointPathParts.isEmpty()
-                           && versionRegex.matcher(baseEndpointPathParts.get(baseEndpointPathParts.size() - 1)).matches()) {
-                        // Constructs a base URI Glance endpoint by stripping the version from the received URI
-                        baseEndpointUri = new URI(baseEndpointUri.getScheme(), baseEndpointUri.getUserInfo(),
-                           baseEndpointUri.getHost(), baseEndpointUri.getPort(),
-                           Joiner.on('/').join(baseEndpointPathParts.subList(0, baseEndpointPathParts.size() - 1)) + "/",
-                           baseEndpointUri.getQuery(), baseEndpointUri.getFragment());
-                     }
-
-                     HttpRequest negotiationRequest = HttpRequest.builder()
-                        .method("GET").endpoint(baseEndpointUri)
-                        .addHeader(VERSION_NEGOTIATION_HEADER, "true").build();
-                     InputStream response = client.invoke(negotiationRequest).getPayload().openStream();
-                     VersionsJsonResponse versions = json.fromJson(Strings2.toStringAndClose(response), VersionsJsonResponse.class);
-                     for (VersionsJsonResponse.Version version : versions.versions) {
-                        if (apiVersion.equals(version.id)) {
-                           // We only expect one element here, we'll get an exception here if that changes
-                           URI versionedEndpointUri = new URI(Iterables.getOnlyElement(version.links).href);
-                           return new URI(baseEndpointUri.getScheme(), versionedEndpointUri.getUserInfo(),
-                              versionedEndpointUri.getHost(), versionedEndpointUri.getPort(),
-                              versionedEndpointUri.getPath(), versionedEndpointUri.getQuery(),
-                              versionedEndpointUri.getFragment());
-                        }
-                     }
-                  } catch (URISyntaxException ex) {
-                     throw Throwables.propagate(ex);
-                  } catch (IOException ex) {
-                     throw Throwables.propagate(ex);
+                     return negotiateOrFallBack(baseEndpointUri);
+                  } catch (RuntimeException e) {
+                     logger.warn(e, "<< could not negotiate the glance endpoint of %s again, keeping %s",
+                           baseEndpointUri, oldValue.uri);
+                     return new Endpoint(oldValue.uri, System.currentTimeMillis() + fallbackTtlMillis);
                   }
-                  throw new UnsupportedOperationException("Glance endpoint does not support API version: " + apiVersion);
-              }
-         });
+               }
+            });
+         }
+      });
+      this.endpointCache.putAll(readCacheFile());
    }
 
    @Override
@@ -130,12 +179,189 @@ public class RegionToEndpointNegotiateVersion implements Function<Object, URI> {
       checkState(!regionToEndpoint.isEmpty(), "no region name to endpoint mappings configured!");
       checkArgument(regionToEndpoint.containsKey(from),
                "requested location %s, which is not in the configured locations: %s", from, regionToEndpoint);
+      if (warmUp && warmedUp.compareAndSet(false, true))
+         warmUp(regionToEndpoint);
       URI uri = regionToEndpointSupplier.get().get(from).get();
 
+      Endpoint endpoint;
       try {
-         return endpointCache.get(uri);
+         endpoint = endpointCache.get(uri);
       } catch (ExecutionException ex) {
          throw Throwables.propagate(ex);
       }
+      // a refresh already in progress is not started again
+      if (System.currentTimeMillis() >= endpoint.expiresAt)
+         endpointCache.refresh(uri);
+      return endpoint.uri;
     }
+
+   /**
+    * Starts negotiating the endpoints of all regions, so that they are ready by the time they are needed.
+    */
+   private void warmUp(Map<String, Supplier<URI>> regionToEndpoint) {
+      for (final Map.Entry<String, Supplier<URI>> region : regionToEndpoint.entrySet()) {
+         userExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+               try {
+                  endpointCache.getUnchecked(region.getValue().get());
+               } catch (RuntimeException e) {
+                  logger.warn(e, "<< could not negotiate the glance endpoint of region %s", region.getKey());
+               }
+            }
+         });
+      }
+   }
+
+   private Endpoint negotiateOrFallBack(URI baseEndpointUri) {
+      URI negotiated;
+      long now = System.currentTimeMillis();
+      try {
+         negotiated = negotiate(baseEndpointUri);
+      } catch (RuntimeException e) {
+         if (fallback.isEmpty())
+            throw e;
+         URI fallbackUri = stripVersion(baseEndpointUri).resolve(fallback);
+         logger.warn(e, "<< could not negotiate the glance endpoint of %s, falling back to %s", baseEndpointUri,
+               fallbackUri);
+         return new Endpoint(fallbackUri, now + fallbackTtlMillis);
+      }
+      writeCacheFile(baseEndpointUri, negotiated, now);
+      return negotiated(negotiated, now);
+   }
+
+   private Endpoint negotiated(URI uri, long negotiatedAt) {
+      return new Endpoint(uri, ttlMillis == 0 ? Long.MAX_VALUE : negotiatedAt + ttlMillis);
+   }
+
+   private URI negotiate(URI baseEndpointUri) {
+      try {
+         baseEndpointUri = stripVersion(baseEndpointUri);
+
+         HttpRequest negotiationRequest = HttpRequest.builder()
+            .method("GET").endpoint(baseEndpointUri)
+            .addHeader(VERSION_NEGOTIATION_HEADER, "true").build();
+         InputStream response = client.invoke(negotiationRequest).getPayload().openStream();
+         VersionsJsonResponse versions = json.fromJson(Strings2.toStringAndClose(response), VersionsJsonResponse.class);
+         for (VersionsJsonResponse.Version version : versions.versions) {
+            if (apiVersion.equals(version.id)) {
+               // We only expect one element here, we'll get an exception here if that changes
+               URI versionedEndpointUri = new URI(Iterables.getOnlyElement(version.links).href);
+               return new URI(baseEndpointUri.getScheme(), versionedEndpointUri.getUserInfo(),
+                  versionedEndpointUri.getHost(), versionedEndpointUri.getPort(),
+                  versionedEndpointUri.getPath(), versionedEndpointUri.getQuery(),
+                  versionedEndpointUri.getFragment());
+            }
+         }
+      } catch (URISyntaxException ex) {
+         throw Throwables.propagate(ex);
+      } catch (IOException ex) {
+         throw Throwables.propagate(ex);
+      }
+      throw new UnsupportedOperationException("Glance endpoint does not support API version: " + apiVersion);
+   }
+
+   /**
+    * Constructs a base URI Glance endpoint by stripping the version from the received URI
+    */
+   private static URI stripVersion(URI baseEndpointUri) {
+      List<String> baseEndpointPathParts = Splitter.on('/').omitEmptyStrings().splitToList(baseEndpointUri.getPath());
+      if (baseEndpointPathParts.isEmpty()
+            || !versionRegex.matcher(baseEndpointPathParts.get(baseEndpointPathParts.size() - 1)).matches())
+         return baseEndpointUri;
+      try {
+         return new URI(baseEndpointUri.getScheme(), baseEndpointUri.getUserInfo(),
+            baseEndpointUri.getHost(), baseEndpointUri.getPort(),
+            Joiner.on('/').join(baseEndpointPathParts.subList(0, baseEndpointPathParts.size() - 1)) + "/",
+            baseEndpointUri.getQuery(), baseEndpointUri.getFragment());
+      } catch (URISyntaxException ex) {
+         throw Throwables.propagate(ex);
+      }
+   }
+
+   /**
+    * Reads the endpoints negotiated by earlier processes for the same API version and still within their time to
+    * live. The file holds one entry per endpoint, keyed by the API version and the endpoint from the catalog, with the
+    * negotiated endpoint and the time of the negotiation as value.
+    */
+   private Map<URI, Endpoint> readCacheFile() {
+      Map<URI, Endpoint> endpoints = Maps.newHashMap();
+      if (cacheFile == null || !cacheFile.isFile())
+         return endpoints;
+      try {
+         Properties entries = load();
+         long now = System.currentTimeMillis();
+         for (String key : entries.stringPropertyNames()) {
+            List<String> keyParts = Splitter.on(' ').limit(2).splitToList(key);
+            List<String> valueParts = Splitter.on(' ').splitToList(entries.getProperty(key));
+            if (keyParts.size() != 2 || !keyParts.get(0).equals(apiVersion) || valueParts.size() != 2)
+               continue;
+            long negotiatedAt = Long.parseLong(valueParts.get(1));
+            if (ttlMillis == 0 || now - negotiatedAt < ttlMillis)
+               endpoints.put(new URI(keyParts.get(1)), negotiated(new URI(valueParts.get(0)), negotiatedAt));
+         }
+      } catch (IOException e) {
+         logger.warn(e, "<< could not read version negotiation cache %s", cacheFile);
+      } catch (URISyntaxException e) {
+         logger.warn(e, "<< ignoring corrupt version negotiation cache %s", cacheFile);
+      } catch (NumberFormatException e) {
+         logger.warn(e, "<< ignoring corrupt version negotiation cache %s", cacheFile);
+      }
+      return endpoints;
+   }
+
+   /**
+    * Adds an endpoint to the cache file. The file is rewritten through a temporary file, so that readers in other
+    * processes never see it half-written.
+    */
+   private void writeCacheFile(URI baseEndpointUri, URI negotiated, long negotiatedAt) {
+      if (cacheFile == null)
+         return;
+      synchronized (RegionToEndpointNegotiateVersion.class) {
+         try {
+            Properties entries = cacheFile.isFile() ? load() : new Properties();
+            entries.setProperty(apiVersion + " " + baseEndpointUri, negotiated + " " + negotiatedAt);
+            File parent = cacheFile.getAbsoluteFile().getParentFile();
+            if (!parent.isDirectory() && !parent.mkdirs())
+               throw new IOException("could not create directory " + parent);
+            File temp = File.createTempFile(cacheFile.getName(), ".tmp", parent);
+            OutputStream out = new FileOutputStream(temp);
+            try {
+               entries.store(out, "glance version negotiation cache");
+            } finally {
+               Closeables.close(out, false);
+            }
+            if (!temp.renameTo(cacheFile) && !(cacheFile.delete() && temp.renameTo(cacheFile))) {
+               temp.delete();
+               throw new IOException("could not replace " + cacheFile);
+            }
+         } catch (IOException e) {
+            logger.warn(e, "<< could not write version negotiation cache %s", cacheFile);
+         }
+      }
+   }
+
+   private Properties load() throws IOException {
+      Properties entries = new Properties();
+      InputStream in = new FileInputStream(cacheFile);
+      try {
+         entries.load(in);
+      } finally {
+         Closeables.close(in, true);
+      }
+      return entries;
+   }
+
+   /**
+    * An endpoint, and the time after which it is negotiated again.
+    */
+   private static final class Endpoint {
+      private final URI uri;
+      private final long expiresAt;
+
+      private Endpoint(URI uri, long expiresAt) {
+         this.uri = uri;
+         this.expiresAt = expiresAt;
+      }
+   }
 }
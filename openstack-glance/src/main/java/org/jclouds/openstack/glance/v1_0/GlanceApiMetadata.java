@@ -16,6 +16,11 @@
  */
 package org.jclouds.openstack.glance.v1_0;
 
+import static org.jclouds.openstack.glance.v1_0.config.GlanceProperties.VERSION_NEGOTIATION_CACHE_FILE;
+import static org.jclouds.openstack.glance.v1_0.config.GlanceProperties.VERSION_NEGOTIATION_FALLBACK;
+import static org.jclouds.openstack.glance.v1_0.config.GlanceProperties.VERSION_NEGOTIATION_FALLBACK_TTL;
+import static org.jclouds.openstack.glance.v1_0.config.GlanceProperties.VERSION_NEGOTIATION_TTL;
+import static org.jclouds.openstack.glance.v1_0.config.GlanceProperties.VERSION_NEGOTIATION_WARM_UP;
 import static org.jclouds.openstack.keystone.v2_0.config.KeystoneProperties.CREDENTIAL_TYPE;
 import static org.jclouds.openstack.keystone.v2_0.config.KeystoneProperties.SERVICE_TYPE;
 
@@ -58,6 +63,11 @@ public class GlanceApiMetadata extends BaseHttpApiMetadata<GlanceApi> {
       Properties properties = BaseHttpApiMetadata.defaultProperties();
       properties.setProperty(SERVICE_TYPE, ServiceType.IMAGE);
       properties.setProperty(CREDENTIAL_TYPE, CredentialTypes.PASSWORD_CREDENTIALS);
+      properties.setProperty(VERSION_NEGOTIATION_CACHE_FILE, "");
+      properties.setProperty(VERSION_NEGOTIATION_TTL, "0");
+      properties.setProperty(VERSION_NEGOTIATION_WARM_UP, "false");
+      properties.setProperty(VERSION_NEGOTIATION_FALLBACK, "");
+      properties.setProperty(VERSION_NEGOTIATION_FALLBACK_TTL, "60");
       return properties;
    }
 
@@ -0,0 +1,59 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.glance.v1_0.config;
+
+/**
+ * Configuration properties and constants used in Glance connections.
+ */
+public final class GlanceProperties {
+
+   /**
+    * A file the endpoints found by version negotiation are persisted to, so that later processes can skip the
+    * negotiation. Empty by default, which keeps them in memory only.
+    */
+   public static final String VERSION_NEGOTIATION_CACHE_FILE = "jclouds.glance.version-negotiation.cache-file";
+
+   /**
+    * The number of seconds after which a negotiated endpoint is negotiated again, in the background. Also the age
+    * beyond which endpoints persisted to the cache file are ignored. 0, the default, keeps endpoints forever.
+    */
+   public static final String VERSION_NEGOTIATION_TTL = "jclouds.glance.version-negotiation.ttl";
+
+   /**
+    * Whether the endpoints of all regions are negotiated concurrently as soon as the first one is needed. Defaults to
+    * false.
+    */
+   public static final String VERSION_NEGOTIATION_WARM_UP = "jclouds.glance.version-negotiation.warm-up";
+
+   /**
+    * The endpoint to use when version negotiation fails, resolved against the unversioned endpoint of the region, such
+    * as {@code v1.0/}. The fallback is never persisted, and is only used until negotiation is tried again, after
+    * {@link #VERSION_NEGOTIATION_FALLBACK_TTL}. Empty by default, in which case the failure is propagated.
+    */
+   public static final String VERSION_NEGOTIATION_FALLBACK = "jclouds.glance.version-negotiation.fallback";
+
+   /**
+    * The number of seconds after which negotiation is tried again, in the background, for an endpoint that fell back,
+    * or for one kept because negotiating it again failed. Defaults to 60, whatever the time to live of negotiated
+    * endpoints.
+    */
+   public static final String VERSION_NEGOTIATION_FALLBACK_TTL = "jclouds.glance.version-negotiation.fallback-ttl";
+
+   private GlanceProperties() {
+      throw new AssertionError("intentionally unimplemented");
+   }
+}
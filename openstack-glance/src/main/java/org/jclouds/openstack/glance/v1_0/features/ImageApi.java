@@ -37,6 +37,8 @@ import org.jclouds.Fallbacks.EmptyPagedIterableOnNotFoundOr404;
 import org.jclouds.Fallbacks.FalseOnNotFoundOr404;
 import org.jclouds.Fallbacks.NullOnNotFoundOr404;
 import org.jclouds.collect.PagedIterable;
+import org.jclouds.http.HttpResponse;
+import org.jclouds.http.options.GetOptions;
 import org.jclouds.io.Payload;
 import org.jclouds.javax.annotation.Nullable;
 import org.jclouds.openstack.glance.v1_0.domain.Image;
@@ -123,6 +125,18 @@ public interface ImageApi {
    @Nullable
    InputStream getAsStream(@PathParam("id") String id);
 
+   /**
+    * Returns the response carrying the image data for image with id, such as a byte range requested with
+    * {@link GetOptions#range(long, long)}. A server that does not support ranges answers with the whole image and
+    * status code 200 instead of 206. The caller must close the payload of the response.
+    */
+   @Named("image:getAsStream")
+   @GET
+   @Path("/{id}")
+   @Fallback(NullOnNotFoundOr404.class)
+   @Nullable
+   HttpResponse getAsResponse(@PathParam("id") String id, GetOptions options);
+
    /**
     * Creates a new image
     *
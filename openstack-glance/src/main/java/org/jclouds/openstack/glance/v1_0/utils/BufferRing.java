@@ -0,0 +1,202 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.glance.v1_0.utils;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.jclouds.javax.annotation.Nullable;
+
+import com.google.common.util.concurrent.RateLimiter;
+
+/**
+ * A fixed set of byte buffers, passed back and forth between one thread filling them from a stream and one thread
+ * reading them through {@link #getInput}.
+ * <p/>
+ * The writer blocks while all buffers are full and the reader blocks while all are empty, so at most the capacity of
+ * the ring is held in memory however large the stream is. Either side ending early, by a failure or by closing the
+ * input, makes the other side fail instead of waiting forever.
+ */
+final class BufferRing {
+
+   private static final Buffer END = new Buffer(0);
+
+   private final BlockingQueue<Buffer> empty;
+   private final BlockingQueue<Buffer> full;
+   private volatile boolean closed;
+   private volatile IOException failure;
+
+   BufferRing(int bufferCount, int bufferSize) {
+      checkArgument(bufferCount > 0, "bufferCount must be positive");
+      checkArgument(bufferSize > 0, "bufferSize must be positive");
+      empty = new ArrayBlockingQueue<Buffer>(bufferCount);
+      // one extra slot for the end of the stream
+      full = new ArrayBlockingQueue<Buffer>(bufferCount + 1);
+      for (int i = 0; i < bufferCount; i++) {
+         empty.add(new Buffer(bufferSize));
+      }
+   }
+
+   /**
+    * Copies a stream into the ring until it ends, then marks the end for the reader. The stream is not closed.
+    *
+    * @param limiter throttles the copy to its rate in bytes per second, if given
+    * @return the number of bytes copied
+    * @throws IOException if the stream fails, in which case the reader fails too, or the reader closed its input
+    */
+   long fill(InputStream in, @Nullable RateLimiter limiter) throws IOException {
+      long copied = 0;
+      try {
+         while (true) {
+            Buffer buffer = empty.take();
+            if (closed)
+               throw new IOException("reader closed the ring after " + copied + " bytes");
+            buffer.length = 0;
+            int read = 0;
+            while (buffer.length < buffer.bytes.length
+                  && (read = in.read(buffer.bytes, buffer.length, buffer.bytes.length - buffer.length)) != -1) {
+               buffer.length += read;
+            }
+            if (buffer.length > 0) {
+               if (limiter != null)
+                  limiter.acquire(buffer.length);
+               copied += buffer.length;
+               full.put(buffer);
+            } else {
+               empty.put(buffer);
+            }
+            if (read == -1) {
+               full.put(END);
+               return copied;
+            }
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         fail(new InterruptedIOException("interrupted after " + copied + " bytes"));
+         throw failure;
+      } catch (IOException e) {
+         fail(e);
+         throw e;
+      } catch (RuntimeException e) {
+         fail(new IOException(e));
+         throw e;
+      }
+   }
+
+   /**
+    * @param limiter throttles the reads to its rate in bytes per second, if given
+    * @return the stream reading the buffers in the order they were filled; only one stream may be read at a time
+    */
+   InputStream getInput(@Nullable RateLimiter limiter) {
+      return new RingInputStream(limiter);
+   }
+
+   private void fail(IOException e) {
+      failure = e;
+      // wake up a reader waiting for data
+      full.clear();
+      full.offer(END);
+   }
+
+   private static final class Buffer {
+      private final byte[] bytes;
+      private int length;
+
+      private Buffer(int size) {
+         this.bytes = new byte[size];
+      }
+   }
+
+   private final class RingInputStream extends InputStream {
+      private final RateLimiter limiter;
+      private Buffer current;
+      private int position;
+      private boolean ended;
+
+      private RingInputStream(@Nullable RateLimiter limiter) {
+         this.limiter = limiter;
+      }
+
+      @Override
+      public int read() throws IOException {
+         byte[] b = new byte[1];
+         int n = read(b, 0, 1);
+         return n == -1 ? -1 : b[0] & 0xff;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+         if (len == 0)
+            return 0;
+         if (!next())
+            return -1;
+         int n = Math.min(len, current.length - position);
+         System.arraycopy(current.bytes, position, b, off, n);
+         position += n;
+         return n;
+      }
+
+      /**
+       * @return whether there is data to read, waiting for the writer if needed
+       */
+      private boolean next() throws IOException {
+         if (ended)
+            return false;
+         if (current != null && position < current.length)
+            return true;
+         if (current != null) {
+            empty.offer(current);
+            current = null;
+         }
+         Buffer buffer;
+         try {
+            buffer = full.take();
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+         }
+         if (failure != null)
+            throw new IOException("writer failed", failure);
+         if (buffer == END) {
+            ended = true;
+            return false;
+         }
+         if (limiter != null)
+            limiter.acquire(buffer.length);
+         current = buffer;
+         position = 0;
+         return true;
+      }
+
+      @Override
+      public void close() {
+         if (!closed) {
+            closed = true;
+            // wake up a writer waiting for an empty buffer
+            if (current != null)
+               empty.offer(current);
+            current = null;
+            empty.offer(new Buffer(1));
+         }
+      }
+   }
+}
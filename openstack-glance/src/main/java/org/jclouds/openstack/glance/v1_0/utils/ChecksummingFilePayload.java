@@ -0,0 +1,119 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.glance.v1_0.utils;
+
+import static javax.ws.rs.core.MediaType.APPLICATION_OCTET_STREAM;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.jclouds.io.payloads.FilePayload;
+
+import com.google.common.base.Optional;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * A file payload that computes the MD5 of the file while it is sent.
+ * <p/>
+ * The content length is taken from the {@link FileChannel} of the file when the payload is created, so the file is
+ * read exactly once per request instead of once to checksum it and once to send it. Every stream opened reads the
+ * file from the start; the checksum becomes available once a stream has delivered the whole file.
+ */
+public class ChecksummingFilePayload extends FilePayload {
+
+   private volatile HashCode md5;
+
+   public ChecksummingFilePayload(File content) throws IOException {
+      super(content);
+      FileInputStream in = new FileInputStream(content);
+      try {
+         getContentMetadata().setContentLength(in.getChannel().size());
+      } finally {
+         in.close();
+      }
+      getContentMetadata().setContentType(APPLICATION_OCTET_STREAM);
+   }
+
+   @Override
+   public InputStream openStream() throws IOException {
+      return new ChecksummingInputStream(new FileInputStream(getRawContent()).getChannel());
+   }
+
+   /**
+    * @return the MD5 of the file as last sent, absent until a stream of this payload has delivered the
+    *         whole file
+    */
+   public Optional<HashCode> getMD5() {
+      return Optional.fromNullable(md5);
+   }
+
+   /**
+    * Reads the channel from its current position, hashing every byte on its way out.
+    */
+   private class ChecksummingInputStream extends InputStream {
+      private final FileChannel channel;
+      private final Hasher hasher = Hashing.md5().newHasher();
+      private final long size;
+      private long read;
+      private boolean hashed;
+
+      ChecksummingInputStream(FileChannel channel) throws IOException {
+         this.channel = channel;
+         this.size = channel.size();
+      }
+
+      @Override
+      public int read() throws IOException {
+         byte[] b = new byte[1];
+         int n = read(b, 0, 1);
+         return n == -1 ? -1 : b[0] & 0xff;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+         if (len == 0)
+            return 0;
+         int n = channel.read(ByteBuffer.wrap(b, off, len));
+         if (n > 0) {
+            hasher.putBytes(b, off, n);
+            read += n;
+         }
+         // only a stream that saw the whole file may publish its checksum
+         if (read == size && !hashed) {
+            md5 = hasher.hash();
+            hashed = true;
+         }
+         return n;
+      }
+
+      @Override
+      public int available() throws IOException {
+         return (int) Math.min(Integer.MAX_VALUE, Math.max(0, size - read));
+      }
+
+      @Override
+      public void close() throws IOException {
+         channel.close();
+      }
+   }
+}
@@ -0,0 +1,147 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.glance.v1_0.utils;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.List;
+
+import org.jclouds.openstack.glance.v1_0.domain.ImageDetails;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+
+/**
+ * The sidecar file of a resumable download, recording the byte ranges of the image that are safely on disk.
+ * <p/>
+ * The journal starts with the identity of the image and the segment size, so that a journal left behind by a
+ * different image, or by a download of a different version of it, is discarded rather than trusted. Each completed
+ * segment is appended as a {@code start-end} line once its bytes have been forced to disk. A line torn by a crash is
+ * ignored when the journal is read back, so its segment is simply fetched again.
+ */
+final class DownloadJournal implements Closeable {
+
+   private static final String VERSION = "glance-download-journal 1";
+
+   private final File file;
+   private final long segmentSize;
+   private final BitSet completed;
+   private final FileOutputStream out;
+
+   private DownloadJournal(File file, long segmentSize, BitSet completed, FileOutputStream out) {
+      this.file = file;
+      this.segmentSize = segmentSize;
+      this.completed = completed;
+      this.out = out;
+   }
+
+   /**
+    * @return the journal of a download of the image into the given file
+    */
+   static File journalFor(File destination) {
+      return new File(destination.getPath() + ".journal");
+   }
+
+   /**
+    * Opens the journal of a download, keeping the segments recorded by an earlier attempt if the journal belongs to the
+    * same image and the data file still has the size of the image, and starting a new journal otherwise.
+    */
+   static DownloadJournal open(File destination, ImageDetails details, long segmentSize) throws IOException {
+      File file = journalFor(checkNotNull(destination, "destination"));
+      List<String> header = header(details, segmentSize);
+      BitSet completed = new BitSet();
+      if (file.exists() && destination.length() == details.getSize().get()) {
+         List<String> lines = Files.readLines(file, Charsets.UTF_8);
+         if (lines.size() >= header.size() && lines.subList(0, header.size()).equals(header)) {
+            for (String line : lines.subList(header.size(), lines.size())) {
+               int segment = parseSegment(line, segmentSize, details.getSize().get());
+               if (segment >= 0)
+                  completed.set(segment);
+            }
+            return new DownloadJournal(file, segmentSize, completed, new FileOutputStream(file, true));
+         }
+      }
+      FileOutputStream out = new FileOutputStream(file, false);
+      out.write((Joiner.on('\n').join(header) + '\n').getBytes(Charsets.UTF_8));
+      out.getFD().sync();
+      return new DownloadJournal(file, segmentSize, completed, out);
+   }
+
+   /**
+    * @return the segments already on disk
+    */
+   synchronized BitSet getCompletedSegments() {
+      return (BitSet) completed.clone();
+   }
+
+   /**
+    * Records a segment whose bytes are already forced to disk.
+    */
+   synchronized void completed(int segment, long end) throws IOException {
+      out.write(((segment * segmentSize) + "-" + end + '\n').getBytes(Charsets.UTF_8));
+      out.getFD().sync();
+      completed.set(segment);
+   }
+
+   /**
+    * Closes and removes the journal, once the download is complete or cannot be resumed.
+    */
+   void delete() throws IOException {
+      close();
+      if (file.exists() && !file.delete())
+         throw new IOException("could not remove download journal " + file);
+   }
+
+   @Override
+   public void close() throws IOException {
+      out.close();
+   }
+
+   private static List<String> header(ImageDetails details, long segmentSize) {
+      return ImmutableList.of(VERSION,
+            "id=" + details.getId(),
+            "size=" + details.getSize().get(),
+            "checksum=" + details.getChecksum().or(""),
+            "updated_at=" + (details.getUpdatedAt() == null ? "" : details.getUpdatedAt().getTime()),
+            "segment_size=" + segmentSize);
+   }
+
+   /**
+    * @return the segment of a {@code start-end} line, or -1 if the line is not a whole segment
+    */
+   private static int parseSegment(String line, long segmentSize, long size) {
+      int dash = line.indexOf('-');
+      if (dash <= 0)
+         return -1;
+      try {
+         long start = Long.parseLong(line.substring(0, dash));
+         long end = Long.parseLong(line.substring(dash + 1));
+         if (start % segmentSize != 0 || end != Math.min(size, start + segmentSize) - 1)
+            return -1;
+         return (int) (start / segmentSize);
+      } catch (NumberFormatException e) {
+         return -1;
+      }
+   }
+}
@@ -0,0 +1,402 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.glance.v1_0.utils;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.Resource;
+
+import org.jclouds.logging.Logger;
+import org.jclouds.openstack.glance.v1_0.GlanceApi;
+import org.jclouds.openstack.glance.v1_0.domain.ImageDetails;
+import org.jclouds.rest.ResourceNotFoundException;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * A local cache of Glance image data, addressed by the checksum of the images.
+ * <p/>
+ * Every lookup revalidates the image with a {@code HEAD} request through {@link GlanceApi}, and the data is stored
+ * under the MD5 checksum Glance reports for it. Images that share their contents therefore share a single file, and
+ * an image whose data was replaced is simply found under a new key. Missing images are fetched with a
+ * {@link ParallelImageDownloader} into a partial file, which is renamed into place atomically once its checksum is
+ * verified; concurrent lookups of the same data wait for that one download rather than starting their own.
+ * <p/>
+ * The cache keeps the total size of its files under a limit by evicting the least recently used ones. An image is
+ * pinned, and never evicted, while a {@link CachedImage} handle to it is open. The partial file and journal of a
+ * download that failed are kept so that the next lookup resumes it, but count towards the limit and are evicted
+ * first, oldest first; so are those left in the directory by an earlier cache, while stray journals are removed.
+ */
+public class ImageCache {
+
+   private static final Pattern CHECKSUM = Pattern.compile("[0-9a-f]{32}");
+   private static final String PARTIAL = ".part";
+   private static final Pattern PARTIAL_FILE = Pattern.compile("([0-9a-f]{32})\\.part");
+   private static final Pattern PARTIAL_JOURNAL = Pattern.compile("([0-9a-f]{32})\\.part\\.journal");
+
+   @Resource
+   protected Logger logger = Logger.NULL;
+
+   private final GlanceApi api;
+   private final ParallelImageDownloader downloader;
+   private final File directory;
+   private final long maxSize;
+
+   // guarded by this
+   private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+   private final Map<String, SettableFuture<Void>> downloads = Maps.newHashMap();
+   // the size of the partial files and journals of failed downloads, oldest first
+   private final Map<String, Long> partials = Maps.newLinkedHashMap();
+   private long size;
+
+   /**
+    * Creates a cache over a directory, taking over the images already stored there.
+    *
+    * @param directory the directory holding the cached files; it is created if needed
+    * @param maxSize the number of bytes the cached files may take up, pinned images aside
+    */
+   public ImageCache(GlanceApi api, ParallelImageDownloader downloader, File directory, long maxSize)
+         throws IOException {
+      checkArgument(maxSize >= 0, "maxSize must not be negative");
+      this.api = checkNotNull(api, "api");
+      this.downloader = checkNotNull(downloader, "downloader");
+      this.directory = checkNotNull(directory, "directory");
+      this.maxSize = maxSize;
+      if (!directory.isDirectory() && !directory.mkdirs())
+         throw new IOException("could not create cache directory " + directory);
+      load();
+   }
+
+   /**
+    * Looks an image up, downloading its data if it is not cached yet. The image stays pinned in the cache until the
+    * returned handle is closed.
+    *
+    * @throws ResourceNotFoundException if there is no such image
+    * @throws IllegalStateException if Glance reports no, or an invalid, checksum for the image
+    * @throws IOException if the image could not be downloaded
+    */
+   public CachedImage open(String region, String imageId) throws IOException {
+      ImageDetails details = api.getImageApi(checkNotNull(region, "region")).get(checkNotNull(imageId, "imageId"));
+      if (details == null)
+         throw new ResourceNotFoundException("image " + imageId + " not found in region " + region);
+      checkState(details.getChecksum().isPresent(), "image %s has no checksum", imageId);
+      String key = details.getChecksum().get().toLowerCase(Locale.ENGLISH);
+      // the key names the cached files, so it must not reach outside the directory
+      checkState(CHECKSUM.matcher(key).matches(), "image %s has an invalid checksum %s", imageId, key);
+
+      while (true) {
+         SettableFuture<Void> download;
+         boolean leader = false;
+         synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+               entry.pins++;
+               return new CachedImage(key, entry.file, details);
+            }
+            download = downloads.get(key);
+            if (download == null) {
+               download = SettableFuture.create();
+               downloads.put(key, download);
+               leader = true;
+               // the download resumes from the partial file, which is no longer up for eviction meanwhile
+               Long kept = partials.remove(key);
+               if (kept != null)
+                  size -= kept;
+            }
+         }
+         if (leader)
+            return fetch(region, key, details, download);
+         try {
+            Uninterruptibles.getUninterruptibly(download);
+         } catch (ExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause(), IOException.class);
+            throw Throwables.propagate(e.getCause());
+         }
+         // the data may have been evicted again by now, in which case the next round downloads it anew
+      }
+   }
+
+   /**
+    * Copies the data of an image to a channel, straight from the cached file.
+    *
+    * @return the details of the image
+    * @see #open
+    */
+   public ImageDetails transferTo(String region, String imageId, WritableByteChannel target) throws IOException {
+      CachedImage image = open(region, imageId);
+      try {
+         image.transferTo(target);
+         return image.getDetails();
+      } finally {
+         image.close();
+      }
+   }
+
+   /**
+    * @return the number of bytes taken up by the cached files
+    */
+   public synchronized long size() {
+      return size;
+   }
+
+   /**
+    * @return whether the data with the given checksum is cached
+    */
+   public synchronized boolean contains(String checksum) {
+      return entries.containsKey(checksum.toLowerCase(Locale.ENGLISH));
+   }
+
+   private CachedImage fetch(String region, String key, ImageDetails details, SettableFuture<Void> download)
+         throws IOException {
+      File partial = new File(directory, key + PARTIAL);
+      File file = new File(directory, key);
+      try {
+         logger.debug(">> caching image %s as %s", details.getId(), key);
+         downloader.downloadResumable(region, details, partial);
+         // a rename within the directory publishes the complete file in one step
+         if (!partial.renameTo(file))
+            throw new IOException("could not rename " + partial + " to " + file);
+      } catch (IOException e) {
+         finish(key, download, e);
+         throw e;
+      } catch (RuntimeException e) {
+         finish(key, download, e);
+         throw e;
+      } catch (Error e) {
+         finish(key, download, e);
+         throw e;
+      }
+      synchronized (this) {
+         Entry entry = new Entry(file);
+         entry.pins++;
+         entries.put(key, entry);
+         size += entry.size;
+         evict();
+      }
+      finish(key, download, null);
+      return new CachedImage(key, file, details);
+   }
+
+   private void finish(String key, SettableFuture<Void> download, Throwable failure) {
+      synchronized (this) {
+         downloads.remove(key);
+         if (failure != null) {
+            keepPartial(key);
+            evict();
+         }
+      }
+      if (failure == null)
+         download.set(null);
+      else
+         download.setException(failure);
+   }
+
+   private synchronized void release(String key) {
+      Entry entry = entries.get(key);
+      if (entry != null && entry.pins > 0) {
+         entry.pins--;
+         evict();
+      }
+   }
+
+   /**
+    * Accounts for the partial file and journal a download of the data left behind, if any.
+    */
+   private void keepPartial(String key) {
+      File partial = new File(directory, key + PARTIAL);
+      long kept = partial.length() + DownloadJournal.journalFor(partial).length();
+      if (kept > 0) {
+         partials.put(key, kept);
+         size += kept;
+      }
+   }
+
+   /**
+    * Removes the partial files of failed downloads, then the least recently used files that are not pinned, until the
+    * cache fits its size limit.
+    */
+   private void evict() {
+      for (Iterator<Map.Entry<String, Long>> it = partials.entrySet().iterator(); size > maxSize && it.hasNext();) {
+         Map.Entry<String, Long> next = it.next();
+         it.remove();
+         size -= next.getValue();
+         File partial = new File(directory, next.getKey() + PARTIAL);
+         File journal = DownloadJournal.journalFor(partial);
+         if ((partial.exists() && !partial.delete()) || (journal.exists() && !journal.delete()))
+            logger.warn("<< could not remove partial download %s", partial);
+         else
+            logger.debug("<< evicted partial download %s", partial);
+      }
+      for (Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator(); size > maxSize && it.hasNext();) {
+         Map.Entry<String, Entry> next = it.next();
+         Entry entry = next.getValue();
+         if (entry.pins > 0)
+            continue;
+         it.remove();
+         size -= entry.size;
+         if (!entry.file.delete())
+            logger.warn("<< could not remove cached image %s", entry.file);
+         else
+            logger.debug("<< evicted cached image %s", next.getKey());
+      }
+   }
+
+   /**
+    * Indexes the files left by an earlier cache over the same directory, oldest first, including the partial files of
+    * its failed downloads. Journals without a partial file are removed.
+    */
+   private void load() {
+      File[] files = directory.listFiles();
+      if (files == null)
+         return;
+      Arrays.sort(files, new Comparator<File>() {
+         @Override
+         public int compare(File a, File b) {
+            return a.lastModified() < b.lastModified() ? -1 : a.lastModified() > b.lastModified() ? 1 : 0;
+         }
+      });
+      synchronized (this) {
+         for (File file : files) {
+            if (!file.isFile())
+               continue;
+            Matcher partial = PARTIAL_FILE.matcher(file.getName());
+            Matcher journal = PARTIAL_JOURNAL.matcher(file.getName());
+            if (CHECKSUM.matcher(file.getName()).matches()) {
+               Entry entry = new Entry(file);
+               entries.put(file.getName(), entry);
+               size += entry.size;
+            } else if (partial.matches()) {
+               keepPartial(partial.group(1));
+            } else if (journal.matches() && !new File(directory, journal.group(1) + PARTIAL).exists()) {
+               if (!file.delete())
+                  logger.warn("<< could not remove stray journal %s", file);
+            }
+         }
+         evict();
+      }
+   }
+
+   private static class Entry {
+      private final File file;
+      private final long size;
+      private int pins;
+
+      Entry(File file) {
+         this.file = file;
+         this.size = file.length();
+      }
+   }
+
+   /**
+    * An open handle to the cached data of an image. The data cannot be evicted before the handle is closed.
+    */
+   public class CachedImage implements Closeable {
+      private final String checksum;
+      private final File file;
+      private final ImageDetails details;
+      private boolean closed;
+
+      CachedImage(String checksum, File file, ImageDetails details) {
+         this.checksum = checksum;
+         this.file = file;
+         this.details = details;
+      }
+
+      /**
+       * @return the cached file; it must not be modified
+       */
+      public File getFile() {
+         return file;
+      }
+
+      /**
+       * @return the details of the image, as of the lookup
+       */
+      public ImageDetails getDetails() {
+         return details;
+      }
+
+      /**
+       * Copies the data to a channel with {@link FileChannel#transferTo}, letting the operating system move the bytes
+       * without passing them through the Java heap. Should the channel take no bytes, as a non-blocking one may, the
+       * rest is copied through a buffer instead.
+       *
+       * @return the number of bytes copied
+       */
+      public long transferTo(WritableByteChannel target) throws IOException {
+         checkState(!closed, "handle to image %s is closed", details.getId());
+         FileInputStream in = new FileInputStream(file);
+         try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            long position = 0;
+            while (position < size) {
+               long copied = channel.transferTo(position, size - position, target);
+               if (copied == 0) {
+                  // a stream over a non-blocking channel refuses to write rather than spinning here
+                  channel.position(position);
+                  return position + ByteStreams.copy(in, Channels.newOutputStream(target));
+               }
+               position += copied;
+            }
+            return position;
+         } finally {
+            in.close();
+         }
+      }
+
+      /**
+       * Unpins the image, making it eligible for eviction again.
+       */
+      @Override
+      public synchronized void close() {
+         if (!closed) {
+            closed = true;
+            release(checksum);
+         }
+      }
+
+      @Override
+      public String toString() {
+         return Objects.toStringHelper(this).add("id", details.getId()).add("checksum", checksum).toString();
+      }
+   }
+}
@@ -0,0 +1,382 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.glance.v1_0.utils;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.Closeable;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Resource;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.jclouds.Constants;
+import org.jclouds.javax.annotation.Nullable;
+import org.jclouds.logging.Logger;
+import org.jclouds.openstack.glance.v1_0.GlanceApi;
+import org.jclouds.openstack.glance.v1_0.domain.ContainerFormat;
+import org.jclouds.openstack.glance.v1_0.domain.DiskFormat;
+import org.jclouds.openstack.glance.v1_0.domain.Image.Status;
+import org.jclouds.openstack.glance.v1_0.domain.ImageDetails;
+import org.jclouds.openstack.glance.v1_0.features.ImageApi;
+import org.jclouds.openstack.glance.v1_0.options.ListImageOptions;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.SetMultimap;
+
+/**
+ * A local, indexed copy of the Glance image catalog, kept up to date incrementally.
+ * <p/>
+ * The first sync of a region lists all its images in detail. Every later sync only asks for the images changed since
+ * the most recent modification time seen so far, with {@link ListImageOptions#changesSince}, so that its cost follows
+ * the churn of the catalog rather than its size. Glance includes deleted images in such listings, which is how
+ * deletions reach the copy. Since Glance compares modification times in whole seconds, images changed in the last
+ * second of a sync are listed again by the next one; they only count as updated if their details differ.
+ * <p/>
+ * The copy can be queried by id, name, status, disk and container format and by property, or with any
+ * {@link ImageQuery} against the {@link ImageIndex} of a region, rebuilt on first use after a sync changed it. The changes of each sync
+ * are published to in-process listeners as an {@link ImageCatalogDelta}, the first sync publishing every image as
+ * created. A region that fails to sync keeps its copy and its high-water mark, and is retried on the next sync.
+ */
+@Singleton
+public class ImageCatalog implements Closeable {
+
+   @Resource
+   protected Logger logger = Logger.NULL;
+
+   private final GlanceApi api;
+   private final ScheduledExecutorService scheduler;
+   private final List<ImageCatalogListener> listeners = new CopyOnWriteArrayList<ImageCatalogListener>();
+   private final ConcurrentMap<String, RegionCatalog> regions = Maps.newConcurrentMap();
+   private ScheduledFuture<?> schedule;
+
+   @Inject
+   public ImageCatalog(GlanceApi api,
+         @Named(Constants.PROPERTY_SCHEDULER_THREADS) ScheduledExecutorService scheduler) {
+      this.api = checkNotNull(api, "api");
+      this.scheduler = checkNotNull(scheduler, "scheduler");
+   }
+
+   public void subscribe(ImageCatalogListener listener) {
+      listeners.add(checkNotNull(listener, "listener"));
+   }
+
+   public void unsubscribe(ImageCatalogListener listener) {
+      listeners.remove(listener);
+   }
+
+   /**
+    * Syncs on the scheduler until the catalog is closed, waiting {@code delay} between the end of a sync and the start
+    * of the next one.
+    */
+   public synchronized void start(long delay, TimeUnit unit) {
+      checkArgument(delay > 0, "delay must be positive");
+      checkState(schedule == null, "catalog is already started");
+      schedule = scheduler.scheduleWithFixedDelay(new Runnable() {
+         @Override
+         public void run() {
+            try {
+               sync();
+            } catch (RuntimeException e) {
+               logger.error(e, "<< failed to sync the glance image catalog");
+            }
+         }
+
+         @Override
+         public String toString() {
+            return "syncImageCatalog()";
+         }
+      }, 0, delay, unit);
+   }
+
+   /**
+    * Syncs all regions once, and publishes their changes before returning.
+    */
+   public synchronized void sync() {
+      for (String region : api.getConfiguredRegions()) {
+         ImageCatalogDelta delta;
+         try {
+            delta = sync(region);
+         } catch (RuntimeException e) {
+            logger.warn(e, "<< failed to sync images of region %s, keeping the previous copy", region);
+            continue;
+         }
+         if (!delta.isEmpty())
+            publish(delta);
+      }
+   }
+
+   @Override
+   public synchronized void close() {
+      if (schedule != null) {
+         schedule.cancel(false);
+         schedule = null;
+      }
+   }
+
+   /**
+    * @return the image with the given id, if the region has been synced and has such an image
+    */
+   public Optional<ImageDetails> get(String region, String id) {
+      return Optional.fromNullable(catalog(region).get(checkNotNull(id, "id")));
+   }
+
+   /**
+    * @return all images of the region
+    */
+   public List<ImageDetails> list(String region) {
+      return catalog(region).list();
+   }
+
+   public List<ImageDetails> findByName(String region, String name) {
+      return catalog(region).find(Index.NAME, checkNotNull(name, "name"));
+   }
+
+   public List<ImageDetails> findByStatus(String region, Status status) {
+      return catalog(region).find(Index.STATUS, checkNotNull(status, "status"));
+   }
+
+   public List<ImageDetails> findByDiskFormat(String region, DiskFormat diskFormat) {
+      return catalog(region).find(Index.DISK_FORMAT, checkNotNull(diskFormat, "diskFormat"));
+   }
+
+   public List<ImageDetails> findByContainerFormat(String region, ContainerFormat containerFormat) {
+      return catalog(region).find(Index.CONTAINER_FORMAT, checkNotNull(containerFormat, "containerFormat"));
+   }
+
+   /**
+    * @return the images of the region having a property with the given value
+    */
+   public List<ImageDetails> findByProperty(String region, String key, String value) {
+      return catalog(region).find(Index.PROPERTY, Maps.immutableEntry(checkNotNull(key, "key"),
+            checkNotNull(value, "value")));
+   }
+
+   /**
+    * @return an index of the images of the region, as of the last sync that changed them
+    */
+   public ImageIndex getIndex(String region) {
+      return catalog(region).index();
+   }
+
+   /**
+    * @return the images of the region matching the query, in the order they were first listed
+    */
+   public List<ImageDetails> find(String region, ImageQuery query) {
+      return getIndex(region).find(query);
+   }
+
+   /**
+    * @return the modification time the next sync of the region asks for changes from, absent before the first sync
+    */
+   public Optional<Date> getHighWaterMark(String region) {
+      return Optional.fromNullable(catalog(region).highWaterMark);
+   }
+
+   private ImageCatalogDelta sync(String region) {
+      RegionCatalog catalog = catalog(region);
+      Date since = catalog.highWaterMark;
+      ImageApi imageApi = api.getImageApi(region);
+
+      ListImageOptions options = new ListImageOptions();
+      if (since != null)
+         options.changesSince(since);
+      List<ImageDetails> changed = ImagePages.listInDetail(imageApi, options.buildQueryParameters());
+
+      logger.debug("<< %d images of region %s changed since %s", changed.size(), region, since);
+      return catalog.apply(changed);
+   }
+
+   private RegionCatalog catalog(String region) {
+      checkNotNull(region, "region");
+      RegionCatalog catalog = regions.get(region);
+      if (catalog == null) {
+         RegionCatalog created = new RegionCatalog(region);
+         catalog = regions.putIfAbsent(region, created);
+         if (catalog == null)
+            catalog = created;
+      }
+      return catalog;
+   }
+
+   private void publish(ImageCatalogDelta delta) {
+      for (ImageCatalogListener listener : listeners) {
+         try {
+            listener.onDelta(delta);
+         } catch (RuntimeException e) {
+            logger.error(e, "<< listener %s failed on %s", listener, delta);
+         }
+      }
+   }
+
+   private static boolean isDeleted(ImageDetails image) {
+      return image.getDeletedAt().isPresent() || image.getStatus() == Status.DELETED
+            || image.getStatus() == Status.PENDING_DELETE;
+   }
+
+   /**
+    * The attributes the copy of the catalog is indexed by.
+    */
+   private enum Index {
+      NAME {
+         @Override
+         void keys(ImageDetails image, Collection<Object> keys) {
+            if (image.getName() != null)
+               keys.add(image.getName());
+         }
+      },
+      STATUS {
+         @Override
+         void keys(ImageDetails image, Collection<Object> keys) {
+            keys.add(image.getStatus());
+         }
+      },
+      DISK_FORMAT {
+         @Override
+         void keys(ImageDetails image, Collection<Object> keys) {
+            keys.addAll(image.getDiskFormat().asSet());
+         }
+      },
+      CONTAINER_FORMAT {
+         @Override
+         void keys(ImageDetails image, Collection<Object> keys) {
+            keys.addAll(image.getContainerFormat().asSet());
+         }
+      },
+      PROPERTY {
+         @Override
+         void keys(ImageDetails image, Collection<Object> keys) {
+            keys.addAll(image.getProperties().entrySet());
+         }
+      };
+
+      abstract void keys(ImageDetails image, Collection<Object> keys);
+   }
+
+   /**
+    * The copy of the images of one region. Syncs replace images under the lock, so queries see whole syncs only.
+    */
+   private static final class RegionCatalog {
+      private final String region;
+      private final Map<String, ImageDetails> images = Maps.newLinkedHashMap();
+      private final Map<Index, SetMultimap<Object, String>> indexes = Maps.newEnumMap(Index.class);
+      private volatile Date highWaterMark;
+      private ImageIndex index;
+
+      private RegionCatalog(String region) {
+         this.region = region;
+         for (Index index : Index.values()) {
+            indexes.put(index, HashMultimap.<Object, String> create());
+         }
+      }
+
+      private synchronized ImageDetails get(String id) {
+         return images.get(id);
+      }
+
+      private synchronized List<ImageDetails> list() {
+         return ImmutableList.copyOf(images.values());
+      }
+
+      private synchronized List<ImageDetails> find(Index index, Object key) {
+         ImmutableList.Builder<ImageDetails> found = ImmutableList.builder();
+         for (String id : indexes.get(index).get(key)) {
+            found.add(images.get(id));
+         }
+         return found.build();
+      }
+
+      private synchronized ImageIndex index() {
+         if (index == null)
+            index = ImageIndex.of(images.values());
+         return index;
+      }
+
+      private synchronized ImageCatalogDelta apply(List<ImageDetails> changed) {
+         List<ImageDetails> created = Lists.newArrayList();
+         List<ImageDetails> updated = Lists.newArrayList();
+         List<ImageDetails> deleted = Lists.newArrayList();
+         Date mark = highWaterMark;
+         for (ImageDetails image : changed) {
+            mark = latest(mark, image.getUpdatedAt());
+            mark = latest(mark, image.getDeletedAt().orNull());
+            ImageDetails previous = images.get(image.getId());
+            if (isDeleted(image)) {
+               if (previous != null) {
+                  remove(previous);
+                  deleted.add(image);
+               }
+            } else if (previous == null) {
+               add(image);
+               created.add(image);
+            } else if (!previous.equals(image)) {
+               remove(previous);
+               add(image);
+               updated.add(image);
+            }
+         }
+         highWaterMark = mark;
+         if (!created.isEmpty() || !updated.isEmpty() || !deleted.isEmpty())
+            index = null;
+         return new ImageCatalogDelta(region, created, updated, deleted, mark);
+      }
+
+      private void add(ImageDetails image) {
+         images.put(image.getId(), image);
+         List<Object> keys = Lists.newArrayList();
+         for (Index index : Index.values()) {
+            keys.clear();
+            index.keys(image, keys);
+            for (Object key : keys) {
+               indexes.get(index).put(key, image.getId());
+            }
+         }
+      }
+
+      private void remove(ImageDetails image) {
+         images.remove(image.getId());
+         List<Object> keys = Lists.newArrayList();
+         for (Index index : Index.values()) {
+            keys.clear();
+            index.keys(image, keys);
+            for (Object key : keys) {
+               indexes.get(index).remove(key, image.getId());
+            }
+         }
+      }
+
+      private static Date latest(@Nullable Date mark, @Nullable Date date) {
+         return date == null || (mark != null && !date.after(mark)) ? mark : date;
+      }
+   }
+}
@@ -0,0 +1,124 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.glance.v1_0.utils;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Date;
+import java.util.List;
+
+import org.jclouds.javax.annotation.Nullable;
+import org.jclouds.openstack.glance.v1_0.domain.ImageDetails;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * The changes one sync of an {@link ImageCatalog} applied to the images of a region.
+ */
+public class ImageCatalogDelta {
+
+   private final String region;
+   private final List<ImageDetails> created;
+   private final List<ImageDetails> updated;
+   private final List<ImageDetails> deleted;
+   private final Date highWaterMark;
+
+   ImageCatalogDelta(String region, List<ImageDetails> created, List<ImageDetails> updated,
+         List<ImageDetails> deleted, @Nullable Date highWaterMark) {
+      this.region = checkNotNull(region, "region");
+      this.created = ImmutableList.copyOf(checkNotNull(created, "created"));
+      this.updated = ImmutableList.copyOf(checkNotNull(updated, "updated"));
+      this.deleted = ImmutableList.copyOf(checkNotNull(deleted, "deleted"));
+      this.highWaterMark = highWaterMark;
+   }
+
+   /**
+    * @return the region of the images
+    */
+   public String getRegion() {
+      return region;
+   }
+
+   /**
+    * @return the images that were not in the catalog before
+    */
+   public List<ImageDetails> getCreated() {
+      return created;
+   }
+
+   /**
+    * @return the images whose details changed, as they are now
+    */
+   public List<ImageDetails> getUpdated() {
+      return updated;
+   }
+
+   /**
+    * @return the images that were removed from the catalog, as last reported by Glance
+    */
+   public List<ImageDetails> getDeleted() {
+      return deleted;
+   }
+
+   /**
+    * @return the most recent modification time seen in the region, from which the next sync asks for changes
+    */
+   @Nullable
+   public Date getHighWaterMark() {
+      return highWaterMark;
+   }
+
+   /**
+    * @return whether the sync found nothing to change
+    */
+   public boolean isEmpty() {
+      return created.isEmpty() && updated.isEmpty() && deleted.isEmpty();
+   }
+
+   @Override
+   public boolean equals(Object o) {
+      if (this == o)
+         return true;
+      if (o == null || getClass() != o.getClass())
+         return false;
+
+      ImageCatalogDelta that = (ImageCatalogDelta) o;
+
+      return Objects.equal(this.region, that.region) &&
+            Objects.equal(this.created, that.created) &&
+            Objects.equal(this.updated, that.updated) &&
+            Objects.equal(this.deleted, that.deleted) &&
+            Objects.equal(this.highWaterMark, that.highWaterMark);
+   }
+
+   @Override
+   public int hashCode() {
+      return Objects.hashCode(region, created, updated, deleted, highWaterMark);
+   }
+
+   @Override
+   public String toString() {
+      return Objects.toStringHelper(this)
+            .add("region", region)
+            .add("created", created.size())
+            .add("updated", updated.size())
+            .add("deleted", deleted.size())
+            .add("highWaterMark", highWaterMark)
+            .toString();
+   }
+}
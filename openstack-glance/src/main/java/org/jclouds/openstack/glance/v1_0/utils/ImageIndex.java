@@ -0,0 +1,315 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.glance.v1_0.utils;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import org.jclouds.openstack.glance.v1_0.domain.ImageDetails;
+import org.jclouds.openstack.glance.v1_0.features.ImageApi;
+import org.jclouds.openstack.glance.v1_0.options.ImageField;
+import org.jclouds.openstack.glance.v1_0.options.ListImageOptions;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+
+/**
+ * An immutable, indexed snapshot of images, answering {@link ImageQuery queries} without going back to Glance.
+ * <p/>
+ * Images are numbered in the order they were given. Names, statuses, formats, owners, checksums, visibility and
+ * property values each have an inverted index from value to the set of images having it; size, minimum RAM, minimum
+ * disk and the creation and modification dates have a sorted index, so that a range is found by binary search.
+ * A query combines these sets with bitwise operations, so that it costs microseconds for thousands of images, however
+ * many predicates it has.
+ * <p/>
+ * Build an index once per listing and share it: it is safe for use by any number of threads. {@link ImageCatalog}
+ * keeps one per region, rebuilt only when a sync changes the region.
+ */
+public final class ImageIndex {
+
+   /**
+    * The fields with an inverted index, for {@link ImageQuery} term queries.
+    */
+   static final ImmutableSet<ImageField> TERM_FIELDS = ImmutableSet.of(ImageField.NAME, ImageField.STATUS,
+         ImageField.DISK_FORMAT, ImageField.CONTAINER_FORMAT, ImageField.OWNER, ImageField.CHECKSUM,
+         ImageField.IS_PUBLIC);
+
+   /**
+    * The fields with a sorted index, for range queries and sorting.
+    */
+   public static final ImmutableSet<ImageField> SORTED_FIELDS = ImmutableSet.of(ImageField.SIZE, ImageField.MIN_RAM,
+         ImageField.MIN_DISK, ImageField.CREATED_AT, ImageField.UPDATED_AT);
+
+   private final ImageDetails[] images;
+   private final Map<ImageField, Map<Object, BitSet>> terms = Maps.newEnumMap(ImageField.class);
+   private final Map<String, Map<String, BitSet>> properties = Maps.newHashMap();
+   private final Map<String, BitSet> propertyKeys = Maps.newHashMap();
+   private final Map<ImageField, SortedIndex> sorted = Maps.newEnumMap(ImageField.class);
+
+   private ImageIndex(List<ImageDetails> images) {
+      this.images = images.toArray(new ImageDetails[images.size()]);
+      for (ImageField field : TERM_FIELDS) {
+         terms.put(field, Maps.<Object, BitSet> newHashMap());
+      }
+      for (int i = 0; i < this.images.length; i++) {
+         ImageDetails image = this.images[i];
+         for (ImageField field : TERM_FIELDS) {
+            Object value = term(image, field);
+            if (value != null)
+               bits(terms.get(field), value).set(i);
+         }
+         for (Map.Entry<String, String> property : image.getProperties().entrySet()) {
+            String key = ImageQuery.normalize(property.getKey());
+            Map<String, BitSet> values = properties.get(key);
+            if (values == null) {
+               values = Maps.newHashMap();
+               properties.put(key, values);
+            }
+            bits(values, property.getValue()).set(i);
+            bits(propertyKeys, key).set(i);
+         }
+      }
+      for (ImageField field : SORTED_FIELDS) {
+         sorted.put(field, new SortedIndex(this.images, field));
+      }
+   }
+
+   /**
+    * @return an index of the given images
+    */
+   public static ImageIndex of(Iterable<ImageDetails> images) {
+      return new ImageIndex(ImmutableList.copyOf(images));
+   }
+
+   /**
+    * @return an index of the images listed in detail with the given options, following markers
+    */
+   public static ImageIndex of(ImageApi imageApi, ListImageOptions options) {
+      return of(ImagePages.listInDetail(checkNotNull(imageApi, "imageApi"),
+            checkNotNull(options, "options").buildQueryParameters()));
+   }
+
+   /**
+    * @return the number of images indexed
+    */
+   public int size() {
+      return images.length;
+   }
+
+   /**
+    * @return the images matching the query, in the order they were indexed
+    */
+   public List<ImageDetails> find(ImageQuery query) {
+      BitSet matching = checkNotNull(query, "query").evaluate(this);
+      ImmutableList.Builder<ImageDetails> found = ImmutableList.builder();
+      for (int i = matching.nextSetBit(0); i >= 0; i = matching.nextSetBit(i + 1)) {
+         found.add(images[i]);
+      }
+      return found.build();
+   }
+
+   /**
+    * @param sortKey one of {@link #SORTED_FIELDS}; images without a value for it, such as images without a size, are
+    *           sorted last whatever the direction
+    * @param limit the largest number of images returned
+    * @return the images matching the query, sorted
+    */
+   public List<ImageDetails> find(ImageQuery query, ImageField sortKey, boolean ascending, int limit) {
+      checkArgument(limit >= 0, "limit must not be negative");
+      SortedIndex index = sortedIndex(sortKey);
+      BitSet matching = checkNotNull(query, "query").evaluate(this);
+      ImmutableList.Builder<ImageDetails> found = ImmutableList.builder();
+      int count = 0;
+      for (int i = 0; i < index.positions.length && count < limit; i++) {
+         int position = index.positions[ascending ? i : index.positions.length - 1 - i];
+         if (matching.get(position)) {
+            found.add(images[position]);
+            count++;
+         }
+      }
+      for (int i = index.missing.nextSetBit(0); i >= 0 && count < limit; i = index.missing.nextSetBit(i + 1)) {
+         if (matching.get(i)) {
+            found.add(images[i]);
+            count++;
+         }
+      }
+      return found.build();
+   }
+
+   /**
+    * @return the number of images matching the query
+    */
+   public int count(ImageQuery query) {
+      return checkNotNull(query, "query").evaluate(this).cardinality();
+   }
+
+   BitSet all() {
+      BitSet all = new BitSet(images.length);
+      all.set(0, images.length);
+      return all;
+   }
+
+   BitSet term(ImageField field, Object value) {
+      checkArgument(TERM_FIELDS.contains(field), "%s is not indexed by value", field);
+      return copy(terms.get(field).get(value));
+   }
+
+   BitSet property(String key, String value) {
+      Map<String, BitSet> values = properties.get(key);
+      return copy(values == null ? null : values.get(value));
+   }
+
+   BitSet property(String key) {
+      return copy(propertyKeys.get(key));
+   }
+
+   BitSet range(ImageField field, long lower, long upper) {
+      return sortedIndex(field).range(lower, upper);
+   }
+
+   private SortedIndex sortedIndex(ImageField field) {
+      checkArgument(SORTED_FIELDS.contains(checkNotNull(field, "field")), "%s is not sorted", field);
+      return sorted.get(field);
+   }
+
+   private static Object term(ImageDetails image, ImageField field) {
+      switch (field) {
+         case NAME:
+            return image.getName();
+         case STATUS:
+            return image.getStatus();
+         case DISK_FORMAT:
+            return image.getDiskFormat().orNull();
+         case CONTAINER_FORMAT:
+            return image.getContainerFormat().orNull();
+         case OWNER:
+            return image.getOwner().orNull();
+         case CHECKSUM:
+            return image.getChecksum().orNull();
+         case IS_PUBLIC:
+            return image.isPublic();
+         default:
+            throw new IllegalArgumentException(field + " is not indexed by value");
+      }
+   }
+
+   private static <K> BitSet bits(Map<K, BitSet> index, K key) {
+      BitSet bits = index.get(key);
+      if (bits == null) {
+         bits = new BitSet();
+         index.put(key, bits);
+      }
+      return bits;
+   }
+
+   private static BitSet copy(BitSet bits) {
+      return bits == null ? new BitSet() : (BitSet) bits.clone();
+   }
+
+   @Override
+   public String toString() {
+      return Objects.toStringHelper(this).add("size", images.length).add("properties", properties.keySet())
+            .toString();
+   }
+
+   /**
+    * The positions of the images having a value for a field, sorted by that value, and the positions of those that
+    * have none.
+    */
+   private static final class SortedIndex {
+      private final long[] values;
+      private final int[] positions;
+      private final BitSet missing = new BitSet();
+
+      private SortedIndex(final ImageDetails[] images, ImageField field) {
+         final Long[] byPosition = new Long[images.length];
+         Integer[] present = new Integer[images.length];
+         int count = 0;
+         for (int i = 0; i < images.length; i++) {
+            byPosition[i] = value(images[i], field);
+            if (byPosition[i] == null)
+               missing.set(i);
+            else
+               present[count++] = i;
+         }
+         Arrays.sort(present, 0, count, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+               int order = byPosition[a].compareTo(byPosition[b]);
+               return order != 0 ? order : a.compareTo(b);
+            }
+         });
+         this.values = new long[count];
+         this.positions = new int[count];
+         for (int i = 0; i < count; i++) {
+            positions[i] = present[i];
+            values[i] = byPosition[present[i]];
+         }
+      }
+
+      private BitSet range(long lower, long upper) {
+         BitSet matching = new BitSet();
+         if (lower > upper)
+            return matching;
+         for (int i = firstAtLeast(lower); i < values.length && values[i] <= upper; i++) {
+            matching.set(positions[i]);
+         }
+         return matching;
+      }
+
+      /**
+       * @return the first index whose value is at least the given one, or the number of values if there is none
+       */
+      private int firstAtLeast(long value) {
+         int low = 0;
+         int high = values.length;
+         while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (values[middle] < value)
+               low = middle + 1;
+            else
+               high = middle;
+         }
+         return low;
+      }
+
+      private static Long value(ImageDetails image, ImageField field) {
+         switch (field) {
+            case SIZE:
+               return image.getSize().orNull();
+            case MIN_RAM:
+               return image.getMinRam();
+            case MIN_DISK:
+               return image.getMinDisk();
+            case CREATED_AT:
+               return image.getCreatedAt().getTime();
+            case UPDATED_AT:
+               return image.getUpdatedAt().getTime();
+            default:
+               throw new IllegalArgumentException(field + " is not sorted");
+         }
+      }
+   }
+}
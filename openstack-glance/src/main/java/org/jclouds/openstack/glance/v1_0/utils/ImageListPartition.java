@@ -0,0 +1,135 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.glance.v1_0.utils;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+
+import org.jclouds.openstack.glance.v1_0.domain.ContainerFormat;
+import org.jclouds.openstack.glance.v1_0.domain.DiskFormat;
+import org.jclouds.openstack.glance.v1_0.domain.Image.Status;
+import org.jclouds.openstack.glance.v1_0.options.ListImageOptions;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Multimap;
+
+/**
+ * Splits an image listing into slices that can be listed independently, each with its own query parameters.
+ * <p/>
+ * A listing split by a partition only returns the images of its slices: images whose status or format is not among
+ * the values of the partition are not listed at all.
+ *
+ * @see PartitionedImageLister
+ */
+public final class ImageListPartition {
+
+   private final String name;
+   private final List<Multimap<String, String>> slices;
+
+   private ImageListPartition(String name, List<ListImageOptions> slices) {
+      checkArgument(!slices.isEmpty(), "a partition needs at least one slice");
+      this.name = name;
+      ImmutableList.Builder<Multimap<String, String>> parameters = ImmutableList.builder();
+      for (ListImageOptions slice : slices) {
+         parameters.add(slice.buildQueryParameters());
+      }
+      this.slices = parameters.build();
+   }
+
+   /**
+    * @return one slice per status, or per status known to jclouds if none is given
+    */
+   public static ImageListPartition byStatus(Status... statuses) {
+      ImmutableList.Builder<ListImageOptions> slices = ImmutableList.builder();
+      for (Status status : statuses.length > 0 ? Arrays.asList(statuses) : known(Status.class, Status.UNRECOGNIZED)) {
+         slices.add(new ListImageOptions().status(status));
+      }
+      return new ImageListPartition("status", slices.build());
+   }
+
+   /**
+    * @return one slice per disk format, or per disk format known to jclouds if none is given
+    */
+   public static ImageListPartition byDiskFormat(DiskFormat... diskFormats) {
+      ImmutableList.Builder<ListImageOptions> slices = ImmutableList.builder();
+      for (DiskFormat diskFormat : diskFormats.length > 0 ? Arrays.asList(diskFormats)
+            : known(DiskFormat.class, DiskFormat.UNRECOGNIZED)) {
+         slices.add(new ListImageOptions().diskFormat(diskFormat));
+      }
+      return new ImageListPartition("diskFormat", slices.build());
+   }
+
+   /**
+    * @return one slice per container format, or per container format known to jclouds if none is given
+    */
+   public static ImageListPartition byContainerFormat(ContainerFormat... containerFormats) {
+      ImmutableList.Builder<ListImageOptions> slices = ImmutableList.builder();
+      for (ContainerFormat containerFormat : containerFormats.length > 0 ? Arrays.asList(containerFormats)
+            : known(ContainerFormat.class, ContainerFormat.UNRECOGNIZED)) {
+         slices.add(new ListImageOptions().containerFormat(containerFormat));
+      }
+      return new ImageListPartition("containerFormat", slices.build());
+   }
+
+   /**
+    * Splits by size at the given boundaries, so that {@code bySize(1024, 4096)} lists the images smaller than 1024
+    * bytes, those from 1024 to 4095 bytes and those of 4096 bytes or more separately.
+    */
+   public static ImageListPartition bySize(long... boundaries) {
+      checkArgument(boundaries.length > 0, "at least one boundary is needed");
+      ImmutableList.Builder<ListImageOptions> slices = ImmutableList.builder();
+      long previous = 0;
+      for (long boundary : boundaries) {
+         checkArgument(boundary > previous, "boundaries must be positive and ascending");
+         slices.add(new ListImageOptions().minSize(previous).maxSize(boundary - 1));
+         previous = boundary;
+      }
+      slices.add(new ListImageOptions().minSize(previous));
+      return new ImageListPartition("size", slices.build());
+   }
+
+   /**
+    * @return a partition into arbitrary slices; they should not overlap, although images listed by several slices are
+    *         only returned once
+    */
+   public static ImageListPartition of(ListImageOptions... slices) {
+      return new ImageListPartition("custom", ImmutableList.copyOf(checkNotNull(slices, "slices")));
+   }
+
+   /**
+    * @return the query parameters of each slice
+    */
+   List<Multimap<String, String>> getSlices() {
+      return slices;
+   }
+
+   private static <E extends Enum<E>> EnumSet<E> known(Class<E> type, E unrecognized) {
+      EnumSet<E> values = EnumSet.allOf(type);
+      values.remove(unrecognized);
+      return values;
+   }
+
+   @Override
+   public String toString() {
+      return Objects.toStringHelper(this).add("name", name).add("slices", slices.size()).toString();
+   }
+}
@@ -0,0 +1,62 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.glance.v1_0.utils;
+
+import static com.google.common.collect.Iterables.getOnlyElement;
+
+import java.util.List;
+
+import org.jclouds.openstack.glance.v1_0.domain.ImageDetails;
+import org.jclouds.openstack.glance.v1_0.features.ImageApi;
+import org.jclouds.openstack.glance.v1_0.options.ListImageOptions;
+import org.jclouds.openstack.v2_0.domain.PaginatedCollection;
+import org.jclouds.openstack.v2_0.options.PaginationOptions;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
+
+/**
+ * Follows the markers of a detailed image listing.
+ */
+final class ImagePages {
+
+   private ImagePages() {
+   }
+
+   /**
+    * @param parameters the query parameters of every page, such as those of {@link ListImageOptions}
+    * @return the images of all pages, in the order they were listed
+    */
+   static List<ImageDetails> listInDetail(ImageApi imageApi, Multimap<String, String> parameters) {
+      List<ImageDetails> images = Lists.newArrayList();
+      String marker = null;
+      do {
+         ListImageOptions options = new ListImageOptions();
+         options.queryParameters(parameters);
+         if (marker != null)
+            options.marker(marker);
+         PaginatedCollection<ImageDetails> page = imageApi.listInDetail(options);
+         Iterables.addAll(images, page);
+         Optional<Object> next = page.nextMarker();
+         marker = next.isPresent() ? getOnlyElement(
+               PaginationOptions.class.cast(next.get()).buildQueryParameters().get("marker"), null) : null;
+      } while (marker != null);
+      return images;
+   }
+}
@@ -0,0 +1,277 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.glance.v1_0.utils;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.BitSet;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import org.jclouds.openstack.glance.v1_0.domain.ContainerFormat;
+import org.jclouds.openstack.glance.v1_0.domain.DiskFormat;
+import org.jclouds.openstack.glance.v1_0.domain.Image.Status;
+import org.jclouds.openstack.glance.v1_0.options.ImageField;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.BoundType;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Range;
+
+/**
+ * A predicate on images, evaluated against the indexes of an {@link ImageIndex} rather than image by image.
+ * <p/>
+ * Queries are built from the static factories and combined with {@link #and}, {@link #or} and {@link #not}:
+ *
+ * <pre>
+ * ImageQuery query = and(status(Status.ACTIVE), property(&quot;os_distro&quot;, &quot;ubuntu&quot;),
+ *       minRam(Range.atMost(2048L)), not(property(&quot;deprecated&quot;, &quot;true&quot;)));
+ * </pre>
+ *
+ * Property keys are matched regardless of case, like Glance does; values and names must match exactly. Images without
+ * a size never match a size range. Queries are immutable and can be evaluated against any number of indexes.
+ */
+public abstract class ImageQuery {
+
+   ImageQuery() {
+   }
+
+   /**
+    * @return the positions in the index of the images matching the query, in a set the caller may modify
+    */
+   abstract BitSet evaluate(ImageIndex index);
+
+   /**
+    * @return a query matching every image
+    */
+   public static ImageQuery all() {
+      return new ImageQuery() {
+         @Override
+         BitSet evaluate(ImageIndex index) {
+            return index.all();
+         }
+
+         @Override
+         public String toString() {
+            return "all()";
+         }
+      };
+   }
+
+   public static ImageQuery name(String name) {
+      return term(ImageField.NAME, checkNotNull(name, "name"));
+   }
+
+   public static ImageQuery status(Status status) {
+      return term(ImageField.STATUS, checkNotNull(status, "status"));
+   }
+
+   public static ImageQuery diskFormat(DiskFormat diskFormat) {
+      return term(ImageField.DISK_FORMAT, checkNotNull(diskFormat, "diskFormat"));
+   }
+
+   public static ImageQuery containerFormat(ContainerFormat containerFormat) {
+      return term(ImageField.CONTAINER_FORMAT, checkNotNull(containerFormat, "containerFormat"));
+   }
+
+   public static ImageQuery owner(String owner) {
+      return term(ImageField.OWNER, checkNotNull(owner, "owner"));
+   }
+
+   public static ImageQuery checksum(String checksum) {
+      return term(ImageField.CHECKSUM, checkNotNull(checksum, "checksum"));
+   }
+
+   public static ImageQuery isPublic(boolean isPublic) {
+      return term(ImageField.IS_PUBLIC, isPublic);
+   }
+
+   /**
+    * @return a query matching the images having the property with the given value
+    */
+   public static ImageQuery property(String key, final String value) {
+      final String normalized = normalize(key);
+      checkNotNull(value, "value");
+      return new ImageQuery() {
+         @Override
+         BitSet evaluate(ImageIndex index) {
+            return index.property(normalized, value);
+         }
+
+         @Override
+         public String toString() {
+            return "property(" + normalized + "=" + value + ")";
+         }
+      };
+   }
+
+   /**
+    * @return a query matching the images having the property, whatever its value
+    */
+   public static ImageQuery hasProperty(String key) {
+      final String normalized = normalize(key);
+      return new ImageQuery() {
+         @Override
+         BitSet evaluate(ImageIndex index) {
+            return index.property(normalized);
+         }
+
+         @Override
+         public String toString() {
+            return "hasProperty(" + normalized + ")";
+         }
+      };
+   }
+
+   public static ImageQuery size(Range<Long> range) {
+      return range(ImageField.SIZE, range);
+   }
+
+   public static ImageQuery minRam(Range<Long> range) {
+      return range(ImageField.MIN_RAM, range);
+   }
+
+   public static ImageQuery minDisk(Range<Long> range) {
+      return range(ImageField.MIN_DISK, range);
+   }
+
+   public static ImageQuery createdAt(Range<Date> range) {
+      return range(ImageField.CREATED_AT, toMillis(range));
+   }
+
+   public static ImageQuery updatedAt(Range<Date> range) {
+      return range(ImageField.UPDATED_AT, toMillis(range));
+   }
+
+   /**
+    * @return a query matching the images matching all the given queries
+    */
+   public static ImageQuery and(ImageQuery... queries) {
+      final List<ImageQuery> operands = operands(queries);
+      return new ImageQuery() {
+         @Override
+         BitSet evaluate(ImageIndex index) {
+            BitSet matching = operands.get(0).evaluate(index);
+            for (int i = 1; i < operands.size() && !matching.isEmpty(); i++) {
+               matching.and(operands.get(i).evaluate(index));
+            }
+            return matching;
+         }
+
+         @Override
+         public String toString() {
+            return "and(" + Joiner.on(", ").join(operands) + ")";
+         }
+      };
+   }
+
+   /**
+    * @return a query matching the images matching any of the given queries
+    */
+   public static ImageQuery or(ImageQuery... queries) {
+      final List<ImageQuery> operands = operands(queries);
+      return new ImageQuery() {
+         @Override
+         BitSet evaluate(ImageIndex index) {
+            BitSet matching = operands.get(0).evaluate(index);
+            for (int i = 1; i < operands.size(); i++) {
+               matching.or(operands.get(i).evaluate(index));
+            }
+            return matching;
+         }
+
+         @Override
+         public String toString() {
+            return "or(" + Joiner.on(", ").join(operands) + ")";
+         }
+      };
+   }
+
+   /**
+    * @return a query matching the images not matching the given query
+    */
+   public static ImageQuery not(final ImageQuery query) {
+      checkNotNull(query, "query");
+      return new ImageQuery() {
+         @Override
+         BitSet evaluate(ImageIndex index) {
+            BitSet matching = index.all();
+            matching.andNot(query.evaluate(index));
+            return matching;
+         }
+
+         @Override
+         public String toString() {
+            return "not(" + query + ")";
+         }
+      };
+   }
+
+   private static ImageQuery term(final ImageField field, final Object value) {
+      return new ImageQuery() {
+         @Override
+         BitSet evaluate(ImageIndex index) {
+            return index.term(field, value);
+         }
+
+         @Override
+         public String toString() {
+            return field.asParam() + "(" + value + ")";
+         }
+      };
+   }
+
+   private static ImageQuery range(final ImageField field, final Range<Long> range) {
+      checkNotNull(range, "range");
+      final long lower = !range.hasLowerBound() ? Long.MIN_VALUE
+            : range.lowerBoundType() == BoundType.CLOSED ? range.lowerEndpoint() : range.lowerEndpoint() + 1;
+      final long upper = !range.hasUpperBound() ? Long.MAX_VALUE
+            : range.upperBoundType() == BoundType.CLOSED ? range.upperEndpoint() : range.upperEndpoint() - 1;
+      return new ImageQuery() {
+         @Override
+         BitSet evaluate(ImageIndex index) {
+            return index.range(field, lower, upper);
+         }
+
+         @Override
+         public String toString() {
+            return field.asParam() + range;
+         }
+      };
+   }
+
+   private static Range<Long> toMillis(Range<Date> range) {
+      checkNotNull(range, "range");
+      Range<Long> millis = Range.all();
+      if (range.hasLowerBound())
+         millis = millis.intersection(Range.downTo(range.lowerEndpoint().getTime(), range.lowerBoundType()));
+      if (range.hasUpperBound())
+         millis = millis.intersection(Range.upTo(range.upperEndpoint().getTime(), range.upperBoundType()));
+      return millis;
+   }
+
+   private static List<ImageQuery> operands(ImageQuery... queries) {
+      checkArgument(queries.length > 0, "at least one query is needed");
+      return ImmutableList.copyOf(queries);
+   }
+
+   static String normalize(String key) {
+      return checkNotNull(key, "key").toLowerCase(Locale.ENGLISH);
+   }
+}
@@ -0,0 +1,437 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.glance.v1_0.utils;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.jclouds.util.Closeables2.closeQuietly;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.jclouds.Constants;
+import org.jclouds.io.payloads.InputStreamPayload;
+import org.jclouds.javax.annotation.Nullable;
+import org.jclouds.logging.Logger;
+import org.jclouds.openstack.glance.v1_0.GlanceApi;
+import org.jclouds.openstack.glance.v1_0.domain.ImageDetails;
+import org.jclouds.openstack.glance.v1_0.options.CreateImageOptions;
+import org.jclouds.rest.ResourceNotFoundException;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
+import com.google.common.collect.Sets;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Copies Glance images from one region to another without staging them on disk.
+ * <p/>
+ * The image data is downloaded with {@code getAsStream} from the source region into a small ring of buffers, from
+ * which the upload to the target region reads concurrently, so that memory use per image is bounded by the ring. The
+ * new image is created with the name, formats, size, visibility, requirements, owner and properties of the source
+ * image, and with its checksum, which lets Glance reject corrupted data itself. The MD5 of the bytes sent is also
+ * compared with the checksums of both images once the upload completes; a copy that does not match is deleted.
+ * <p/>
+ * Many images can be replicated at once. Every region has a limit on the replications it takes part in, and optionally
+ * on the bytes per second it sends or receives; both are set with {@link #withRegionLimits}. Replications waiting for
+ * their regions are queued rather than holding a thread. A running replication uploads on a thread of the user
+ * executor, while its download runs on one of the replicator's own download threads, so that the upload never waits
+ * for a download the user executor has no thread left to run. There is a download thread for each replication the
+ * replicator runs at once, and they are stopped when it is closed; threads left idle end on their own meanwhile.
+ */
+@Singleton
+public class ImageReplicator implements Closeable {
+
+   public static final int DEFAULT_CONCURRENCY = 4;
+   public static final int DEFAULT_MAX_REPLICATIONS = 16;
+   public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+   public static final int DEFAULT_BUFFER_COUNT = 8;
+
+   @Resource
+   protected Logger logger = Logger.NULL;
+
+   private final GlanceApi api;
+   private final ListeningExecutorService userExecutor;
+   private final int maxReplications;
+   private final ListeningExecutorService downloadExecutor;
+   private final int bufferSize;
+   private final int bufferCount;
+   private final Map<String, RegionLimits> limits;
+   private final Map<String, Integer> running = Maps.newHashMap();
+   private final Queue<Replication> waiting = Queues.newArrayDeque();
+   private final Map<String, RateLimiter> rates = Maps.newHashMap();
+   private int replicating;
+
+   @Inject
+   public ImageReplicator(GlanceApi api,
+         @Named(Constants.PROPERTY_USER_THREADS) ListeningExecutorService userExecutor) {
+      this(api, userExecutor, DEFAULT_MAX_REPLICATIONS, DEFAULT_BUFFER_SIZE, DEFAULT_BUFFER_COUNT);
+   }
+
+   public ImageReplicator(GlanceApi api, ListeningExecutorService userExecutor, int bufferSize, int bufferCount) {
+      this(api, userExecutor, DEFAULT_MAX_REPLICATIONS, bufferSize, bufferCount);
+   }
+
+   /**
+    * @param maxReplications the number of replications run at once, whatever their regions, and so the number of
+    *           download threads
+    */
+   public ImageReplicator(GlanceApi api, ListeningExecutorService userExecutor, int maxReplications, int bufferSize,
+         int bufferCount) {
+      this(api, userExecutor, maxReplications, bufferSize, bufferCount, ImmutableMap.<String, RegionLimits> of());
+   }
+
+   private ImageReplicator(GlanceApi api, ListeningExecutorService userExecutor, int maxReplications, int bufferSize,
+         int bufferCount, Map<String, RegionLimits> limits) {
+      checkArgument(maxReplications > 0, "maxReplications must be positive");
+      checkArgument(bufferSize > 0, "bufferSize must be positive");
+      checkArgument(bufferCount > 0, "bufferCount must be positive");
+      this.api = checkNotNull(api, "api");
+      this.userExecutor = checkNotNull(userExecutor, "userExecutor");
+      this.maxReplications = maxReplications;
+      this.bufferSize = bufferSize;
+      this.bufferCount = bufferCount;
+      this.limits = ImmutableMap.copyOf(limits);
+      ThreadPoolExecutor downloads = new ThreadPoolExecutor(maxReplications, maxReplications, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactoryBuilder().setNameFormat("image-replicator-download-%d").setDaemon(true).build());
+      downloads.allowCoreThreadTimeOut(true);
+      this.downloadExecutor = MoreExecutors.listeningDecorator(downloads);
+   }
+
+   /**
+    * @param maxConcurrent the number of replications the region may take part in at once
+    * @param maxBytesPerSecond the rate at which the region may send or receive image data, or 0 for no limit
+    * @return a replicator applying the given limits to a region, and the defaults to the others; it has download
+    *         threads of its own, and is closed separately
+    */
+   public ImageReplicator withRegionLimits(String region, int maxConcurrent, long maxBytesPerSecond) {
+      Map<String, RegionLimits> copy = Maps.newHashMap(limits);
+      copy.put(checkNotNull(region, "region"), new RegionLimits(maxConcurrent, maxBytesPerSecond));
+      ImageReplicator replicator = new ImageReplicator(api, userExecutor, maxReplications, bufferSize, bufferCount,
+            copy);
+      replicator.logger = logger;
+      return replicator;
+   }
+
+   /**
+    * Replicates an image in the background.
+    *
+    * @return the details of the new image in the target region; fails with a {@link ResourceNotFoundException} if
+    *         there is no such image, or with an {@link IOException} if the data could not be copied intact
+    */
+   public ListenableFuture<ImageDetails> replicate(final String sourceRegion, final String imageId,
+         final String targetRegion) {
+      checkNotNull(sourceRegion, "sourceRegion");
+      checkNotNull(imageId, "imageId");
+      checkNotNull(targetRegion, "targetRegion");
+      Replication replication = new Replication(sourceRegion, imageId, targetRegion);
+      synchronized (this) {
+         waiting.add(replication);
+      }
+      drain();
+      return replication.result;
+   }
+
+   /**
+    * Replicates several images in the background, within the limits of the regions.
+    *
+    * @return the details of the new images, in the order of the ids
+    * @see #replicate(String, String, String)
+    */
+   public ListenableFuture<List<ImageDetails>> replicate(String sourceRegion, Iterable<String> imageIds,
+         String targetRegion) {
+      ImmutableList.Builder<ListenableFuture<ImageDetails>> replications = ImmutableList.builder();
+      for (String imageId : imageIds) {
+         replications.add(replicate(sourceRegion, imageId, targetRegion));
+      }
+      return Futures.allAsList(replications.build());
+   }
+
+   /**
+    * Stops the download threads, failing the replications that are running or waiting.
+    */
+   @PreDestroy
+   @Override
+   public void close() {
+      downloadExecutor.shutdownNow();
+   }
+
+   private ImageDetails copy(String sourceRegion, String imageId, String targetRegion) throws IOException,
+         InterruptedException {
+      ImageDetails source = api.getImageApi(sourceRegion).get(imageId);
+      if (source == null)
+         throw new ResourceNotFoundException("image " + imageId + " not found in region " + sourceRegion);
+      final InputStream in = api.getImageApi(sourceRegion).getAsStream(imageId);
+      if (in == null)
+         throw new ResourceNotFoundException("image " + imageId + " not found in region " + sourceRegion);
+
+      final BufferRing ring = new BufferRing(bufferCount, bufferSize);
+      final RateLimiter download = rate(sourceRegion);
+      ListenableFuture<Long> downloaded;
+      try {
+         downloaded = downloadExecutor.submit(new Callable<Long>() {
+            @Override
+            public Long call() throws IOException {
+               try {
+                  return ring.fill(in, download);
+               } finally {
+                  closeQuietly(in);
+               }
+            }
+         });
+      } catch (RuntimeException e) {
+         closeQuietly(in);
+         throw e;
+      }
+
+      HashingInputStream upload = new HashingInputStream(Hashing.md5(), ring.getInput(rate(targetRegion)));
+      ImageDetails target;
+      try {
+         logger.debug(">> replicating image %s from %s to %s", imageId, sourceRegion, targetRegion);
+         InputStreamPayload payload = new InputStreamPayload(upload);
+         if (source.getSize().isPresent())
+            payload.getContentMetadata().setContentLength(source.getSize().get());
+         target = api.getImageApi(targetRegion).create(source.getName(), payload, options(source));
+      } finally {
+         closeQuietly(upload);
+      }
+
+      try {
+         checkLength(source, await(downloaded));
+         verify(source, target, upload.hash());
+      } catch (IOException e) {
+         if (!api.getImageApi(targetRegion).delete(target.getId()))
+            logger.warn("<< could not remove corrupt copy %s of image %s", target.getId(), imageId);
+         throw e;
+      }
+      logger.debug("<< replicated image %s from %s to %s as %s", imageId, sourceRegion, targetRegion, target.getId());
+      return target;
+   }
+
+   private static CreateImageOptions options(ImageDetails source) {
+      CreateImageOptions options = new CreateImageOptions();
+      if (source.getDiskFormat().isPresent())
+         options.diskFormat(source.getDiskFormat().get());
+      if (source.getContainerFormat().isPresent())
+         options.containerFormat(source.getContainerFormat().get());
+      if (source.getSize().isPresent())
+         options.size(source.getSize().get());
+      if (source.getChecksum().isPresent())
+         options.checksum(source.getChecksum().get());
+      if (source.getOwner().isPresent())
+         options.owner(source.getOwner().get());
+      options.isPublic(source.isPublic());
+      options.minRam(source.getMinRam());
+      options.minDisk(source.getMinDisk());
+      for (Map.Entry<String, String> property : source.getProperties().entrySet()) {
+         options.property(property.getKey(), property.getValue());
+      }
+      return options;
+   }
+
+   private static long await(ListenableFuture<Long> future) throws IOException, InterruptedException {
+      try {
+         return future.get();
+      } catch (ExecutionException e) {
+         Throwables.propagateIfPossible(e.getCause(), IOException.class);
+         throw Throwables.propagate(e.getCause());
+      }
+   }
+
+   private static void checkLength(ImageDetails source, long length) throws IOException {
+      if (source.getSize().isPresent() && source.getSize().get() != length)
+         throw new IOException(String.format("received %d bytes of image %s, expected %d", length, source.getId(),
+               source.getSize().get()));
+   }
+
+   private static void verify(ImageDetails source, ImageDetails target, HashCode md5) throws IOException {
+      if (source.getChecksum().isPresent() && !source.getChecksum().get().equalsIgnoreCase(md5.toString()))
+         throw new IOException(String.format("checksum of image %s is %s, sent %s", source.getId(),
+               source.getChecksum().get(), md5));
+      if (target.getChecksum().isPresent() && !target.getChecksum().get().equalsIgnoreCase(md5.toString()))
+         throw new IOException(String.format("checksum of copy %s is %s, sent %s", target.getId(),
+               target.getChecksum().get(), md5));
+   }
+
+   /**
+    * Starts the waiting replications whose regions are below their limits, in the order they were asked for: a
+    * replication waiting for a region holds back the later ones taking part in it.
+    */
+   private void drain() {
+      List<Replication> launching = Lists.newArrayList();
+      synchronized (this) {
+         Set<String> held = Sets.newHashSet();
+         for (Iterator<Replication> it = waiting.iterator(); it.hasNext();) {
+            Replication replication = it.next();
+            if (replication.result.isCancelled()) {
+               it.remove();
+            } else if (replicating < maxReplications && Collections.disjoint(held, replication.regions)
+                  && available(replication.regions)) {
+               for (String region : replication.regions) {
+                  running.put(region, running(region) + 1);
+               }
+               replicating++;
+               it.remove();
+               launching.add(replication);
+            } else {
+               held.addAll(replication.regions);
+            }
+         }
+      }
+      for (Replication replication : launching) {
+         replication.start();
+      }
+   }
+
+   private boolean available(Set<String> regions) {
+      for (String region : regions) {
+         RegionLimits regionLimits = limits.get(region);
+         if (running(region) >= (regionLimits != null ? regionLimits.maxConcurrent : DEFAULT_CONCURRENCY))
+            return false;
+      }
+      return true;
+   }
+
+   private int running(String region) {
+      Integer count = running.get(region);
+      return count != null ? count : 0;
+   }
+
+   private void release(Set<String> regions) {
+      synchronized (this) {
+         for (String region : regions) {
+            running.put(region, running(region) - 1);
+         }
+         replicating--;
+      }
+      drain();
+   }
+
+   @Nullable
+   private synchronized RateLimiter rate(String region) {
+      RegionLimits regionLimits = limits.get(region);
+      if (regionLimits == null || regionLimits.maxBytesPerSecond == 0)
+         return null;
+      RateLimiter limiter = rates.get(region);
+      if (limiter == null) {
+         limiter = RateLimiter.create(regionLimits.maxBytesPerSecond);
+         rates.put(region, limiter);
+      }
+      return limiter;
+   }
+
+   /**
+    * A replication, from the time it is asked for until its regions are released.
+    */
+   private final class Replication implements Callable<ImageDetails> {
+      private final String sourceRegion;
+      private final String imageId;
+      private final String targetRegion;
+      private final SortedSet<String> regions;
+      private final SettableFuture<ListenableFuture<ImageDetails>> started = SettableFuture.create();
+      // cancelling the result cancels the replication, whether it has started or not
+      private final ListenableFuture<ImageDetails> result = Futures.dereference(started);
+
+      private Replication(String sourceRegion, String imageId, String targetRegion) {
+         this.sourceRegion = sourceRegion;
+         this.imageId = imageId;
+         this.targetRegion = targetRegion;
+         this.regions = ImmutableSortedSet.of(sourceRegion, targetRegion);
+      }
+
+      private void start() {
+         ListenableFuture<ImageDetails> copied;
+         try {
+            copied = userExecutor.submit(this);
+         } catch (RuntimeException e) {
+            started.setException(e);
+            release(regions);
+            return;
+         }
+         copied.addListener(new Runnable() {
+            @Override
+            public void run() {
+               release(regions);
+            }
+         }, userExecutor);
+         started.set(copied);
+      }
+
+      @Override
+      public ImageDetails call() throws IOException, InterruptedException {
+         return copy(sourceRegion, imageId, targetRegion);
+      }
+
+      @Override
+      public String toString() {
+         return "replicate(" + sourceRegion + ", " + imageId + ", " + targetRegion + ")";
+      }
+   }
+
+   private static final class RegionLimits {
+      private final int maxConcurrent;
+      private final long maxBytesPerSecond;
+
+      private RegionLimits(int maxConcurrent, long maxBytesPerSecond) {
+         checkArgument(maxConcurrent > 0, "maxConcurrent must be positive");
+         checkArgument(maxBytesPerSecond >= 0, "maxBytesPerSecond must not be negative");
+         this.maxConcurrent = maxConcurrent;
+         this.maxBytesPerSecond = maxBytesPerSecond;
+      }
+
+      @Override
+      public String toString() {
+         return Objects.toStringHelper(this).add("maxConcurrent", maxConcurrent)
+               .add("maxBytesPerSecond", maxBytesPerSecond).toString();
+      }
+   }
+}
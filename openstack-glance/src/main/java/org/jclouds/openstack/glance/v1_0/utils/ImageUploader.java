@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.glance.v1_0.utils;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.File;
+import java.io.IOException;
+
+import javax.annotation.Resource;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.jclouds.logging.Logger;
+import org.jclouds.openstack.glance.v1_0.GlanceApi;
+import org.jclouds.openstack.glance.v1_0.domain.ImageDetails;
+import org.jclouds.openstack.glance.v1_0.features.ImageApi;
+import org.jclouds.openstack.glance.v1_0.options.CreateImageOptions;
+import org.jclouds.openstack.glance.v1_0.options.UpdateImageOptions;
+
+import com.google.common.hash.HashCode;
+
+/**
+ * Uploads image files to Glance, reading every file only once.
+ * <p/>
+ * The file is sent as a {@link ChecksummingFilePayload}, which takes its size from the file channel and computes the
+ * MD5 of the data while it goes out. Once Glance has stored the image, the size and checksum it reports in the
+ * returned {@link ImageDetails} are compared with what was actually sent.
+ */
+@Singleton
+public class ImageUploader {
+
+   @Resource
+   protected Logger logger = Logger.NULL;
+
+   private final GlanceApi api;
+
+   @Inject
+   public ImageUploader(GlanceApi api) {
+      this.api = checkNotNull(api, "api");
+   }
+
+   /**
+    * Creates a new image from a file.
+    *
+    * @see ImageApi#create
+    * @throws IOException if the file could not be read, or Glance stored something other than its contents
+    */
+   public ImageDetails create(String region, String name, File file, CreateImageOptions... options)
+         throws IOException {
+      ChecksummingFilePayload payload = new ChecksummingFilePayload(file);
+      ImageDetails image = api.getImageApi(region).create(name, payload, options);
+      verify(image, payload);
+      return image;
+   }
+
+   /**
+    * Uploads a file as the data of a previously reserved image.
+    *
+    * @see ImageApi#upload
+    * @throws IOException if the file could not be read, or Glance stored something other than its contents
+    */
+   public ImageDetails upload(String region, String imageId, File file, UpdateImageOptions... options)
+         throws IOException {
+      ChecksummingFilePayload payload = new ChecksummingFilePayload(file);
+      ImageDetails image = api.getImageApi(region).upload(imageId, payload, options);
+      verify(image, payload);
+      return image;
+   }
+
+   private void verify(ImageDetails image, ChecksummingFilePayload payload) throws IOException {
+      long size = payload.getContentMetadata().getContentLength();
+      if (image.getSize().isPresent() && image.getSize().get() != size)
+         throw new IOException(String.format("image %s was stored with %d bytes, sent %d", image.getId(),
+               image.getSize().get(), size));
+      if (!payload.getMD5().isPresent()) {
+         logger.warn("<< image %s was not sent completely, cannot verify its checksum", image.getId());
+         return;
+      }
+      HashCode md5 = payload.getMD5().get();
+      if (image.getChecksum().isPresent() && !image.getChecksum().get().equalsIgnoreCase(md5.toString()))
+         throw new IOException(String.format("checksum of image %s is %s, sent %s", image.getId(),
+               image.getChecksum().get(), md5));
+   }
+}
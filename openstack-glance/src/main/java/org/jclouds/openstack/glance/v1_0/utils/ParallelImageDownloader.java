@@ -0,0 +1,415 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.glance.v1_0.utils;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+import static org.jclouds.http.options.GetOptions.Builder.range;
+import static org.jclouds.util.Closeables2.closeQuietly;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Resource;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.jclouds.Constants;
+import org.jclouds.http.HttpResponse;
+import org.jclouds.javax.annotation.Nullable;
+import org.jclouds.logging.Logger;
+import org.jclouds.openstack.glance.v1_0.GlanceApi;
+import org.jclouds.openstack.glance.v1_0.domain.ImageDetails;
+import org.jclouds.openstack.glance.v1_0.features.ImageApi;
+import org.jclouds.rest.ResourceNotFoundException;
+
+import com.google.common.collect.Lists;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Closeables;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+
+/**
+ * Downloads Glance images to disk over several connections at once.
+ * <p/>
+ * The size and checksum of the image are taken from {@link ImageApi#get}. The image is then split into segments of
+ * a fixed size, fetched concurrently with HTTP {@code Range} requests and written straight into a file of the final
+ * size, each at its own offset. The MD5 of the image is computed while the segments arrive, over the prefix of the
+ * file that is complete so far, and compared with the checksum Glance reports once the last segment is in.
+ * <p/>
+ * If the server ignores the {@code Range} header of the first request, the image is read from that single response
+ * instead.
+ * <p/>
+ * Downloads started with {@link #downloadResumable} journal their completed segments, so that a failed download can
+ * be picked up where it stopped.
+ */
+@Singleton
+public class ParallelImageDownloader {
+
+   public static final long DEFAULT_SEGMENT_SIZE = 32L * 1024 * 1024;
+   public static final int DEFAULT_PARALLELISM = 4;
+
+   private static final int BUFFER_SIZE = 64 * 1024;
+   private static final int PARTIAL_CONTENT = 206;
+
+   @Resource
+   protected Logger logger = Logger.NULL;
+
+   private final GlanceApi api;
+   private final ListeningExecutorService userExecutor;
+   private final long segmentSize;
+   private final int parallelism;
+
+   @Inject
+   public ParallelImageDownloader(GlanceApi api,
+         @Named(Constants.PROPERTY_USER_THREADS) ListeningExecutorService userExecutor) {
+      this(api, userExecutor, DEFAULT_SEGMENT_SIZE, DEFAULT_PARALLELISM);
+   }
+
+   public ParallelImageDownloader(GlanceApi api, ListeningExecutorService userExecutor, long segmentSize,
+         int parallelism) {
+      checkArgument(segmentSize > 0, "segmentSize must be positive");
+      checkArgument(parallelism > 0, "parallelism must be positive");
+      this.api = checkNotNull(api, "api");
+      this.userExecutor = checkNotNull(userExecutor, "userExecutor");
+      this.segmentSize = segmentSize;
+      this.parallelism = parallelism;
+   }
+
+   /**
+    * @return a downloader fetching segments of the given size
+    */
+   public ParallelImageDownloader withSegmentSize(long segmentSize) {
+      ParallelImageDownloader downloader = new ParallelImageDownloader(api, userExecutor, segmentSize, parallelism);
+      downloader.logger = logger;
+      return downloader;
+   }
+
+   /**
+    * @return a downloader fetching at most the given number of segments of an image at once
+    */
+   public ParallelImageDownloader withParallelism(int parallelism) {
+      ParallelImageDownloader downloader = new ParallelImageDownloader(api, userExecutor, segmentSize, parallelism);
+      downloader.logger = logger;
+      return downloader;
+   }
+
+   /**
+    * Downloads an image into a file. The file is removed again if the download fails.
+    *
+    * @param region the region the image lives in
+    * @param imageId the id of the image
+    * @param destination the file to write; it is overwritten if it exists
+    * @return the details of the downloaded image
+    * @throws ResourceNotFoundException if there is no such image
+    * @throws IOException if the image could not be transferred, or does not match its checksum
+    */
+   public ImageDetails download(String region, String imageId, File destination) throws IOException {
+      return download(region, imageId, destination, false);
+   }
+
+   /**
+    * Downloads an image into a file, resuming an earlier download of the same image that did not complete.
+    * <p/>
+    * The completed byte ranges are recorded in a journal next to the file, named after it with a {@code .journal}
+    * suffix. When a download fails, the file and its journal are kept, and the next call only fetches the ranges
+    * that are missing. The checksum is always verified over the whole file, and on a mismatch both the file and the
+    * journal are removed.
+    *
+    * @param region the region the image lives in
+    * @param imageId the id of the image
+    * @param destination the file to write
+    * @return the details of the downloaded image
+    * @throws ResourceNotFoundException if there is no such image
+    * @throws IOException if the image could not be transferred, or does not match its checksum
+    */
+   public ImageDetails downloadResumable(String region, String imageId, File destination) throws IOException {
+      return download(region, imageId, destination, true);
+   }
+
+   private ImageDetails download(String region, String imageId, File destination, boolean resumable)
+         throws IOException {
+      checkNotNull(region, "region");
+      checkNotNull(imageId, "imageId");
+      checkNotNull(destination, "destination");
+      ImageDetails details = api.getImageApi(region).get(imageId);
+      if (details == null)
+         throw new ResourceNotFoundException("image " + imageId + " not found in region " + region);
+      return download(region, details, destination, resumable);
+   }
+
+   /**
+    * Downloads an image whose details were already fetched, resuming an earlier download into the same file.
+    */
+   ImageDetails downloadResumable(String region, ImageDetails details, File destination) throws IOException {
+      return download(region, details, destination, true);
+   }
+
+   private ImageDetails download(String region, ImageDetails details, File destination, boolean resumable)
+         throws IOException {
+      ImageApi imageApi = api.getImageApi(region);
+      String imageId = details.getId();
+      boolean segmented = details.getSize().isPresent() && details.getSize().get() > 0;
+
+      DownloadJournal journal = null;
+      if (resumable && segmented)
+         journal = DownloadJournal.open(destination, details, segmentSize);
+      RandomAccessFile file = new RandomAccessFile(destination, "rw");
+      boolean transferred = false;
+      boolean verified = false;
+      try {
+         HashCode md5;
+         if (segmented) {
+            file.setLength(details.getSize().get());
+            md5 = downloadSegments(imageApi, imageId, details.getSize().get(), file.getChannel(), journal);
+         } else {
+            file.setLength(0);
+            md5 = downloadStream(imageApi, imageId, file.getChannel());
+         }
+         transferred = true;
+         verify(details, md5);
+         verified = true;
+      } finally {
+         Closeables.close(file, !verified);
+         // a transfer that failed half-way can be resumed, whereas a transfer that completed with the wrong data cannot
+         boolean resume = journal != null && !transferred;
+         if (journal != null) {
+            if (resume)
+               Closeables.close(journal, true);
+            else
+               journal.delete();
+         }
+         if (!verified && !resume && !destination.delete())
+            logger.warn("<< could not remove incomplete download %s", destination);
+      }
+      return details;
+   }
+
+   private HashCode downloadStream(ImageApi imageApi, String imageId, FileChannel channel) throws IOException {
+      InputStream in = imageApi.getAsStream(imageId);
+      if (in == null)
+         throw new ResourceNotFoundException("image " + imageId + " not found");
+      Hasher md5 = Hashing.md5().newHasher();
+      try {
+         copy(in, channel, 0, md5);
+      } finally {
+         closeQuietly(in);
+      }
+      return md5.hash();
+   }
+
+   private HashCode downloadSegments(final ImageApi imageApi, final String imageId, final long size,
+         final FileChannel channel, @Nullable final DownloadJournal journal) throws IOException {
+      final int count = (int) ((size - 1) / segmentSize + 1);
+      final OrderedDigest digest = new OrderedDigest(channel, size, count);
+      final List<Integer> missing = Lists.newArrayList();
+      BitSet done = journal != null ? journal.getCompletedSegments() : new BitSet();
+      for (int segment = 0; segment < count; segment++) {
+         if (!done.get(segment))
+            missing.add(segment);
+      }
+      if (!done.isEmpty())
+         logger.debug("<< resuming download of image %s, %s of %s segments missing", imageId, missing.size(), count);
+      for (int segment = done.nextSetBit(0); segment >= 0; segment = done.nextSetBit(segment + 1)) {
+         digest.completed(segment);
+      }
+      if (missing.isEmpty())
+         return digest.hash();
+
+      int first = missing.get(0);
+      HttpResponse response = imageApi.getAsResponse(imageId, range(first * segmentSize, segmentEnd(first, size)));
+      if (response == null)
+         throw new ResourceNotFoundException("image " + imageId + " not found");
+      if (response.getStatusCode() != PARTIAL_CONTENT) {
+         logger.debug("<< server ignored range request for image %s, reading it as a single stream", imageId);
+         Hasher md5 = Hashing.md5().newHasher();
+         InputStream in = response.getPayload().openStream();
+         try {
+            checkLength(imageId, copy(in, channel, 0, md5), size);
+         } finally {
+            closeQuietly(in);
+         }
+         return md5.hash();
+      }
+      writeSegment(imageId, response, channel, first, size, journal);
+      digest.completed(first);
+
+      final AtomicInteger nextMissing = new AtomicInteger(1);
+      List<ListenableFuture<Void>> workers = Lists.newArrayList();
+      for (int i = 0; i < Math.min(parallelism, missing.size() - 1); i++) {
+         workers.add(userExecutor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+               for (int next = nextMissing.getAndIncrement(); next < missing.size(); next = nextMissing.getAndIncrement()) {
+                  if (Thread.interrupted())
+                     throw new InterruptedIOException("download of image " + imageId + " interrupted");
+                  int segment = missing.get(next);
+                  HttpResponse response = imageApi.getAsResponse(imageId,
+                        range(segment * segmentSize, segmentEnd(segment, size)));
+                  if (response == null)
+                     throw new ResourceNotFoundException("image " + imageId + " not found");
+                  writeSegment(imageId, response, channel, segment, size, journal);
+                  digest.completed(segment);
+               }
+               return null;
+            }
+
+            @Override
+            public String toString() {
+               return "downloadSegments(" + imageId + ")";
+            }
+         }));
+      }
+      await(workers);
+      return digest.hash();
+   }
+
+   private void writeSegment(String imageId, HttpResponse response, FileChannel channel, int segment, long size,
+         @Nullable DownloadJournal journal) throws IOException {
+      if (response.getStatusCode() != PARTIAL_CONTENT)
+         throw new IOException("server ignored range request for segment " + segment + " of image " + imageId);
+      long start = segment * segmentSize;
+      InputStream in = response.getPayload().openStream();
+      try {
+         checkLength(imageId, copy(in, channel, start, null), segmentEnd(segment, size) - start + 1);
+      } finally {
+         closeQuietly(in);
+      }
+      if (journal != null) {
+         channel.force(false);
+         journal.completed(segment, segmentEnd(segment, size));
+      }
+   }
+
+   private long segmentEnd(int segment, long size) {
+      return Math.min(size, (segment + 1) * segmentSize) - 1;
+   }
+
+   private static void await(List<ListenableFuture<Void>> workers) throws IOException {
+      try {
+         Futures.allAsList(workers).get();
+      } catch (ExecutionException e) {
+         cancel(workers);
+         if (e.getCause() instanceof IOException)
+            throw (IOException) e.getCause();
+         if (e.getCause() instanceof RuntimeException)
+            throw (RuntimeException) e.getCause();
+         throw new IOException(e.getCause());
+      } catch (InterruptedException e) {
+         cancel(workers);
+         Thread.currentThread().interrupt();
+         throw new InterruptedIOException("download interrupted");
+      }
+   }
+
+   private static void cancel(List<? extends Future<?>> workers) {
+      for (Future<?> worker : workers) {
+         worker.cancel(true);
+      }
+   }
+
+   private static void verify(ImageDetails details, HashCode md5) throws IOException {
+      if (details.getChecksum().isPresent() && !details.getChecksum().get().equalsIgnoreCase(md5.toString()))
+         throw new IOException(String.format("checksum of image %s is %s, expected %s", details.getId(), md5,
+               details.getChecksum().get()));
+   }
+
+   private static void checkLength(String imageId, long actual, long expected) throws IOException {
+      if (actual != expected)
+         throw new IOException(String.format("received %d bytes of image %s, expected %d", actual, imageId, expected));
+   }
+
+   /**
+    * Copies a stream into the channel at the given position.
+    *
+    * @return the number of bytes copied
+    */
+   private static long copy(InputStream in, FileChannel channel, long position, @Nullable Hasher hasher)
+         throws IOException {
+      byte[] buffer = new byte[BUFFER_SIZE];
+      long copied = 0;
+      for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+         if (hasher != null)
+            hasher.putBytes(buffer, 0, read);
+         ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, read);
+         while (bytes.hasRemaining()) {
+            copied += channel.write(bytes, position + copied);
+         }
+      }
+      return copied;
+   }
+
+   /**
+    * Computes the MD5 of the file as segments complete, in whatever order they do, over the complete prefix.
+    */
+   private final class OrderedDigest {
+      private final FileChannel channel;
+      private final long size;
+      private final int count;
+      private final BitSet completed;
+      private final Hasher md5 = Hashing.md5().newHasher();
+      private int nextSegment;
+
+      private OrderedDigest(FileChannel channel, long size, int count) {
+         this.channel = channel;
+         this.size = size;
+         this.count = count;
+         this.completed = new BitSet(count);
+      }
+
+      private synchronized void completed(int segment) throws IOException {
+         completed.set(segment);
+         ByteBuffer buffer = null;
+         while (nextSegment < count && completed.get(nextSegment)) {
+            if (buffer == null)
+               buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            long end = segmentEnd(nextSegment, size) + 1;
+            for (long position = nextSegment * segmentSize; position < end; ) {
+               buffer.clear();
+               buffer.limit((int) Math.min(BUFFER_SIZE, end - position));
+               int read = channel.read(buffer, position);
+               if (read == -1)
+                  throw new IOException("unexpected end of file at " + position);
+               md5.putBytes(buffer.array(), 0, read);
+               position += read;
+            }
+            nextSegment++;
+         }
+      }
+
+      private synchronized HashCode hash() {
+         checkState(nextSegment == count, "only %s of %s segments are complete", nextSegment, count);
+         return md5.hash();
+      }
+   }
+}
@@ -0,0 +1,223 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.glance.v1_0.utils;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import javax.annotation.Resource;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.jclouds.Constants;
+import org.jclouds.logging.Logger;
+import org.jclouds.openstack.glance.v1_0.GlanceApi;
+import org.jclouds.openstack.glance.v1_0.domain.ImageDetails;
+import org.jclouds.openstack.glance.v1_0.features.ImageApi;
+import org.jclouds.openstack.glance.v1_0.options.ImageField;
+import org.jclouds.openstack.glance.v1_0.options.ListImageOptions;
+
+import com.google.common.base.Function;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Ordering;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+
+/**
+ * Lists images in detail by listing slices of the catalog concurrently.
+ * <p/>
+ * The listing is split by one or more {@link ImageListPartition}s; with several partitions, every combination of their
+ * slices is listed, so that splitting by three statuses and four disk formats lists twelve slices. Every slice follows
+ * its own markers, on the user executor, and the slices are merged in the order of the partitions once all of them
+ * are complete, an image listed by several slices only being returned once.
+ * <p/>
+ * Sort options given with {@link ListImageOptions#sortBy} and {@link ListImageOptions#sortAscending} apply to every
+ * slice, and the merged images are sorted the same way again, descending unless requested otherwise.
+ */
+@Singleton
+public class PartitionedImageLister {
+
+   private static final String SORT_KEY = "sort_key";
+   private static final String SORT_DIR = "sort_dir";
+
+   @Resource
+   protected Logger logger = Logger.NULL;
+
+   private final GlanceApi api;
+   private final ListeningExecutorService userExecutor;
+
+   @Inject
+   public PartitionedImageLister(GlanceApi api,
+         @Named(Constants.PROPERTY_USER_THREADS) ListeningExecutorService userExecutor) {
+      this.api = checkNotNull(api, "api");
+      this.userExecutor = checkNotNull(userExecutor, "userExecutor");
+   }
+
+   /**
+    * @param options the filters and sort order applied to every slice; markers and limits are not supported
+    * @return the images of all slices
+    * @throws IllegalArgumentException if the options include a marker
+    */
+   public List<ImageDetails> listInDetail(String region, ListImageOptions options, ImageListPartition... partitions) {
+      checkNotNull(region, "region");
+      Multimap<String, String> base = checkNotNull(options, "options").buildQueryParameters();
+      checkArgument(!base.containsKey("marker"), "markers are managed by the lister");
+      checkArgument(partitions.length > 0, "at least one partition is needed");
+      final ImageApi imageApi = api.getImageApi(region);
+
+      List<ListenableFuture<List<ImageDetails>>> slices = Lists.newArrayList();
+      for (final Multimap<String, String> slice : combine(base, partitions)) {
+         slices.add(userExecutor.submit(new Callable<List<ImageDetails>>() {
+            @Override
+            public List<ImageDetails> call() {
+               return ImagePages.listInDetail(imageApi, slice);
+            }
+
+            @Override
+            public String toString() {
+               return "listInDetail(" + slice + ")";
+            }
+         }));
+      }
+
+      List<List<ImageDetails>> listed;
+      try {
+         listed = Futures.allAsList(slices).get();
+      } catch (InterruptedException e) {
+         cancel(slices);
+         Thread.currentThread().interrupt();
+         throw Throwables.propagate(e);
+      } catch (ExecutionException e) {
+         cancel(slices);
+         throw Throwables.propagate(e.getCause());
+      }
+
+      Map<String, ImageDetails> images = Maps.newLinkedHashMap();
+      for (ImageDetails image : Iterables.concat(listed)) {
+         if (!images.containsKey(image.getId()))
+            images.put(image.getId(), image);
+      }
+      logger.debug("<< listed %d images of region %s in %d slices", images.size(), region, slices.size());
+
+      Collection<String> sortKey = base.get(SORT_KEY);
+      if (sortKey.isEmpty())
+         return ImmutableList.copyOf(images.values());
+      Ordering<ImageDetails> ordering = ordering(ImageField.valueOf(
+            Iterables.getOnlyElement(sortKey).toUpperCase(Locale.ENGLISH)));
+      if (!base.get(SORT_DIR).contains("asc"))
+         ordering = ordering.reverse();
+      return ordering.immutableSortedCopy(images.values());
+   }
+
+   /**
+    * @return the query parameters of every combination of the slices of the partitions, with the base parameters
+    */
+   private static List<Multimap<String, String>> combine(Multimap<String, String> base,
+         ImageListPartition... partitions) {
+      List<Multimap<String, String>> combined = ImmutableList.of(base);
+      for (ImageListPartition partition : partitions) {
+         List<Multimap<String, String>> next = Lists.newArrayList();
+         for (Multimap<String, String> parameters : combined) {
+            for (Multimap<String, String> slice : partition.getSlices()) {
+               Multimap<String, String> merged = LinkedHashMultimap.create(parameters);
+               merged.putAll(slice);
+               next.add(merged);
+            }
+         }
+         combined = next;
+      }
+      return combined;
+   }
+
+   private static void cancel(List<? extends ListenableFuture<?>> slices) {
+      for (ListenableFuture<?> slice : slices) {
+         slice.cancel(true);
+      }
+   }
+
+   /**
+    * @return the ascending order of images by a field, images without a value first and ties broken by id
+    */
+   static Ordering<ImageDetails> ordering(final ImageField field) {
+      Ordering<ImageDetails> byField = Ordering.natural().nullsFirst().onResultOf(
+            new Function<ImageDetails, Comparable<?>>() {
+               @Override
+               public Comparable<?> apply(ImageDetails image) {
+                  return value(image, field);
+               }
+            });
+      return byField.compound(new Comparator<ImageDetails>() {
+         @Override
+         public int compare(ImageDetails a, ImageDetails b) {
+            return a.getId().compareTo(b.getId());
+         }
+      });
+   }
+
+   private static Comparable<?> value(ImageDetails image, ImageField field) {
+      switch (field) {
+         case ID:
+            return image.getId();
+         case NAME:
+            return image.getName();
+         case CHECKSUM:
+            return image.getChecksum().orNull();
+         case MIN_DISK:
+            return image.getMinDisk();
+         case MIN_RAM:
+            return image.getMinRam();
+         case IS_PUBLIC:
+            return image.isPublic();
+         case CREATED_AT:
+            return image.getCreatedAt();
+         case UPDATED_AT:
+            return image.getUpdatedAt();
+         case DELETED_AT:
+            return image.getDeletedAt().orNull();
+         case OWNER:
+            return image.getOwner().orNull();
+         case LOCATION:
+            return image.getLocation().orNull();
+         case STATUS:
+            return image.getStatus() == null ? null : image.getStatus().value();
+         case DISK_FORMAT:
+            return image.getDiskFormat().isPresent() ? image.getDiskFormat().get().value() : null;
+         case CONTAINER_FORMAT:
+            return image.getContainerFormat().isPresent() ? image.getContainerFormat().get().value() : null;
+         case SIZE:
+            return image.getSize().orNull();
+         default:
+            throw new IllegalArgumentException("images cannot be sorted by " + field);
+      }
+   }
+}
@@ -17,14 +17,35 @@
 package org.jclouds.openstack.glance.v1_0.features;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.jclouds.http.HttpRequest;
 import org.jclouds.http.HttpResponse;
+import org.jclouds.openstack.glance.functions.RegionToEndpointNegotiateVersion;
 import org.jclouds.openstack.glance.v1_0.GlanceApi;
+import org.jclouds.openstack.glance.v1_0.config.GlanceProperties;
 import org.jclouds.openstack.glance.v1_0.internal.BaseGlanceExpectTest;
 import org.jclouds.openstack.glance.v1_0.parse.ParseImagesTest;
 import org.testng.annotations.Test;
 
+import com.google.common.base.Function;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import com.google.common.io.Closeables;
+
 @Test(groups = "unit", testName = "GlanceVersionNegotiationExpectTest")
 public class GlanceVersionNegotiationExpectTest extends BaseGlanceExpectTest {
 
@@ -98,4 +119,204 @@ public class GlanceVersionNegotiationExpectTest extends BaseGlanceExpectTest {
       assertEquals(apiWhenExist.getImageApi("az-1.region-a.geo-1").list().concat().toString(),
             new ParseImagesTest().expected().toString());
    }
+
+    /*
+     * Test that an endpoint negotiated by one client is reused from the cache
+     * file by the next one, without negotiating again.
+     */
+   public void testNegotiatedEndpointIsPersisted() throws Exception {
+      File cacheFile = File.createTempFile("glance-versions", ".properties");
+      cacheFile.delete();
+      cacheFile.deleteOnExit();
+      Properties overrides = setupProperties();
+      overrides.setProperty(GlanceProperties.VERSION_NEGOTIATION_CACHE_FILE, cacheFile.getPath());
+
+      HttpRequest list = HttpRequest.builder().method("GET")
+            .endpoint("https://glance.jclouds.org:9292/v1.0/images")
+            .addHeader("Accept", "application/json")
+            .addHeader("X-Auth-Token", authToken).build();
+
+      HttpResponse listResponse = HttpResponse.builder().statusCode(200)
+            .payload(payloadFromResource("/images.json")).build();
+
+      GlanceApi negotiating = requestsSendResponses(ImmutableMap.of(keystoneAuthWithUsernameAndPassword,
+            responseWithKeystoneAccess, versionNegotiationRequest, versionNegotiationResponse, list, listResponse),
+            createModule(), overrides);
+      negotiating.getImageApi("az-1.region-a.geo-1").list().concat().toList();
+      assertTrue(cacheFile.isFile());
+
+      GlanceApi cached = requestsSendResponses(ImmutableMap.of(keystoneAuthWithUsernameAndPassword,
+            responseWithKeystoneAccess, list, listResponse), createModule(), overrides);
+
+      assertEquals(cached.getImageApi("az-1.region-a.geo-1").list().concat().toString(),
+            new ParseImagesTest().expected().toString());
+   }
+
+    /*
+     * Test that the configured fallback endpoint is used if Glance does not
+     * answer the version negotiation.
+     */
+   public void testFallbackWhenNegotiationFails() throws Exception {
+      Properties overrides = setupProperties();
+      overrides.setProperty(GlanceProperties.VERSION_NEGOTIATION_FALLBACK, "v1.0/");
+
+      HttpRequest list = HttpRequest.builder().method("GET")
+            .endpoint("https://glance.jclouds.org:9292/v1.0/images")
+            .addHeader("Accept", "application/json")
+            .addHeader("X-Auth-Token", authToken).build();
+
+      HttpResponse listResponse = HttpResponse.builder().statusCode(200)
+            .payload(payloadFromResource("/images.json")).build();
+
+      GlanceApi apiWhenExist = requestsSendResponses(ImmutableMap.of(keystoneAuthWithUsernameAndPassword,
+            responseWithKeystoneAccess, versionNegotiationRequest, HttpResponse.builder().statusCode(404).build(),
+            list, listResponse), createModule(), overrides);
+
+      assertEquals(apiWhenExist.getImageApi("az-1.region-a.geo-1").list().concat().toString(),
+            new ParseImagesTest().expected().toString());
+   }
+
+    /*
+     * Test that negotiation is tried again once the fallback endpoint
+     * chosen after a failed negotiation expires.
+     */
+   public void testFallbackIsNegotiatedAgain() throws Exception {
+      Properties overrides = setupProperties();
+      overrides.setProperty(GlanceProperties.VERSION_NEGOTIATION_FALLBACK, "v1/");
+      overrides.setProperty(GlanceProperties.VERSION_NEGOTIATION_FALLBACK_TTL, "0");
+      AtomicInteger negotiations = new AtomicInteger();
+      List<URI> listed = new CopyOnWriteArrayList<URI>();
+
+      GlanceApi api = createClient(negotiationSucceedsFrom(2, negotiations, listed), createModule(), overrides);
+      api.getImageApi("az-1.region-a.geo-1").list().concat().toList();
+      assertEquals(listed.get(0).getPath(), "/v1/images");
+
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+      while (!Iterables.getLast(listed).getPath().equals("/v1.0/images") && System.nanoTime() < deadline) {
+         Thread.sleep(50);
+         api.getImageApi("az-1.region-a.geo-1").list().concat().toList();
+      }
+
+      assertEquals(Iterables.getLast(listed).getPath(), "/v1.0/images");
+      assertEquals(negotiations.get(), 2);
+   }
+
+    /*
+     * Test that an endpoint read from the cache file is negotiated again
+     * once its time to live, counted from its negotiation, is over.
+     */
+   public void testPersistedEndpointKeepsItsNegotiationTime() throws Exception {
+      File cacheFile = File.createTempFile("glance-versions", ".properties");
+      cacheFile.delete();
+      cacheFile.deleteOnExit();
+      Properties overrides = setupProperties();
+      overrides.setProperty(GlanceProperties.VERSION_NEGOTIATION_CACHE_FILE, cacheFile.getPath());
+      overrides.setProperty(GlanceProperties.VERSION_NEGOTIATION_TTL, "60");
+      AtomicInteger negotiations = new AtomicInteger();
+      List<URI> listed = new CopyOnWriteArrayList<URI>();
+
+      GlanceApi negotiating = createClient(negotiationSucceedsFrom(1, negotiations, listed), createModule(),
+            overrides);
+      negotiating.getImageApi("az-1.region-a.geo-1").list().concat().toList();
+      assertEquals(negotiations.get(), 1);
+      ageCacheFile(cacheFile, TimeUnit.SECONDS.toMillis(59));
+
+      negotiations.set(0);
+      GlanceApi cached = createClient(negotiationSucceedsFrom(1, negotiations, listed), createModule(), overrides);
+      cached.getImageApi("az-1.region-a.geo-1").list().concat().toList();
+      assertEquals(negotiations.get(), 0);
+
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+      while (negotiations.get() == 0 && System.nanoTime() < deadline) {
+         Thread.sleep(50);
+         cached.getImageApi("az-1.region-a.geo-1").list().concat().toList();
+      }
+
+      assertEquals(negotiations.get(), 1);
+   }
+
+    /*
+     * Test that an endpoint whose negotiation fails again is kept, and only
+     * negotiated again after a delay rather than on every call.
+     */
+   public void testFailedRenegotiationIsNotRetriedOnEveryCall() throws Exception {
+      Properties overrides = setupProperties();
+      overrides.setProperty(GlanceProperties.VERSION_NEGOTIATION_TTL, "1");
+      final AtomicInteger negotiations = new AtomicInteger();
+      final List<URI> listed = new CopyOnWriteArrayList<URI>();
+      final Function<HttpRequest, HttpResponse> succeeding = negotiationSucceedsFrom(1, negotiations, listed);
+
+      GlanceApi api = createClient(new Function<HttpRequest, HttpResponse>() {
+         @Override
+         public HttpResponse apply(HttpRequest request) {
+            // only the first negotiation succeeds
+            if (request.getFirstHeaderOrNull(RegionToEndpointNegotiateVersion.VERSION_NEGOTIATION_HEADER) != null
+                  && negotiations.get() > 0) {
+               negotiations.incrementAndGet();
+               return HttpResponse.builder().statusCode(404).build();
+            }
+            return succeeding.apply(request);
+         }
+      }, createModule(), overrides);
+      api.getImageApi("az-1.region-a.geo-1").list().concat().toList();
+      assertEquals(negotiations.get(), 1);
+
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+      while (negotiations.get() == 1 && System.nanoTime() < deadline) {
+         Thread.sleep(50);
+         api.getImageApi("az-1.region-a.geo-1").list().concat().toList();
+      }
+      for (int i = 0; i < 20; i++) {
+         Thread.sleep(10);
+         api.getImageApi("az-1.region-a.geo-1").list().concat().toList();
+      }
+
+      assertEquals(negotiations.get(), 2);
+      assertEquals(Iterables.getLast(listed).getPath(), "/v1.0/images");
+   }
+
+   /**
+    * Answers the version negotiation with a 404 until the given attempt, and every other request but the
+    * authentication with the list of images.
+    */
+   private Function<HttpRequest, HttpResponse> negotiationSucceedsFrom(final int attempt,
+         final AtomicInteger negotiations, final List<URI> listed) {
+      final HttpResponse listResponse = HttpResponse.builder().statusCode(200)
+            .payload(payloadFromResource("/images.json")).build();
+      return new Function<HttpRequest, HttpResponse>() {
+         @Override
+         public HttpResponse apply(HttpRequest request) {
+            if (request.getEndpoint().equals(keystoneAuthWithUsernameAndPassword.getEndpoint()))
+               return responseWithKeystoneAccess;
+            if (request.getFirstHeaderOrNull(RegionToEndpointNegotiateVersion.VERSION_NEGOTIATION_HEADER) != null)
+               return negotiations.incrementAndGet() >= attempt ? versionNegotiationResponse
+                     : HttpResponse.builder().statusCode(404).build();
+            listed.add(request.getEndpoint());
+            return listResponse;
+         }
+      };
+   }
+
+   /**
+    * Moves the negotiation time of every entry of the cache file back by the given number of milliseconds.
+    */
+   private static void ageCacheFile(File cacheFile, long millis) throws Exception {
+      Properties entries = new Properties();
+      InputStream in = new FileInputStream(cacheFile);
+      try {
+         entries.load(in);
+      } finally {
+         Closeables.close(in, true);
+      }
+      for (String key : entries.stringPropertyNames()) {
+         List<String> value = Splitter.on(' ').splitToList(entries.getProperty(key));
+         entries.setProperty(key, value.get(0) + " " + (Long.parseLong(value.get(1)) - millis));
+      }
+      OutputStream out = new FileOutputStream(cacheFile);
+      try {
+         entries.store(out, null);
+      } finally {
+         Closeables.close(out, false);
+      }
+   }
 }
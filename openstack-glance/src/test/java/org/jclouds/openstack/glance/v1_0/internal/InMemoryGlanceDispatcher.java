@@ -0,0 +1,771 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.glance.v1_0.internal;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.jclouds.openstack.glance.v1_0.options.ImageField;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.LinkedListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Resources;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+/**
+ * A stateful, in-process stand-in for the Glance v1 API, to be installed on a MockWebServer.
+ * <p/>
+ * Answers authentication from the {@code access.json} test resource and version negotiation with the v1.0 endpoint
+ * of the server, then lists images in detail or not, with the Glance filters, sort keys and real markers, returns
+ * their metadata as headers, and serves their data, honouring single byte ranges. Images can be created with or
+ * without data, uploaded later, updated and deleted; deleted images are only listed with {@code changes-since}.
+ * <p/>
+ * Image data is kept in memory-mapped temporary files rather than on the heap, so that uploads and downloads of
+ * large images can be exercised end to end. Closing the dispatcher deletes these files.
+ *
+ * <pre>
+ * MockWebServer server = mockOpenStackServer();
+ * InMemoryGlanceDispatcher glance = new InMemoryGlanceDispatcher(server.getUrl("/"));
+ * server.setDispatcher(glance);
+ * </pre>
+ */
+public class InMemoryGlanceDispatcher extends Dispatcher implements Closeable {
+
+   public static final String API_VERSION = "/v1.0";
+   public static final String TENANT_ID = "da0d12be20394afb851716e10a49e4a7";
+
+   private static final String IMAGES = "/images";
+   private static final String DETAIL = "/detail";
+   private static final String META_PREFIX = ImageField.HEADER_PREFIX.toLowerCase(Locale.ENGLISH);
+   private static final String PROPERTY_PREFIX = ImageField.PROPERTY.asHeader().toLowerCase(Locale.ENGLISH) + "-";
+   private static final List<String> NUMERIC = ImmutableList.of("min_disk", "min_ram", "size");
+   private static final List<String> BOOLEAN = ImmutableList.of("is_public", "protected");
+   private static final List<String> SETTABLE = ImmutableList.of("name", "container_format", "disk_format", "owner",
+         "location", "checksum", "min_disk", "min_ram", "size", "is_public", "protected");
+   private static final List<String> SUMMARY = ImmutableList.of("id", "name", "container_format", "disk_format",
+         "checksum", "size");
+   private static final List<String> PAGING_PARAMETERS = ImmutableList.of("limit", "marker", "sort_key", "sort_dir",
+         "changes-since");
+   private static final Pattern RANGE = Pattern.compile("bytes=(\\d*)-(\\d*)");
+
+   private final String baseUrl;
+   private final int maxPageSize;
+   private final File directory;
+   private final ConcurrentNavigableMap<String, StoredImage> store = new ConcurrentSkipListMap<String, StoredImage>();
+   private final AtomicLong requestCount = new AtomicLong();
+   private final String access;
+
+   /**
+    * @param serverUrl the url of the MockWebServer the dispatcher is installed on
+    */
+   public InMemoryGlanceDispatcher(URL serverUrl) {
+      this(serverUrl, 1000, null);
+   }
+
+   /**
+    * @param serverUrl the url of the MockWebServer the dispatcher is installed on
+    * @param maxPageSize the largest page returned by a list, whatever limit is requested
+    * @param directory where the image data is mapped from, or null for the default temporary directory
+    */
+   public InMemoryGlanceDispatcher(URL serverUrl, int maxPageSize, File directory) {
+      checkArgument(maxPageSize > 0, "maxPageSize must be positive");
+      String url = checkNotNull(serverUrl, "serverUrl").toString();
+      this.baseUrl = url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+      this.maxPageSize = maxPageSize;
+      this.directory = directory;
+      this.access = resource("/access.json").replace("\"URL", "\"" + baseUrl);
+   }
+
+   /**
+    * Stores an image directly, without going through the api.
+    *
+    * @param attributes the attributes of the image, as listed in detail; defaults are applied as for a create
+    * @param data the data of the image, or null to reserve it
+    * @return the stored image, including its generated id
+    */
+   public JsonObject seed(JsonObject attributes, byte[] data) {
+      synchronized (this) {
+         return create(attributes, Collections.<String, String> emptyMap(), data).metadata;
+      }
+   }
+
+   /**
+    * @return the image as listed in detail, deleted or not, or null if there is none with this id
+    */
+   public JsonObject get(String id) {
+      StoredImage image = store.get(id);
+      return image == null ? null : image.metadata;
+   }
+
+   /**
+    * @return the number of images that are not deleted
+    */
+   public int size() {
+      int size = 0;
+      for (StoredImage image : store.values()) {
+         if (!image.isDeleted())
+            size++;
+      }
+      return size;
+   }
+
+   /**
+    * @return the number of api requests answered, authentication and version negotiation included
+    */
+   public long getRequestCount() {
+      return requestCount.get();
+   }
+
+   /**
+    * Deletes the files holding image data. The data of the images can no longer be read once closed.
+    */
+   @Override
+   public void close() {
+      synchronized (this) {
+         for (Map.Entry<String, StoredImage> image : store.entrySet()) {
+            store.put(image.getKey(), image.getValue().withoutData());
+         }
+      }
+   }
+
+   @Override
+   public MockResponse dispatch(RecordedRequest request) {
+      requestCount.incrementAndGet();
+      try {
+         return route(request);
+      } catch (IOException e) {
+         return error(500, e.getMessage());
+      } catch (RuntimeException e) {
+         return error(400, e.getMessage());
+      }
+   }
+
+   private MockResponse route(RecordedRequest request) throws IOException {
+      String method = request.getMethod();
+      String path = request.getPath();
+      Multimap<String, String> query = LinkedListMultimap.create();
+      int separator = path.indexOf('?');
+      if (separator >= 0) {
+         query = parseQuery(path.substring(separator + 1));
+         path = path.substring(0, separator);
+      }
+
+      if ("POST".equals(method) && path.endsWith("/tokens"))
+         return json(200, access);
+      if ("GET".equals(method) && (path.isEmpty() || path.equals("/")))
+         return json(300, versions());
+      if (!path.startsWith(API_VERSION + IMAGES))
+         return error(404, "no such path " + path);
+      path = path.substring((API_VERSION + IMAGES).length());
+
+      if (path.isEmpty() || path.equals("/")) {
+         if ("GET".equals(method))
+            return list(IMAGES, query, false);
+         if ("POST".equals(method))
+            return post(request);
+      } else if (path.equals(DETAIL) && "GET".equals(method)) {
+         return list(IMAGES + DETAIL, query, true);
+      } else if (path.indexOf('/', 1) < 0) {
+         String id = decode(path.substring(1));
+         if ("HEAD".equals(method))
+            return head(id);
+         if ("GET".equals(method))
+            return download(id, request.getHeader("Range"));
+         if ("PUT".equals(method))
+            return put(id, request);
+         if ("DELETE".equals(method))
+            return delete(id);
+      }
+      return error(404, "no such path " + path);
+   }
+
+   private String versions() {
+      JsonArray versions = new JsonArray();
+      for (String id : ImmutableList.of("v1.1", "v1.0")) {
+         JsonObject link = new JsonObject();
+         link.addProperty("href", baseUrl + API_VERSION + "/");
+         link.addProperty("rel", "self");
+         JsonArray links = new JsonArray();
+         links.add(link);
+         JsonObject version = new JsonObject();
+         version.addProperty("status", id.equals("v1.1") ? "CURRENT" : "SUPPORTED");
+         version.addProperty("id", id);
+         version.add("links", links);
+         versions.add(version);
+      }
+      return wrap("versions", versions);
+   }
+
+   private MockResponse list(String collection, Multimap<String, String> query, boolean detail) {
+      int limit = maxPageSize;
+      if (query.containsKey("limit"))
+         limit = Math.min(limit, Math.max(1, Integer.parseInt(first(query, "limit"))));
+      String since = null;
+      if (query.containsKey("changes-since"))
+         since = parseChangesSince(first(query, "changes-since"));
+
+      List<JsonObject> matching = Lists.newArrayList();
+      for (StoredImage image : store.values()) {
+         boolean listed = since != null ? string(image.metadata, "updated_at").compareTo(since) >= 0
+               : !image.isDeleted();
+         if (listed && matches(image.metadata, query))
+            matching.add(image.metadata);
+      }
+      final String sortKey = query.containsKey("sort_key") ? first(query, "sort_key") : "created_at";
+      final boolean ascending = "asc".equals(first(query, "sort_dir"));
+      Collections.sort(matching, new Comparator<JsonObject>() {
+         @Override
+         public int compare(JsonObject a, JsonObject b) {
+            int order = compareValues(a.get(sortKey), b.get(sortKey));
+            if (order == 0)
+               order = string(a, "id").compareTo(string(b, "id"));
+            return ascending ? order : -order;
+         }
+      });
+
+      int start = 0;
+      if (query.containsKey("marker")) {
+         String marker = first(query, "marker");
+         start = -1;
+         for (int i = 0; i < matching.size() && start < 0; i++) {
+            if (marker.equals(string(matching.get(i), "id")))
+               start = i + 1;
+         }
+         if (start < 0)
+            return error(400, "marker " + marker + " could not be found");
+      }
+      int end = Math.min(start + limit, matching.size());
+
+      JsonArray page = new JsonArray();
+      for (JsonObject image : matching.subList(start, end)) {
+         page.add(detail ? image : summary(image));
+      }
+      JsonArray links = new JsonArray();
+      if (end < matching.size()) {
+         StringBuilder href = new StringBuilder(baseUrl).append(API_VERSION).append(collection)
+               .append("?limit=").append(limit).append("&marker=").append(encode(string(matching.get(end - 1), "id")));
+         for (Map.Entry<String, String> parameter : query.entries()) {
+            if (!parameter.getKey().equals("limit") && !parameter.getKey().equals("marker"))
+               href.append('&').append(encode(parameter.getKey())).append('=').append(encode(parameter.getValue()));
+         }
+         JsonObject next = new JsonObject();
+         next.addProperty("href", href.toString());
+         next.addProperty("rel", "next");
+         links.add(next);
+      }
+
+      JsonObject body = new JsonObject();
+      body.add("images", page);
+      body.add("images_links", links);
+      return json(200, body.toString());
+   }
+
+   private MockResponse head(String id) {
+      StoredImage image = store.get(id);
+      // a response to HEAD has no body, even when it is an error
+      if (image == null || image.isDeleted())
+         return new MockResponse().setResponseCode(404);
+      return metadataHeaders(new MockResponse().setResponseCode(200), image.metadata);
+   }
+
+   private MockResponse download(String id, String range) {
+      StoredImage image = store.get(id);
+      if (image == null || image.isDeleted())
+         return notFound(id);
+      if (image.data == null)
+         return error(404, "image " + id + " has no data");
+
+      long size = image.data.capacity();
+      long start = 0;
+      long end = size - 1;
+      int code = 200;
+      if (range != null) {
+         Matcher matcher = RANGE.matcher(range.trim());
+         if (matcher.matches() && !(matcher.group(1).isEmpty() && matcher.group(2).isEmpty())) {
+            if (matcher.group(1).isEmpty()) {
+               start = Math.max(0, size - Long.parseLong(matcher.group(2)));
+            } else {
+               start = Long.parseLong(matcher.group(1));
+               if (!matcher.group(2).isEmpty())
+                  end = Math.min(end, Long.parseLong(matcher.group(2)));
+            }
+            if (start >= size || start > end)
+               return new MockResponse().setResponseCode(416).addHeader("Content-Range", "bytes */" + size);
+            code = 206;
+         }
+      }
+
+      ByteBuffer slice = image.data.duplicate();
+      slice.limit((int) end + 1).position((int) start);
+      MockResponse response = metadataHeaders(new MockResponse().setResponseCode(code), image.metadata)
+            .addHeader("Content-Type", "application/octet-stream")
+            .addHeader("ETag", string(image.metadata, "checksum"))
+            .setBody(new ByteBufferInputStream(slice), slice.remaining());
+      if (code == 206)
+         response.addHeader("Content-Range", "bytes " + start + "-" + end + "/" + size);
+      return response;
+   }
+
+   private MockResponse post(RecordedRequest request) throws IOException {
+      byte[] data = hasData(request) ? request.getBody() : null;
+      Map<String, String> properties = properties(request);
+      JsonObject attributes = attributes(request);
+      String requested = string(attributes, "id");
+      synchronized (this) {
+         if (requested != null && store.containsKey(requested))
+            return error(409, "image " + requested + " already exists");
+         MockResponse invalid = validate(attributes, data);
+         if (invalid != null)
+            return invalid;
+         return json(201, wrap("image", create(attributes, properties, data).metadata));
+      }
+   }
+
+   private MockResponse put(String id, RecordedRequest request) throws IOException {
+      byte[] data = hasData(request) ? request.getBody() : null;
+      Map<String, String> properties = properties(request);
+      JsonObject attributes = attributes(request);
+      attributes.remove("id");
+      synchronized (this) {
+         StoredImage existing = store.get(id);
+         if (existing == null || existing.isDeleted())
+            return notFound(id);
+         if (data != null && !"queued".equals(string(existing.metadata, "status")))
+            return error(409, "image " + id + " already has data");
+         MockResponse invalid = validate(attributes, data);
+         if (invalid != null)
+            return invalid;
+
+         JsonObject updated = copy(existing.metadata);
+         for (Map.Entry<String, JsonElement> attribute : attributes.entrySet()) {
+            updated.add(attribute.getKey(), attribute.getValue());
+         }
+         JsonObject updatedProperties = copy(updated.getAsJsonObject("properties"));
+         if ("true".equalsIgnoreCase(request.getHeader("x-glance-registry-purge-props")))
+            updatedProperties = new JsonObject();
+         for (Map.Entry<String, String> property : properties.entrySet()) {
+            updatedProperties.addProperty(property.getKey(), property.getValue());
+         }
+         updated.add("properties", updatedProperties);
+         updated.addProperty("updated_at", now());
+
+         StoredImage image = new StoredImage(updated, existing.file, existing.data);
+         if (data != null)
+            image = image.withData(data, directory);
+         store.put(id, image);
+         return json(200, wrap("image", image.metadata));
+      }
+   }
+
+   private MockResponse delete(String id) {
+      synchronized (this) {
+         StoredImage existing = store.get(id);
+         if (existing == null || existing.isDeleted())
+            return notFound(id);
+         if (existing.metadata.get("protected").getAsBoolean())
+            return error(403, "image " + id + " is protected and cannot be deleted");
+         JsonObject deleted = copy(existing.metadata);
+         String now = now();
+         deleted.addProperty("status", "deleted");
+         deleted.addProperty("deleted", true);
+         deleted.addProperty("deleted_at", now);
+         deleted.addProperty("updated_at", now);
+         store.put(id, new StoredImage(deleted, existing.file, existing.data).withoutData());
+         return new MockResponse().setResponseCode(200);
+      }
+   }
+
+   /**
+    * Must be called holding the lock on this.
+    */
+   private StoredImage create(JsonObject attributes, Map<String, String> properties, byte[] data) {
+      String now = now();
+      JsonObject created = new JsonObject();
+      created.addProperty("id", UUID.randomUUID().toString());
+      created.addProperty("name", "");
+      created.add("container_format", JsonNull.INSTANCE);
+      created.add("disk_format", JsonNull.INSTANCE);
+      created.add("checksum", JsonNull.INSTANCE);
+      created.add("owner", new JsonPrimitive(TENANT_ID));
+      created.addProperty("min_disk", 0);
+      created.addProperty("min_ram", 0);
+      created.addProperty("size", 0);
+      created.addProperty("is_public", false);
+      created.addProperty("protected", false);
+      created.addProperty("created_at", now);
+      created.addProperty("updated_at", now);
+      created.add("deleted_at", JsonNull.INSTANCE);
+      created.addProperty("deleted", false);
+      created.addProperty("status", "queued");
+      JsonObject createdProperties = new JsonObject();
+      for (Map.Entry<String, String> property : properties.entrySet()) {
+         createdProperties.addProperty(property.getKey(), property.getValue());
+      }
+      created.add("properties", createdProperties);
+      for (Map.Entry<String, JsonElement> attribute : attributes.entrySet()) {
+         created.add(attribute.getKey(), attribute.getValue());
+      }
+
+      StoredImage image = new StoredImage(created, null, null);
+      if (data != null)
+         image = image.withData(data, directory);
+      store.put(string(image.metadata, "id"), image);
+      return image;
+   }
+
+   /**
+    * @return an error response if the size or checksum announced does not match the data, or null
+    */
+   private static MockResponse validate(JsonObject attributes, byte[] data) {
+      if (data == null)
+         return null;
+      if (attributes.has("size") && attributes.get("size").getAsLong() != data.length)
+         return error(400, "size " + attributes.get("size") + " does not match the " + data.length + " bytes uploaded");
+      String checksum = Hashing.md5().hashBytes(data).toString();
+      if (attributes.has("checksum") && !checksum.equals(string(attributes, "checksum")))
+         return error(400, "checksum " + string(attributes, "checksum") + " does not match the data uploaded");
+      return null;
+   }
+
+   /**
+    * @return the image metadata set by the x-image-meta- headers of a request, properties excluded
+    */
+   private static JsonObject attributes(RecordedRequest request) {
+      JsonObject attributes = new JsonObject();
+      for (String header : request.getHeaders()) {
+         int colon = header.indexOf(':');
+         String name = header.substring(0, colon).trim().toLowerCase(Locale.ENGLISH);
+         String value = header.substring(colon + 1).trim();
+         if (!name.startsWith(META_PREFIX) || name.startsWith(PROPERTY_PREFIX))
+            continue;
+         String attribute = name.substring(META_PREFIX.length());
+         if (NUMERIC.contains(attribute))
+            attributes.addProperty(attribute, Long.parseLong(value));
+         else if (BOOLEAN.contains(attribute))
+            attributes.addProperty(attribute, Boolean.parseBoolean(value));
+         else if (SETTABLE.contains(attribute))
+            attributes.addProperty(attribute, value);
+         else if (attribute.equals("id"))
+            attributes.addProperty(attribute, value);
+      }
+      return attributes;
+   }
+
+   /**
+    * @return the properties set by the x-image-meta-property- headers of a request
+    */
+   private static Map<String, String> properties(RecordedRequest request) {
+      Map<String, String> properties = Maps.newLinkedHashMap();
+      for (String header : request.getHeaders()) {
+         int colon = header.indexOf(':');
+         String name = header.substring(0, colon).trim().toLowerCase(Locale.ENGLISH);
+         if (name.startsWith(PROPERTY_PREFIX) && name.length() > PROPERTY_PREFIX.length())
+            properties.put(name.substring(PROPERTY_PREFIX.length()), header.substring(colon + 1).trim());
+      }
+      return properties;
+   }
+
+   private static boolean hasData(RecordedRequest request) {
+      String contentType = request.getHeader("Content-Type");
+      return request.getBodySize() > 0 || (contentType != null && contentType.startsWith("application/octet-stream"));
+   }
+
+   private static MockResponse metadataHeaders(MockResponse response, JsonObject image) {
+      for (Map.Entry<String, JsonElement> attribute : image.entrySet()) {
+         if (attribute.getValue().isJsonNull() || attribute.getKey().equals("properties"))
+            continue;
+         String name = attribute.getKey();
+         response.addHeader(ImageField.HEADER_PREFIX + Character.toUpperCase(name.charAt(0)) + name.substring(1),
+               attribute.getValue().getAsString());
+      }
+      for (Map.Entry<String, JsonElement> property : image.getAsJsonObject("properties").entrySet()) {
+         response.addHeader(ImageField.PROPERTY.asHeader() + "-" + property.getKey(),
+               property.getValue().getAsString());
+      }
+      return response;
+   }
+
+   private static JsonObject summary(JsonObject image) {
+      JsonObject summary = new JsonObject();
+      for (String attribute : SUMMARY) {
+         summary.add(attribute, image.get(attribute));
+      }
+      return summary;
+   }
+
+   private static boolean matches(JsonObject image, Multimap<String, String> query) {
+      for (Map.Entry<String, String> filter : query.entries()) {
+         String key = filter.getKey();
+         String value = filter.getValue();
+         if (PAGING_PARAMETERS.contains(key))
+            continue;
+         if (key.startsWith("property-")) {
+            JsonElement property = image.getAsJsonObject("properties").get(key.substring("property-".length()));
+            if (property == null || !value.equals(property.getAsString()))
+               return false;
+         } else if (key.equals("size_min") || key.equals("size_max")) {
+            long size = image.get("size").getAsLong();
+            if (key.equals("size_min") ? size < Long.parseLong(value) : size > Long.parseLong(value))
+               return false;
+         } else {
+            JsonElement attribute = image.get(key);
+            if (attribute == null || attribute.isJsonNull() || !value.equalsIgnoreCase(attribute.getAsString()))
+               return false;
+         }
+      }
+      return true;
+   }
+
+   private static int compareValues(JsonElement a, JsonElement b) {
+      boolean aNull = a == null || a.isJsonNull();
+      boolean bNull = b == null || b.isJsonNull();
+      if (aNull || bNull)
+         return aNull == bNull ? 0 : aNull ? -1 : 1;
+      JsonPrimitive x = a.getAsJsonPrimitive();
+      JsonPrimitive y = b.getAsJsonPrimitive();
+      if (x.isNumber() && y.isNumber())
+         return Long.valueOf(x.getAsLong()).compareTo(y.getAsLong());
+      return x.getAsString().compareTo(y.getAsString());
+   }
+
+   /**
+    * @return the changes-since parameter, as seconds since the epoch or in ISO 8601, in the format of the dates stored
+    */
+   private static String parseChangesSince(String since) {
+      if (since.matches("\\d+"))
+         return format(new Date(Long.parseLong(since) * 1000));
+      return since.length() > 19 ? since.substring(0, 19) : since;
+   }
+
+   private static String now() {
+      return format(new Date());
+   }
+
+   private static String format(Date date) {
+      SimpleDateFormat iso8601 = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss", Locale.ENGLISH);
+      iso8601.setTimeZone(TimeZone.getTimeZone("UTC"));
+      return iso8601.format(date);
+   }
+
+   private static String first(Multimap<String, String> query, String key) {
+      return query.containsKey(key) ? query.get(key).iterator().next() : null;
+   }
+
+   private static String string(JsonObject object, String attribute) {
+      JsonElement value = object.get(attribute);
+      return value == null || value.isJsonNull() ? null : value.getAsString();
+   }
+
+   private static JsonObject copy(JsonObject object) {
+      JsonObject copy = new JsonObject();
+      for (Map.Entry<String, JsonElement> attribute : object.entrySet()) {
+         copy.add(attribute.getKey(), attribute.getValue());
+      }
+      return copy;
+   }
+
+   private static String wrap(String key, JsonElement value) {
+      JsonObject wrapper = new JsonObject();
+      wrapper.add(key, value);
+      return wrapper.toString();
+   }
+
+   private static Multimap<String, String> parseQuery(String query) {
+      Multimap<String, String> parameters = LinkedListMultimap.create();
+      for (String parameter : Splitter.on('&').omitEmptyStrings().split(query)) {
+         int equals = parameter.indexOf('=');
+         if (equals < 0)
+            parameters.put(decode(parameter), "");
+         else
+            parameters.put(decode(parameter.substring(0, equals)), decode(parameter.substring(equals + 1)));
+      }
+      return parameters;
+   }
+
+   private static String decode(String value) {
+      try {
+         return URLDecoder.decode(value, "UTF-8");
+      } catch (UnsupportedEncodingException e) {
+         throw new AssertionError(e);
+      }
+   }
+
+   private static String encode(String value) {
+      try {
+         return URLEncoder.encode(value, "UTF-8");
+      } catch (UnsupportedEncodingException e) {
+         throw new AssertionError(e);
+      }
+   }
+
+   private static String resource(String name) {
+      try {
+         return Resources.toString(InMemoryGlanceDispatcher.class.getResource(name), Charsets.UTF_8);
+      } catch (IOException e) {
+         throw new IllegalStateException("missing test resource " + name, e);
+      }
+   }
+
+   private static MockResponse notFound(String id) {
+      return error(404, "image " + id + " could not be found");
+   }
+
+   private static MockResponse error(int code, String message) {
+      return new MockResponse().setResponseCode(code)
+            .addHeader("Content-Type", "text/plain; charset=UTF-8")
+            .setBody(code + "\n\n" + message);
+   }
+
+   private static MockResponse json(int code, String body) {
+      return new MockResponse().setResponseCode(code)
+            .addHeader("Content-Type", "application/json; charset=UTF-8")
+            .setBody(body);
+   }
+
+   /**
+    * The metadata of an image, as listed in detail, and its data, if uploaded. Never modified in place, so that
+    * concurrent readers always see a consistent image.
+    */
+   private static final class StoredImage {
+      private final JsonObject metadata;
+      private final File file;
+      private final MappedByteBuffer data;
+
+      private StoredImage(JsonObject metadata, File file, MappedByteBuffer data) {
+         this.metadata = metadata;
+         this.file = file;
+         this.data = data;
+      }
+
+      private boolean isDeleted() {
+         return metadata.get("deleted").getAsBoolean();
+      }
+
+      /**
+       * @return the image, active with the data written to a new memory-mapped file
+       */
+      private StoredImage withData(byte[] bytes, File directory) {
+         File mapped = null;
+         try {
+            mapped = File.createTempFile("glance-", ".image", directory);
+            mapped.deleteOnExit();
+            RandomAccessFile raf = new RandomAccessFile(mapped, "rw");
+            MappedByteBuffer buffer;
+            try {
+               buffer = raf.getChannel().map(MapMode.READ_WRITE, 0, bytes.length);
+            } finally {
+               raf.close();
+            }
+            buffer.put(bytes);
+            buffer.force();
+            buffer.clear();
+
+            JsonObject active = copy(metadata);
+            active.addProperty("size", bytes.length);
+            active.addProperty("checksum", Hashing.md5().hashBytes(bytes).toString());
+            active.addProperty("status", "active");
+            withoutData();
+            return new StoredImage(active, mapped, buffer);
+         } catch (IOException e) {
+            if (mapped != null)
+               mapped.delete();
+            throw new IllegalStateException("cannot store the data of image " + string(metadata, "id"), e);
+         }
+      }
+
+      /**
+       * @return the image without data, its file deleted
+       */
+      private StoredImage withoutData() {
+         if (file != null)
+            file.delete();
+         return new StoredImage(metadata, null, null);
+      }
+   }
+
+   /**
+    * Reads the remaining bytes of a buffer, so that image data is streamed straight from the mapped file.
+    */
+   private static final class ByteBufferInputStream extends InputStream {
+      private final ByteBuffer buffer;
+
+      private ByteBufferInputStream(ByteBuffer buffer) {
+         this.buffer = buffer;
+      }
+
+      @Override
+      public int read() {
+         return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+      }
+
+      @Override
+      public int read(byte[] bytes, int offset, int length) {
+         if (length == 0)
+            return 0;
+         if (!buffer.hasRemaining())
+            return -1;
+         int count = Math.min(length, buffer.remaining());
+         buffer.get(bytes, offset, count);
+         return count;
+      }
+
+      @Override
+      public int available() {
+         return buffer.remaining();
+      }
+   }
+}
@@ -0,0 +1,155 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.glance.v1_0.internal;
+
+import static org.jclouds.openstack.glance.v1_0.options.CreateImageOptions.Builder.containerFormat;
+import static org.jclouds.openstack.glance.v1_0.options.UpdateImageOptions.Builder.name;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.File;
+import java.util.Set;
+
+import org.jclouds.http.HttpResponseException;
+import org.jclouds.io.Payloads;
+import org.jclouds.openstack.glance.v1_0.GlanceApi;
+import org.jclouds.openstack.glance.v1_0.domain.ContainerFormat;
+import org.jclouds.openstack.glance.v1_0.domain.DiskFormat;
+import org.jclouds.openstack.glance.v1_0.domain.Image;
+import org.jclouds.openstack.glance.v1_0.domain.ImageDetails;
+import org.jclouds.openstack.glance.v1_0.features.ImageApi;
+import org.jclouds.openstack.glance.v1_0.options.CreateImageOptions;
+import org.jclouds.openstack.glance.v1_0.options.ImageField;
+import org.jclouds.openstack.glance.v1_0.options.ListImageOptions;
+import org.jclouds.openstack.glance.v1_0.options.UpdateImageOptions;
+import org.jclouds.openstack.glance.v1_0.utils.ParallelImageDownloader;
+import org.jclouds.openstack.v2_0.domain.PaginatedCollection;
+import org.jclouds.openstack.v2_0.options.PaginationOptions;
+import org.jclouds.util.Strings2;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.gson.JsonObject;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+
+/**
+ * Tests the in-process Glance stand-in, driven through GlanceApi
+ */
+@Test
+public class InMemoryGlanceDispatcherMockTest extends BaseGlanceApiMockTest {
+
+   private static final int IMAGE_COUNT = 2500;
+   private static final byte[] DATA = "The quick brown fox jumps over the lazy dog".getBytes(Charsets.UTF_8);
+
+   public void testListFollowsMarkersAndFilters() throws Exception {
+      MockWebServer server = mockOpenStackServer();
+      InMemoryGlanceDispatcher glance = new InMemoryGlanceDispatcher(server.getUrl("/"), 1000, null);
+      server.setDispatcher(glance);
+      for (int i = 0; i < IMAGE_COUNT; i++) {
+         JsonObject image = new JsonObject();
+         image.addProperty("name", "image-" + i);
+         image.addProperty("disk_format", i % 5 == 0 ? "qcow2" : "raw");
+         glance.seed(image, null);
+      }
+
+      try {
+         ImageApi api = api(server.getUrl("/").toString(), "openstack-glance", overrides).getImageApi("RegionOne");
+
+         Set<String> ids = Sets.newHashSet();
+         for (ImageDetails image : api.listInDetail().concat()) {
+            ids.add(image.getId());
+         }
+         PaginatedCollection<ImageDetails> qcow2 = api.listInDetail(new ListImageOptions()
+               .diskFormat(DiskFormat.QCOW2).sortBy(ImageField.NAME).sortAscending().limit(10));
+
+         /*
+          * Check response
+          */
+         assertEquals(ids.size(), IMAGE_COUNT);
+         assertEquals(qcow2.size(), 10);
+         assertEquals(qcow2.get(0).getName(), "image-0");
+         assertEquals(qcow2.get(1).getName(), "image-10");
+         assertEquals(PaginationOptions.class.cast(qcow2.nextMarker().get()).buildQueryParameters().get("marker"),
+               ImmutableList.of(qcow2.get(9).getId()));
+         // authentication, version negotiation and one request per page of 1000
+         assertEquals(glance.getRequestCount(), 2 + 3 + 1);
+      } finally {
+         glance.close();
+         server.shutdown();
+      }
+   }
+
+   public void testCreateDownloadUpdateAndDelete() throws Exception {
+      MockWebServer server = mockOpenStackServer();
+      InMemoryGlanceDispatcher glance = new InMemoryGlanceDispatcher(server.getUrl("/"));
+      server.setDispatcher(glance);
+
+      try {
+         GlanceApi glanceApi = api(server.getUrl("/").toString(), "openstack-glance", overrides);
+         ImageApi api = glanceApi.getImageApi("RegionOne");
+         ImageDetails created = api.create("fox", Payloads.newByteArrayPayload(DATA),
+               containerFormat(ContainerFormat.BARE),
+               CreateImageOptions.Builder.diskFormat(DiskFormat.RAW),
+               CreateImageOptions.Builder.property("description", "quick"));
+         ImageDetails reserved = api.reserve("box");
+         File destination = File.createTempFile("image", ".raw");
+         destination.deleteOnExit();
+         new ParallelImageDownloader(glanceApi, MoreExecutors.sameThreadExecutor(), 16, 2)
+               .download("RegionOne", created.getId(), destination);
+
+         /*
+          * Check response
+          */
+         assertEquals(created.getStatus(), Image.Status.ACTIVE);
+         assertEquals(created.getChecksum().get(), "9e107d9d372bb6826bd81d3542a419d6");
+         ImageDetails head = api.get(created.getId());
+         assertEquals(head.getSize().get().longValue(), DATA.length);
+         assertEquals(head.getProperties().get("description"), "quick");
+         assertEquals(Files.toByteArray(destination), DATA);
+         assertEquals(reserved.getStatus(), Image.Status.QUEUED);
+         assertNull(api.getAsStream(reserved.getId()));
+
+         ImageDetails uploaded = api.upload(reserved.getId(), Payloads.newByteArrayPayload(DATA),
+               UpdateImageOptions.Builder.diskFormat(DiskFormat.RAW));
+         assertEquals(uploaded.getStatus(), Image.Status.ACTIVE);
+         assertEquals(Strings2.toStringAndClose(api.getAsStream(reserved.getId())),
+               new String(DATA, Charsets.UTF_8));
+         try {
+            api.upload(reserved.getId(), Payloads.newByteArrayPayload(DATA));
+            fail("an active image cannot be uploaded again");
+         } catch (IllegalStateException expected) {
+            assertEquals(HttpResponseException.class.cast(expected.getCause()).getResponse().getStatusCode(), 409);
+         }
+
+         assertEquals(api.update(created.getId(), name("lazy dog")).getName(), "lazy dog");
+         assertTrue(api.delete(created.getId()));
+         assertNull(api.get(created.getId()));
+         assertFalse(api.delete(created.getId()));
+         assertEquals(glance.size(), 1);
+      } finally {
+         glance.close();
+         server.shutdown();
+      }
+   }
+}
@@ -0,0 +1,254 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.glance.v1_0.utils;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.IllegalBlockingModeException;
+import java.nio.channels.Pipe;
+import java.util.Map;
+
+import javax.ws.rs.core.MediaType;
+
+import org.jclouds.http.HttpRequest;
+import org.jclouds.http.HttpResponse;
+import org.jclouds.io.Payloads;
+import org.jclouds.openstack.glance.v1_0.GlanceApi;
+import org.jclouds.openstack.glance.v1_0.functions.ParseImageDetailsFromHeadersTest;
+import org.jclouds.openstack.glance.v1_0.internal.BaseGlanceExpectTest;
+import org.jclouds.openstack.glance.v1_0.utils.ImageCache.CachedImage;
+import org.jclouds.rest.ResourceNotFoundException;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.MoreExecutors;
+
+@Test(groups = "unit", testName = "ImageCacheExpectTest")
+public class ImageCacheExpectTest extends BaseGlanceExpectTest {
+
+   private static final String FOX_ID = "fcc451d0-f6e4-4824-ad8f-70ec12326d07";
+   private static final String FOX = "The quick brown fox jumps over the lazy dog";
+   private static final String FOX_MD5 = "9e107d9d372bb6826bd81d3542a419d6";
+   private static final String BOX_ID = "13b7b0a8-3e0c-4bd2-8cdb-a0ba6f0e8e3c";
+   private static final String BOX = "Pack my box with five dozen liquor jugs";
+   private static final String BOX_MD5 = "1c50c85df8c02c99bc1605f66e11b04a";
+
+   public void testLookupIsServedFromDiskOnceCached() throws Exception {
+      GlanceApi api = requestsSendResponses(ImmutableMap.<HttpRequest, HttpResponse>builder()
+            .put(keystoneAuthWithUsernameAndPassword, responseWithKeystoneAccess)
+            .put(versionNegotiationRequest, versionNegotiationResponse)
+            .put(head(FOX_ID), headResponse(FOX_ID, FOX, FOX_MD5))
+            .put(range(FOX_ID, FOX), partialContent(FOX))
+            .build());
+      File directory = Files.createTempDir();
+
+      ImageCache cache = cache(api, directory, 1024);
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      cache.transferTo("az-1.region-a.geo-1", FOX_ID, Channels.newChannel(out));
+
+      assertEquals(new String(out.toByteArray(), Charsets.UTF_8), FOX);
+      assertTrue(cache.contains(FOX_MD5));
+      assertEquals(cache.size(), FOX.length());
+
+      // a cache over the same directory only needs to revalidate the image
+      GlanceApi headOnly = requestsSendResponses(ImmutableMap.<HttpRequest, HttpResponse>builder()
+            .put(keystoneAuthWithUsernameAndPassword, responseWithKeystoneAccess)
+            .put(versionNegotiationRequest, versionNegotiationResponse)
+            .put(head(FOX_ID), headResponse(FOX_ID, FOX, FOX_MD5))
+            .build());
+      CachedImage image = cache(headOnly, directory, 1024).open("az-1.region-a.geo-1", FOX_ID);
+      try {
+         assertEquals(Files.toString(image.getFile(), Charsets.UTF_8), FOX);
+         assertEquals(image.getDetails().getChecksum().get(), FOX_MD5);
+      } finally {
+         image.close();
+      }
+   }
+
+   public void testEvictsLeastRecentlyUsedImagesOnceUnpinned() throws Exception {
+      GlanceApi api = requestsSendResponses(ImmutableMap.<HttpRequest, HttpResponse>builder()
+            .put(keystoneAuthWithUsernameAndPassword, responseWithKeystoneAccess)
+            .put(versionNegotiationRequest, versionNegotiationResponse)
+            .put(head(FOX_ID), headResponse(FOX_ID, FOX, FOX_MD5))
+            .put(range(FOX_ID, FOX), partialContent(FOX))
+            .put(head(BOX_ID), headResponse(BOX_ID, BOX, BOX_MD5))
+            .put(range(BOX_ID, BOX), partialContent(BOX))
+            .build());
+      ImageCache cache = cache(api, Files.createTempDir(), 50);
+
+      CachedImage fox = cache.open("az-1.region-a.geo-1", FOX_ID);
+      CachedImage box = cache.open("az-1.region-a.geo-1", BOX_ID);
+
+      // both images are pinned, so the cache may exceed its limit
+      assertEquals(cache.size(), FOX.length() + BOX.length());
+
+      fox.close();
+      assertFalse(cache.contains(FOX_MD5));
+      assertFalse(fox.getFile().exists());
+
+      box.close();
+      assertTrue(cache.contains(BOX_MD5));
+      assertEquals(cache.size(), BOX.length());
+   }
+
+   public void testFailedDownloadIsKeptForResumingButEvictedFirst() throws Exception {
+      GlanceApi api = requestsSendResponses(ImmutableMap.<HttpRequest, HttpResponse>builder()
+            .put(keystoneAuthWithUsernameAndPassword, responseWithKeystoneAccess)
+            .put(versionNegotiationRequest, versionNegotiationResponse)
+            .put(head(FOX_ID), headResponse(FOX_ID, FOX, FOX_MD5))
+            .put(range(FOX_ID, FOX), HttpResponse.builder().statusCode(404).build())
+            .put(head(BOX_ID), headResponse(BOX_ID, BOX, BOX_MD5))
+            .put(range(BOX_ID, BOX), partialContent(BOX))
+            .build());
+      File directory = Files.createTempDir();
+      File partial = new File(directory, FOX_MD5 + ".part");
+      File journal = new File(directory, FOX_MD5 + ".part.journal");
+      ImageCache cache = cache(api, directory, 1024);
+
+      try {
+         cache.open("az-1.region-a.geo-1", FOX_ID);
+         fail("the data of the image is missing");
+      } catch (ResourceNotFoundException expected) {
+      }
+
+      // the partial download counts towards the limit
+      long kept = partial.length() + journal.length();
+      assertTrue(partial.exists());
+      assertEquals(cache.size(), kept);
+
+      // and is the first to go once another image needs the room
+      cache = cache(api, directory, kept + BOX.length() - 1);
+      cache.open("az-1.region-a.geo-1", BOX_ID).close();
+      assertFalse(partial.exists());
+      assertFalse(journal.exists());
+      assertEquals(cache.size(), BOX.length());
+   }
+
+   public void testTakesOverPartialDownloadsOfEarlierCache() throws Exception {
+      GlanceApi api = requestsSendResponses(ImmutableMap.<HttpRequest, HttpResponse>builder()
+            .put(keystoneAuthWithUsernameAndPassword, responseWithKeystoneAccess)
+            .build());
+      File directory = Files.createTempDir();
+      File partial = new File(directory, FOX_MD5 + ".part");
+      File journal = new File(directory, FOX_MD5 + ".part.journal");
+      File strayJournal = new File(directory, BOX_MD5 + ".part.journal");
+      Files.write(FOX, partial, Charsets.UTF_8);
+      Files.write("journal", journal, Charsets.UTF_8);
+      Files.write("journal", strayJournal, Charsets.UTF_8);
+
+      assertEquals(cache(api, directory, 1024).size(), FOX.length() + "journal".length());
+      assertTrue(partial.exists());
+      assertFalse(strayJournal.exists());
+
+      assertEquals(cache(api, directory, 10).size(), 0);
+      assertFalse(partial.exists());
+      assertFalse(journal.exists());
+   }
+
+   public void testRejectsChecksumThatIsNoFileName() throws Exception {
+      GlanceApi api = requestsSendResponses(ImmutableMap.<HttpRequest, HttpResponse>builder()
+            .put(keystoneAuthWithUsernameAndPassword, responseWithKeystoneAccess)
+            .put(versionNegotiationRequest, versionNegotiationResponse)
+            .put(head(FOX_ID), headResponse(FOX_ID, FOX, "../../" + FOX_MD5))
+            .build());
+      File root = Files.createTempDir();
+      File directory = new File(root, "images/cache");
+
+      try {
+         cache(api, directory, 1024).open("az-1.region-a.geo-1", FOX_ID);
+         fail("the checksum must not name a file outside the cache");
+      } catch (IllegalStateException expected) {
+      }
+      assertEquals(directory.list().length, 0);
+      assertEquals(root.list(), new String[] { "images" });
+   }
+
+   @Test(timeOut = 10000)
+   public void testTransferToFullNonBlockingChannelFailsRatherThanSpinning() throws Exception {
+      GlanceApi api = requestsSendResponses(ImmutableMap.<HttpRequest, HttpResponse>builder()
+            .put(keystoneAuthWithUsernameAndPassword, responseWithKeystoneAccess)
+            .put(versionNegotiationRequest, versionNegotiationResponse)
+            .put(head(FOX_ID), headResponse(FOX_ID, FOX, FOX_MD5))
+            .put(range(FOX_ID, FOX), partialContent(FOX))
+            .build());
+      Pipe pipe = Pipe.open();
+      pipe.sink().configureBlocking(false);
+      ByteBuffer filler = ByteBuffer.allocate(4096);
+      while (pipe.sink().write(filler) > 0) {
+         filler.clear();
+      }
+
+      CachedImage image = cache(api, Files.createTempDir(), 1024).open("az-1.region-a.geo-1", FOX_ID);
+      try {
+         image.transferTo(pipe.sink());
+         fail("the pipe takes no more bytes");
+      } catch (IllegalBlockingModeException expected) {
+      } finally {
+         image.close();
+         pipe.sink().close();
+         pipe.source().close();
+      }
+   }
+
+   private static ImageCache cache(GlanceApi api, File directory, long maxSize) throws Exception {
+      return new ImageCache(api, new ParallelImageDownloader(api, MoreExecutors.sameThreadExecutor()), directory,
+            maxSize);
+   }
+
+   private HttpRequest head(String id) {
+      return HttpRequest.builder().method("HEAD")
+            .endpoint("https://glance.jclouds.org:9292/v1.0/images/" + id)
+            .addHeader("Accept", MediaType.APPLICATION_JSON)
+            .addHeader("X-Auth-Token", authToken).build();
+   }
+
+   private HttpRequest range(String id, String data) {
+      return HttpRequest.builder().method("GET")
+            .endpoint("https://glance.jclouds.org:9292/v1.0/images/" + id)
+            .addHeader("Accept", MediaType.APPLICATION_JSON)
+            .addHeader("Range", "bytes=0-" + (data.length() - 1))
+            .addHeader("X-Auth-Token", authToken).build();
+   }
+
+   private static HttpResponse partialContent(String data) {
+      return HttpResponse.builder().statusCode(206)
+            .payload(Payloads.newByteArrayPayload(data.getBytes(Charsets.UTF_8))).build();
+   }
+
+   private static HttpResponse headResponse(String id, String data, String checksum) {
+      ImmutableMultimap.Builder<String, String> headers = ImmutableMultimap.builder();
+      for (Map.Entry<String, String> header : new ParseImageDetailsFromHeadersTest().response.getHeaders().entries()) {
+         if (!header.getKey().equals("X-Image-Meta-Id") && !header.getKey().equals("X-Image-Meta-Size")
+               && !header.getKey().equals("X-Image-Meta-Checksum"))
+            headers.put(header);
+      }
+      headers.put("X-Image-Meta-Id", id);
+      headers.put("X-Image-Meta-Size", String.valueOf(data.length()));
+      headers.put("X-Image-Meta-Checksum", checksum);
+      return HttpResponse.builder().statusCode(200).message("HTTP/1.1 200 OK").headers(headers.build()).build();
+   }
+}
@@ -0,0 +1,135 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.glance.v1_0.utils;
+
+import static org.easymock.EasyMock.createMock;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.jclouds.date.internal.SimpleDateFormatDateService;
+import org.jclouds.http.HttpRequest;
+import org.jclouds.http.HttpResponse;
+import org.jclouds.openstack.glance.v1_0.GlanceApi;
+import org.jclouds.openstack.glance.v1_0.domain.ContainerFormat;
+import org.jclouds.openstack.glance.v1_0.domain.DiskFormat;
+import org.jclouds.openstack.glance.v1_0.domain.Image.Status;
+import org.jclouds.openstack.glance.v1_0.domain.ImageDetails;
+import org.jclouds.openstack.glance.v1_0.internal.BaseGlanceExpectTest;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Range;
+
+@Test(groups = "unit", testName = "ImageCatalogExpectTest")
+public class ImageCatalogExpectTest extends BaseGlanceExpectTest {
+
+   private static final String REGION = "az-1.region-a.geo-1";
+
+   public void testSyncAppliesChangesSinceHighWaterMark() throws Exception {
+      Date firstMark = new SimpleDateFormatDateService().iso8601SecondsDateParse("2012-05-18T18:06:45Z");
+      HttpRequest listInDetail = HttpRequest.builder().method("GET")
+            .endpoint("https://glance.jclouds.org:9292/v1.0/images/detail")
+            .addHeader("Accept", "application/json")
+            .addHeader("X-Auth-Token", authToken).build();
+      HttpRequest changesSince = HttpRequest.builder().method("GET")
+            .endpoint("https://glance.jclouds.org:9292/v1.0/images/detail?changes-since=" + firstMark.getTime() / 1000)
+            .addHeader("Accept", "application/json")
+            .addHeader("X-Auth-Token", authToken).build();
+
+      GlanceApi api = requestsSendResponses(ImmutableMap.<HttpRequest, HttpResponse>builder()
+            .put(keystoneAuthWithUsernameAndPassword, responseWithKeystoneAccess)
+            .put(versionNegotiationRequest, versionNegotiationResponse)
+            .put(listInDetail, HttpResponse.builder().statusCode(200)
+                  .payload(payloadFromResource("/images_detail.json")).build())
+            .put(changesSince, HttpResponse.builder().statusCode(200)
+                  .payload(payloadFromResource("/images_detail_changes_since.json")).build())
+            .build());
+
+      ImageCatalog catalog = new ImageCatalog(api, createMock(ScheduledExecutorService.class));
+      final List<ImageCatalogDelta> deltas = Lists.newArrayList();
+      catalog.subscribe(new ImageCatalogListener() {
+         @Override
+         public void onDelta(ImageCatalogDelta delta) {
+            deltas.add(delta);
+         }
+      });
+
+      catalog.sync();
+
+      assertEquals(deltas.size(), 1);
+      assertEquals(deltas.get(0).getCreated().size(), 2);
+      assertEquals(catalog.findByName(REGION, "debian").size(), 2);
+      assertEquals(catalog.getHighWaterMark(REGION).get(), firstMark);
+      assertEquals(catalog.getIndex(REGION).size(), 2);
+
+      catalog.sync();
+
+      ImageCatalogDelta delta = deltas.get(1);
+      assertEquals(deltas.size(), 2);
+      ImageDetails ubuntu = Iterables.getOnlyElement(delta.getCreated());
+      assertEquals(ubuntu.getId(), "2d5fe7b4-27d0-4a2c-9a49-4d3fbd1bd2c4");
+      // the image modified in the second of the high-water mark is listed again, but is unchanged
+      assertTrue(delta.getUpdated().isEmpty());
+      assertEquals(Iterables.getOnlyElement(delta.getDeleted()).getId(), "f9fcb127-071d-4670-883e-eedb7efac183");
+      assertEquals(delta.getHighWaterMark(), ubuntu.getUpdatedAt());
+
+      assertEquals(catalog.list(REGION).size(), 2);
+      assertFalse(catalog.get(REGION, "f9fcb127-071d-4670-883e-eedb7efac183").isPresent());
+      assertEquals(catalog.findByName(REGION, "debian").size(), 1);
+      assertEquals(catalog.findByStatus(REGION, Status.ACTIVE).size(), 2);
+      assertEquals(catalog.findByDiskFormat(REGION, DiskFormat.QCOW2), Lists.newArrayList(ubuntu));
+      assertEquals(catalog.findByContainerFormat(REGION, ContainerFormat.OVF), Lists.newArrayList(ubuntu));
+      assertEquals(catalog.findByProperty(REGION, "os_distro", "ubuntu"), Lists.newArrayList(ubuntu));
+      // the index is rebuilt after a sync changing the region
+      assertEquals(catalog.find(REGION, ImageQuery.and(ImageQuery.status(Status.ACTIVE),
+            ImageQuery.minRam(Range.atLeast(512L)))), Lists.newArrayList(ubuntu));
+   }
+
+   public void testSyncFollowsNextLinks() throws Exception {
+      HttpRequest firstPage = HttpRequest.builder().method("GET")
+            .endpoint("https://glance.jclouds.org:9292/v1.0/images/detail")
+            .addHeader("Accept", "application/json")
+            .addHeader("X-Auth-Token", authToken).build();
+      HttpRequest secondPage = HttpRequest.builder().method("GET")
+            .endpoint("https://glance.jclouds.org:9292/v1.0/images/detail?marker=fcc451d0-f6e4-4824-ad8f-70ec12326d07")
+            .addHeader("Accept", "application/json")
+            .addHeader("X-Auth-Token", authToken).build();
+
+      GlanceApi api = requestsSendResponses(ImmutableMap.<HttpRequest, HttpResponse>builder()
+            .put(keystoneAuthWithUsernameAndPassword, responseWithKeystoneAccess)
+            .put(versionNegotiationRequest, versionNegotiationResponse)
+            .put(firstPage, HttpResponse.builder().statusCode(200)
+                  .payload(payloadFromResource("/images_detail_page1.json")).build())
+            .put(secondPage, HttpResponse.builder().statusCode(200)
+                  .payload(payloadFromResource("/images_detail_page2.json")).build())
+            .build());
+
+      ImageCatalog catalog = new ImageCatalog(api, createMock(ScheduledExecutorService.class));
+      catalog.sync();
+
+      assertEquals(catalog.list(REGION).size(), 2);
+      assertTrue(catalog.get(REGION, "fcc451d0-f6e4-4824-ad8f-70ec12326d07").isPresent());
+      assertTrue(catalog.get(REGION, "f9fcb127-071d-4670-883e-eedb7efac183").isPresent());
+   }
+}
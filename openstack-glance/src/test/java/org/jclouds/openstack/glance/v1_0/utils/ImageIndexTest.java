@@ -0,0 +1,118 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.glance.v1_0.utils;
+
+import static org.jclouds.openstack.glance.v1_0.utils.ImageQuery.and;
+import static org.jclouds.openstack.glance.v1_0.utils.ImageQuery.createdAt;
+import static org.jclouds.openstack.glance.v1_0.utils.ImageQuery.diskFormat;
+import static org.jclouds.openstack.glance.v1_0.utils.ImageQuery.hasProperty;
+import static org.jclouds.openstack.glance.v1_0.utils.ImageQuery.minDisk;
+import static org.jclouds.openstack.glance.v1_0.utils.ImageQuery.minRam;
+import static org.jclouds.openstack.glance.v1_0.utils.ImageQuery.not;
+import static org.jclouds.openstack.glance.v1_0.utils.ImageQuery.or;
+import static org.jclouds.openstack.glance.v1_0.utils.ImageQuery.property;
+import static org.jclouds.openstack.glance.v1_0.utils.ImageQuery.size;
+import static org.jclouds.openstack.glance.v1_0.utils.ImageQuery.status;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Date;
+import java.util.List;
+
+import org.jclouds.openstack.glance.v1_0.domain.DiskFormat;
+import org.jclouds.openstack.glance.v1_0.domain.Image.Status;
+import org.jclouds.openstack.glance.v1_0.domain.ImageDetails;
+import org.jclouds.openstack.glance.v1_0.options.ImageField;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Range;
+
+@Test(groups = "unit", testName = "ImageIndexTest")
+public class ImageIndexTest {
+
+   private final ImageDetails debian = image("debian", Status.ACTIVE, DiskFormat.RAW, 2048L, 512, 10, 1000,
+         ImmutableMap.of("OS_Distro", "debian"));
+   private final ImageDetails ubuntu = image("ubuntu", Status.ACTIVE, DiskFormat.QCOW2, 4096L, 1024, 20, 2000,
+         ImmutableMap.of("os_distro", "ubuntu", "deprecated", "true"));
+   private final ImageDetails fedora = image("fedora", Status.ACTIVE, DiskFormat.QCOW2, 1024L, 2048, 20, 3000,
+         ImmutableMap.of("os_distro", "fedora"));
+   private final ImageDetails queued = image("queued", Status.QUEUED, DiskFormat.QCOW2, null, 0, 0, 4000,
+         ImmutableMap.<String, String> of());
+   private final ImageIndex index = ImageIndex.of(ImmutableList.of(debian, ubuntu, fedora, queued));
+
+   public void testTermsAndPropertiesCombine() {
+      assertEquals(index.find(and(status(Status.ACTIVE), diskFormat(DiskFormat.QCOW2))),
+            ImmutableList.of(ubuntu, fedora));
+      // property keys are matched regardless of case
+      assertEquals(index.find(property("os_distro", "debian")), ImmutableList.of(debian));
+      assertEquals(index.find(or(property("os_distro", "ubuntu"), property("os_distro", "fedora"))),
+            ImmutableList.of(ubuntu, fedora));
+      assertEquals(index.find(and(hasProperty("os_distro"), not(property("deprecated", "true")))),
+            ImmutableList.of(debian, fedora));
+      assertTrue(index.find(property("os_distro", "arch")).isEmpty());
+      assertEquals(index.count(ImageQuery.all()), 4);
+   }
+
+   public void testRangesUseSortedIndexes() {
+      assertEquals(index.find(minRam(Range.atMost(1024L))), ImmutableList.of(debian, ubuntu, queued));
+      assertEquals(index.find(minRam(Range.open(512L, 2048L))), ImmutableList.of(ubuntu));
+      assertEquals(index.find(minDisk(Range.closed(20L, 20L))), ImmutableList.of(ubuntu, fedora));
+      // images without a size never match a size range
+      assertEquals(index.find(size(Range.<Long> all())), ImmutableList.of(debian, ubuntu, fedora));
+      assertEquals(index.find(createdAt(Range.closedOpen(new Date(2000), new Date(4000)))),
+            ImmutableList.of(ubuntu, fedora));
+   }
+
+   public void testFindSorted() {
+      assertEquals(index.find(status(Status.ACTIVE), ImageField.MIN_RAM, false, 2), ImmutableList.of(fedora, ubuntu));
+      // images without a size are sorted last
+      assertEquals(index.find(ImageQuery.all(), ImageField.SIZE, true, 10),
+            ImmutableList.of(fedora, debian, ubuntu, queued));
+   }
+
+   public void testLargeIndex() {
+      List<ImageDetails> images = Lists.newArrayList();
+      for (int i = 0; i < 10000; i++) {
+         images.add(image("image-" + i, i % 10 == 0 ? Status.QUEUED : Status.ACTIVE,
+               i % 2 == 0 ? DiskFormat.QCOW2 : DiskFormat.RAW, (long) i, i % 4096, i % 100, i,
+               ImmutableMap.of("tier", "tier-" + i % 7)));
+      }
+      ImageIndex large = ImageIndex.of(images);
+      ImageQuery query = and(status(Status.ACTIVE), diskFormat(DiskFormat.QCOW2), property("tier", "tier-3"),
+            minRam(Range.atMost(2048L)), minDisk(Range.atLeast(50L)));
+
+      int expected = 0;
+      for (int i = 0; i < 10000; i++) {
+         if (i % 10 != 0 && i % 2 == 0 && i % 7 == 3 && i % 4096 <= 2048 && i % 100 >= 50)
+            expected++;
+      }
+      assertEquals(large.count(query), expected);
+   }
+
+   private static ImageDetails image(String name, Status status, DiskFormat diskFormat, Long size, long minRam,
+         long minDisk, long created, ImmutableMap<String, String> properties) {
+      ImageDetails.Builder<?> builder = ImageDetails.builder().id(name + "-id").name(name).status(status)
+            .diskFormat(diskFormat).minRam(minRam).minDisk(minDisk).createdAt(new Date(created))
+            .updatedAt(new Date(created)).properties(properties);
+      if (size != null)
+         builder.size(size);
+      return builder.build();
+   }
+}
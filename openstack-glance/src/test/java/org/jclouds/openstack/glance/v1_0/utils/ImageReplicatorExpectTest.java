@@ -0,0 +1,245 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.glance.v1_0.utils;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.core.MediaType;
+
+import org.jclouds.http.HttpRequest;
+import org.jclouds.http.HttpResponse;
+import org.jclouds.io.ByteStreams2;
+import org.jclouds.io.Payload;
+import org.jclouds.io.Payloads;
+import org.jclouds.openstack.glance.v1_0.GlanceApi;
+import org.jclouds.openstack.glance.v1_0.domain.ImageDetails;
+import org.jclouds.openstack.glance.v1_0.functions.ParseImageDetailsFromHeadersTest;
+import org.jclouds.openstack.glance.v1_0.internal.BaseGlanceExpectTest;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+
+@Test(groups = "unit", testName = "ImageReplicatorExpectTest")
+public class ImageReplicatorExpectTest extends BaseGlanceExpectTest {
+
+   private static final String REGION = "az-1.region-a.geo-1";
+   private static final String IMAGE_ID = "fcc451d0-f6e4-4824-ad8f-70ec12326d07";
+   private static final String COPY_ID = "02fa0378-f305-43cf-8058-8572fe1da795";
+   private static final String DATA = "The quick brown fox jumps over the lazy dog";
+   private static final String MD5 = "9e107d9d372bb6826bd81d3542a419d6";
+
+   public void testReplicatePipesDownloadIntoUploadWithMetadata() throws Exception {
+      GlanceApi api = requestsSendResponses(ImmutableMap.<HttpRequest, HttpResponse>builder()
+            .put(keystoneAuthWithUsernameAndPassword, responseWithKeystoneAccess)
+            .put(versionNegotiationRequest, versionNegotiationResponse)
+            .put(head(), headResponse())
+            .put(getAsStream(), HttpResponse.builder().statusCode(200)
+                  .payload(Payloads.newByteArrayPayload(DATA.getBytes(Charsets.UTF_8))).build())
+            .put(create(), createResponse(MD5))
+            .build());
+      ListeningExecutorService executor = MoreExecutors.listeningDecorator(Executors.newCachedThreadPool());
+
+      // a ring smaller than the image makes the download wait for the upload
+      ImageReplicator replicator = new ImageReplicator(api, executor, 8, 2).withRegionLimits(REGION, 1, 1024);
+
+      try {
+         ImageDetails copy = replicator.replicate(REGION, IMAGE_ID, REGION).get();
+
+         assertEquals(copy.getId(), COPY_ID);
+         assertEquals(copy.getChecksum().get(), MD5);
+      } finally {
+         replicator.close();
+         executor.shutdownNow();
+      }
+   }
+
+   public void testReplicationsDoNotStarveEachOtherOfThreads() throws Exception {
+      GlanceApi api = requestsSendResponses(ImmutableMap.<HttpRequest, HttpResponse>builder()
+            .put(keystoneAuthWithUsernameAndPassword, responseWithKeystoneAccess)
+            .put(versionNegotiationRequest, versionNegotiationResponse)
+            .put(head(), headResponse())
+            .put(getAsStream(), HttpResponse.builder().statusCode(200)
+                  .payload(Payloads.newByteArrayPayload(DATA.getBytes(Charsets.UTF_8))).build())
+            .put(create(), createResponse(MD5))
+            .build());
+      // fewer threads than replications, each of which needs its download to run while it uploads
+      ListeningExecutorService executor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(1));
+
+      // and a single download thread, which the replications take turns at
+      ImageReplicator replicator = new ImageReplicator(api, executor, 1, 8, 2);
+
+      try {
+         List<ImageDetails> copies = replicator.replicate(REGION, Collections.nCopies(3, IMAGE_ID), REGION)
+               .get(10, TimeUnit.SECONDS);
+
+         assertEquals(copies.size(), 3);
+         for (ImageDetails copy : copies) {
+            assertEquals(copy.getChecksum().get(), MD5);
+         }
+      } finally {
+         replicator.close();
+         executor.shutdownNow();
+      }
+   }
+
+   public void testClosedReplicatorFailsReplications() throws Exception {
+      GlanceApi api = requestsSendResponses(ImmutableMap.<HttpRequest, HttpResponse>builder()
+            .put(keystoneAuthWithUsernameAndPassword, responseWithKeystoneAccess)
+            .put(versionNegotiationRequest, versionNegotiationResponse)
+            .put(head(), headResponse())
+            .put(getAsStream(), HttpResponse.builder().statusCode(200)
+                  .payload(Payloads.newByteArrayPayload(DATA.getBytes(Charsets.UTF_8))).build())
+            .build());
+      ListeningExecutorService executor = MoreExecutors.listeningDecorator(Executors.newCachedThreadPool());
+      ImageReplicator replicator = new ImageReplicator(api, executor, 8, 2);
+      replicator.close();
+
+      try {
+         replicator.replicate(REGION, IMAGE_ID, REGION).get(10, TimeUnit.SECONDS);
+         fail("the replicator has no download threads left");
+      } catch (ExecutionException expected) {
+         assertTrue(expected.getCause() instanceof RejectedExecutionException, expected.getCause().toString());
+      } finally {
+         executor.shutdownNow();
+      }
+   }
+
+   public void testReplicateDeletesCopyWithWrongChecksum() throws Exception {
+      HttpRequest delete = HttpRequest.builder().method("DELETE")
+            .endpoint("https://glance.jclouds.org:9292/v1.0/images/" + COPY_ID)
+            .addHeader("Accept", MediaType.APPLICATION_JSON)
+            .addHeader("X-Auth-Token", authToken).build();
+      GlanceApi api = requestsSendResponses(ImmutableMap.<HttpRequest, HttpResponse>builder()
+            .put(keystoneAuthWithUsernameAndPassword, responseWithKeystoneAccess)
+            .put(versionNegotiationRequest, versionNegotiationResponse)
+            .put(head(), headResponse())
+            .put(getAsStream(), HttpResponse.builder().statusCode(200)
+                  .payload(Payloads.newByteArrayPayload(DATA.getBytes(Charsets.UTF_8))).build())
+            .put(create(), createResponse("233afa7b8809d840679b5f0d36d7350a"))
+            .put(delete, HttpResponse.builder().statusCode(200).build())
+            .build());
+      ListeningExecutorService executor = MoreExecutors.listeningDecorator(Executors.newCachedThreadPool());
+
+      ImageReplicator replicator = new ImageReplicator(api, executor, 8, 2);
+
+      try {
+         replicator.replicate(REGION, IMAGE_ID, REGION).get();
+         fail("the copy does not match the data sent");
+      } catch (ExecutionException expected) {
+         assertTrue(expected.getCause() instanceof IOException, expected.getCause().toString());
+      } finally {
+         replicator.close();
+         executor.shutdownNow();
+      }
+   }
+
+   /**
+    * Buffers the streamed payload of the upload the first time it is compared, as it can only be read once.
+    */
+   @Override
+   public boolean httpRequestsAreEqual(HttpRequest a, HttpRequest b) {
+      if (!a.getMethod().equals("POST") || !b.getMethod().equals("POST"))
+         return super.httpRequestsAreEqual(a, b);
+      try {
+         return a.getRequestLine().equals(b.getRequestLine()) && a.getHeaders().equals(b.getHeaders())
+               && Arrays.equals(buffer(a), buffer(b));
+      } catch (IOException e) {
+         throw Throwables.propagate(e);
+      }
+   }
+
+   private static byte[] buffer(HttpRequest request) throws IOException {
+      Payload payload = request.getPayload();
+      if (payload.isRepeatable())
+         return ByteStreams2.toByteArrayAndClose(payload.openStream());
+      byte[] bytes = ByteStreams2.toByteArrayAndClose(payload.openStream());
+      Payload buffered = Payloads.newByteArrayPayload(bytes);
+      buffered.setContentMetadata(payload.getContentMetadata());
+      request.setPayload(buffered);
+      return bytes;
+   }
+
+   private HttpRequest head() {
+      return HttpRequest.builder().method("HEAD")
+            .endpoint("https://glance.jclouds.org:9292/v1.0/images/" + IMAGE_ID)
+            .addHeader("Accept", MediaType.APPLICATION_JSON)
+            .addHeader("X-Auth-Token", authToken).build();
+   }
+
+   private HttpRequest getAsStream() {
+      return HttpRequest.builder().method("GET")
+            .endpoint("https://glance.jclouds.org:9292/v1.0/images/" + IMAGE_ID)
+            .addHeader("Accept", MediaType.APPLICATION_JSON)
+            .addHeader("X-Auth-Token", authToken).build();
+   }
+
+   private HttpRequest create() {
+      return HttpRequest.builder().method("POST")
+            .endpoint("https://glance.jclouds.org:9292/v1.0/images")
+            .headers(ImmutableMultimap.<String, String>builder()
+                  .put("x-image-meta-name", "debian")
+                  .put("Accept", MediaType.APPLICATION_JSON)
+                  .put("X-Image-Meta-Disk_format", "raw")
+                  .put("X-Image-Meta-Container_format", "bare")
+                  .put("X-Image-Meta-Size", "43")
+                  .put("X-Image-Meta-Checksum", MD5)
+                  .put("X-Image-Meta-Owner", "5821675")
+                  .put("X-Image-Meta-Is_public", "true")
+                  .put("X-Image-Meta-Min_ram", "0")
+                  .put("X-Image-Meta-Min_disk", "0")
+                  .put("X-Image-Meta-Property-description", "debian image description")
+                  .put("X-Auth-Token", authToken).build())
+            .payload(payloadFromStringWithContentType(DATA, MediaType.APPLICATION_OCTET_STREAM)).build();
+   }
+
+   private static HttpResponse headResponse() {
+      ImmutableMultimap.Builder<String, String> headers = ImmutableMultimap.builder();
+      for (Map.Entry<String, String> header : new ParseImageDetailsFromHeadersTest().response.getHeaders().entries()) {
+         if (!header.getKey().equals("X-Image-Meta-Size") && !header.getKey().equals("X-Image-Meta-Checksum"))
+            headers.put(header);
+      }
+      headers.put("X-Image-Meta-Size", String.valueOf(DATA.length()));
+      headers.put("X-Image-Meta-Checksum", MD5);
+      return HttpResponse.builder().statusCode(200).message("HTTP/1.1 200 OK").headers(headers.build()).build();
+   }
+
+   private static HttpResponse createResponse(String checksum) {
+      return HttpResponse.builder().statusCode(200).payload(payloadFromStringWithContentType(String.format(
+            "{\"image\": {\"status\": \"active\", \"name\": \"debian\", \"deleted\": false, \"container_format\": \"bare\","
+            + " \"created_at\": \"2012-05-31T10:13:47\", \"disk_format\": \"raw\", \"updated_at\": \"2012-05-31T10:13:47\","
+            + " \"properties\": {\"description\": \"debian image description\"}, \"min_disk\": 0, \"protected\": false,"
+            + " \"id\": \"%s\", \"checksum\": \"%s\", \"owner\": \"5821675\", \"is_public\": true, \"deleted_at\": null,"
+            + " \"min_ram\": 0, \"size\": %d}}", COPY_ID, checksum, DATA.length()), MediaType.APPLICATION_JSON)).build();
+   }
+}
@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.glance.v1_0.utils;
+
+import static org.jclouds.openstack.glance.v1_0.options.UpdateImageOptions.Builder.name;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+
+import javax.ws.rs.core.MediaType;
+
+import org.jclouds.http.HttpRequest;
+import org.jclouds.http.HttpResponse;
+import org.jclouds.openstack.glance.v1_0.GlanceApi;
+import org.jclouds.openstack.glance.v1_0.domain.ImageDetails;
+import org.jclouds.openstack.glance.v1_0.internal.BaseGlanceExpectTest;
+import org.jclouds.util.Strings2;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.io.Files;
+
+@Test(groups = "unit", testName = "ImageUploaderExpectTest")
+public class ImageUploaderExpectTest extends BaseGlanceExpectTest {
+
+   private static final String IMAGE_ID = "fcc451d0-f6e4-4824-ad8f-70ec12326d07";
+   private static final String DATA = "The quick brown fox jumps over the lazy dog";
+   private static final String MD5 = "9e107d9d372bb6826bd81d3542a419d6";
+
+   public void testCreateStreamsFileAndVerifiesChecksum() throws Exception {
+      HttpRequest create = HttpRequest.builder().method("POST")
+            .endpoint("https://glance.jclouds.org:9292/v1.0/images")
+            .addHeader("x-image-meta-name", "test")
+            .addHeader("Accept", MediaType.APPLICATION_JSON)
+            .addHeader("X-Auth-Token", authToken)
+            .payload(payloadFromStringWithContentType(DATA, MediaType.APPLICATION_OCTET_STREAM)).build();
+
+      GlanceApi api = requestsSendResponses(keystoneAuthWithUsernameAndPassword,
+            responseWithKeystoneAccess, versionNegotiationRequest, versionNegotiationResponse,
+            create, imageResponse(MD5, DATA.length()));
+
+      ImageDetails image = new ImageUploader(api).create("az-1.region-a.geo-1", "test", file());
+
+      assertEquals(image.getChecksum().get(), MD5);
+      assertEquals(image.getSize().get().longValue(), DATA.length());
+   }
+
+   public void testUploadFailsWhenStoredChecksumDiffers() throws Exception {
+      HttpRequest upload = HttpRequest.builder().method("PUT")
+            .endpoint("https://glance.jclouds.org:9292/v1.0/images/" + IMAGE_ID)
+            .headers(ImmutableMultimap.<String, String>builder()
+                  .put("Accept", MediaType.APPLICATION_JSON)
+                  .put("X-Image-Meta-Name", "renamed")
+                  .put("X-Auth-Token", authToken).build())
+            .payload(payloadFromStringWithContentType(DATA, MediaType.APPLICATION_OCTET_STREAM)).build();
+
+      GlanceApi api = requestsSendResponses(keystoneAuthWithUsernameAndPassword,
+            responseWithKeystoneAccess, versionNegotiationRequest, versionNegotiationResponse,
+            upload, imageResponse("233afa7b8809d840679b5f0d36d7350a", DATA.length()));
+
+      try {
+         new ImageUploader(api).upload("az-1.region-a.geo-1", IMAGE_ID, file(), name("renamed"));
+         fail("the stored checksum differs from the one sent");
+      } catch (IOException expected) {
+      }
+   }
+
+   /**
+    * Reads file payloads the way the HTTP transport would, so that their checksum gets computed.
+    */
+   @Override
+   public boolean httpRequestsAreEqual(HttpRequest a, HttpRequest b) {
+      if (!(a.getPayload() instanceof ChecksummingFilePayload) && !(b.getPayload() instanceof ChecksummingFilePayload))
+         return super.httpRequestsAreEqual(a, b);
+      try {
+         return a.getRequestLine().equals(b.getRequestLine()) && a.getHeaders().equals(b.getHeaders())
+               && Strings2.toStringAndClose(a.getPayload().openStream())
+                     .equals(Strings2.toStringAndClose(b.getPayload().openStream()));
+      } catch (IOException e) {
+         throw Throwables.propagate(e);
+      }
+   }
+
+   private static File file() throws IOException {
+      File file = File.createTempFile("image", ".raw");
+      file.deleteOnExit();
+      Files.write(DATA, file, Charsets.UTF_8);
+      return file;
+   }
+
+   private static HttpResponse imageResponse(String checksum, long size) {
+      return HttpResponse.builder().statusCode(200).payload(payloadFromStringWithContentType(String.format(
+            "{\"image\": {\"status\": \"active\", \"name\": \"test\", \"deleted\": false, \"container_format\": \"bare\","
+            + " \"created_at\": \"2012-05-31T10:13:47\", \"disk_format\": \"raw\", \"updated_at\": \"2012-05-31T10:13:47\","
+            + " \"properties\": {}, \"min_disk\": 0, \"protected\": false, \"id\": \"%s\", \"checksum\": \"%s\","
+            + " \"is_public\": false, \"deleted_at\": null, \"min_ram\": 0, \"size\": %d}}", IMAGE_ID, checksum, size),
+            MediaType.APPLICATION_JSON)).build();
+   }
+}
@@ -0,0 +1,193 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.glance.v1_0.utils;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+
+import javax.ws.rs.core.MediaType;
+
+import org.jclouds.http.HttpRequest;
+import org.jclouds.http.HttpResponse;
+import org.jclouds.io.Payloads;
+import org.jclouds.openstack.glance.v1_0.GlanceApi;
+import org.jclouds.openstack.glance.v1_0.functions.ParseImageDetailsFromHeadersTest;
+import org.jclouds.openstack.glance.v1_0.internal.BaseGlanceExpectTest;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.MoreExecutors;
+
+@Test(groups = "unit", testName = "ParallelImageDownloaderExpectTest")
+public class ParallelImageDownloaderExpectTest extends BaseGlanceExpectTest {
+
+   private static final String IMAGE_ID = "fcc451d0-f6e4-4824-ad8f-70ec12326d07";
+   private static final String ENDPOINT = "https://glance.jclouds.org:9292/v1.0/images/" + IMAGE_ID;
+   private static final byte[] DATA = "The quick brown fox jumps over the lazy dog".getBytes(Charsets.UTF_8);
+   private static final String MD5 = "9e107d9d372bb6826bd81d3542a419d6";
+
+   public void testDownloadInSegments() throws Exception {
+      GlanceApi api = requestsSendResponses(ImmutableMap.<HttpRequest, HttpResponse>builder()
+            .put(keystoneAuthWithUsernameAndPassword, responseWithKeystoneAccess)
+            .put(versionNegotiationRequest, versionNegotiationResponse)
+            .put(head(), headResponse(MD5))
+            .put(range(0, 15), partialContent(0, 15))
+            .put(range(16, 31), partialContent(16, 31))
+            .put(range(32, 42), partialContent(32, 42))
+            .build());
+      File destination = File.createTempFile("image", ".raw");
+      destination.deleteOnExit();
+
+      new ParallelImageDownloader(api, MoreExecutors.sameThreadExecutor(), 16, 2)
+            .download("az-1.region-a.geo-1", IMAGE_ID, destination);
+
+      assertEquals(Files.toByteArray(destination), DATA);
+   }
+
+   public void testDownloadFallsBackToSingleStreamWhenRangeIsIgnored() throws Exception {
+      GlanceApi api = requestsSendResponses(ImmutableMap.<HttpRequest, HttpResponse>builder()
+            .put(keystoneAuthWithUsernameAndPassword, responseWithKeystoneAccess)
+            .put(versionNegotiationRequest, versionNegotiationResponse)
+            .put(head(), headResponse(MD5))
+            .put(range(0, 15), HttpResponse.builder().statusCode(200).payload(Payloads.newByteArrayPayload(DATA)).build())
+            .build());
+      File destination = File.createTempFile("image", ".raw");
+      destination.deleteOnExit();
+
+      new ParallelImageDownloader(api, MoreExecutors.sameThreadExecutor(), 16, 2)
+            .download("az-1.region-a.geo-1", IMAGE_ID, destination);
+
+      assertEquals(Files.toByteArray(destination), DATA);
+   }
+
+   public void testDownloadFailsOnChecksumMismatch() throws Exception {
+      GlanceApi api = requestsSendResponses(ImmutableMap.<HttpRequest, HttpResponse>builder()
+            .put(keystoneAuthWithUsernameAndPassword, responseWithKeystoneAccess)
+            .put(versionNegotiationRequest, versionNegotiationResponse)
+            .put(head(), headResponse("233afa7b8809d840679b5f0d36d7350a"))
+            .put(range(0, 31), partialContent(0, 31))
+            .put(range(32, 42), partialContent(32, 42))
+            .build());
+      File destination = File.createTempFile("image", ".raw");
+
+      try {
+         new ParallelImageDownloader(api, MoreExecutors.sameThreadExecutor(), 32, 2)
+               .download("az-1.region-a.geo-1", IMAGE_ID, destination);
+         fail("the checksum does not match");
+      } catch (IOException expected) {
+         assertFalse(destination.exists());
+      }
+   }
+
+   public void testResumableDownloadFetchesOnlyMissingSegments() throws Exception {
+      GlanceApi failing = requestsSendResponses(ImmutableMap.<HttpRequest, HttpResponse>builder()
+            .put(keystoneAuthWithUsernameAndPassword, responseWithKeystoneAccess)
+            .put(versionNegotiationRequest, versionNegotiationResponse)
+            .put(head(), headResponse(MD5))
+            .put(range(0, 15), partialContent(0, 15))
+            .put(range(16, 31), HttpResponse.builder().statusCode(400).build())
+            .build());
+      File destination = File.createTempFile("image", ".raw");
+      destination.deleteOnExit();
+      File journal = DownloadJournal.journalFor(destination);
+      journal.deleteOnExit();
+
+      try {
+         new ParallelImageDownloader(failing, MoreExecutors.sameThreadExecutor(), 16, 1)
+               .downloadResumable("az-1.region-a.geo-1", IMAGE_ID, destination);
+         fail("the second segment fails");
+      } catch (RuntimeException expected) {
+         assertTrue(destination.exists());
+         assertTrue(journal.exists());
+      }
+
+      GlanceApi api = requestsSendResponses(ImmutableMap.<HttpRequest, HttpResponse>builder()
+            .put(keystoneAuthWithUsernameAndPassword, responseWithKeystoneAccess)
+            .put(versionNegotiationRequest, versionNegotiationResponse)
+            .put(head(), headResponse(MD5))
+            .put(range(16, 31), partialContent(16, 31))
+            .put(range(32, 42), partialContent(32, 42))
+            .build());
+
+      new ParallelImageDownloader(api, MoreExecutors.sameThreadExecutor(), 16, 1)
+            .downloadResumable("az-1.region-a.geo-1", IMAGE_ID, destination);
+
+      assertEquals(Files.toByteArray(destination), DATA);
+      assertFalse(journal.exists());
+   }
+
+   public void testResumableDownloadRemovesJournalOnChecksumMismatch() throws Exception {
+      GlanceApi api = requestsSendResponses(ImmutableMap.<HttpRequest, HttpResponse>builder()
+            .put(keystoneAuthWithUsernameAndPassword, responseWithKeystoneAccess)
+            .put(versionNegotiationRequest, versionNegotiationResponse)
+            .put(head(), headResponse("233afa7b8809d840679b5f0d36d7350a"))
+            .put(range(0, 31), partialContent(0, 31))
+            .put(range(32, 42), partialContent(32, 42))
+            .build());
+      File destination = File.createTempFile("image", ".raw");
+
+      try {
+         new ParallelImageDownloader(api, MoreExecutors.sameThreadExecutor(), 32, 2)
+               .downloadResumable("az-1.region-a.geo-1", IMAGE_ID, destination);
+         fail("the checksum does not match");
+      } catch (IOException expected) {
+         assertFalse(destination.exists());
+         assertFalse(DownloadJournal.journalFor(destination).exists());
+      }
+   }
+
+   private HttpRequest head() {
+      return HttpRequest.builder().method("HEAD")
+            .endpoint(ENDPOINT)
+            .addHeader("Accept", MediaType.APPLICATION_JSON)
+            .addHeader("X-Auth-Token", authToken).build();
+   }
+
+   private HttpRequest range(long start, long end) {
+      return HttpRequest.builder().method("GET")
+            .endpoint(ENDPOINT)
+            .addHeader("Accept", MediaType.APPLICATION_JSON)
+            .addHeader("Range", "bytes=" + start + "-" + end)
+            .addHeader("X-Auth-Token", authToken).build();
+   }
+
+   private static HttpResponse partialContent(int start, int end) {
+      return HttpResponse.builder().statusCode(206)
+            .payload(Payloads.newByteArrayPayload(Arrays.copyOfRange(DATA, start, end + 1))).build();
+   }
+
+   private static HttpResponse headResponse(String checksum) {
+      ImmutableMultimap.Builder<String, String> headers = ImmutableMultimap.builder();
+      for (Map.Entry<String, String> header : new ParseImageDetailsFromHeadersTest().response.getHeaders().entries()) {
+         if (!header.getKey().equals("X-Image-Meta-Size") && !header.getKey().equals("X-Image-Meta-Checksum"))
+            headers.put(header);
+      }
+      headers.put("X-Image-Meta-Size", String.valueOf(DATA.length));
+      headers.put("X-Image-Meta-Checksum", checksum);
+      return HttpResponse.builder().statusCode(200).message("HTTP/1.1 200 OK").headers(headers.build()).build();
+   }
+}
@@ -0,0 +1,104 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.glance.v1_0.utils;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.fail;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.jclouds.http.HttpRequest;
+import org.jclouds.http.HttpResponse;
+import org.jclouds.http.HttpResponseException;
+import org.jclouds.openstack.glance.v1_0.GlanceApi;
+import org.jclouds.openstack.glance.v1_0.domain.DiskFormat;
+import org.jclouds.openstack.glance.v1_0.domain.Image.Status;
+import org.jclouds.openstack.glance.v1_0.domain.ImageDetails;
+import org.jclouds.openstack.glance.v1_0.internal.BaseGlanceExpectTest;
+import org.jclouds.openstack.glance.v1_0.options.ImageField;
+import org.jclouds.openstack.glance.v1_0.options.ListImageOptions;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+
+@Test(groups = "unit", testName = "PartitionedImageListerExpectTest")
+public class PartitionedImageListerExpectTest extends BaseGlanceExpectTest {
+
+   private final ExecutorService threads = Executors.newCachedThreadPool();
+   private final ListeningExecutorService userExecutor = MoreExecutors.listeningDecorator(threads);
+
+   @AfterClass(alwaysRun = true)
+   public void shutdownExecutor() {
+      threads.shutdownNow();
+   }
+
+   public void testListInDetailMergesSlicesAndSortsAgain() {
+      GlanceApi api = requestsSendResponses(ImmutableMap.<HttpRequest, HttpResponse>builder()
+            .put(keystoneAuthWithUsernameAndPassword, responseWithKeystoneAccess)
+            .put(versionNegotiationRequest, versionNegotiationResponse)
+            .put(listInDetail("sort_key=name&sort_dir=asc&disk_format=raw"), HttpResponse.builder().statusCode(200)
+                  .payload(payloadFromResource("/images_detail.json")).build())
+            .put(listInDetail("sort_key=name&sort_dir=asc&disk_format=qcow2"), HttpResponse.builder().statusCode(200)
+                  .payload(payloadFromResource("/images_detail_changes_since.json")).build())
+            .build());
+
+      List<ImageDetails> images = new PartitionedImageLister(api, userExecutor).listInDetail("az-1.region-a.geo-1",
+            new ListImageOptions().sortBy(ImageField.NAME).sortAscending(),
+            ImageListPartition.byDiskFormat(DiskFormat.RAW, DiskFormat.QCOW2));
+
+      List<String> ids = Lists.newArrayList();
+      for (ImageDetails image : images) {
+         ids.add(image.getId());
+      }
+      assertEquals(ids, ImmutableList.of("f9fcb127-071d-4670-883e-eedb7efac183",
+            "fcc451d0-f6e4-4824-ad8f-70ec12326d07", "2d5fe7b4-27d0-4a2c-9a49-4d3fbd1bd2c4"));
+      // the first slice listing an image wins
+      assertEquals(images.get(0).getStatus(), Status.ACTIVE);
+   }
+
+   public void testListInDetailFailsWhenASliceFails() {
+      GlanceApi api = requestsSendResponses(ImmutableMap.<HttpRequest, HttpResponse>builder()
+            .put(keystoneAuthWithUsernameAndPassword, responseWithKeystoneAccess)
+            .put(versionNegotiationRequest, versionNegotiationResponse)
+            .put(listInDetail("status=ACTIVE"), HttpResponse.builder().statusCode(200)
+                  .payload(payloadFromResource("/images_detail.json")).build())
+            .put(listInDetail("status=QUEUED"), HttpResponse.builder().statusCode(400).build())
+            .build());
+
+      try {
+         new PartitionedImageLister(api, userExecutor).listInDetail("az-1.region-a.geo-1", new ListImageOptions(),
+               ImageListPartition.byStatus(Status.ACTIVE, Status.QUEUED));
+         fail("the second slice fails");
+      } catch (HttpResponseException expected) {
+         assertEquals(expected.getResponse().getStatusCode(), 400);
+      }
+   }
+
+   private HttpRequest listInDetail(String query) {
+      return HttpRequest.builder().method("GET")
+            .endpoint("https://glance.jclouds.org:9292/v1.0/images/detail?" + query)
+            .addHeader("Accept", "application/json")
+            .addHeader("X-Auth-Token", authToken).build();
+   }
+}
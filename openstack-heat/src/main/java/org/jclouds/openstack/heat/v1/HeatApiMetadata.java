@@ -16,6 +16,7 @@
  */
 package org.jclouds.openstack.heat.v1;
 
+import static org.jclouds.openstack.heat.v1.config.HeatProperties.LIST_PREFETCH;
 import static org.jclouds.openstack.keystone.v2_0.config.KeystoneProperties.CREDENTIAL_TYPE;
 import static org.jclouds.openstack.keystone.v2_0.config.KeystoneProperties.SERVICE_TYPE;
 
@@ -57,6 +58,7 @@ public class HeatApiMetadata extends BaseHttpApiMetadata<HeatApi> {
       Properties properties = BaseHttpApiMetadata.defaultProperties();
       properties.setProperty(SERVICE_TYPE, "orchestration");
       properties.setProperty(CREDENTIAL_TYPE, CredentialTypes.PASSWORD_CREDENTIALS);
+      properties.setProperty(LIST_PREFETCH, "false");
       return properties;
    }
 
@@ -0,0 +1,198 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.heat.v1.binders;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+
+import javax.inject.Inject;
+import javax.ws.rs.core.MediaType;
+
+import org.jclouds.http.HttpRequest;
+import org.jclouds.io.Payload;
+import org.jclouds.io.Payloads;
+import org.jclouds.json.Json;
+import org.jclouds.openstack.heat.v1.options.CreateStack;
+import org.jclouds.openstack.heat.v1.options.StackRequest;
+import org.jclouds.openstack.heat.v1.options.UpdateStack;
+import org.jclouds.rest.Binder;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteSource;
+import com.google.common.net.HttpHeaders;
+
+/**
+ * Binds a {@link StackRequest} to a JSON payload generated as it is sent.
+ * <p/>
+ * The options are serialized as usual, but for their template and files, which are written as JSON strings escaped
+ * as they are read from their sources. The payload is sent chunked, as its length is not known in advance. It is
+ * repeatable, each attempt reading the sources again, and only one source is open at a time.
+ */
+public class BindStackRequestToJsonPayload implements Binder {
+
+   private final Json json;
+
+   @Inject
+   BindStackRequestToJsonPayload(Json json) {
+      this.json = json;
+   }
+
+   @SuppressWarnings("unchecked")
+   @Override
+   public <R extends HttpRequest> R bindToRequest(R request, Object input) {
+      checkArgument(input instanceof StackRequest, "this binder is only valid for StackRequest");
+      StackRequest stack = (StackRequest) input;
+      Object options = stack.getOptions();
+      Map<String, ByteSource> files = Maps.newLinkedHashMap();
+      if (options instanceof CreateStack) {
+         CreateStack create = (CreateStack) options;
+         if (create.getFiles() != null) {
+            for (Map.Entry<String, String> file : create.getFiles().entrySet()) {
+               files.put(file.getKey(), ByteSource.wrap(file.getValue().getBytes(Charsets.UTF_8)));
+            }
+         }
+         options = create.toBuilder().files(null)
+               .template(stack.getTemplate() != null ? null : create.getTemplate()).build();
+      } else if (stack.getTemplate() != null) {
+         options = ((UpdateStack) options).toBuilder().template(null).build();
+      }
+      files.putAll(stack.getFiles());
+
+      String serialized = json.toJson(options);
+      List<ByteSource> body = Lists.newArrayList();
+      StringBuilder between = new StringBuilder(serialized.substring(0, serialized.length() - 1));
+      boolean first = serialized.length() == 2;
+      if (stack.getTemplate() != null) {
+         between.append(first ? "" : ",").append("\"template\":\"");
+         body.add(utf8(between));
+         body.add(escaped(stack.getTemplate()));
+         between = new StringBuilder("\"");
+         first = false;
+      }
+      if (!files.isEmpty()) {
+         between.append(first ? "" : ",").append("\"files\":{");
+         boolean firstFile = true;
+         for (Map.Entry<String, ByteSource> file : files.entrySet()) {
+            between.append(firstFile ? "" : ",").append(json.toJson(file.getKey())).append(":\"");
+            body.add(utf8(between));
+            body.add(escaped(file.getValue()));
+            between = new StringBuilder("\"");
+            firstFile = false;
+         }
+         between.append('}');
+      }
+      body.add(utf8(between.append('}')));
+
+      Payload payload = Payloads.newByteSourcePayload(ByteSource.concat(body));
+      payload.getContentMetadata().setContentType(MediaType.APPLICATION_JSON);
+      return (R) request.toBuilder().replaceHeader(HttpHeaders.TRANSFER_ENCODING, "chunked").payload(payload).build();
+   }
+
+   private static ByteSource utf8(CharSequence json) {
+      return ByteSource.wrap(json.toString().getBytes(Charsets.UTF_8));
+   }
+
+   private static ByteSource escaped(final ByteSource content) {
+      return new ByteSource() {
+         @Override
+         public InputStream openStream() throws IOException {
+            return new JsonStringInputStream(new BufferedInputStream(content.openStream()));
+         }
+      };
+   }
+
+   /**
+    * Escapes UTF-8 text into the content of a JSON string. Bytes of multi-byte characters need no escaping.
+    */
+   private static final class JsonStringInputStream extends InputStream {
+      private static final byte[] HEX = "0123456789abcdef".getBytes(Charsets.US_ASCII);
+
+      private final InputStream in;
+      private final byte[] escape = new byte[6];
+      private int escapeStart;
+      private int escapeEnd;
+
+      private JsonStringInputStream(InputStream in) {
+         this.in = in;
+      }
+
+      @Override
+      public int read() throws IOException {
+         if (escapeStart < escapeEnd)
+            return escape[escapeStart++];
+         int b = in.read();
+         if (b < 0)
+            return -1;
+         switch (b) {
+            case '"':
+            case '\\':
+               return escape('\\', b);
+            case '\n':
+               return escape('\\', 'n');
+            case '\r':
+               return escape('\\', 'r');
+            case '\t':
+               return escape('\\', 't');
+            default:
+               if (b >= 0x20)
+                  return b;
+               escapeStart = 0;
+               escapeEnd = 6;
+               escape[0] = '\\';
+               escape[1] = 'u';
+               escape[2] = '0';
+               escape[3] = '0';
+               escape[4] = HEX[b >> 4];
+               escape[5] = HEX[b & 0xf];
+               return escape[escapeStart++];
+         }
+      }
+
+      private int escape(int backslash, int escaped) {
+         escapeStart = 0;
+         escapeEnd = 1;
+         escape[0] = (byte) escaped;
+         return backslash;
+      }
+
+      @Override
+      public int read(byte[] buffer, int offset, int length) throws IOException {
+         if (length == 0)
+            return 0;
+         int read = 0;
+         while (read < length) {
+            int b = read();
+            if (b < 0)
+               return read == 0 ? -1 : read;
+            buffer[offset + read++] = (byte) b;
+         }
+         return read;
+      }
+
+      @Override
+      public void close() throws IOException {
+         in.close();
+      }
+   }
+}
@@ -0,0 +1,33 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.heat.v1.config;
+
+/**
+ * Configuration properties and constants used in Heat connections.
+ */
+public final class HeatProperties {
+
+   /**
+    * Whether the paged stack listings fetch the next page in the background while the current one is consumed.
+    * Defaults to false, which fetches each page only when it is needed.
+    */
+   public static final String LIST_PREFETCH = "jclouds.heat.list.prefetch";
+
+   private HeatProperties() {
+      throw new AssertionError("intentionally unimplemented");
+   }
+}
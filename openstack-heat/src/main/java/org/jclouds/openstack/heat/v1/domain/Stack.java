@@ -79,7 +79,18 @@ public abstract class Stack {
    /**
     * @return the outputs of this Stack.
     */
-   @Nullable public abstract List<String> getOutputs();
+   @Nullable public abstract List<StackOutput> getOutputs();
+
+   /**
+    * @return the value of the output with the given key, or null if there is no such output or it has no value yet.
+    */
+   @Nullable public Object getOutput(String key) {
+      for (StackOutput output : getOutputs()) {
+         if (output.getKey().equals(key))
+            return output.getValue();
+      }
+      return null;
+   }
 
    /**
     * @return the notification topics of this Stack.
@@ -125,7 +136,7 @@ public abstract class Stack {
          "notification_topics", "template_description", "stack_status", "stack_status_reason", "creation_time",
          "updated_time", "timeout_mins", "disable_rollback", "project", "links"})
    private static Stack create(String id, String name, String description, String owner, Set<String> capabilities,
-                               Map<String, String> parameters, List<String> outputs, List<String> notificationTopics,
+                               Map<String, String> parameters, List<StackOutput> outputs, List<String> notificationTopics,
                                String templateDescription, StackStatus status, String statusReason, Date created, Date updated, int timeoutMins,
                                boolean disableRollback, String project, Set<Link> links) {
       return new AutoValue_Stack(
@@ -137,7 +148,7 @@ public abstract class Stack {
             project,
             parameters != null ? ImmutableMap.copyOf(parameters) : ImmutableMap.<String, String>of(),
             capabilities != null ? ImmutableSet.copyOf(capabilities) : ImmutableSet.<String>of(),
-            outputs != null ? ImmutableList.copyOf(outputs) : ImmutableList.<String>of(),
+            outputs != null ? ImmutableList.copyOf(outputs) : ImmutableList.<StackOutput>of(),
             notificationTopics != null ? ImmutableList.copyOf(notificationTopics) : ImmutableList.<String>of(),
             status,
             statusReason,
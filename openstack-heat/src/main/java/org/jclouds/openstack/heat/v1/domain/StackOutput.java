@@ -0,0 +1,50 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.heat.v1.domain;
+
+import org.jclouds.javax.annotation.Nullable;
+import org.jclouds.json.SerializedNames;
+
+import com.google.auto.value.AutoValue;
+
+/**
+ * Representation of an output of an OpenStack Heat Stack.
+ */
+@AutoValue
+public abstract class StackOutput {
+
+   /**
+    * @return the name of this output, as declared in the template.
+    */
+   public abstract String getKey();
+
+   /**
+    * @return the value of this output: a string, a number, a boolean, a list or a map, or null while the stack is
+    *         being created.
+    */
+   @Nullable public abstract Object getValue();
+
+   /**
+    * @return the description of this output.
+    */
+   @Nullable public abstract String getDescription();
+
+   @SerializedNames({"output_key", "output_value", "description"})
+   private static StackOutput create(String key, Object value, String description) {
+      return new AutoValue_StackOutput(key, value, description);
+   }
+}
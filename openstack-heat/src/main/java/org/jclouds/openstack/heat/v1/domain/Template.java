@@ -17,6 +17,10 @@
 
 package org.jclouds.openstack.heat.v1.domain;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.jclouds.javax.annotation.Nullable;
@@ -31,6 +35,11 @@ import com.google.common.collect.ImmutableMap;
 @AutoValue
 public abstract class Template {
 
+   /**
+    * @return the version of the template format, such as 2014-10-16.
+    */
+   @Nullable public abstract String getVersion();
+
    /**
     * @return the description of this Stack Template.
     */
@@ -46,12 +55,43 @@ public abstract class Template {
     */
    public abstract Map<String, Object> getResources();
 
-   @SerializedNames({"description", "parameters", "resources"})
-   private static Template create(String description, Map<String, Object> parameters, Map<String, Object> resources) {
+   /**
+    * @return the outputs of this Stack Template, by key.
+    */
+   public abstract Map<String, Object> getOutputs();
+
+   @SerializedNames({"heat_template_version", "description", "parameters", "resources", "outputs"})
+   private static Template create(String version, String description, Map<String, Object> parameters,
+         Map<String, Object> resources, Map<String, Object> outputs) {
       return new AutoValue_Template(
+            version,
             description,
-            parameters != null ? ImmutableMap.copyOf(parameters) : ImmutableMap.<String, Object>of(),
-            resources != null ? ImmutableMap.copyOf(resources) : ImmutableMap.<String, Object>of());
+            parameters != null ? freeze(parameters) : ImmutableMap.<String, Object>of(),
+            resources != null ? freeze(resources) : ImmutableMap.<String, Object>of(),
+            outputs != null ? freeze(outputs) : ImmutableMap.<String, Object>of());
+   }
+
+   /**
+    * Copies the maps and lists nested in a template into unmodifiable ones, so that templates can be shared. Values
+    * may be null, so Guava's immutable collections do not fit.
+    */
+   @SuppressWarnings("unchecked")
+   private static <T> T freeze(T value) {
+      if (value instanceof Map) {
+         Map<Object, Object> copy = new LinkedHashMap<Object, Object>();
+         for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+            copy.put(entry.getKey(), freeze(entry.getValue()));
+         }
+         return (T) Collections.unmodifiableMap(copy);
+      }
+      if (value instanceof List) {
+         List<Object> copy = new ArrayList<Object>();
+         for (Object element : (List<?>) value) {
+            copy.add(freeze(element));
+         }
+         return (T) Collections.unmodifiableList(copy);
+      }
+      return value;
    }
 }
 
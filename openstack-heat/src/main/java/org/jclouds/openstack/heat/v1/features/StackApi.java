@@ -31,20 +31,32 @@ import javax.ws.rs.core.MediaType;
 
 import org.jclouds.Fallbacks.EmptyListOnNotFoundOr404;
 import org.jclouds.Fallbacks.EmptyMapOnNotFoundOr404;
+import org.jclouds.Fallbacks.EmptyPagedIterableOnNotFoundOr404;
 import org.jclouds.Fallbacks.FalseOnNotFoundOr404;
 import org.jclouds.Fallbacks.NullOnNotFoundOr404;
+import org.jclouds.collect.PagedIterable;
+import org.jclouds.http.functions.ReturnStringIf2xx;
 import org.jclouds.javax.annotation.Nullable;
+import org.jclouds.openstack.heat.v1.binders.BindStackRequestToJsonPayload;
 import org.jclouds.openstack.heat.v1.domain.Stack;
 import org.jclouds.openstack.heat.v1.domain.StackResource;
+import org.jclouds.openstack.heat.v1.domain.Stacks;
 import org.jclouds.openstack.heat.v1.domain.Template;
+import org.jclouds.openstack.heat.v1.fallbacks.EmptyStacksFallback;
+import org.jclouds.openstack.heat.v1.functions.ParseStacks;
+import org.jclouds.openstack.heat.v1.functions.StacksToPagedIterable;
 import org.jclouds.openstack.heat.v1.options.CreateStack;
 import org.jclouds.openstack.heat.v1.options.ListStackOptions;
+import org.jclouds.openstack.heat.v1.options.StackRequest;
 import org.jclouds.openstack.heat.v1.options.UpdateStack;
 import org.jclouds.openstack.keystone.v2_0.filters.AuthenticateRequest;
 import org.jclouds.rest.annotations.BinderParam;
 import org.jclouds.rest.annotations.Fallback;
+import org.jclouds.rest.annotations.QueryParams;
 import org.jclouds.rest.annotations.RequestFilters;
+import org.jclouds.rest.annotations.ResponseParser;
 import org.jclouds.rest.annotations.SelectJson;
+import org.jclouds.rest.annotations.Transform;
 import org.jclouds.rest.binders.BindToJsonPayload;
 
 
@@ -68,6 +80,44 @@ public interface StackApi {
    @Fallback(EmptyListOnNotFoundOr404.class)
    List<Stack> list(ListStackOptions options);
 
+   /**
+    * Lists all stacks page by page, 100 at a time. Pages are fetched as they are iterated and parsed as they are read,
+    * so that only the current page is held in memory.
+    *
+    * @see #listInPages(ListStackOptions)
+    */
+   @Named("stack:list")
+   @GET
+   @QueryParams(keys = "limit", values = "100")
+   @ResponseParser(ParseStacks.class)
+   @Transform(StacksToPagedIterable.class)
+   @Fallback(EmptyPagedIterableOnNotFoundOr404.class)
+   PagedIterable<Stack> listInPages();
+
+   /**
+    * Lists the stacks matching the options page by page, following the marker of each page with the same filters.
+    * The page size is the {@code limit} of the options; without one, Heat returns all the stacks in a single page.
+    * Set {@link org.jclouds.openstack.heat.v1.config.HeatProperties#LIST_PREFETCH} to fetch each page in the background
+    * while the previous one is consumed.
+    */
+   @Named("stack:list")
+   @GET
+   @ResponseParser(ParseStacks.class)
+   @Transform(StacksToPagedIterable.class)
+   @Fallback(EmptyPagedIterableOnNotFoundOr404.class)
+   PagedIterable<Stack> listInPages(ListStackOptions options);
+
+   /**
+    * Lists a single page of the stacks matching the options.
+    *
+    * @return the stacks and, unless it is the last page, the marker of the next one
+    */
+   @Named("stack:list")
+   @GET
+   @ResponseParser(ParseStacks.class)
+   @Fallback(EmptyStacksFallback.class)
+   Stacks listPage(ListStackOptions options);
+
    @Named("stack:get")
    @GET
    @SelectJson("stack")
@@ -88,6 +138,16 @@ public interface StackApi {
    @SelectJson("stack")
    Stack create(@BinderParam(BindToJsonPayload.class) CreateStack options);
 
+   /**
+    * Creates a stack, reading its template and files as the request is sent.
+    *
+    * @see StackRequest
+    */
+   @Named("stack:create")
+   @POST
+   @SelectJson("stack")
+   Stack create(@BinderParam(BindStackRequestToJsonPayload.class) StackRequest request);
+
    @Named("stack:delete")
    @DELETE
    @Path("/{stack_name}/{stack_id}")
@@ -99,6 +159,16 @@ public interface StackApi {
    @Path("/{stack_name}/{stack_id}")
    boolean update(@PathParam("stack_name") String name, @PathParam("stack_id") String id, @BinderParam(BindToJsonPayload.class) UpdateStack options);
 
+   /**
+    * Updates a stack, reading its template and files as the request is sent.
+    *
+    * @see StackRequest
+    */
+   @Named("stack:update")
+   @PUT
+   @Path("/{stack_name}/{stack_id}")
+   boolean update(@PathParam("stack_name") String name, @PathParam("stack_id") String id, @BinderParam(BindStackRequestToJsonPayload.class) StackRequest request);
+
 
    @Named("stack:list_resources")
    @GET
@@ -126,4 +196,15 @@ public interface StackApi {
    @Path("/{stack_name}/{stack_id}/template")
    @Fallback(NullOnNotFoundOr404.class)
    Template getTemplate(@PathParam("stack_name") String stackName, @PathParam("stack_id") String stackId);
+
+   /**
+    * @return the template of the stack as Heat returns it, including the sections {@link Template} does not represent
+    */
+   @Named("stack:get_template")
+   @GET
+   @Path("/{stack_name}/{stack_id}/template")
+   @ResponseParser(ReturnStringIf2xx.class)
+   @Fallback(NullOnNotFoundOr404.class)
+   @Nullable
+   String getTemplateAsString(@PathParam("stack_name") String stackName, @PathParam("stack_id") String stackId);
 }
@@ -29,9 +29,11 @@ import org.jclouds.Fallbacks.NullOnNotFoundOr404;
 import org.jclouds.openstack.heat.v1.domain.Template;
 import org.jclouds.openstack.keystone.v2_0.filters.AuthenticateRequest;
 import org.jclouds.rest.annotations.Fallback;
+import org.jclouds.rest.annotations.MapBinder;
 import org.jclouds.rest.annotations.Payload;
 import org.jclouds.rest.annotations.PayloadParam;
 import org.jclouds.rest.annotations.RequestFilters;
+import org.jclouds.rest.binders.BindToJsonPayload;
 
 /**
  * Provides access to Resource features.
@@ -53,6 +55,21 @@ public interface TemplateApi {
    @Payload("%7B\"template_url\":\"{url}\"%7D")
    Template validate(@PayloadParam("url") String template_url);
 
+   /**
+    * Validates a template given as its content, in YAML or JSON.
+    *
+    * Normal response codes: 200
+
+    Error response codes: badRequest (400), unauthorized (401), internalServerError (500)
+    */
+   @Named("validation:validate_template")
+   @POST
+   @Consumes(MediaType.APPLICATION_JSON)
+   @Produces(MediaType.APPLICATION_JSON)
+   @Path("/validate")
+   @MapBinder(BindToJsonPayload.class)
+   Template validateTemplate(@PayloadParam("template") String template);
+
    @Named("validation:get_template")
    @GET
    @Consumes(MediaType.APPLICATION_JSON)
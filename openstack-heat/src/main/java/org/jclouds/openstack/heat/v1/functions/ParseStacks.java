@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.heat.v1.functions;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.jclouds.http.Uris.uriBuilder;
+import static org.jclouds.http.utils.Queries.queryParser;
+import static org.jclouds.util.Closeables2.closeQuietly;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.Type;
+import java.util.List;
+
+import javax.inject.Inject;
+
+import org.jclouds.http.HttpRequest;
+import org.jclouds.http.HttpResponse;
+import org.jclouds.openstack.heat.v1.domain.Stack;
+import org.jclouds.openstack.heat.v1.domain.Stacks;
+import org.jclouds.openstack.v2_0.domain.Link;
+import org.jclouds.rest.InvocationContext;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Function;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+
+/**
+ * Parses a page of stacks as it is read from the response, one stack at a time, instead of buffering the whole
+ * response first.
+ * <p/>
+ * Heat only links to the next page on some releases. When there is no such link, a page as large as the requested
+ * {@code limit} is taken to be followed by another one, starting after its last stack.
+ */
+public class ParseStacks implements Function<HttpResponse, Stacks>, InvocationContext<ParseStacks> {
+
+   private static final Type LINKS = new TypeToken<List<Link>>() {
+   }.getType();
+
+   private final Gson gson;
+   private HttpRequest request;
+
+   @Inject
+   ParseStacks(Gson gson) {
+      this.gson = checkNotNull(gson, "gson");
+   }
+
+   @Override
+   public Stacks apply(HttpResponse response) {
+      if (response.getPayload() == null)
+         return Stacks.EMPTY;
+      List<Stack> stacks = Lists.newArrayList();
+      List<Link> links = Lists.newArrayList();
+      JsonReader reader = null;
+      try {
+         reader = new JsonReader(new InputStreamReader(response.getPayload().openStream(), Charsets.UTF_8));
+         reader.beginObject();
+         while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("stacks".equals(name)) {
+               reader.beginArray();
+               while (reader.hasNext()) {
+                  stacks.add(gson.<Stack> fromJson(reader, Stack.class));
+               }
+               reader.endArray();
+            } else if ("links".equals(name) || "stacks_links".equals(name)) {
+               List<Link> parsed = gson.fromJson(reader, LINKS);
+               if (parsed != null)
+                  links.addAll(parsed);
+            } else {
+               reader.skipValue();
+            }
+         }
+         reader.endObject();
+      } catch (IOException e) {
+         throw Throwables.propagate(e);
+      } finally {
+         closeQuietly(reader);
+         response.getPayload().release();
+      }
+      Link next = nextFromLimit(stacks, links);
+      if (next != null)
+         links.add(next);
+      return new Stacks(stacks, links);
+   }
+
+   private Link nextFromLimit(List<Stack> stacks, List<Link> links) {
+      if (request == null || stacks.isEmpty())
+         return null;
+      for (Link link : links) {
+         if (link.getRelation() == Link.Relation.NEXT)
+            return null;
+      }
+      String query = request.getEndpoint().getRawQuery();
+      if (query == null)
+         return null;
+      Multimap<String, String> parameters = queryParser().apply(query);
+      String limit = Iterables.getFirst(parameters.get("limit"), null);
+      if (limit == null || stacks.size() < Integer.parseInt(limit))
+         return null;
+      String marker = Iterables.getLast(stacks).getId();
+      return Link.create(Link.Relation.NEXT, uriBuilder(request.getEndpoint()).replaceQuery("marker", marker).build());
+   }
+
+   @Override
+   public ParseStacks setContext(HttpRequest request) {
+      this.request = request;
+      return this;
+   }
+}
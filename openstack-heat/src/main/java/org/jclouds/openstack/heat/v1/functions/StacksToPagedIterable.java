@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.heat.v1.functions;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.jclouds.Constants;
+import org.jclouds.collect.IterableWithMarker;
+import org.jclouds.collect.PagedIterable;
+import org.jclouds.collect.internal.Arg0ToPagedIterable;
+import org.jclouds.openstack.heat.v1.HeatApi;
+import org.jclouds.openstack.heat.v1.config.HeatProperties;
+import org.jclouds.openstack.heat.v1.domain.Stack;
+import org.jclouds.openstack.heat.v1.features.StackApi;
+import org.jclouds.openstack.heat.v1.options.ListStackOptions;
+import org.jclouds.openstack.v2_0.options.PaginationOptions;
+
+import com.google.common.base.Function;
+import com.google.common.base.Optional;
+import com.google.common.base.Throwables;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+
+/**
+ * Makes Stacks work as a PagedIterable, following the marker of each page to the next one with the same filters.
+ * <p/>
+ * When {@link HeatProperties#LIST_PREFETCH} is set, the next page is fetched on the user executor as soon as a page
+ * is handed out, so that the request overlaps with the work done on the current page. At most one page is fetched
+ * ahead, so memory stays bounded by two pages.
+ */
+public class StacksToPagedIterable extends Arg0ToPagedIterable.FromCaller<Stack, StacksToPagedIterable> {
+
+   private final HeatApi api;
+   private final ListeningExecutorService userExecutor;
+   private final boolean prefetch;
+
+   @Inject
+   protected StacksToPagedIterable(HeatApi api,
+         @Named(Constants.PROPERTY_USER_THREADS) ListeningExecutorService userExecutor,
+         @Named(HeatProperties.LIST_PREFETCH) boolean prefetch) {
+      this.api = checkNotNull(api, "api");
+      this.userExecutor = checkNotNull(userExecutor, "userExecutor");
+      this.prefetch = prefetch;
+   }
+
+   @Override
+   public PagedIterable<Stack> apply(IterableWithMarker<Stack> input) {
+      PagedIterable<Stack> pages = super.apply(input);
+      return prefetch ? prefetching(pages, userExecutor) : pages;
+   }
+
+   @Override
+   protected Function<Object, IterableWithMarker<Stack>> markerToNextForArg0(Optional<Object> arg0) {
+      String region = arg0.isPresent() ? arg0.get().toString() : null;
+      final StackApi stackApi = api.getStackApi(region);
+      return new Function<Object, IterableWithMarker<Stack>>() {
+
+         @Override
+         public IterableWithMarker<Stack> apply(Object input) {
+            ListStackOptions options = new ListStackOptions();
+            options.queryParameters(PaginationOptions.class.cast(input).buildQueryParameters());
+            return stackApi.listPage(options);
+         }
+
+         @Override
+         public String toString() {
+            return "listStacks()";
+         }
+      };
+   }
+
+   private static <T> PagedIterable<T> prefetching(final PagedIterable<T> pages,
+         final ListeningExecutorService executor) {
+      return new PagedIterable<T>() {
+         @Override
+         public Iterator<IterableWithMarker<T>> iterator() {
+            final Iterator<IterableWithMarker<T>> delegate = pages.iterator();
+            return new AbstractIterator<IterableWithMarker<T>>() {
+               private ListenableFuture<IterableWithMarker<T>> next;
+
+               @Override
+               protected IterableWithMarker<T> computeNext() {
+                  IterableWithMarker<T> page;
+                  if (next != null) {
+                     page = await(next);
+                     next = null;
+                  } else if (delegate.hasNext()) {
+                     page = delegate.next();
+                  } else {
+                     return endOfData();
+                  }
+                  if (page.nextMarker().isPresent()) {
+                     next = executor.submit(new Callable<IterableWithMarker<T>>() {
+                        @Override
+                        public IterableWithMarker<T> call() {
+                           return delegate.next();
+                        }
+                     });
+                  }
+                  return page;
+               }
+            };
+         }
+      };
+   }
+
+   private static <T> T await(ListenableFuture<T> future) {
+      try {
+         return future.get();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw Throwables.propagate(e);
+      } catch (ExecutionException e) {
+         throw Throwables.propagate(e.getCause());
+      }
+   }
+}
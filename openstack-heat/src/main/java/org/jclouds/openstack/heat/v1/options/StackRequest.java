@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.heat.v1.options;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Map;
+
+import org.jclouds.javax.annotation.Nullable;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteSource;
+
+/**
+ * A {@link CreateStack} or an {@link UpdateStack} whose template and files are read as the request is sent, rather
+ * than held as strings, so that large templates and nested templates do not have to be loaded in memory.
+ * <p/>
+ * The sources are typically files, possibly shared between the requests of a deployment through
+ * {@link org.jclouds.openstack.heat.v1.utils.TemplateFiles}. Their content must be encoded in UTF-8.
+ *
+ * @see org.jclouds.openstack.heat.v1.binders.BindStackRequestToJsonPayload
+ */
+public final class StackRequest {
+
+   private final Object options;
+   private final ByteSource template;
+   private final Map<String, ByteSource> files;
+
+   private StackRequest(Object options, @Nullable ByteSource template, Map<String, ByteSource> files) {
+      this.options = options;
+      this.template = template;
+      this.files = files;
+   }
+
+   public static Builder builder(CreateStack options) {
+      return new Builder(checkNotNull(options, "options"));
+   }
+
+   public static Builder builder(UpdateStack options) {
+      return new Builder(checkNotNull(options, "options"));
+   }
+
+   /**
+    * @return the {@link CreateStack} or {@link UpdateStack} the request completes
+    */
+   public Object getOptions() {
+      return options;
+   }
+
+   /**
+    * @return the template, replacing the one of the options, or null to keep it
+    */
+   @Nullable
+   public ByteSource getTemplate() {
+      return template;
+   }
+
+   /**
+    * @return the files the template refers to, by the name it refers to them with, added to the ones of the options
+    */
+   public Map<String, ByteSource> getFiles() {
+      return files;
+   }
+
+   @Override
+   public String toString() {
+      return Objects.toStringHelper(this).omitNullValues().add("options", options).add("template", template)
+            .add("files", files.keySet()).toString();
+   }
+
+   public static final class Builder {
+      private final Object options;
+      private ByteSource template;
+      private final Map<String, ByteSource> files = Maps.newLinkedHashMap();
+
+      private Builder(Object options) {
+         this.options = options;
+      }
+
+      public Builder template(ByteSource template) {
+         this.template = checkNotNull(template, "template");
+         return this;
+      }
+
+      public Builder file(String name, ByteSource content) {
+         files.put(checkNotNull(name, "name"), checkNotNull(content, "content"));
+         return this;
+      }
+
+      public Builder files(Map<String, ByteSource> files) {
+         for (Map.Entry<String, ByteSource> file : checkNotNull(files, "files").entrySet()) {
+            file(file.getKey(), file.getValue());
+         }
+         return this;
+      }
+
+      public StackRequest build() {
+         return new StackRequest(options, template, ImmutableMap.copyOf(files));
+      }
+   }
+}
@@ -0,0 +1,488 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.heat.v1.utils;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import javax.annotation.Resource;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.jclouds.Constants;
+import org.jclouds.javax.annotation.Nullable;
+import org.jclouds.logging.Logger;
+import org.jclouds.openstack.heat.v1.HeatApi;
+import org.jclouds.openstack.heat.v1.domain.Stack;
+import org.jclouds.openstack.heat.v1.domain.StackOutput;
+import org.jclouds.openstack.heat.v1.domain.StackStatus;
+import org.jclouds.openstack.heat.v1.features.StackApi;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Deletes stacks concurrently, each once the stacks using its outputs are deleted.
+ * <p/>
+ * The details of the stacks are read first, as listings do not include outputs and parameters. A stack is taken to
+ * use the outputs of another when one of its parameters has the value of one of the outputs of the other, which is
+ * how the {@link StackOrchestrator} binds them. Only outputs that can tell stacks apart are compared: booleans, numbers
+ * and strings shorter than {@value #MIN_BINDING_LENGTH} characters are shared by too many unrelated stacks. Callers
+ * who know which stacks use which can pass the dependencies instead. Stacks are then deleted as soon as every stack
+ * using their outputs has reached {@code DELETE_COMPLETE}, at most the given number at a time, so that tearing down
+ * takes as long as the longest chain of dependencies rather than the sum of its stacks. Stacks are waited for with the
+ * shared {@link StackStatusWatcher}, and requests are made on the user executor.
+ * <p/>
+ * A stack that fails to be deleted, such as one reaching {@code DELETE_FAILED}, is deleted again after the backoff,
+ * doubled for every next retry, on the scheduler. Once out of retries, the stacks whose outputs it uses, directly or
+ * not, are skipped, and the deletion fails with a {@link StackDeletionException}. Stacks using each other's outputs
+ * are deleted together, once nothing else is left to do. Cancelling the deletion stops it from deleting more stacks.
+ */
+@Singleton
+public class StackDeleter {
+
+   /**
+    * The length below which an output value is taken to be too common to bind a stack to another.
+    */
+   static final int MIN_BINDING_LENGTH = 8;
+
+   private static final Pattern NUMBER = Pattern.compile("-?[0-9]+(\\.[0-9]+)?([eE][-+]?[0-9]+)?");
+
+   @Resource
+   protected Logger logger = Logger.NULL;
+
+   private final HeatApi api;
+   private final ListeningExecutorService userExecutor;
+   private final ScheduledExecutorService scheduler;
+   private final StackStatusWatcher watcher;
+
+   @Inject
+   public StackDeleter(HeatApi api, @Named(Constants.PROPERTY_USER_THREADS) ListeningExecutorService userExecutor,
+         @Named(Constants.PROPERTY_SCHEDULER_THREADS) ScheduledExecutorService scheduler, StackStatusWatcher watcher) {
+      this.api = checkNotNull(api, "api");
+      this.userExecutor = checkNotNull(userExecutor, "userExecutor");
+      this.scheduler = checkNotNull(scheduler, "scheduler");
+      this.watcher = checkNotNull(watcher, "watcher");
+   }
+
+   /**
+    * @param parallelism the largest number of stacks being read or deleted at a time
+    * @param retries how many more times a stack is deleted when it fails to be
+    * @param backoff how long to wait before deleting a stack again the first time
+    * @return a future resolved with the deleted stacks, by id
+    */
+   public ListenableFuture<Map<String, Stack>> delete(String region, Iterable<Stack> stacks, int parallelism,
+         int retries, long backoff, TimeUnit unit) {
+      return delete(region, stacks, null, parallelism, retries, backoff, unit);
+   }
+
+   /**
+    * Deletes stacks whose dependencies are known, rather than guessed from their outputs and parameters.
+    *
+    * @param consumers the names of the stacks using the outputs of each stack, by name, such as the dependents in a
+    *           {@link StackDeployment}; names of stacks that are not deleted are ignored
+    * @see #delete(String, Iterable, int, int, long, TimeUnit)
+    */
+   public ListenableFuture<Map<String, Stack>> delete(String region, Iterable<Stack> stacks,
+         Multimap<String, String> consumers, int parallelism, int retries, long backoff, TimeUnit unit) {
+      return delete(region, stacks, ImmutableSetMultimap.copyOf(checkNotNull(consumers, "consumers")), parallelism,
+            retries, backoff, unit);
+   }
+
+   private ListenableFuture<Map<String, Stack>> delete(String region, Iterable<Stack> stacks,
+         @Nullable ImmutableSetMultimap<String, String> consumers, int parallelism, int retries, long backoff,
+         TimeUnit unit) {
+      checkArgument(parallelism > 0, "parallelism must be positive");
+      checkArgument(retries >= 0, "retries must not be negative");
+      checkArgument(backoff >= 0, "backoff must not be negative");
+      Run run = new Run(checkNotNull(region, "region"), consumers, parallelism, retries, unit.toMillis(backoff));
+      run.start(ImmutableList.copyOf(checkNotNull(stacks, "stacks")));
+      return run.result;
+   }
+
+   /**
+    * @return the ids of the stacks using the outputs of each stack, by id
+    */
+   static Multimap<String, String> consumers(Collection<Stack> stacks) {
+      Multimap<String, String> producers = HashMultimap.create();
+      for (Stack stack : stacks) {
+         if (stack.getOutputs() == null)
+            continue;
+         for (StackOutput output : stack.getOutputs()) {
+            if (identifies(output.getValue()))
+               producers.put(output.getValue().toString(), stack.getId());
+         }
+      }
+      Multimap<String, String> consumers = HashMultimap.create();
+      for (Stack stack : stacks) {
+         for (Map.Entry<String, String> parameter : stack.getParameters().entrySet()) {
+            // the pseudo parameters of a stack are not bound to other stacks
+            if (parameter.getKey().startsWith("OS::"))
+               continue;
+            for (String producer : producers.get(parameter.getValue())) {
+               if (!producer.equals(stack.getId()))
+                  consumers.put(producer, stack.getId());
+            }
+         }
+      }
+      return consumers;
+   }
+
+   /**
+    * @param byName the names of the stacks using the outputs of each stack, by name
+    * @return the ids of the stacks using the outputs of each stack, by id
+    */
+   static Multimap<String, String> consumers(Collection<Stack> stacks, Multimap<String, String> byName) {
+      Map<String, String> ids = Maps.newHashMap();
+      for (Stack stack : stacks) {
+         ids.put(stack.getName(), stack.getId());
+      }
+      Multimap<String, String> consumers = HashMultimap.create();
+      for (Map.Entry<String, String> consumer : byName.entries()) {
+         String producerId = ids.get(consumer.getKey());
+         String consumerId = ids.get(consumer.getValue());
+         if (producerId != null && consumerId != null && !producerId.equals(consumerId))
+            consumers.put(producerId, consumerId);
+      }
+      return consumers;
+   }
+
+   /**
+    * @return whether an output value is distinctive enough for a parameter with the same value to be bound to it
+    */
+   private static boolean identifies(@Nullable Object value) {
+      if (value == null || value instanceof Boolean || value instanceof Number)
+         return false;
+      String string = value.toString();
+      return string.length() >= MIN_BINDING_LENGTH && !NUMBER.matcher(string).matches();
+   }
+
+   /**
+    * Something to do for a stack, holding one of the parallel slots until the future it returns is done.
+    */
+   private interface Task {
+      ListenableFuture<?> start();
+   }
+
+   /**
+    * The state of a deletion, guarded by itself.
+    */
+   private final class Run {
+      private final String region;
+      private final ImmutableSetMultimap<String, String> given;
+      private final StackApi stackApi;
+      private final int parallelism;
+      private final int retries;
+      private final long backoffMillis;
+      private final SettableFuture<Map<String, Stack>> result = SettableFuture.create();
+      private final Deque<Task> pending = Lists.newLinkedList();
+      private final Map<String, Stack> stacks = Maps.newLinkedHashMap();
+      private final Multimap<String, String> producers = HashMultimap.create();
+      private final Map<String, Integer> remaining = Maps.newHashMap();
+      private final Map<String, Integer> attempts = Maps.newHashMap();
+      private final Set<String> queued = Sets.newHashSet();
+      private final Map<String, Stack> deleted = Maps.newLinkedHashMap();
+      private final Map<String, Throwable> failed = Maps.newLinkedHashMap();
+      private final Set<String> skipped = Sets.newLinkedHashSet();
+      private int unread;
+      private int running;
+      private int waiting;
+      private boolean finished;
+
+      private Run(String region, @Nullable ImmutableSetMultimap<String, String> given, int parallelism, int retries,
+            long backoffMillis) {
+         this.region = region;
+         this.given = given;
+         this.stackApi = api.getStackApi(region);
+         this.parallelism = parallelism;
+         this.retries = retries;
+         this.backoffMillis = backoffMillis;
+      }
+
+      private void start(List<Stack> given) {
+         synchronized (this) {
+            for (Stack stack : given) {
+               if (stacks.put(stack.getId(), stack) == null)
+                  pending.add(new Read(stack));
+            }
+            unread = stacks.size();
+            if (unread == 0)
+               plan();
+         }
+         result.addListener(new Runnable() {
+            @Override
+            public void run() {
+               if (result.isCancelled())
+                  drain();
+            }
+         }, userExecutor);
+         drain();
+      }
+
+      /**
+       * Queues the stacks no other stack uses the outputs of, once every stack has been read.
+       */
+      private void plan() {
+         Map<String, Stack> existing = Maps.newLinkedHashMap(stacks);
+         existing.keySet().removeAll(deleted.keySet());
+         Multimap<String, String> consumers = given == null ? consumers(existing.values())
+               : consumers(existing.values(), given);
+         for (Map.Entry<String, String> consumer : consumers.entries()) {
+            producers.put(consumer.getValue(), consumer.getKey());
+         }
+         for (String id : existing.keySet()) {
+            int using = consumers.get(id).size();
+            remaining.put(id, using);
+            if (using == 0)
+               queue(id);
+         }
+         logger.debug("<< planned the deletion of %d stacks in region %s, %d of which first", existing.size(), region,
+               queued.size());
+      }
+
+      private void queue(String id) {
+         queued.add(id);
+         pending.add(new Delete(id));
+      }
+
+      /**
+       * Starts as many tasks as the parallelism allows, or finishes the deletion when there is nothing left to do.
+       */
+      private void drain() {
+         List<Task> launching = Lists.newArrayList();
+         boolean finishing = false;
+         synchronized (this) {
+            if (result.isCancelled())
+               pending.clear();
+            else if (running == 0 && waiting == 0 && pending.isEmpty() && unread == 0)
+               releaseCycles();
+            while (running < parallelism && !pending.isEmpty()) {
+               launching.add(pending.poll());
+               running++;
+            }
+            if (running == 0 && waiting == 0 && pending.isEmpty() && !finished) {
+               finished = true;
+               finishing = true;
+            }
+         }
+         for (Task task : launching) {
+            ListenableFuture<?> done = task.start();
+            done.addListener(new Runnable() {
+               @Override
+               public void run() {
+                  synchronized (Run.this) {
+                     running--;
+                  }
+                  drain();
+               }
+            }, userExecutor);
+         }
+         if (finishing)
+            finish();
+      }
+
+      /**
+       * Queues the stacks still waiting for others when nothing else is left to do, which only happens when stacks
+       * use each other's outputs.
+       */
+      private void releaseCycles() {
+         for (String id : stacks.keySet()) {
+            if (!queued.contains(id) && !deleted.containsKey(id) && !skipped.contains(id)) {
+               logger.warn("<< stack %s in region %s uses the outputs of stacks using its own, deleting it anyway", id,
+                     region);
+               queue(id);
+            }
+         }
+      }
+
+      private void succeeded(String id, Stack stack) {
+         logger.debug("<< deleted stack %s in region %s", id, region);
+         synchronized (this) {
+            deleted.put(id, stack);
+            for (String producer : producers.get(id)) {
+               int left = remaining.get(producer) - 1;
+               remaining.put(producer, left);
+               if (left == 0 && !skipped.contains(producer) && !queued.contains(producer))
+                  queue(producer);
+            }
+         }
+      }
+
+      private void failed(final String id, Throwable t) {
+         synchronized (this) {
+            Integer attempted = attempts.get(id);
+            int attempt = attempted == null ? 1 : attempted + 1;
+            attempts.put(id, attempt);
+            if (attempt <= retries && !result.isCancelled()) {
+               long delay = backoffMillis << Math.min(attempt - 1, 30);
+               logger.warn(t, "<< failed to delete stack %s in region %s, retrying in %dms", id, region, delay);
+               waiting++;
+               scheduler.schedule(new Runnable() {
+                  @Override
+                  public void run() {
+                     synchronized (Run.this) {
+                        waiting--;
+                        pending.add(new Delete(id));
+                     }
+                     drain();
+                  }
+               }, delay, TimeUnit.MILLISECONDS);
+               return;
+            }
+            logger.warn(t, "<< failed to delete stack %s in region %s", id, region);
+            failed.put(id, t);
+            skipProducers(id);
+         }
+      }
+
+      private void skipProducers(String id) {
+         for (String producer : producers.get(id)) {
+            if (!deleted.containsKey(producer) && !failed.containsKey(producer) && skipped.add(producer))
+               skipProducers(producer);
+         }
+      }
+
+      private void finish() {
+         Map<String, Stack> done;
+         StackDeletionException failure = null;
+         synchronized (this) {
+            done = ImmutableMap.copyOf(deleted);
+            if (!failed.isEmpty() || deleted.size() < stacks.size()) {
+               Set<String> left = Sets.newLinkedHashSet(stacks.keySet());
+               left.removeAll(deleted.keySet());
+               left.removeAll(failed.keySet());
+               failure = new StackDeletionException(deleted, failed, left);
+            }
+         }
+         if (failure == null)
+            result.set(done);
+         else
+            result.setException(failure);
+      }
+
+      /**
+       * Reads the details of a stack, with its outputs and parameters, and plans the deletion once every stack is read.
+       */
+      private final class Read implements Task {
+         private final Stack listed;
+
+         private Read(Stack listed) {
+            this.listed = listed;
+         }
+
+         @Override
+         public ListenableFuture<?> start() {
+            return userExecutor.submit(new Runnable() {
+               @Override
+               public void run() {
+                  Stack details = listed;
+                  boolean exists = true;
+                  try {
+                     details = stackApi.get(listed.getName(), listed.getId());
+                     exists = details != null && details.getStatus() != StackStatus.DELETE_COMPLETE;
+                  } catch (RuntimeException e) {
+                     logger.warn(e, "<< could not read stack %s in region %s, deleting it as listed",
+                           listed.getId(), region);
+                  }
+                  synchronized (Run.this) {
+                     if (exists)
+                        stacks.put(listed.getId(), details);
+                     else
+                        deleted.put(listed.getId(), details != null ? details : listed);
+                     if (--unread == 0)
+                        plan();
+                  }
+               }
+            });
+         }
+      }
+
+      /**
+       * Deletes a stack, and waits for it to be deleted.
+       */
+      private final class Delete implements Task {
+         private final String id;
+
+         private Delete(String id) {
+            this.id = id;
+         }
+
+         @Override
+         public ListenableFuture<?> start() {
+            final Stack stack;
+            synchronized (Run.this) {
+               stack = stacks.get(id);
+            }
+            logger.debug(">> deleting stack %s in region %s", id, region);
+            ListenableFuture<Boolean> deleting = userExecutor.submit(new Callable<Boolean>() {
+               @Override
+               public Boolean call() {
+                  return stackApi.delete(stack.getName(), id);
+               }
+            });
+            ListenableFuture<Stack> gone = Futures.transform(deleting, new AsyncFunction<Boolean, Stack>() {
+               @Override
+               public ListenableFuture<Stack> apply(Boolean existed) {
+                  if (!existed)
+                     return Futures.immediateFuture(null);
+                  return watcher.watch(region, stack.getName(), id, ImmutableSet.of(StackStatus.DELETE_COMPLETE), 0,
+                        TimeUnit.MILLISECONDS);
+               }
+            });
+            final SettableFuture<Void> done = SettableFuture.create();
+            Futures.addCallback(gone, new FutureCallback<Stack>() {
+               @Override
+               public void onSuccess(Stack deleted) {
+                  succeeded(id, deleted != null ? deleted : stack);
+                  done.set(null);
+               }
+
+               @Override
+               public void onFailure(Throwable t) {
+                  failed(id, t);
+                  done.set(null);
+               }
+            });
+            return done;
+         }
+      }
+   }
+}
@@ -0,0 +1,67 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.heat.v1.utils;
+
+import java.util.Map;
+import java.util.Set;
+
+import org.jclouds.openstack.heat.v1.domain.Stack;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+
+/**
+ * Thrown when some stacks given to the {@link StackDeleter} could not be deleted, telling which ones were.
+ */
+public class StackDeletionException extends RuntimeException {
+
+   private static final long serialVersionUID = 1L;
+
+   private final Map<String, Stack> deleted;
+   private final Map<String, Throwable> failed;
+   private final Set<String> skipped;
+
+   public StackDeletionException(Map<String, Stack> deleted, Map<String, Throwable> failed, Set<String> skipped) {
+      super(String.format("failed to delete stacks %s, skipped %s", failed.keySet(), skipped),
+            Iterables.getFirst(failed.values(), null));
+      this.deleted = ImmutableMap.copyOf(deleted);
+      this.failed = ImmutableMap.copyOf(failed);
+      this.skipped = ImmutableSet.copyOf(skipped);
+   }
+
+   /**
+    * @return the stacks that reached {@code DELETE_COMPLETE} or no longer existed, by id
+    */
+   public Map<String, Stack> getDeleted() {
+      return deleted;
+   }
+
+   /**
+    * @return why stacks could not be deleted, once retried, by id
+    */
+   public Map<String, Throwable> getFailed() {
+      return failed;
+   }
+
+   /**
+    * @return the ids of the stacks that were not deleted because stacks using their outputs could not be
+    */
+   public Set<String> getSkipped() {
+      return skipped;
+   }
+}
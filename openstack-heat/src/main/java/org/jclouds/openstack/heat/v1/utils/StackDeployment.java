@@ -0,0 +1,253 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.heat.v1.utils;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jclouds.openstack.heat.v1.domain.Stack;
+import org.jclouds.openstack.heat.v1.options.CreateStack;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
+
+/**
+ * A set of stacks to create together, where some stacks depend on others, usually because the outputs of a stack are
+ * parameters of another.
+ * <p/>
+ * Stacks are identified by their name. A binding makes a stack depend on another and passes the value of an output of
+ * the latter as a parameter of the former, once it is created:
+ *
+ * <pre>
+ * StackDeployment deployment = StackDeployment.builder()
+ *       .stack(network).stack(database).stack(application)
+ *       .bind(&quot;network&quot;, &quot;network_id&quot;, &quot;application&quot;, &quot;network&quot;)
+ *       .dependsOn(&quot;application&quot;, &quot;database&quot;)
+ *       .build();
+ * </pre>
+ *
+ * Deployments are immutable and checked to have no cycle when built. See {@link StackOrchestrator} to create them.
+ */
+public final class StackDeployment {
+
+   private final Map<String, CreateStack> stacks;
+   private final SetMultimap<String, String> dependencies;
+   private final SetMultimap<String, String> dependents;
+   private final ListMultimap<String, Binding> bindings;
+   private final List<String> order;
+
+   private StackDeployment(Map<String, CreateStack> stacks, SetMultimap<String, String> dependencies,
+         ListMultimap<String, Binding> bindings, List<String> order) {
+      this.stacks = stacks;
+      this.dependencies = dependencies;
+      this.dependents = ImmutableSetMultimap.copyOf(dependencies).inverse();
+      this.bindings = bindings;
+      this.order = order;
+   }
+
+   public static Builder builder() {
+      return new Builder();
+   }
+
+   /**
+    * @return the names of the stacks, each after the stacks it depends on
+    */
+   public List<String> getOrder() {
+      return order;
+   }
+
+   public CreateStack getStack(String name) {
+      return checkNotNull(stacks.get(name), "no stack %s in the deployment", name);
+   }
+
+   /**
+    * @return the names of the stacks the given one directly depends on
+    */
+   public Set<String> getDependencies(String name) {
+      return dependencies.get(name);
+   }
+
+   /**
+    * @return the names of the stacks directly depending on the given one
+    */
+   public Set<String> getDependents(String name) {
+      return dependents.get(name);
+   }
+
+   /**
+    * @return the given stack and the names of all the stacks depending on it, directly or not
+    */
+   public Set<String> getDependentClosure(String name) {
+      Set<String> closure = Sets.newLinkedHashSet();
+      Deque<String> pending = Lists.newLinkedList();
+      pending.add(name);
+      while (!pending.isEmpty()) {
+         String next = pending.poll();
+         if (closure.add(next))
+            pending.addAll(dependents.get(next));
+      }
+      return closure;
+   }
+
+   /**
+    * @param created the created stacks the given one depends on, with their outputs
+    * @return the options to create the stack with, its parameters completed with the outputs bound to them
+    * @throws IllegalStateException if a bound output is missing
+    */
+   CreateStack resolve(String name, Map<String, Stack> created) {
+      CreateStack spec = getStack(name);
+      List<Binding> bound = bindings.get(name);
+      if (bound.isEmpty())
+         return spec;
+      Map<String, Object> parameters = Maps.newLinkedHashMap();
+      if (spec.getParameters() != null)
+         parameters.putAll(spec.getParameters());
+      for (Binding binding : bound) {
+         Stack producer = checkNotNull(created.get(binding.producer), "stack %s is not created", binding.producer);
+         Object value = producer.getOutput(binding.output);
+         checkState(value != null, "stack %s has no output %s for parameter %s of stack %s", binding.producer,
+               binding.output, binding.parameter, name);
+         parameters.put(binding.parameter, value);
+      }
+      return spec.toBuilder().parameters(parameters).build();
+   }
+
+   @Override
+   public String toString() {
+      return Objects.toStringHelper(this).add("order", order).add("dependencies", dependencies).toString();
+   }
+
+   private static final class Binding {
+      private final String producer;
+      private final String output;
+      private final String parameter;
+
+      private Binding(String producer, String output, String parameter) {
+         this.producer = producer;
+         this.output = output;
+         this.parameter = parameter;
+      }
+
+      @Override
+      public String toString() {
+         return producer + "." + output + "->" + parameter;
+      }
+   }
+
+   public static final class Builder {
+      private final Map<String, CreateStack> stacks = Maps.newLinkedHashMap();
+      private final SetMultimap<String, String> dependencies = LinkedHashMultimap.create();
+      private final ImmutableListMultimap.Builder<String, Binding> bindings = ImmutableListMultimap.builder();
+
+      private Builder() {
+      }
+
+      public Builder stack(CreateStack stack) {
+         checkNotNull(stack, "stack");
+         checkArgument(!stacks.containsKey(stack.getName()), "stack %s is already in the deployment", stack.getName());
+         stacks.put(stack.getName(), stack);
+         return this;
+      }
+
+      /**
+       * Makes a stack depend on another, without passing any output.
+       */
+      public Builder dependsOn(String dependent, String dependency) {
+         checkArgument(!checkNotNull(dependent, "dependent").equals(dependency), "stack %s depends on itself",
+               dependent);
+         dependencies.put(dependent, checkNotNull(dependency, "dependency"));
+         return this;
+      }
+
+      /**
+       * Makes the consumer depend on the producer and passes the value of an output of the producer as a parameter
+       * of the consumer.
+       */
+      public Builder bind(String producer, String output, String consumer, String parameter) {
+         dependsOn(consumer, producer);
+         bindings.put(consumer, new Binding(producer, checkNotNull(output, "output"),
+               checkNotNull(parameter, "parameter")));
+         return this;
+      }
+
+      /**
+       * @throws IllegalArgumentException if a dependency is not in the deployment or stacks depend on each other
+       */
+      public StackDeployment build() {
+         for (Map.Entry<String, String> dependency : dependencies.entries()) {
+            checkArgument(stacks.containsKey(dependency.getKey()), "no stack %s in the deployment",
+                  dependency.getKey());
+            checkArgument(stacks.containsKey(dependency.getValue()), "no stack %s in the deployment",
+                  dependency.getValue());
+         }
+         // Kahn's algorithm, keeping the order stacks were added in among independent stacks
+         SetMultimap<String, String> dependents = LinkedHashMultimap.create();
+         Map<String, Integer> remaining = Maps.newHashMap();
+         for (String name : stacks.keySet()) {
+            Collection<String> required = dependencies.get(name);
+            remaining.put(name, required.size());
+            for (String dependency : required) {
+               dependents.put(dependency, name);
+            }
+         }
+         Deque<String> ready = Lists.newLinkedList();
+         for (String name : stacks.keySet()) {
+            if (remaining.get(name) == 0)
+               ready.add(name);
+         }
+         ImmutableList.Builder<String> order = ImmutableList.builder();
+         int sorted = 0;
+         while (!ready.isEmpty()) {
+            String name = ready.poll();
+            order.add(name);
+            sorted++;
+            for (String dependent : dependents.get(name)) {
+               int left = remaining.get(dependent) - 1;
+               remaining.put(dependent, left);
+               if (left == 0)
+                  ready.add(dependent);
+            }
+         }
+         if (sorted != stacks.size()) {
+            Set<String> cycle = Sets.newTreeSet();
+            for (Map.Entry<String, Integer> entry : remaining.entrySet()) {
+               if (entry.getValue() > 0)
+                  cycle.add(entry.getKey());
+            }
+            throw new IllegalArgumentException("stacks " + cycle + " depend on each other");
+         }
+         return new StackDeployment(ImmutableMap.copyOf(stacks), ImmutableSetMultimap.copyOf(dependencies),
+               bindings.build(), order.build());
+      }
+   }
+}
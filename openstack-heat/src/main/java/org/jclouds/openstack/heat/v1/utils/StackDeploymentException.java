@@ -0,0 +1,77 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.heat.v1.utils;
+
+import java.util.Map;
+import java.util.Set;
+
+import org.jclouds.openstack.heat.v1.domain.Stack;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+
+/**
+ * Thrown when some stacks of a {@link StackDeployment} could not be created, telling which ones were.
+ */
+public class StackDeploymentException extends RuntimeException {
+
+   private static final long serialVersionUID = 1L;
+
+   private final Map<String, Stack> created;
+   private final Map<String, Throwable> failed;
+   private final Set<String> cancelled;
+   private final Set<String> deleted;
+
+   public StackDeploymentException(Map<String, Stack> created, Map<String, Throwable> failed, Set<String> cancelled,
+         Set<String> deleted) {
+      super(String.format("failed to create stacks %s, cancelled %s, deleted %s", failed.keySet(), cancelled,
+            deleted), Iterables.getFirst(failed.values(), null));
+      this.created = ImmutableMap.copyOf(created);
+      this.failed = ImmutableMap.copyOf(failed);
+      this.cancelled = ImmutableSet.copyOf(cancelled);
+      this.deleted = ImmutableSet.copyOf(deleted);
+   }
+
+   /**
+    * @return the stacks that reached {@code CREATE_COMPLETE} and still exist, by name
+    */
+   public Map<String, Stack> getCreated() {
+      return created;
+   }
+
+   /**
+    * @return why stacks could not be created, by name
+    */
+   public Map<String, Throwable> getFailed() {
+      return failed;
+   }
+
+   /**
+    * @return the names of the stacks that were not created because of the failures
+    */
+   public Set<String> getCancelled() {
+      return cancelled;
+   }
+
+   /**
+    * @return the names of the stacks deleted to roll the deployment back
+    */
+   public Set<String> getDeleted() {
+      return deleted;
+   }
+}
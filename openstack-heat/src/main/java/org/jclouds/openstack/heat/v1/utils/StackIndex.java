@@ -0,0 +1,234 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.heat.v1.utils;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Resource;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.jclouds.collect.IterableWithMarker;
+import org.jclouds.javax.annotation.Nullable;
+import org.jclouds.logging.Logger;
+import org.jclouds.openstack.heat.v1.HeatApi;
+import org.jclouds.openstack.heat.v1.domain.Stack;
+import org.jclouds.openstack.heat.v1.domain.StackStatus;
+import org.jclouds.openstack.heat.v1.features.StackApi;
+import org.jclouds.openstack.heat.v1.options.ListStackOptions;
+import org.jclouds.openstack.heat.v1.options.ListStackOptions.SortDirection;
+import org.jclouds.openstack.heat.v1.options.ListStackOptions.SortKey;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.LinkedListMultimap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+
+/**
+ * Keeps an index of the stacks of each region, so that questions such as which stacks failed, or which stacks an
+ * owner has, are answered from a {@link StackInventory} without listing every stack again.
+ * <p/>
+ * The first refresh of a region lists every stack. Later refreshes only list the stacks changed since: the stacks are
+ * listed most recently updated first, then most recently created first, as Heat does not always set the update time
+ * of new stacks, and each listing stops at the first stack older than the newest one seen by the previous refresh.
+ * Heat sets the update time of a stack when an update starts rather than when it completes, so a stack seen in progress
+ * would never be listed again once it completes: the indexed stacks in progress that were not listed are then got one
+ * by one, and dropped from the index once deleted. Stacks deleted in between two refreshes, without ever being seen
+ * being deleted, are only dropped by a {@link #rebuild}, which lists every stack again and is best run from time to
+ * time.
+ * <p/>
+ * Refreshes of a region run one at a time; schedule them as often as the index needs to be fresh. Inventories are
+ * immutable, so that they can be used while the index is refreshed.
+ */
+@Singleton
+public class StackIndex {
+
+   private static final Set<String> SWEEP_PARAMETERS = ImmutableSet.of("sort_keys", "sort_dir", "marker");
+
+   @Resource
+   protected Logger logger = Logger.NULL;
+
+   private final HeatApi api;
+   private final ListStackOptions sweepOptions;
+   private final ConcurrentMap<String, Region> regions = Maps.newConcurrentMap();
+
+   @Inject
+   public StackIndex(HeatApi api) {
+      this(api, ListStackOptions.Builder.limit(100));
+   }
+
+   /**
+    * @param sweepOptions the options stacks are listed with, such as {@code globalTenant(true)} to index the stacks of
+    *           other tenants, and a page size, without which only the first page would be listed; the sort and the
+    *           marker are set by the refresh
+    */
+   public StackIndex(HeatApi api, ListStackOptions sweepOptions) {
+      this.api = checkNotNull(api, "api");
+      this.sweepOptions = checkNotNull(sweepOptions, "sweepOptions");
+   }
+
+   /**
+    * @return the stacks of the region as of its last refresh, without making requests
+    */
+   public StackInventory get(String region) {
+      Region indexed = regions.get(checkNotNull(region, "region"));
+      return indexed == null ? StackInventory.EMPTY : indexed.inventory;
+   }
+
+   /**
+    * Brings the index of the region up to date, listing only the stacks changed since its last refresh.
+    *
+    * @return the stacks of the region
+    */
+   public StackInventory refresh(String region) {
+      return region(region).refresh(false);
+   }
+
+   /**
+    * Indexes the stacks of the region again, listing every stack.
+    *
+    * @return the stacks of the region
+    */
+   public StackInventory rebuild(String region) {
+      return region(region).refresh(true);
+   }
+
+   private Region region(String region) {
+      checkNotNull(region, "region");
+      Region indexed = regions.get(region);
+      if (indexed == null) {
+         Region created = new Region(region);
+         indexed = regions.putIfAbsent(region, created);
+         if (indexed == null)
+            indexed = created;
+      }
+      return indexed;
+   }
+
+   /**
+    * The index of a region. The stacks and the watermark are guarded by the region.
+    */
+   private final class Region {
+      private final String name;
+      private final StackApi stackApi;
+      private final Map<String, Stack> stacks = Maps.newHashMap();
+      private Date watermark;
+      private boolean indexed;
+      private volatile StackInventory inventory = StackInventory.EMPTY;
+
+      private Region(String name) {
+         this.name = name;
+         this.stackApi = api.getStackApi(name);
+      }
+
+      private synchronized StackInventory refresh(boolean rebuild) {
+         boolean full = rebuild || !indexed;
+         Date since = full ? null : watermark;
+         Map<String, Stack> listed = Maps.newLinkedHashMap();
+         Date updated = sweep(SortKey.UPDATED_AT, since, listed);
+         Date created = full ? null : sweep(SortKey.CREATED_AT, since, listed);
+         // stacks changed from now on are at least as recent as the first stacks listed
+         Date mark = updated == null || created != null && created.before(updated) ? created : updated;
+         if (mark == null && full)
+            mark = newestCreation(listed);
+         if (mark != null && (watermark == null || mark.after(watermark)))
+            watermark = mark;
+
+         if (full)
+            stacks.clear();
+         for (Stack stack : listed.values()) {
+            index(stack);
+         }
+         int inProgress = 0;
+         for (Stack stack : Maps.newHashMap(stacks).values()) {
+            if (isInProgress(stack) && !listed.containsKey(stack.getId())) {
+               inProgress++;
+               Stack current = stackApi.get(stack.getName(), stack.getId());
+               if (current == null)
+                  stacks.remove(stack.getId());
+               else
+                  index(current);
+            }
+         }
+         indexed = true;
+         inventory = new StackInventory(stacks.values(), new Date());
+         logger.debug("<< %s stacks in region %s: %d listed, %d in progress got, %d indexed",
+               full ? "rebuilt" : "refreshed", name, listed.size(), inProgress, stacks.size());
+         return inventory;
+      }
+
+      private void index(Stack stack) {
+         if (stack.getStatus() == StackStatus.DELETE_COMPLETE)
+            stacks.remove(stack.getId());
+         else
+            stacks.put(stack.getId(), stack);
+      }
+
+      /**
+       * Lists the stacks, most recent first by the given time, down to the first one older than the given time.
+       *
+       * @return the time of the first stack listed, or null if there was none
+       */
+      @Nullable
+      private Date sweep(SortKey key, @Nullable Date since, Map<String, Stack> listed) {
+         Multimap<String, String> parameters = LinkedListMultimap.create();
+         for (Map.Entry<String, String> parameter : sweepOptions.buildQueryParameters().entries()) {
+            if (!SWEEP_PARAMETERS.contains(parameter.getKey()))
+               parameters.put(parameter.getKey(), parameter.getValue());
+         }
+         ListStackOptions options = new ListStackOptions();
+         options.queryParameters(parameters);
+         options.sortKey(key).sortDirection(SortDirection.DESCENDING);
+
+         Date first = null;
+         boolean seenFirst = false;
+         for (IterableWithMarker<Stack> page : stackApi.listInPages(options)) {
+            for (Stack stack : page) {
+               Date time = key == SortKey.UPDATED_AT ? stack.getUpdated() : stack.getCreated();
+               if (!seenFirst) {
+                  first = time;
+                  seenFirst = true;
+               }
+               // stacks never updated are listed last, and are found by their creation time instead
+               if (since != null && (time == null || time.before(since)))
+                  return first;
+               listed.put(stack.getId(), stack);
+            }
+         }
+         return first;
+      }
+   }
+
+   private static boolean isInProgress(Stack stack) {
+      return stack.getStatus() != null && stack.getStatus().name().endsWith("_IN_PROGRESS");
+   }
+
+   @Nullable
+   private static Date newestCreation(Map<String, Stack> stacks) {
+      Date newest = null;
+      for (Stack stack : stacks.values()) {
+         if (stack.getCreated() != null && (newest == null || stack.getCreated().after(newest)))
+            newest = stack.getCreated();
+      }
+      return newest;
+   }
+}
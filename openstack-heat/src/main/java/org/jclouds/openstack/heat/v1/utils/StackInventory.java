@@ -0,0 +1,166 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.heat.v1.utils;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.jclouds.javax.annotation.Nullable;
+import org.jclouds.openstack.heat.v1.domain.Stack;
+import org.jclouds.openstack.heat.v1.domain.StackStatus;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * The stacks of a region, as indexed by the {@link StackIndex} at its last refresh, by id, status, owner, project
+ * and creation time. Answers without making requests, and iterates over the stacks it was taken with, oldest first,
+ * whatever refreshes happen meanwhile.
+ */
+public final class StackInventory implements Iterable<Stack> {
+
+   static final StackInventory EMPTY = new StackInventory(Collections.<Stack> emptyList(), null);
+
+   private static final Comparator<Stack> BY_CREATION = new Comparator<Stack>() {
+      @Override
+      public int compare(Stack a, Stack b) {
+         if (a.getCreated() == null || b.getCreated() == null)
+            return a.getCreated() == null ? (b.getCreated() == null ? 0 : 1) : -1;
+         return a.getCreated().compareTo(b.getCreated());
+      }
+   };
+
+   private final List<Stack> stacks;
+   private final Date refreshed;
+   private final Map<String, Stack> byId;
+   private final ImmutableListMultimap<StackStatus, Stack> byStatus;
+   private final ImmutableListMultimap<String, Stack> byOwner;
+   private final ImmutableListMultimap<String, Stack> byProject;
+   private final List<Stack> failed;
+
+   StackInventory(Collection<Stack> stacks, @Nullable Date refreshed) {
+      List<Stack> sorted = Lists.newArrayList(stacks);
+      Collections.sort(sorted, BY_CREATION);
+      this.stacks = ImmutableList.copyOf(sorted);
+      this.refreshed = refreshed;
+      Map<String, Stack> byId = Maps.newLinkedHashMap();
+      ImmutableListMultimap.Builder<StackStatus, Stack> byStatus = ImmutableListMultimap.builder();
+      ImmutableListMultimap.Builder<String, Stack> byOwner = ImmutableListMultimap.builder();
+      ImmutableListMultimap.Builder<String, Stack> byProject = ImmutableListMultimap.builder();
+      ImmutableList.Builder<Stack> failed = ImmutableList.builder();
+      for (Stack stack : this.stacks) {
+         byId.put(stack.getId(), stack);
+         if (stack.getStatus() != null) {
+            byStatus.put(stack.getStatus(), stack);
+            if (stack.getStatus().name().endsWith("_FAILED"))
+               failed.add(stack);
+         }
+         if (stack.getOwner() != null)
+            byOwner.put(stack.getOwner(), stack);
+         if (stack.getProject() != null)
+            byProject.put(stack.getProject(), stack);
+      }
+      this.byId = ImmutableMap.copyOf(byId);
+      this.byStatus = byStatus.build();
+      this.byOwner = byOwner.build();
+      this.byProject = byProject.build();
+      this.failed = failed.build();
+   }
+
+   /**
+    * @return every stack, oldest first, those without a creation time last
+    */
+   public List<Stack> getStacks() {
+      return stacks;
+   }
+
+   @Override
+   public Iterator<Stack> iterator() {
+      return stacks.iterator();
+   }
+
+   public int size() {
+      return stacks.size();
+   }
+
+   /**
+    * @return when the index was refreshed, or null if it never was
+    */
+   @Nullable
+   public Date getRefreshed() {
+      return refreshed;
+   }
+
+   @Nullable
+   public Stack get(String id) {
+      return byId.get(id);
+   }
+
+   public List<Stack> getByStatus(StackStatus status) {
+      return byStatus.get(status);
+   }
+
+   /**
+    * @return the stacks in any {@code _FAILED} status
+    */
+   public List<Stack> getFailed() {
+      return failed;
+   }
+
+   public List<Stack> getByOwner(String owner) {
+      return byOwner.get(owner);
+   }
+
+   public List<Stack> getByProject(String project) {
+      return byProject.get(project);
+   }
+
+   /**
+    * @return the stacks created before the given time, oldest first
+    */
+   public List<Stack> getCreatedBefore(Date time) {
+      int end = 0;
+      while (end < stacks.size() && stacks.get(end).getCreated() != null
+            && stacks.get(end).getCreated().before(time)) {
+         end++;
+      }
+      return stacks.subList(0, end);
+   }
+
+   /**
+    * @return the stacks created longer ago than the given age, oldest first
+    */
+   public List<Stack> getOlderThan(long age, TimeUnit unit) {
+      return getCreatedBefore(new Date(System.currentTimeMillis() - unit.toMillis(age)));
+   }
+
+   @Override
+   public String toString() {
+      return Objects.toStringHelper(this).omitNullValues().add("stacks", stacks.size())
+            .add("failed", failed.size()).add("refreshed", refreshed).toString();
+   }
+}
@@ -0,0 +1,380 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.heat.v1.utils;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Resource;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.jclouds.Constants;
+import org.jclouds.logging.Logger;
+import org.jclouds.openstack.heat.v1.HeatApi;
+import org.jclouds.openstack.heat.v1.domain.Stack;
+import org.jclouds.openstack.heat.v1.domain.StackStatus;
+import org.jclouds.openstack.heat.v1.features.StackApi;
+import org.jclouds.openstack.heat.v1.options.CreateStack;
+
+import com.google.common.base.Function;
+import com.google.common.base.Functions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.FutureFallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Creates the stacks of a {@link StackDeployment} concurrently, each as soon as the stacks it depends on are created.
+ * <p/>
+ * At most the given number of stacks are being created at a time. A stack is created once every stack it depends on
+ * has reached {@code CREATE_COMPLETE}, with the outputs of those stacks bound to its parameters, so that a deployment
+ * takes as long as its longest chain of dependencies rather than the sum of its stacks. Stacks are waited for with the
+ * {@link StackStatusWatcher}, and requests are made on the user executor.
+ * <p/>
+ * When a stack fails to be created, the stacks depending on it, directly or not, are never created, while the other
+ * stacks still are. With {@link OnFailure#CANCEL_DEPENDENTS}, the failed stack is left for inspection. With
+ * {@link OnFailure#ROLLBACK}, the subgraph affected by the failure is rolled back once the stacks being created are
+ * done: the failed stack and whatever stacks depending on it exist are deleted, while the stacks it depends on are kept
+ * for the other stacks using them. Either way, the deployment fails with a {@link StackDeploymentException}. Cancelling
+ * the deployment stops it from creating more stacks, and with {@link OnFailure#ROLLBACK} deletes every stack it
+ * created.
+ * <p/>
+ * Stacks are rolled back dependents first, each as soon as the stacks depending on it are deleted, so that independent
+ * stacks are deleted concurrently. A stack is kept when a stack depending on it could not be deleted.
+ */
+@Singleton
+public class StackOrchestrator {
+
+   public enum OnFailure {
+      CANCEL_DEPENDENTS, ROLLBACK
+   }
+
+   @Resource
+   protected Logger logger = Logger.NULL;
+
+   private final HeatApi api;
+   private final ListeningExecutorService userExecutor;
+   private final StackStatusWatcher watcher;
+
+   @Inject
+   public StackOrchestrator(HeatApi api, @Named(Constants.PROPERTY_USER_THREADS) ListeningExecutorService userExecutor,
+         StackStatusWatcher watcher) {
+      this.api = checkNotNull(api, "api");
+      this.userExecutor = checkNotNull(userExecutor, "userExecutor");
+      this.watcher = checkNotNull(watcher, "watcher");
+   }
+
+   /**
+    * @param parallelism the largest number of stacks being created at a time
+    * @return a future resolved with the created stacks, with their outputs, by name
+    */
+   public ListenableFuture<Map<String, Stack>> deploy(String region, StackDeployment deployment, int parallelism,
+         OnFailure onFailure) {
+      checkArgument(parallelism > 0, "parallelism must be positive");
+      Run run = new Run(checkNotNull(region, "region"), checkNotNull(deployment, "deployment"), parallelism,
+            checkNotNull(onFailure, "onFailure"));
+      run.start();
+      return run.result;
+   }
+
+   /**
+    * The state of a deployment, guarded by itself.
+    */
+   private final class Run {
+      private final String region;
+      private final StackApi stackApi;
+      private final StackDeployment deployment;
+      private final int parallelism;
+      private final OnFailure onFailure;
+      private final SettableFuture<Map<String, Stack>> result = SettableFuture.create();
+      private final Map<String, Integer> remaining = Maps.newHashMap();
+      private final Deque<String> ready = Lists.newLinkedList();
+      private final Map<String, Stack> accepted = Maps.newLinkedHashMap();
+      private final Map<String, Stack> completed = Maps.newLinkedHashMap();
+      private final Map<String, Throwable> failed = Maps.newLinkedHashMap();
+      private final Set<String> cancelled = Sets.newLinkedHashSet();
+      private int running;
+      private boolean stopped;
+      private boolean finished;
+
+      private Run(String region, StackDeployment deployment, int parallelism, OnFailure onFailure) {
+         this.region = region;
+         this.stackApi = api.getStackApi(region);
+         this.deployment = deployment;
+         this.parallelism = parallelism;
+         this.onFailure = onFailure;
+      }
+
+      private void start() {
+         synchronized (this) {
+            for (String name : deployment.getOrder()) {
+               int dependencies = deployment.getDependencies(name).size();
+               remaining.put(name, dependencies);
+               if (dependencies == 0)
+                  ready.add(name);
+            }
+         }
+         result.addListener(new Runnable() {
+            @Override
+            public void run() {
+               if (result.isCancelled())
+                  drain();
+            }
+         }, userExecutor);
+         drain();
+      }
+
+      /**
+       * Creates as many ready stacks as the parallelism allows, or finishes the deployment when there is nothing left
+       * to do.
+       */
+      private void drain() {
+         List<String> launching = Lists.newArrayList();
+         boolean finishing = false;
+         synchronized (this) {
+            if (result.isCancelled())
+               stop();
+            while (!stopped && running < parallelism && !ready.isEmpty()) {
+               launching.add(ready.poll());
+               running++;
+            }
+            if (running == 0 && (stopped || ready.isEmpty()) && !finished) {
+               finished = true;
+               finishing = true;
+            }
+         }
+         for (String name : launching) {
+            launch(name);
+         }
+         if (finishing)
+            finish();
+      }
+
+      private void launch(final String name) {
+         logger.debug(">> creating stack %s in region %s", name, region);
+         ListenableFuture<Stack> creating = userExecutor.submit(new Callable<Stack>() {
+            @Override
+            public Stack call() {
+               CreateStack spec;
+               synchronized (Run.this) {
+                  spec = deployment.resolve(name, completed);
+               }
+               Stack stack = stackApi.create(spec);
+               synchronized (Run.this) {
+                  accepted.put(name, stack);
+               }
+               return stack;
+            }
+         });
+         ListenableFuture<Stack> created = Futures.transform(creating, new AsyncFunction<Stack, Stack>() {
+            @Override
+            public ListenableFuture<Stack> apply(Stack stack) {
+               return watcher.watch(region, name, stack.getId(), ImmutableSet.of(StackStatus.CREATE_COMPLETE), 0,
+                     TimeUnit.MILLISECONDS);
+            }
+         });
+         // listings do not include outputs
+         ListenableFuture<Stack> detailed = Futures.transform(created, new Function<Stack, Stack>() {
+            @Override
+            public Stack apply(Stack stack) {
+               Stack details = stackApi.get(name, stack.getId());
+               return details != null ? details : stack;
+            }
+         }, userExecutor);
+         Futures.addCallback(detailed, new FutureCallback<Stack>() {
+            @Override
+            public void onSuccess(Stack stack) {
+               succeeded(name, stack);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+               failed(name, t);
+            }
+         });
+      }
+
+      private void succeeded(String name, Stack stack) {
+         logger.debug("<< created stack %s in region %s", name, region);
+         synchronized (this) {
+            running--;
+            completed.put(name, stack);
+            for (String dependent : deployment.getDependents(name)) {
+               int left = remaining.get(dependent) - 1;
+               remaining.put(dependent, left);
+               if (left == 0 && !cancelled.contains(dependent))
+                  ready.add(dependent);
+            }
+         }
+         drain();
+      }
+
+      private void failed(String name, Throwable t) {
+         logger.warn(t, "<< failed to create stack %s in region %s", name, region);
+         synchronized (this) {
+            running--;
+            failed.put(name, t);
+            for (String dependent : deployment.getDependentClosure(name)) {
+               if (!dependent.equals(name) && !completed.containsKey(dependent) && !failed.containsKey(dependent)) {
+                  cancelled.add(dependent);
+                  ready.remove(dependent);
+               }
+            }
+         }
+         drain();
+      }
+
+      /**
+       * Cancels every stack not created yet.
+       */
+      private void stop() {
+         stopped = true;
+         for (String name : deployment.getOrder()) {
+            if (!accepted.containsKey(name) && !completed.containsKey(name) && !failed.containsKey(name))
+               cancelled.add(name);
+         }
+         ready.clear();
+      }
+
+      private void finish() {
+         final Map<String, Stack> created;
+         final Set<String> affected = Sets.newHashSet();
+         synchronized (this) {
+            created = ImmutableMap.copyOf(completed);
+            if (!result.isCancelled() && failed.isEmpty() && cancelled.isEmpty()) {
+               result.set(created);
+               return;
+            }
+            if (result.isCancelled()) {
+               affected.addAll(deployment.getOrder());
+            } else {
+               for (String name : failed.keySet()) {
+                  affected.addAll(deployment.getDependentClosure(name));
+               }
+            }
+         }
+         if (onFailure != OnFailure.ROLLBACK) {
+            result.setException(new StackDeploymentException(created, failed, cancelled, ImmutableSet.<String> of()));
+            return;
+         }
+         Futures.addCallback(rollback(affected), new FutureCallback<Set<String>>() {
+            @Override
+            public void onSuccess(Set<String> deleted) {
+               Map<String, Stack> left = Maps.newLinkedHashMap(created);
+               left.keySet().removeAll(deleted);
+               result.setException(new StackDeploymentException(left, failed, cancelled, deleted));
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+               result.setException(t);
+            }
+         });
+      }
+
+      /**
+       * Deletes the stacks created among the given ones, each once the stacks depending on it are deleted.
+       *
+       * @return a future resolved with the names of the stacks deleted
+       */
+      private ListenableFuture<Set<String>> rollback(Set<String> names) {
+         final Map<String, ListenableFuture<Boolean>> deletions = Maps.newLinkedHashMap();
+         for (final String name : Lists.reverse(deployment.getOrder())) {
+            final Stack stack;
+            synchronized (this) {
+               stack = accepted.get(name);
+            }
+            if (stack == null || !names.contains(name))
+               continue;
+            List<ListenableFuture<Boolean>> dependents = Lists.newArrayList();
+            for (String dependent : deployment.getDependents(name)) {
+               if (deletions.containsKey(dependent))
+                  dependents.add(deletions.get(dependent));
+            }
+            deletions.put(name, Futures.transform(Futures.allAsList(dependents),
+                  new AsyncFunction<List<Boolean>, Boolean>() {
+                     @Override
+                     public ListenableFuture<Boolean> apply(List<Boolean> dependentsDeleted) {
+                        if (dependentsDeleted.contains(false)) {
+                           logger.warn("<< keeping stack %s in region %s for the stacks depending on it", name,
+                                 region);
+                           return Futures.immediateFuture(false);
+                        }
+                        return delete(name, stack);
+                     }
+                  }));
+         }
+         return Futures.transform(Futures.allAsList(deletions.values()), new Function<List<Boolean>, Set<String>>() {
+            @Override
+            public Set<String> apply(List<Boolean> deleted) {
+               Set<String> rolledBack = Sets.newLinkedHashSet();
+               int i = 0;
+               for (String name : deletions.keySet()) {
+                  if (deleted.get(i++))
+                     rolledBack.add(name);
+               }
+               return rolledBack;
+            }
+         });
+      }
+
+      /**
+       * @return a future resolved with whether the stack was deleted
+       */
+      private ListenableFuture<Boolean> delete(final String name, final Stack stack) {
+         ListenableFuture<Boolean> deleting = userExecutor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+               logger.debug(">> deleting stack %s in region %s", name, region);
+               return stackApi.delete(name, stack.getId());
+            }
+         });
+         ListenableFuture<Boolean> deleted = Futures.transform(deleting, new AsyncFunction<Boolean, Boolean>() {
+            @Override
+            public ListenableFuture<Boolean> apply(Boolean accepted) {
+               return Futures.transform(watcher.watch(region, name, stack.getId(),
+                     ImmutableSet.of(StackStatus.DELETE_COMPLETE), 0, TimeUnit.MILLISECONDS),
+                     Functions.constant(true));
+            }
+         });
+         return Futures.withFallback(deleted, new FutureFallback<Boolean>() {
+            @Override
+            public ListenableFuture<Boolean> create(Throwable t) {
+               logger.warn(t, "<< failed to delete stack %s in region %s", name, region);
+               return Futures.immediateFuture(false);
+            }
+         });
+      }
+   }
+}
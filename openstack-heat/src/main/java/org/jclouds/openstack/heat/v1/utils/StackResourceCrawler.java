@@ -0,0 +1,320 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.heat.v1.utils;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import javax.annotation.Resource;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.jclouds.Constants;
+import org.jclouds.javax.annotation.Nullable;
+import org.jclouds.logging.Logger;
+import org.jclouds.openstack.heat.v1.HeatApi;
+import org.jclouds.openstack.heat.v1.domain.Stack;
+import org.jclouds.openstack.heat.v1.domain.StackResource;
+import org.jclouds.openstack.heat.v1.features.StackApi;
+import org.jclouds.openstack.v2_0.domain.Link;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Reads the resources of stacks and of the stacks nested in them, concurrently, into a
+ * {@link StackResourceInventory}.
+ * <p/>
+ * Reading the resources of a stack, and optionally the metadata of each resource, are separate requests made on the
+ * user executor, at most the given number at a time, so that a crawl does not flood a region. The resources of a
+ * stack are read as soon as the stack is found, so that nested stacks are crawled while their siblings still are.
+ * Each stack is crawled once, even when it is found several times. A resource is taken for a nested stack when one of
+ * its links points to the stack its physical id names, as Heat's {@code nested} links do, or when its type is one
+ * of the types Heat implements with nested stacks. Stacks whose resources cannot be read are reported as failures of
+ * the inventory rather than failing the crawl.
+ */
+@Singleton
+public class StackResourceCrawler {
+
+   /**
+    * The types of resources implemented with a nested stack, besides provider templates.
+    */
+   private static final Set<String> NESTED_TYPES = ImmutableSet.of("OS::Heat::Stack", "AWS::CloudFormation::Stack",
+         "OS::Heat::ResourceGroup", "OS::Heat::AutoScalingGroup", "AWS::AutoScaling::AutoScalingGroup",
+         "OS::Heat::SoftwareDeploymentGroup");
+
+   @Resource
+   protected Logger logger = Logger.NULL;
+
+   private final HeatApi api;
+   private final ListeningExecutorService userExecutor;
+
+   @Inject
+   public StackResourceCrawler(HeatApi api,
+         @Named(Constants.PROPERTY_USER_THREADS) ListeningExecutorService userExecutor) {
+      this.api = checkNotNull(api, "api");
+      this.userExecutor = checkNotNull(userExecutor, "userExecutor");
+   }
+
+   /**
+    * Crawls every stack listed in the region.
+    *
+    * @param parallelism the largest number of requests being made at a time
+    * @param metadata whether to read the metadata of each resource
+    */
+   public ListenableFuture<StackResourceInventory> crawl(final String region, final int parallelism,
+         final boolean metadata) {
+      checkArgument(parallelism > 0, "parallelism must be positive");
+      ListenableFuture<List<Stack>> listed = userExecutor.submit(new Callable<List<Stack>>() {
+         @Override
+         public List<Stack> call() {
+            return api.getStackApi(region).listInPages().concat().toList();
+         }
+      });
+      return Futures.transform(listed, new AsyncFunction<List<Stack>, StackResourceInventory>() {
+         @Override
+         public ListenableFuture<StackResourceInventory> apply(List<Stack> stacks) {
+            return crawl(region, stacks, parallelism, metadata);
+         }
+      });
+   }
+
+   /**
+    * Crawls the given stacks and the stacks nested in them.
+    *
+    * @param parallelism the largest number of requests being made at a time
+    * @param metadata whether to read the metadata of each resource
+    */
+   public ListenableFuture<StackResourceInventory> crawl(String region, Iterable<Stack> stacks, int parallelism,
+         boolean metadata) {
+      checkArgument(parallelism > 0, "parallelism must be positive");
+      Crawl crawl = new Crawl(checkNotNull(region, "region"), parallelism, metadata);
+      crawl.start(ImmutableList.copyOf(checkNotNull(stacks, "stacks")));
+      return crawl.result;
+   }
+
+   /**
+    * The state of a crawl, guarded by itself.
+    */
+   private final class Crawl {
+      private final String region;
+      private final StackApi stackApi;
+      private final int parallelism;
+      private final boolean metadata;
+      private final SettableFuture<StackResourceInventory> result = SettableFuture.create();
+      private final Deque<Runnable> pending = Lists.newLinkedList();
+      private final Set<String> visited = Sets.newHashSet();
+      private final Map<String, String> stacks = Maps.newLinkedHashMap();
+      private final Map<String, String> parents = Maps.newHashMap();
+      private final Map<String, List<StackResource>> resources = Maps.newLinkedHashMap();
+      private final Map<String, Map<String, Object>> metadataByResource = Maps.newHashMap();
+      private final Map<String, Throwable> failures = Maps.newLinkedHashMap();
+      private int running;
+      private boolean finished;
+
+      private Crawl(String region, int parallelism, boolean metadata) {
+         this.region = region;
+         this.stackApi = api.getStackApi(region);
+         this.parallelism = parallelism;
+         this.metadata = metadata;
+      }
+
+      private void start(List<Stack> roots) {
+         synchronized (this) {
+            for (Stack stack : roots) {
+               found(stack.getName(), stack.getId(), null);
+            }
+         }
+         drain();
+      }
+
+      /**
+       * Queues the resources of a stack to be read, unless it was already found, listed stacks possibly being nested.
+       */
+      private void found(@Nullable String name, String id, @Nullable String parent) {
+         if (parent != null)
+            parents.put(id, parent);
+         if (visited.add(id))
+            pending.add(new ReadResources(name, id));
+      }
+
+      /**
+       * Makes as many requests as the parallelism allows, or finishes the crawl when there is nothing left to do.
+       */
+      private void drain() {
+         List<Runnable> launching = Lists.newArrayList();
+         boolean finishing = false;
+         synchronized (this) {
+            if (result.isCancelled())
+               pending.clear();
+            while (running < parallelism && !pending.isEmpty()) {
+               launching.add(pending.poll());
+               running++;
+            }
+            if (running == 0 && pending.isEmpty() && !finished) {
+               finished = true;
+               finishing = true;
+            }
+         }
+         for (Runnable request : launching) {
+            ListenableFuture<?> done = userExecutor.submit(request);
+            done.addListener(new Runnable() {
+               @Override
+               public void run() {
+                  synchronized (Crawl.this) {
+                     running--;
+                  }
+                  drain();
+               }
+            }, userExecutor);
+         }
+         if (finishing)
+            finish();
+      }
+
+      private void finish() {
+         List<StackResourceInventory.Entry> entries = Lists.newArrayList();
+         synchronized (this) {
+            for (Map.Entry<String, List<StackResource>> stack : resources.entrySet()) {
+               String id = stack.getKey();
+               for (StackResource resource : stack.getValue()) {
+                  entries.add(new StackResourceInventory.Entry(stacks.get(id), id, parents.get(id), resource,
+                        metadataByResource.get(id + "/" + resource.getName())));
+               }
+            }
+         }
+         logger.debug("<< crawled %d stacks with %d resources in region %s", resources.size(), entries.size(),
+               region);
+         result.set(new StackResourceInventory(entries, stacks, failures));
+      }
+
+      /**
+       * Reads the resources of a stack, and queues the stacks nested in it.
+       */
+      private final class ReadResources implements Runnable {
+         private final String name;
+         private final String id;
+
+         private ReadResources(@Nullable String name, String id) {
+            this.name = name;
+            this.id = id;
+         }
+
+         @Override
+         public void run() {
+            try {
+               String stackName = name;
+               if (stackName == null) {
+                  Stack stack = stackApi.get(id);
+                  if (stack == null)
+                     return;
+                  stackName = stack.getName();
+               }
+               List<StackResource> read = stackApi.listStackResources(stackName, id);
+               synchronized (Crawl.this) {
+                  stacks.put(id, stackName);
+                  resources.put(id, read);
+                  for (StackResource resource : read) {
+                     if (metadata)
+                        pending.add(new ReadMetadata(stackName, id, resource.getName()));
+                     String nested = resource.getPhysicalResourceId();
+                     if (Strings.isNullOrEmpty(nested))
+                        continue;
+                     String nestedName = nestedName(resource);
+                     if (nestedName != null || isNestedType(resource.getResourceType()))
+                        found(nestedName, nested, id);
+                  }
+               }
+            } catch (RuntimeException e) {
+               logger.warn(e, "<< could not read the resources of stack %s in region %s", id, region);
+               synchronized (Crawl.this) {
+                  failures.put(id, e);
+               }
+            }
+         }
+      }
+
+      /**
+       * Reads the metadata of a resource.
+       */
+      private final class ReadMetadata implements Runnable {
+         private final String stackName;
+         private final String stackId;
+         private final String resourceName;
+
+         private ReadMetadata(String stackName, String stackId, String resourceName) {
+            this.stackName = stackName;
+            this.stackId = stackId;
+            this.resourceName = resourceName;
+         }
+
+         @Override
+         public void run() {
+            try {
+               Map<String, Object> read = stackApi.getStackResourceMetadata(stackName, stackId, resourceName);
+               synchronized (Crawl.this) {
+                  metadataByResource.put(stackId + "/" + resourceName, read);
+               }
+            } catch (RuntimeException e) {
+               logger.warn(e, "<< could not read the metadata of resource %s of stack %s in region %s", resourceName,
+                     stackId, region);
+            }
+         }
+      }
+   }
+
+   /**
+    * @return the name of the stack nested in the resource, from the link pointing to it, or null if there is none
+    */
+   @Nullable
+   private static String nestedName(StackResource resource) {
+      if (resource.getLinks() == null)
+         return null;
+      String suffix = "/" + resource.getPhysicalResourceId();
+      for (Link link : resource.getLinks()) {
+         if (link.getRelation() == Link.Relation.SELF || link.getHref() == null)
+            continue;
+         String path = link.getHref().getPath();
+         if (path != null && path.endsWith(suffix)) {
+            String stack = path.substring(0, path.length() - suffix.length());
+            return stack.substring(stack.lastIndexOf('/') + 1);
+         }
+      }
+      return null;
+   }
+
+   private static boolean isNestedType(@Nullable String type) {
+      return type != null && (NESTED_TYPES.contains(type) || type.endsWith(".yaml") || type.endsWith(".yml")
+            || type.endsWith(".template"));
+   }
+}
@@ -0,0 +1,176 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.heat.v1.utils;
+
+import java.util.List;
+import java.util.Map;
+
+import org.jclouds.javax.annotation.Nullable;
+import org.jclouds.openstack.heat.v1.domain.StackResource;
+import org.jclouds.openstack.heat.v1.domain.StackResourceStatus;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+/**
+ * The resources of stacks and of their nested stacks, as found by the {@link StackResourceCrawler}, indexed by
+ * physical resource id, type, status and stack.
+ */
+public final class StackResourceInventory {
+
+   /**
+    * A resource, with the stack it belongs to.
+    */
+   public static final class Entry {
+      private final String stackName;
+      private final String stackId;
+      private final String parentStackId;
+      private final StackResource resource;
+      private final Map<String, Object> metadata;
+
+      Entry(String stackName, String stackId, @Nullable String parentStackId, StackResource resource,
+            @Nullable Map<String, Object> metadata) {
+         this.stackName = stackName;
+         this.stackId = stackId;
+         this.parentStackId = parentStackId;
+         this.resource = resource;
+         this.metadata = metadata;
+      }
+
+      public String getStackName() {
+         return stackName;
+      }
+
+      public String getStackId() {
+         return stackId;
+      }
+
+      /**
+       * @return the id of the stack the stack of the resource is nested in, or null for the stacks crawled from
+       */
+      @Nullable
+      public String getParentStackId() {
+         return parentStackId;
+      }
+
+      public StackResource getResource() {
+         return resource;
+      }
+
+      /**
+       * @return the metadata of the resource, or null if the crawl did not read metadata
+       */
+      @Nullable
+      public Map<String, Object> getMetadata() {
+         return metadata;
+      }
+
+      @Override
+      public String toString() {
+         return Objects.toStringHelper(this).omitNullValues().add("stack", stackName).add("stackId", stackId)
+               .add("resource", resource.getName()).add("type", resource.getResourceType())
+               .add("physicalId", resource.getPhysicalResourceId()).toString();
+      }
+   }
+
+   private final List<Entry> entries;
+   private final Map<String, String> stacks;
+   private final Map<String, Throwable> failures;
+   private final Map<String, Entry> byPhysicalId;
+   private final ImmutableListMultimap<String, Entry> byType;
+   private final ImmutableListMultimap<StackResourceStatus, Entry> byStatus;
+   private final ImmutableListMultimap<String, Entry> byStack;
+
+   StackResourceInventory(List<Entry> entries, Map<String, String> stacks, Map<String, Throwable> failures) {
+      this.entries = ImmutableList.copyOf(entries);
+      this.stacks = ImmutableMap.copyOf(stacks);
+      this.failures = ImmutableMap.copyOf(failures);
+      Map<String, Entry> byPhysicalId = Maps.newLinkedHashMap();
+      ImmutableListMultimap.Builder<String, Entry> byType = ImmutableListMultimap.builder();
+      ImmutableListMultimap.Builder<StackResourceStatus, Entry> byStatus = ImmutableListMultimap.builder();
+      ImmutableListMultimap.Builder<String, Entry> byStack = ImmutableListMultimap.builder();
+      for (Entry entry : this.entries) {
+         StackResource resource = entry.getResource();
+         String physicalId = resource.getPhysicalResourceId();
+         if (!Strings.isNullOrEmpty(physicalId) && !byPhysicalId.containsKey(physicalId))
+            byPhysicalId.put(physicalId, entry);
+         if (resource.getResourceType() != null)
+            byType.put(resource.getResourceType(), entry);
+         if (resource.getStatus() != null)
+            byStatus.put(resource.getStatus(), entry);
+         byStack.put(entry.getStackId(), entry);
+      }
+      this.byPhysicalId = ImmutableMap.copyOf(byPhysicalId);
+      this.byType = byType.build();
+      this.byStatus = byStatus.build();
+      this.byStack = byStack.build();
+   }
+
+   /**
+    * @return every resource found, grouped by stack
+    */
+   public List<Entry> getEntries() {
+      return entries;
+   }
+
+   /**
+    * @return the names of the stacks crawled, nested or not, by id
+    */
+   public Map<String, String> getStacks() {
+      return stacks;
+   }
+
+   /**
+    * @return why the resources of stacks could not be read, by stack id
+    */
+   public Map<String, Throwable> getFailures() {
+      return failures;
+   }
+
+   /**
+    * @return the resource backed by the given cloud resource, such as a server or a volume, or null if none is
+    */
+   @Nullable
+   public Entry getByPhysicalId(String physicalResourceId) {
+      return byPhysicalId.get(physicalResourceId);
+   }
+
+   /**
+    * @param type such as {@code OS::Nova::Server}
+    */
+   public List<Entry> getByType(String type) {
+      return byType.get(type);
+   }
+
+   public List<Entry> getByStatus(StackResourceStatus status) {
+      return byStatus.get(status);
+   }
+
+   public List<Entry> getByStack(String stackId) {
+      return byStack.get(stackId);
+   }
+
+   @Override
+   public String toString() {
+      return Objects.toStringHelper(this).add("stacks", stacks.size()).add("resources", entries.size())
+            .add("failures", failures.keySet()).toString();
+   }
+}
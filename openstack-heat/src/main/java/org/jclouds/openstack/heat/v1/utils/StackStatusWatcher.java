@@ -0,0 +1,427 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.heat.v1.utils;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.annotation.Resource;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.jclouds.Constants;
+import org.jclouds.collect.IterableWithMarker;
+import org.jclouds.javax.annotation.Nullable;
+import org.jclouds.logging.Logger;
+import org.jclouds.openstack.heat.v1.HeatApi;
+import org.jclouds.openstack.heat.v1.domain.Stack;
+import org.jclouds.openstack.heat.v1.domain.StackStatus;
+import org.jclouds.openstack.heat.v1.features.StackApi;
+import org.jclouds.openstack.heat.v1.options.ListStackOptions;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Waits for stacks to reach a status, polling Heat once for all of the stacks watched in a region instead of once per
+ * stack.
+ * <p/>
+ * Each sweep lists the stacks page by page with the sweep options, stopping as soon as every watched stack has been
+ * seen, and only gets the watched stacks missing from the listing one by one, such as stacks filtered out by a status
+ * in the sweep options or deleted stacks. When there are no more watched stacks than the last sweep had pages, getting
+ * them one by one is cheaper, and is done instead of listing.
+ * <p/>
+ * Each watched stack is polled more and more rarely as time goes by: its interval is a fifth of the time elapsed since
+ * it has been watched, within the minimum and maximum intervals, so that a stack is checked often while it is likely to
+ * complete soon, and sweeps slow down for long deployments. Sweeps only run while stacks are watched. The scheduler
+ * only triggers them; they run on the user executor, as they make requests and call the listeners.
+ * <p/>
+ * The future of a watched stack is resolved with the stack once it reaches one of the target statuses, and fails when
+ * it reaches another {@code _COMPLETE} or {@code _FAILED} status of the same action as a target, or any such status
+ * after a transition, as well as when it no longer exists, unless {@link StackStatus#DELETE_COMPLETE} is a target, or
+ * when it times out. Cancel the future to stop watching the stack. {@link Listener}s are told of every status
+ * transition of the watched stacks.
+ */
+@Singleton
+public class StackStatusWatcher {
+
+   /**
+    * Told of the status transitions of the watched stacks, on the user executor.
+    */
+   public interface Listener {
+
+      /**
+       * @param previous the status the stack had when last seen, or null if it is the first time it is seen
+       */
+      void onTransition(String region, Stack stack, @Nullable StackStatus previous);
+   }
+
+   @Resource
+   protected Logger logger = Logger.NULL;
+
+   private final HeatApi api;
+   private final ListeningExecutorService userExecutor;
+   private final ScheduledExecutorService scheduler;
+   private final long minIntervalMillis;
+   private final long maxIntervalMillis;
+   private final ListStackOptions sweepOptions;
+   private final ConcurrentMap<String, Region> regions = Maps.newConcurrentMap();
+   private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+   @Inject
+   public StackStatusWatcher(HeatApi api,
+         @Named(Constants.PROPERTY_USER_THREADS) ListeningExecutorService userExecutor,
+         @Named(Constants.PROPERTY_SCHEDULER_THREADS) ScheduledExecutorService scheduler) {
+      this(api, userExecutor, scheduler, 1000, 30000, ListStackOptions.Builder.limit(100));
+   }
+
+   /**
+    * @param sweepOptions the options stacks are listed with, such as {@code globalTenant(true)} to watch the stacks of
+    *           other tenants, or a page size; the marker is set by the sweep
+    */
+   public StackStatusWatcher(HeatApi api, ListeningExecutorService userExecutor, ScheduledExecutorService scheduler,
+         long minIntervalMillis, long maxIntervalMillis, ListStackOptions sweepOptions) {
+      checkArgument(minIntervalMillis > 0, "minIntervalMillis must be positive");
+      checkArgument(maxIntervalMillis >= minIntervalMillis, "maxIntervalMillis must be at least minIntervalMillis");
+      this.api = checkNotNull(api, "api");
+      this.userExecutor = checkNotNull(userExecutor, "userExecutor");
+      this.scheduler = checkNotNull(scheduler, "scheduler");
+      this.minIntervalMillis = minIntervalMillis;
+      this.maxIntervalMillis = maxIntervalMillis;
+      this.sweepOptions = checkNotNull(sweepOptions, "sweepOptions");
+   }
+
+   public void addListener(Listener listener) {
+      listeners.add(checkNotNull(listener, "listener"));
+   }
+
+   public void removeListener(Listener listener) {
+      listeners.remove(listener);
+   }
+
+   /**
+    * @return a future resolved with the stack once it reaches one of the target statuses
+    */
+   public ListenableFuture<Stack> watch(String region, Stack stack, StackStatus... targets) {
+      checkNotNull(stack, "stack");
+      return watch(region, stack.getName(), stack.getId(), ImmutableSet.copyOf(targets), 0, TimeUnit.MILLISECONDS);
+   }
+
+   /**
+    * @param name the name of the stack, or null to get it by id only when it is missing from a sweep
+    * @param timeout how long to wait for the stack, or 0 to wait forever
+    * @return a future resolved with the stack once it reaches one of the target statuses, or failed with a
+    *         {@link TimeoutException} once the timeout elapses
+    */
+   public ListenableFuture<Stack> watch(String region, @Nullable String name, String id, Set<StackStatus> targets,
+         long timeout, TimeUnit unit) {
+      checkNotNull(region, "region");
+      checkArgument(!checkNotNull(targets, "targets").isEmpty(), "at least one target status is needed");
+      checkArgument(timeout >= 0, "timeout must not be negative");
+      checkNotNull(id, "id");
+      Region watching = regions.get(region);
+      if (watching == null) {
+         Region created = new Region(region);
+         watching = regions.putIfAbsent(region, created);
+         if (watching == null)
+            watching = created;
+      }
+      long now = now();
+      Watch watch = new Watch(name, id, ImmutableSet.copyOf(targets), now,
+            timeout == 0 ? Long.MAX_VALUE : now + unit.toMillis(timeout));
+      watching.add(watch);
+      return watch.future;
+   }
+
+   /**
+    * @return the number of stacks being watched in the region
+    */
+   public int size(String region) {
+      Region watching = regions.get(region);
+      return watching == null ? 0 : watching.size();
+   }
+
+   private static long now() {
+      return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+   }
+
+   private static boolean isTerminal(StackStatus status) {
+      return status != null && (status.name().endsWith("_COMPLETE") || status.name().endsWith("_FAILED"));
+   }
+
+   private static String action(StackStatus status) {
+      return status.name().substring(0, status.name().indexOf('_'));
+   }
+
+   private final class Watch {
+      private final String name;
+      private final String id;
+      private final Set<StackStatus> targets;
+      private final long started;
+      private final long deadline;
+      private final SettableFuture<Stack> future = SettableFuture.create();
+      private long lastChecked;
+      private Stack lastSeen;
+      private StackStatus lastStatus;
+      private boolean transitioned;
+
+      private Watch(String name, String id, Set<StackStatus> targets, long started, long deadline) {
+         this.name = name;
+         this.id = id;
+         this.targets = targets;
+         this.started = started;
+         this.deadline = deadline;
+         this.lastChecked = started;
+      }
+
+      private long due() {
+         long interval = Math.min(maxIntervalMillis, Math.max(minIntervalMillis, (lastChecked - started) / 5));
+         return Math.min(deadline, lastChecked + interval);
+      }
+
+      private boolean isFailure(StackStatus status) {
+         if (!isTerminal(status))
+            return false;
+         if (transitioned)
+            return true;
+         for (StackStatus target : targets) {
+            if (action(target).equals(action(status)))
+               return true;
+         }
+         return false;
+      }
+   }
+
+   /**
+    * The stacks watched in a region, and their sweeps.
+    */
+   private final class Region implements Runnable {
+      private final String name;
+      private final StackApi stackApi;
+      private final Multimap<String, Watch> watches = LinkedHashMultimap.create();
+      private final Runnable trigger = new Runnable() {
+         @Override
+         public void run() {
+            synchronized (Region.this) {
+               next = null;
+               running = true;
+            }
+            try {
+               userExecutor.execute(Region.this);
+            } catch (RejectedExecutionException e) {
+               logger.warn(e, "<< could not sweep stacks of region %s", name);
+               synchronized (Region.this) {
+                  running = false;
+               }
+            }
+         }
+      };
+      private ScheduledFuture<?> next;
+      private long nextRun;
+      private boolean running;
+      private int lastSweepPages = 1;
+
+      private Region(String name) {
+         this.name = name;
+         this.stackApi = api.getStackApi(name);
+      }
+
+      private synchronized int size() {
+         int size = 0;
+         for (Watch watch : watches.values()) {
+            if (!watch.future.isDone())
+               size++;
+         }
+         return size;
+      }
+
+      private synchronized void add(Watch watch) {
+         watches.put(watch.id, watch);
+         schedule(watch.due());
+      }
+
+      /**
+       * Schedules the next sweep, unless one is already scheduled earlier or is queued or running, in which case it
+       * schedules the next one once it is done.
+       */
+      private void schedule(long at) {
+         if (running)
+            return;
+         if (next != null) {
+            if (nextRun <= at)
+               return;
+            next.cancel(false);
+         }
+         nextRun = at;
+         next = scheduler.schedule(trigger, Math.max(0, at - now()), TimeUnit.MILLISECONDS);
+      }
+
+      @Override
+      public void run() {
+         List<Watch> due;
+         synchronized (this) {
+            due = due(now());
+         }
+         try {
+            if (!due.isEmpty())
+               sweep(due);
+         } catch (RuntimeException e) {
+            logger.warn(e, "<< failed to sweep stacks of region %s", name);
+            long now = now();
+            for (Watch watch : due) {
+               watch.lastChecked = now;
+            }
+         } finally {
+            synchronized (this) {
+               running = false;
+               long at = Long.MAX_VALUE;
+               for (Iterator<Watch> pending = watches.values().iterator(); pending.hasNext();) {
+                  Watch watch = pending.next();
+                  if (watch.future.isDone())
+                     pending.remove();
+                  else
+                     at = Math.min(at, watch.due());
+               }
+               if (at != Long.MAX_VALUE)
+                  schedule(at);
+            }
+         }
+      }
+
+      /**
+       * Removes the watches that are done, times out the late ones and returns those due to be checked, including
+       * those that would be due before the next sweep could run, so that they share this one.
+       */
+      private List<Watch> due(long now) {
+         ImmutableList.Builder<Watch> due = ImmutableList.builder();
+         boolean anyDue = false;
+         for (Map.Entry<String, Watch> entry : ImmutableList.copyOf(watches.entries())) {
+            Watch watch = entry.getValue();
+            if (!watch.future.isDone() && now >= watch.deadline)
+               watch.future.setException(new TimeoutException(String.format("stack %s did not reach %s in time",
+                     watch.id, watch.targets)));
+            if (watch.future.isDone()) {
+               watches.remove(entry.getKey(), watch);
+            } else if (now + minIntervalMillis >= watch.due()) {
+               due.add(watch);
+               anyDue |= now >= watch.due();
+            }
+         }
+         return anyDue ? due.build() : ImmutableList.<Watch> of();
+      }
+
+      private void sweep(List<Watch> due) {
+         Set<String> wanted = Sets.newHashSet();
+         for (Watch watch : due) {
+            wanted.add(watch.id);
+         }
+         Map<String, Stack> seen = Maps.newHashMap();
+         if (wanted.size() > lastSweepPages) {
+            int pages = 0;
+            for (IterableWithMarker<Stack> page : stackApi.listInPages(sweepOptions)) {
+               pages++;
+               for (Stack stack : page) {
+                  if (wanted.contains(stack.getId()))
+                     seen.put(stack.getId(), stack);
+               }
+               if (seen.size() == wanted.size())
+                  break;
+            }
+            lastSweepPages = Math.max(1, pages);
+            logger.debug("<< swept %d pages of stacks of region %s for %d stacks", pages, name, wanted.size());
+         }
+         Set<String> gone = Sets.newHashSet();
+         for (Watch watch : due) {
+            if (seen.containsKey(watch.id) || gone.contains(watch.id))
+               continue;
+            try {
+               Stack stack = watch.name != null ? stackApi.get(watch.name, watch.id) : stackApi.get(watch.id);
+               if (stack == null)
+                  gone.add(watch.id);
+               else
+                  seen.put(watch.id, stack);
+            } catch (RuntimeException e) {
+               logger.warn(e, "<< failed to get stack %s of region %s", watch.id, name);
+               watch.lastChecked = now();
+            }
+         }
+         long now = now();
+         for (Watch watch : due) {
+            Stack stack = seen.get(watch.id);
+            if (stack != null) {
+               observe(watch, stack, now);
+            } else if (gone.contains(watch.id)) {
+               watch.lastChecked = now;
+               if (watch.targets.contains(StackStatus.DELETE_COMPLETE))
+                  watch.future.set(watch.lastSeen);
+               else
+                  watch.future.setException(new IllegalStateException(String.format(
+                        "stack %s of region %s no longer exists", watch.id, name)));
+            }
+         }
+      }
+
+      private void observe(Watch watch, Stack stack, long now) {
+         StackStatus status = stack.getStatus();
+         watch.lastChecked = now;
+         watch.lastSeen = stack;
+         if (status != watch.lastStatus) {
+            StackStatus previous = watch.lastStatus;
+            if (previous != null)
+               watch.transitioned = true;
+            watch.lastStatus = status;
+            fireTransition(stack, previous);
+         }
+         if (watch.targets.contains(status)) {
+            watch.future.set(stack);
+         } else if (watch.isFailure(status)) {
+            watch.future.setException(new IllegalStateException(String.format("stack %s reached %s instead of %s: %s",
+                  watch.id, status, watch.targets, stack.getSatusReason())));
+         }
+      }
+
+      private void fireTransition(Stack stack, StackStatus previous) {
+         for (Listener listener : listeners) {
+            try {
+               listener.onTransition(name, stack, previous);
+            } catch (RuntimeException e) {
+               logger.warn(e, "<< listener failed on stack %s of region %s", stack.getId(), name);
+            }
+         }
+      }
+   }
+}
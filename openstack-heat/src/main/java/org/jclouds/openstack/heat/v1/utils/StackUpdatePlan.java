@@ -0,0 +1,124 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.heat.v1.utils;
+
+import java.util.Set;
+
+import org.jclouds.openstack.heat.v1.domain.Stack;
+import org.jclouds.openstack.heat.v1.options.UpdateStack;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.MapDifference;
+
+/**
+ * What an update would change in a stack, as planned by the {@link StackUpdatePlanner}.
+ * <p/>
+ * The resources of the template and the values of the parameters are compared one by one. The other sections of the
+ * template, such as its outputs, are only told to have changed or not. When the update cannot be compared with the
+ * stack, for example because its template is given as a URL or in YAML, the plan is not comparable and never a no-op.
+ */
+public final class StackUpdatePlan {
+
+   private final Stack stack;
+   private final UpdateStack update;
+   private final boolean comparable;
+   private final MapDifference<String, Object> resources;
+   private final MapDifference<String, String> parameters;
+   private final Set<String> sections;
+   private final Set<String> hiddenParameters;
+
+   StackUpdatePlan(Stack stack, UpdateStack update, boolean comparable, MapDifference<String, Object> resources,
+         MapDifference<String, String> parameters, Set<String> sections, Set<String> hiddenParameters) {
+      this.stack = stack;
+      this.update = update;
+      this.comparable = comparable;
+      this.resources = resources;
+      this.parameters = parameters;
+      this.sections = ImmutableSet.copyOf(sections);
+      this.hiddenParameters = ImmutableSet.copyOf(hiddenParameters);
+   }
+
+   public Stack getStack() {
+      return stack;
+   }
+
+   public UpdateStack getUpdate() {
+      return update;
+   }
+
+   /**
+    * @return whether the update could be compared with the stack, otherwise it must be sent
+    */
+   public boolean isComparable() {
+      return comparable;
+   }
+
+   /**
+    * @return the difference between the resources of the current template, on the left, and of the new one, on the
+    *         right, by name; {@code null} if the update is not comparable
+    */
+   public MapDifference<String, Object> getResourceDifference() {
+      return resources;
+   }
+
+   /**
+    * @return the difference between the current values of the parameters, on the left, and the values they would
+    *         have after the update, on the right, by name; {@code null} if the update is not comparable
+    */
+   public MapDifference<String, String> getParameterDifference() {
+      return parameters;
+   }
+
+   /**
+    * @return the sections of the template other than its resources that would change, such as {@code outputs}
+    */
+   public Set<String> getChangedSections() {
+      return sections;
+   }
+
+   /**
+    * @return the parameters whose current values Heat hides, and which are therefore assumed to change
+    */
+   public Set<String> getHiddenParameters() {
+      return hiddenParameters;
+   }
+
+   /**
+    * @return whether the update would leave the stack as it is, so that it need not be sent
+    */
+   public boolean isNoOp() {
+      return comparable && resources.areEqual() && parameters.areEqual() && sections.isEmpty()
+            && hiddenParameters.isEmpty();
+   }
+
+   @Override
+   public String toString() {
+      Objects.ToStringHelper helper = Objects.toStringHelper(this).omitNullValues().add("stack", stack.getName());
+      if (!comparable)
+         return helper.add("comparable", false).toString();
+      return helper
+            .add("addedResources", resources.entriesOnlyOnRight().keySet())
+            .add("removedResources", resources.entriesOnlyOnLeft().keySet())
+            .add("changedResources", resources.entriesDiffering().keySet())
+            .add("changedParameters", parameters.entriesDiffering().keySet())
+            .add("addedParameters", parameters.entriesOnlyOnRight().keySet())
+            .add("removedParameters", parameters.entriesOnlyOnLeft().keySet())
+            .add("hiddenParameters", hiddenParameters)
+            .add("changedSections", sections).toString();
+   }
+}
@@ -0,0 +1,203 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.heat.v1.utils;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.lang.reflect.Type;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Resource;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.jclouds.json.Json;
+import org.jclouds.logging.Logger;
+import org.jclouds.openstack.heat.v1.HeatApi;
+import org.jclouds.openstack.heat.v1.domain.Stack;
+import org.jclouds.openstack.heat.v1.domain.Template;
+import org.jclouds.openstack.heat.v1.options.UpdateStack;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.reflect.TypeToken;
+import com.google.gson.JsonParseException;
+
+/**
+ * Compares updates with the stacks they update, so that only the updates that change something are sent.
+ * <p/>
+ * The current template of a stack is read with
+ * {@link org.jclouds.openstack.heat.v1.features.StackApi#getTemplateAsString}, and its current parameters are the ones
+ * of the stack, which should therefore be read with
+ * {@link org.jclouds.openstack.heat.v1.features.StackApi#get(String, String)}, as listings do not include them. The
+ * parameters left out of an update take the default of the new template, as Heat resets them. Templates are compared
+ * once parsed, so that formatting and the order of keys do not matter; only templates in JSON can be parsed, so
+ * updates with a template in YAML or given as a URL are always sent. So are updates of stacks whose current template
+ * has sections {@link Template} does not represent, such as {@code conditions}, as removing them is a change.
+ */
+@Singleton
+public class StackUpdatePlanner {
+
+   private static final Type MAP_TYPE = new TypeToken<Map<String, Object>>() {
+      private static final long serialVersionUID = 1L;
+   }.getType();
+
+   /**
+    * The sections of a template that {@link Template} represents, and which can therefore be compared.
+    */
+   private static final Set<String> SECTIONS = ImmutableSet.of("heat_template_version", "description", "parameters",
+         "resources", "outputs");
+
+   @Resource
+   protected Logger logger = Logger.NULL;
+
+   private final HeatApi api;
+   private final Json json;
+
+   @Inject
+   public StackUpdatePlanner(HeatApi api, Json json) {
+      this.api = checkNotNull(api, "api");
+      this.json = checkNotNull(json, "json");
+   }
+
+   /**
+    * @param stack the stack to update, with its parameters
+    */
+   public StackUpdatePlan plan(String region, Stack stack, UpdateStack update) {
+      checkNotNull(stack, "stack");
+      checkNotNull(update, "update");
+      Template desired = parse(update.getTemplate());
+      Template current = desired != null
+            ? parse(api.getStackApi(region).getTemplateAsString(stack.getName(), stack.getId())) : null;
+      if (desired == null || current == null)
+         return new StackUpdatePlan(stack, update, false, null, null, ImmutableSet.<String> of(),
+               ImmutableSet.<String> of());
+
+      Set<String> sections = Sets.newLinkedHashSet();
+      if (!Objects.equal(current.getVersion(), desired.getVersion()))
+         sections.add("heat_template_version");
+      if (!Objects.equal(current.getDescription(), desired.getDescription()))
+         sections.add("description");
+      if (!current.getParameters().equals(desired.getParameters()))
+         sections.add("parameters");
+      if (!current.getOutputs().equals(desired.getOutputs()))
+         sections.add("outputs");
+
+      Map<String, String> currentValues = Maps.newLinkedHashMap();
+      for (Map.Entry<String, String> parameter : stack.getParameters().entrySet()) {
+         // pseudo parameters, such as OS::stack_id, are set by Heat
+         if (!parameter.getKey().startsWith("OS::"))
+            currentValues.put(parameter.getKey(), parameter.getValue());
+      }
+      Map<String, String> desiredValues = Maps.newLinkedHashMap();
+      Set<String> hidden = Sets.newLinkedHashSet();
+      Map<String, Object> given = update.getParameters() != null ? update.getParameters()
+            : Maps.<String, Object> newHashMap();
+      for (Map.Entry<String, Object> definition : desired.getParameters().entrySet()) {
+         String name = definition.getKey();
+         Map<String, Object> attributes = Maps.newHashMap();
+         if (definition.getValue() instanceof Map) {
+            for (Map.Entry<?, ?> attribute : ((Map<?, ?>) definition.getValue()).entrySet()) {
+               attributes.put(String.valueOf(attribute.getKey()), attribute.getValue());
+            }
+         }
+         Object value = given.containsKey(name) ? given.get(name)
+               : attributes.containsKey("default") ? attributes.get("default") : attributes.get("Default");
+         if (value == null)
+            continue;
+         if (isHidden(attributes.get("hidden")) || isHidden(attributes.get("NoEcho"))) {
+            // Heat shows hidden parameters as asterisks
+            currentValues.remove(name);
+            hidden.add(name);
+         } else {
+            desiredValues.put(name, render(value));
+         }
+      }
+      for (Map.Entry<String, Object> parameter : given.entrySet()) {
+         if (!desiredValues.containsKey(parameter.getKey()) && !hidden.contains(parameter.getKey()))
+            desiredValues.put(parameter.getKey(), render(parameter.getValue()));
+      }
+
+      return new StackUpdatePlan(stack, update, true, Maps.difference(current.getResources(), desired.getResources()),
+            Maps.difference(currentValues, desiredValues), sections, hidden);
+   }
+
+   /**
+    * Sends the update unless it is a no-op.
+    *
+    * @param stack the stack to update, with its parameters
+    * @return the plan of the update, which was not sent if it is a no-op
+    */
+   public StackUpdatePlan update(String region, Stack stack, UpdateStack update) {
+      StackUpdatePlan plan = plan(region, stack, update);
+      if (plan.isNoOp()) {
+         logger.debug("<< stack %s is up to date in region %s", stack.getName(), region);
+      } else {
+         logger.debug(">> updating stack %s in region %s: %s", stack.getName(), region, plan);
+         api.getStackApi(region).update(stack.getName(), stack.getId(), update);
+      }
+      return plan;
+   }
+
+   /**
+    * @return the template, or null if it is not a JSON template made only of sections {@link Template} represents
+    */
+   private Template parse(String template) {
+      if (template == null)
+         return null;
+      try {
+         Map<String, Object> sections = json.fromJson(template, MAP_TYPE);
+         if (sections == null || !SECTIONS.containsAll(sections.keySet()))
+            return null;
+         return json.fromJson(template, Template.class);
+      } catch (JsonParseException notJson) {
+         return null;
+      }
+   }
+
+   private static boolean isHidden(Object hidden) {
+      return hidden != null && Boolean.parseBoolean(hidden.toString());
+   }
+
+   /**
+    * @return the value as Heat shows it in the parameters of a stack
+    */
+   private String render(Object value) {
+      if (value instanceof Number) {
+         double number = ((Number) value).doubleValue();
+         if (number == Math.rint(number) && !Double.isInfinite(number))
+            return String.valueOf((long) number);
+         return value.toString();
+      }
+      if (value instanceof Iterable) {
+         List<String> elements = Lists.newArrayList();
+         for (Object element : (Iterable<?>) value) {
+            elements.add(render(element));
+         }
+         return Joiner.on(',').join(elements);
+      }
+      if (value instanceof Map)
+         return json.toJson(value);
+      return String.valueOf(value);
+   }
+}
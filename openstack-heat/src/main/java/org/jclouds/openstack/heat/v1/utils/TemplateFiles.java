@@ -0,0 +1,66 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.heat.v1.utils;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteSource;
+import com.google.common.io.Files;
+
+/**
+ * The template files of a batch of {@link org.jclouds.openstack.heat.v1.options.StackRequest}s, read from disk as
+ * each request is sent rather than held in memory.
+ * <p/>
+ * Files with the same content share one source, so that a nested template copied next to each of the templates of a
+ * deployment is hashed once per copy and then used as a single file. Files are therefore expected not to change while
+ * the batch is sent. Instances are thread safe and meant to be shared by the requests of a deployment.
+ */
+public final class TemplateFiles {
+
+   private final ConcurrentMap<String, ByteSource> byFile = Maps.newConcurrentMap();
+   private final ConcurrentMap<HashCode, ByteSource> byContent = Maps.newConcurrentMap();
+
+   /**
+    * @return the content of the file, or of an identical file asked for before
+    */
+   public ByteSource get(File file) throws IOException {
+      checkNotNull(file, "file");
+      String key = file.getCanonicalPath() + ":" + file.length() + ":" + file.lastModified();
+      ByteSource known = byFile.get(key);
+      if (known != null)
+         return known;
+      ByteSource source = Files.asByteSource(file);
+      ByteSource identical = byContent.putIfAbsent(source.hash(Hashing.sha256()), source);
+      ByteSource shared = identical != null ? identical : source;
+      byFile.putIfAbsent(key, shared);
+      return shared;
+   }
+
+   /**
+    * @return how many distinct contents were asked for
+    */
+   public int size() {
+      return byContent.size();
+   }
+}
@@ -0,0 +1,232 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.heat.v1.utils;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.jclouds.util.Throwables2.getFirstThrowableOfType;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Resource;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.jclouds.http.HttpRequest;
+import org.jclouds.http.HttpResponse;
+import org.jclouds.http.HttpResponseException;
+import org.jclouds.logging.Logger;
+import org.jclouds.openstack.heat.v1.HeatApi;
+import org.jclouds.openstack.heat.v1.domain.Template;
+import org.jclouds.rest.HttpClient;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.hash.Hashing;
+import com.google.common.net.HttpHeaders;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+/**
+ * Remembers which templates Heat validated, so that validating the same template again costs no request.
+ * <p/>
+ * Templates given as content are identified by a hash of their canonical form: JSON templates are hashed with their
+ * keys sorted and without insignificant whitespace, and other templates, usually YAML, with their line endings and
+ * trailing whitespace normalized. Templates given as a URL are identified by the URL and the {@code ETag} a
+ * {@code HEAD} request returns for it, or the URL alone when the server does not tell one.
+ * <p/>
+ * Up to the maximum size, the least recently used templates being evicted first, validations are kept for the given
+ * time, and templates Heat rejected with a {@code 400} for a shorter time, the same error being thrown again. Other
+ * errors are not kept. Concurrent validations of the same template share a single request. The templates returned are
+ * immutable and shared between callers.
+ */
+@Singleton
+public class TemplateValidationCache {
+
+   @Resource
+   protected Logger logger = Logger.NULL;
+
+   private final HeatApi api;
+   private final HttpClient http;
+   private final long invalidTtlMillis;
+   private final Cache<String, Validation> validations;
+
+   @Inject
+   public TemplateValidationCache(HeatApi api, HttpClient http) {
+      this(api, http, 1000, 1, TimeUnit.HOURS, 5, TimeUnit.MINUTES);
+   }
+
+   /**
+    * @param ttl how long validated templates are kept
+    * @param invalidTtl how long rejected templates are kept, at most as long as validated ones
+    */
+   public TemplateValidationCache(HeatApi api, HttpClient http, int maximumSize, long ttl, TimeUnit ttlUnit,
+         long invalidTtl, TimeUnit invalidTtlUnit) {
+      checkArgument(maximumSize > 0, "maximumSize must be positive");
+      this.api = checkNotNull(api, "api");
+      this.http = checkNotNull(http, "http");
+      this.invalidTtlMillis = invalidTtlUnit.toMillis(invalidTtl);
+      this.validations = CacheBuilder.newBuilder().maximumSize(maximumSize).expireAfterWrite(ttl, ttlUnit)
+            .recordStats().build();
+   }
+
+   /**
+    * @param template the content of the template, in YAML or JSON
+    * @see org.jclouds.openstack.heat.v1.features.TemplateApi#validateTemplate(String)
+    */
+   public Template validate(final String region, final String template) {
+      checkNotNull(template, "template");
+      String key = region + " " + Hashing.sha256().hashString(canonicalize(template), Charsets.UTF_8);
+      return get(key, new Callable<Template>() {
+         @Override
+         public Template call() {
+            return api.getTemplateApi(region).validateTemplate(template);
+         }
+      });
+   }
+
+   /**
+    * @param url the URL of the template, which Heat fetches itself
+    * @see org.jclouds.openstack.heat.v1.features.TemplateApi#validate(String)
+    */
+   public Template validateUrl(final String region, final String url) {
+      checkNotNull(url, "url");
+      String etag = etag(url);
+      String key = region + " " + url + (etag != null ? " " + etag : "");
+      return get(key, new Callable<Template>() {
+         @Override
+         public Template call() {
+            return api.getTemplateApi(region).validate(url);
+         }
+      });
+   }
+
+   public CacheStats stats() {
+      return validations.stats();
+   }
+
+   public void invalidateAll() {
+      validations.invalidateAll();
+   }
+
+   private Template get(String key, final Callable<Template> validate) {
+      Callable<Validation> load = new Callable<Validation>() {
+         @Override
+         public Validation call() throws Exception {
+            try {
+               return new Validation(validate.call(), null, Long.MAX_VALUE);
+            } catch (RuntimeException e) {
+               HttpResponseException rejected = getFirstThrowableOfType(e, HttpResponseException.class);
+               if (rejected == null || rejected.getResponse() == null || rejected.getResponse().getStatusCode() != 400)
+                  throw e;
+               return new Validation(null, e, System.currentTimeMillis() + invalidTtlMillis);
+            }
+         }
+      };
+      try {
+         Validation validation = validations.get(key, load);
+         if (validation.expires < System.currentTimeMillis()) {
+            validations.asMap().remove(key, validation);
+            validation = validations.get(key, load);
+         }
+         if (validation.error != null)
+            throw validation.error;
+         return validation.template;
+      } catch (ExecutionException e) {
+         throw Throwables.propagate(e.getCause());
+      } catch (UncheckedExecutionException e) {
+         throw Throwables.propagate(e.getCause());
+      }
+   }
+
+   private String etag(String url) {
+      try {
+         HttpResponse response = http.invoke(HttpRequest.builder().method("HEAD").endpoint(URI.create(url)).build());
+         return response.getStatusCode() == 200 ? response.getFirstHeaderOrNull(HttpHeaders.ETAG) : null;
+      } catch (RuntimeException e) {
+         logger.debug("<< could not get the ETag of template %s: %s", url, e.getMessage());
+         return null;
+      }
+   }
+
+   static String canonicalize(String template) {
+      try {
+         JsonElement json = new JsonParser().parse(template);
+         if (json.isJsonObject())
+            return sorted(json).toString();
+      } catch (JsonParseException notJson) {
+      }
+      StringBuilder canonical = new StringBuilder(template.length());
+      for (String line : template.replace("\r\n", "\n").replace('\r', '\n').split("\n")) {
+         int end = line.length();
+         while (end > 0 && Character.isWhitespace(line.charAt(end - 1))) {
+            end--;
+         }
+         canonical.append(line, 0, end).append('\n');
+      }
+      return canonical.toString().trim();
+   }
+
+   private static JsonElement sorted(JsonElement json) {
+      if (json.isJsonObject()) {
+         Map<String, JsonElement> members = new TreeMap<String, JsonElement>();
+         for (Map.Entry<String, JsonElement> member : json.getAsJsonObject().entrySet()) {
+            members.put(member.getKey(), sorted(member.getValue()));
+         }
+         JsonObject sorted = new JsonObject();
+         for (Map.Entry<String, JsonElement> member : members.entrySet()) {
+            sorted.add(member.getKey(), member.getValue());
+         }
+         return sorted;
+      }
+      if (json.isJsonArray()) {
+         JsonArray sorted = new JsonArray();
+         for (JsonElement element : json.getAsJsonArray()) {
+            sorted.add(sorted(element));
+         }
+         return sorted;
+      }
+      return json;
+   }
+
+   /**
+    * A validated template, or the error Heat rejected it with.
+    */
+   private static final class Validation {
+      private final Template template;
+      private final RuntimeException error;
+      private final long expires;
+
+      private Validation(Template template, RuntimeException error, long expires) {
+         this.template = template;
+         this.error = error;
+         this.expires = expires;
+      }
+   }
+}
@@ -20,22 +20,38 @@ import static org.assertj.core.api.Assertions.assertThat;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertTrue;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 
 import org.jclouds.openstack.heat.v1.HeatApi;
+import org.jclouds.openstack.heat.v1.config.HeatProperties;
 import org.jclouds.openstack.heat.v1.domain.Stack;
 import org.jclouds.openstack.heat.v1.domain.StackResource;
+import org.jclouds.openstack.heat.v1.domain.Stacks;
 import org.jclouds.openstack.heat.v1.internal.BaseHeatApiMockTest;
 import org.jclouds.openstack.heat.v1.options.CreateStack;
 import org.jclouds.openstack.heat.v1.options.ListStackOptions;
+import org.jclouds.openstack.heat.v1.options.StackRequest;
 import org.jclouds.openstack.heat.v1.options.UpdateStack;
+import org.jclouds.openstack.heat.v1.utils.TemplateFiles;
 import org.testng.annotations.Test;
 
+import com.google.common.base.Charsets;
+import com.google.common.base.Function;
+import com.google.common.collect.FluentIterable;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteSource;
+import com.google.common.io.Files;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
 import com.squareup.okhttp.mockwebserver.MockResponse;
 import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
 
 /**
  * Tests annotation parsing of {@code StackApi}
@@ -157,6 +173,103 @@ public class StackApiMockTest extends BaseHeatApiMockTest {
       }
    }
 
+   public void testListInPagesFollowsMarkers() throws Exception {
+      MockWebServer server = mockOpenStackServer();
+      server.enqueue(addCommonHeaders(new MockResponse().setBody(stringFromResource("/access.json"))));
+      server.enqueue(addCommonHeaders(
+            new MockResponse().setResponseCode(200).setBody(stringFromResource("/stack_list_page_response.json"))));
+      server.enqueue(addCommonHeaders(
+            new MockResponse().setResponseCode(200).setBody(stringFromResource("/stack_list_response.json"))));
+
+      try {
+         HeatApi heatApi = api(server.getUrl("/").toString(), "openstack-heat", overrides);
+         StackApi api = heatApi.getStackApi("RegionOne");
+
+         List<Stack> stacks = api.listInPages(ListStackOptions.Builder.globalTenant(true).limit(2)).concat().toList();
+
+         /*
+          * Check response
+          */
+         assertThat(FluentIterable.from(stacks).transform(new Function<Stack, String>() {
+            @Override
+            public String apply(Stack stack) {
+               return stack.getName();
+            }
+         })).containsExactly("first_stack", "second_stack", "simple_stack");
+
+         /*
+          * Check request
+          */
+         assertThat(server.getRequestCount()).isEqualTo(3);
+         assertAuthentication(server);
+         assertRequest(server.takeRequest(), "GET", BASE_URI + "/stacks?global_tenant=true&limit=2");
+         assertRequest(server.takeRequest(), "GET",
+               BASE_URI + "/stacks?global_tenant=true&limit=2&marker=c1e0d6b4-0f1e-4d93-8a63-3f0c4b1a2e02");
+      } finally {
+         server.shutdown();
+      }
+   }
+
+   public void testListInPagesFollowsNextLinksWithPrefetch() throws Exception {
+      MockWebServer server = mockOpenStackServer();
+      server.enqueue(addCommonHeaders(new MockResponse().setBody(stringFromResource("/access.json"))));
+      server.enqueue(addCommonHeaders(
+            new MockResponse().setResponseCode(200).setBody(stringFromResource("/stack_list_links_response.json"))));
+      server.enqueue(addCommonHeaders(
+            new MockResponse().setResponseCode(200).setBody(stringFromResource("/stack_list_links_response.json"))));
+      server.enqueue(addCommonHeaders(
+            new MockResponse().setResponseCode(200).setBody(stringFromResource("/stack_list_response.json"))));
+
+      try {
+         Properties prefetching = new Properties();
+         prefetching.putAll(overrides);
+         prefetching.setProperty(HeatProperties.LIST_PREFETCH, "true");
+         HeatApi heatApi = api(server.getUrl("/").toString(), "openstack-heat", prefetching);
+         StackApi api = heatApi.getStackApi("RegionOne");
+
+         Stacks first = api.listPage(ListStackOptions.Builder.globalTenant(true));
+         List<Stack> stacks = api.listInPages(ListStackOptions.Builder.globalTenant(true)).concat().toList();
+
+         /*
+          * Check response
+          */
+         assertThat(first.size()).isEqualTo(2);
+         assertThat(first.nextMarker().isPresent()).isTrue();
+         assertThat(stacks.size()).isEqualTo(3);
+         assertThat(stacks.get(2).getId()).isEqualTo("3095aefc-09fb-4bc7-b1f0-f21a304e864c");
+      } finally {
+         server.shutdown();
+      }
+   }
+
+   public void testListInPagesDefaultsToPagesOfHundred() throws Exception {
+      MockWebServer server = mockOpenStackServer();
+      server.enqueue(addCommonHeaders(new MockResponse().setBody(stringFromResource("/access.json"))));
+      server.enqueue(addCommonHeaders(
+            new MockResponse().setResponseCode(200).setBody(stringFromResource("/stack_list_response.json"))));
+
+      try {
+         HeatApi heatApi = api(server.getUrl("/").toString(), "openstack-heat", overrides);
+         StackApi api = heatApi.getStackApi("RegionOne");
+
+         List<Stack> stacks = api.listInPages().concat().toList();
+
+         /*
+          * Check request
+          */
+         assertThat(server.getRequestCount()).isEqualTo(2);
+         assertAuthentication(server);
+         assertRequest(server.takeRequest(), "GET", BASE_URI + "/stacks?limit=100");
+
+         /*
+          * Check response
+          */
+         assertThat(stacks.size()).isEqualTo(1);
+      } finally {
+         server.shutdown();
+      }
+   }
+
    public void testListResource() throws Exception {
       MockWebServer server = mockOpenStackServer();
       server.enqueue(addCommonHeaders(new MockResponse().setBody(stringFromResource("/access.json"))));
@@ -313,6 +426,55 @@ public class StackApiMockTest extends BaseHeatApiMockTest {
       }
    }
 
+   public void testCreateReadsTemplateFilesAsSent() throws Exception {
+      MockWebServer server = mockOpenStackServer();
+      server.enqueue(addCommonHeaders(new MockResponse().setBody(stringFromResource("/access.json"))));
+      server.enqueue(addCommonHeaders(new MockResponse().setResponseCode(201).setBody(stringFromResource("/create_stack.json"))));
+      String nested = "resources:\n  server:\n    type: \"OS::Nova::Server\"\n    properties: {name: caf\u00e9\\1}\n";
+      File first = File.createTempFile("nested", ".yaml");
+      File copy = File.createTempFile("nested", ".yaml");
+      Files.write(nested, first, Charsets.UTF_8);
+      Files.write(nested, copy, Charsets.UTF_8);
+
+      try {
+         HeatApi heatApi = api(server.getUrl("/").toString(), "openstack-heat", overrides);
+         StackApi api = heatApi.getStackApi("RegionOne");
+         TemplateFiles files = new TemplateFiles();
+
+         CreateStack createStack = CreateStack.builder().name(TEST_STACK_NAME)
+               .files(ImmutableMap.of("env.yaml", "parameters: {}")).build();
+         Stack stack = api.create(StackRequest.builder(createStack)
+               .template(ByteSource.wrap("resources:\n  first: {type: first.yaml}\n".getBytes(Charsets.UTF_8)))
+               .file("first.yaml", files.get(first)).file("copy.yaml", files.get(copy)).build());
+
+         /*
+          * Check request
+          */
+         assertThat(files.size()).isEqualTo(1);
+         assertThat(files.get(copy)).isSameAs(files.get(first));
+         assertThat(server.getRequestCount()).isEqualTo(2);
+         assertAuthentication(server);
+         RecordedRequest request = server.takeRequest();
+         assertThat(request.getMethod()).isEqualTo("POST");
+         assertThat(request.getPath()).isEqualTo(BASE_URI + "/stacks");
+         JsonObject body = new JsonParser().parse(request.getUtf8Body()).getAsJsonObject();
+         assertThat(body.get("stack_name").getAsString()).isEqualTo(TEST_STACK_NAME);
+         assertThat(body.get("template").getAsString()).isEqualTo("resources:\n  first: {type: first.yaml}\n");
+         assertThat(body.getAsJsonObject("files").get("env.yaml").getAsString()).isEqualTo("parameters: {}");
+         assertThat(body.getAsJsonObject("files").get("first.yaml").getAsString()).isEqualTo(nested);
+         assertThat(body.getAsJsonObject("files").get("copy.yaml").getAsString()).isEqualTo(nested);
+
+         /*
+          * Check response
+          */
+         assertThat(stack.getId()).isEqualTo("3095aefc-09fb-4bc7-b1f0-f21a304e864c");
+      } finally {
+         first.delete();
+         copy.delete();
+         server.shutdown();
+      }
+   }
+
    public void testResourcesMetadata() throws IOException, InterruptedException {
       MockWebServer server = mockOpenStackServer();
       server.enqueue(addCommonHeaders(new MockResponse().setBody(stringFromResource("/access.json"))));
@@ -0,0 +1,852 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.heat.v1.internal;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.LinkedListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
+import com.google.common.io.Resources;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+/**
+ * A stateful, in-process stand-in for the Heat v1 API, to be installed on a MockWebServer.
+ * <p/>
+ * Answers authentication from the {@code access.json} test resource, then creates, gets, lists, updates and deletes
+ * stacks, lists their resources and returns their metadata and templates, and validates templates. Stacks are listed
+ * with the Heat filters, sort keys and markers, and without links, as Heat does. Deleted stacks are only listed with
+ * {@code show_deleted}, and can still be got by id.
+ * <p/>
+ * Creates, updates and deletes are accepted at once, and leave the stack {@code _IN_PROGRESS} for the transition
+ * delay, after which it is {@code _COMPLETE}, or {@code _FAILED} when told to {@link #failNext fail}. As in Heat, the
+ * update time of a stack is set when an update or a delete starts, and is left unset by its create. Transitions are
+ * worked out as stacks are read rather than by a timer per stack, so that thousands of stacks can be transitioning at
+ * once, and against a clock that tests may supply, so that they can move time on rather than wait for it.
+ * <p/>
+ * Only JSON templates are understood: their parameters are checked, and the resources and outputs of their stacks
+ * are made up from them. YAML templates and template urls are accepted, but give stacks without resources or
+ * outputs, and an empty template.
+ *
+ * <pre>
+ * MockWebServer server = mockOpenStackServer();
+ * InMemoryHeatDispatcher heat = new InMemoryHeatDispatcher(server.getUrl("/"));
+ * server.setDispatcher(heat);
+ * </pre>
+ */
+public class InMemoryHeatDispatcher extends Dispatcher {
+
+   public static final String API_VERSION = "/v1";
+   public static final String TENANT_ID = "da0d12be20394afb851716e10a49e4a7";
+
+   private static final String STACKS = "/stacks";
+   private static final String OWNER = "joe";
+   private static final Pattern NAME = Pattern.compile("[a-zA-Z][a-zA-Z0-9_.-]*");
+   private static final Map<String, String> SORT_KEYS = ImmutableMap.of("name", "stack_name", "status",
+         "stack_status", "created_at", "creation_time", "updated_at", "updated_time");
+   private static final List<String> SUMMARY = ImmutableList.of("id", "stack_name", "description", "owner",
+         "project", "stack_status", "stack_status_reason", "creation_time", "updated_time", "links");
+   private static final List<String> VERSIONS = ImmutableList.of("heat_template_version",
+         "HeatTemplateFormatVersion", "AWSTemplateFormatVersion");
+
+   private final String baseUrl;
+   private final long transitionMillis;
+   private final int maxPageSize;
+   private final Supplier<Long> clock;
+   private final ConcurrentNavigableMap<String, StoredStack> store = new ConcurrentSkipListMap<String, StoredStack>();
+   private final ConcurrentMap<String, String> idsByName = Maps.newConcurrentMap();
+   private final Map<String, Integer> failing = Maps.newHashMap();
+   private final AtomicLong requestCount = new AtomicLong();
+   private final String access;
+
+   /**
+    * @param serverUrl the url of the MockWebServer the dispatcher is installed on
+    */
+   public InMemoryHeatDispatcher(URL serverUrl) {
+      this(serverUrl, 100, 1000);
+   }
+
+   /**
+    * @param serverUrl the url of the MockWebServer the dispatcher is installed on
+    * @param transitionMillis how long stacks stay {@code _IN_PROGRESS}
+    * @param maxPageSize the largest page returned by a list, whatever limit is requested
+    */
+   public InMemoryHeatDispatcher(URL serverUrl, long transitionMillis, int maxPageSize) {
+      this(serverUrl, transitionMillis, maxPageSize, new Supplier<Long>() {
+         @Override
+         public Long get() {
+            return System.currentTimeMillis();
+         }
+      });
+   }
+
+   /**
+    * @param serverUrl the url of the MockWebServer the dispatcher is installed on
+    * @param transitionMillis how long stacks stay {@code _IN_PROGRESS}
+    * @param maxPageSize the largest page returned by a list, whatever limit is requested
+    * @param clock the current time in milliseconds, which must never go back
+    */
+   public InMemoryHeatDispatcher(URL serverUrl, long transitionMillis, int maxPageSize, Supplier<Long> clock) {
+      checkArgument(transitionMillis >= 0, "transitionMillis must not be negative");
+      checkArgument(maxPageSize > 0, "maxPageSize must be positive");
+      String url = checkNotNull(serverUrl, "serverUrl").toString();
+      this.baseUrl = url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+      this.transitionMillis = transitionMillis;
+      this.maxPageSize = maxPageSize;
+      this.clock = checkNotNull(clock, "clock");
+      this.access = resource("/access.json").replace("\"URL", "\"" + baseUrl);
+   }
+
+   /**
+    * Stores a stack directly, without going through the api. A stack seeded {@code _IN_PROGRESS} completes after
+    * the transition delay.
+    *
+    * @param attributes the attributes of the stack, as got; defaults are applied as for a create
+    * @param template the JSON template of the stack, or null for none
+    * @return the stored stack, including its generated id
+    */
+   public JsonObject seed(JsonObject attributes, String template) {
+      JsonObject parsed = template(template == null ? null : new JsonPrimitive(template));
+      synchronized (this) {
+         JsonObject stack = newStack(checkNotNull(string(attributes, "stack_name"), "stack_name"), parsed);
+         if (!attributes.has("parameters"))
+            stack.add("parameters", parameters(parsed, new JsonObject(), string(stack, "id"), string(attributes,
+                  "stack_name")));
+         for (Map.Entry<String, JsonElement> attribute : attributes.entrySet()) {
+            stack.add(attribute.getKey(), attribute.getValue());
+         }
+         String status = string(stack, "stack_status");
+         long completesAt = 0;
+         if (status.endsWith("_IN_PROGRESS"))
+            completesAt = clock.get() + transitionMillis;
+         else if (status.endsWith("_COMPLETE") && !status.startsWith("DELETE"))
+            stack.add("outputs", outputs(stack, parsed));
+         StoredStack stored = new StoredStack(stack, parsed, completesAt, false);
+         store.put(stored.id(), stored);
+         idsByName.put(stored.name(), stored.id());
+         return stored.stack;
+      }
+   }
+
+   /**
+    * Makes the next transitions of the stacks with this name fail, such as its create and then its first delete.
+    */
+   public void failNext(String name, int transitions) {
+      checkArgument(transitions > 0, "transitions must be positive");
+      synchronized (this) {
+         failing.put(checkNotNull(name, "name"), transitions);
+      }
+   }
+
+   /**
+    * @return the stack as got, deleted or not, or null if there is none with this id
+    */
+   public JsonObject get(String id) {
+      StoredStack stack = read(id, clock.get());
+      return stack == null ? null : stack.stack;
+   }
+
+   /**
+    * @return the number of stacks that are not deleted
+    */
+   public int size() {
+      long now = clock.get();
+      int size = 0;
+      for (String id : store.keySet()) {
+         if (!read(id, now).isDeleted())
+            size++;
+      }
+      return size;
+   }
+
+   /**
+    * @return the number of api requests answered, authentication included
+    */
+   public long getRequestCount() {
+      return requestCount.get();
+   }
+
+   @Override
+   public MockResponse dispatch(RecordedRequest request) {
+      requestCount.incrementAndGet();
+      try {
+         return route(request);
+      } catch (RuntimeException e) {
+         return error(400, e.getMessage());
+      }
+   }
+
+   private MockResponse route(RecordedRequest request) {
+      String method = request.getMethod();
+      String path = request.getPath();
+      Multimap<String, String> query = LinkedListMultimap.create();
+      int separator = path.indexOf('?');
+      if (separator >= 0) {
+         query = parseQuery(path.substring(separator + 1));
+         path = path.substring(0, separator);
+      }
+
+      if ("POST".equals(method) && path.endsWith("/tokens"))
+         return json(200, access);
+      String base = API_VERSION + "/" + TENANT_ID;
+      if (!path.startsWith(base))
+         return error(404, "no such path " + path);
+      path = path.substring(base.length());
+      if (path.equals("/validate") && "POST".equals(method))
+         return validate(request);
+      if (!path.startsWith(STACKS))
+         return error(404, "no such path " + path);
+
+      List<String> segments = Lists.newArrayList();
+      for (String segment : Splitter.on('/').omitEmptyStrings().split(path.substring(STACKS.length()))) {
+         segments.add(decode(segment));
+      }
+      if (segments.isEmpty()) {
+         if ("GET".equals(method))
+            return list(query);
+         if ("POST".equals(method))
+            return create(request);
+      } else if (segments.size() == 1 && "GET".equals(method)) {
+         return show(segments.get(0));
+      } else if (segments.size() == 2) {
+         if ("GET".equals(method))
+            return show(segments.get(0), segments.get(1));
+         if ("PUT".equals(method))
+            return update(segments.get(0), segments.get(1), request);
+         if ("DELETE".equals(method))
+            return delete(segments.get(0), segments.get(1));
+      } else if ("GET".equals(method)) {
+         StoredStack stack = find(segments.get(0), segments.get(1));
+         if (stack == null || stack.isDeleted())
+            return notFound(segments.get(0) + "/" + segments.get(1));
+         String section = segments.get(2);
+         if (segments.size() == 3 && section.equals("template"))
+            return json(200, stack.template == null ? "{}" : stack.template.toString());
+         if (segments.size() == 3 && section.equals("resources"))
+            return json(200, wrap("resources", resources(stack)));
+         if (segments.size() >= 4 && section.equals("resources"))
+            return resource(stack, segments.get(3), segments.size() == 5 && segments.get(4).equals("metadata"));
+      }
+      return error(404, "no such path " + path);
+   }
+
+   private MockResponse list(Multimap<String, String> query) {
+      int limit = maxPageSize;
+      if (query.containsKey("limit"))
+         limit = Math.min(limit, Math.max(1, Integer.parseInt(first(query, "limit"))));
+      Set<String> statuses = Sets.newHashSet();
+      for (String status : query.get("status")) {
+         statuses.add(status.toUpperCase(Locale.ENGLISH).replace('-', '_'));
+      }
+      String name = first(query, "name");
+      boolean showDeleted = "true".equalsIgnoreCase(first(query, "show_deleted"));
+      String sortKey = query.containsKey("sort_keys") ? first(query, "sort_keys") : "created_at";
+      final String sortAttribute = SORT_KEYS.get(sortKey);
+      if (sortAttribute == null)
+         return error(400, "Sort key " + sortKey + " is not allowed");
+      final boolean ascending = "asc".equals(first(query, "sort_dir"));
+
+      long now = clock.get();
+      List<JsonObject> matching = Lists.newArrayList();
+      for (String id : store.keySet()) {
+         StoredStack stack = read(id, now);
+         boolean listed = showDeleted || !stack.isDeleted();
+         if (listed && (statuses.isEmpty() || statuses.contains(stack.status()))
+               && (name == null || name.equals(stack.name())))
+            matching.add(stack.stack);
+      }
+      Comparator<JsonObject> order = new Comparator<JsonObject>() {
+         @Override
+         public int compare(JsonObject a, JsonObject b) {
+            int order = compareValues(string(a, sortAttribute), string(b, sortAttribute));
+            if (order == 0)
+               order = string(a, "id").compareTo(string(b, "id"));
+            return ascending ? order : -order;
+         }
+      };
+      Collections.sort(matching, order);
+
+      // as in Heat, the page starts after where the marker sorts, even if the marker is no longer listed
+      int start = 0;
+      if (query.containsKey("marker")) {
+         String marker = first(query, "marker");
+         StoredStack marked = read(marker, now);
+         if (marked == null)
+            return error(404, "The Stack (" + marker + ") could not be found.");
+         while (start < matching.size() && order.compare(matching.get(start), marked.stack) <= 0) {
+            start++;
+         }
+      }
+      int end = Math.min(start + limit, matching.size());
+
+      JsonArray page = new JsonArray();
+      for (JsonObject stack : matching.subList(start, end)) {
+         page.add(summary(stack));
+      }
+      return json(200, wrap("stacks", page));
+   }
+
+   private MockResponse show(String nameOrId) {
+      long now = clock.get();
+      StoredStack stack = read(nameOrId, now);
+      if (stack == null) {
+         String id = idsByName.get(nameOrId);
+         stack = id == null ? null : read(id, now);
+         if (stack != null && stack.isDeleted())
+            stack = null;
+      }
+      if (stack == null)
+         return notFound(nameOrId);
+      return json(200, wrap("stack", stack.stack));
+   }
+
+   private MockResponse show(String name, String id) {
+      StoredStack stack = find(name, id);
+      if (stack == null)
+         return notFound(name + "/" + id);
+      return json(200, wrap("stack", stack.stack));
+   }
+
+   private MockResponse create(RecordedRequest request) {
+      JsonObject body = body(request);
+      String name = string(body, "stack_name");
+      if (name == null || !NAME.matcher(name).matches())
+         return error(400, "Invalid stack name " + name + ", must contain only alphanumeric or \"_-.\" characters, "
+               + "must start with alpha");
+      if (!body.has("template") && !body.has("template_url"))
+         return error(400, "Need more arguments: template or template_url");
+      JsonObject template = template(body.get("template"));
+      JsonObject parameters = body.has("parameters") ? body.getAsJsonObject("parameters") : new JsonObject();
+
+      StoredStack created;
+      synchronized (this) {
+         String existing = idsByName.get(name);
+         if (existing != null && !read(existing, clock.get()).isDeleted())
+            return error(409, "The Stack (" + name + ") already exists.");
+         JsonObject stack = newStack(name, template);
+         stack.add("parameters", parameters(template, parameters, string(stack, "id"), name));
+         if (body.has("disable_rollback"))
+            stack.add("disable_rollback", body.get("disable_rollback"));
+         if (body.has("timeout_mins"))
+            stack.add("timeout_mins", body.get("timeout_mins"));
+         created = transition(stack, template, "CREATE");
+         store.put(created.id(), created);
+         idsByName.put(name, created.id());
+      }
+      JsonObject reference = new JsonObject();
+      reference.addProperty("id", created.id());
+      reference.add("links", created.stack.get("links"));
+      return json(201, wrap("stack", reference));
+   }
+
+   private MockResponse update(String name, String id, RecordedRequest request) {
+      JsonObject body = body(request);
+      boolean replacing = body.has("template") || body.has("template_url");
+      JsonObject template = template(body.get("template"));
+      JsonObject parameters = body.has("parameters") ? body.getAsJsonObject("parameters") : new JsonObject();
+      synchronized (this) {
+         StoredStack existing = find(name, id);
+         if (existing == null || existing.isDeleted())
+            return notFound(name + "/" + id);
+         if (existing.isInProgress() || existing.status().startsWith("DELETE"))
+            return error(409, "Updating a stack when it is " + existing.status() + " is not supported.");
+         if (!replacing)
+            template = existing.template;
+         JsonObject stack = copy(existing.stack);
+         stack.add("parameters", parameters(template, parameters, id, name));
+         stack.addProperty("description", description(template));
+         stack.addProperty("template_description", description(template));
+         store.put(id, transition(stack, template, "UPDATE"));
+      }
+      return new MockResponse().setResponseCode(202);
+   }
+
+   private MockResponse delete(String name, String id) {
+      synchronized (this) {
+         StoredStack existing = find(name, id);
+         if (existing == null || existing.isDeleted())
+            return notFound(name + "/" + id);
+         store.put(id, transition(existing.stack, existing.template, "DELETE"));
+      }
+      return new MockResponse().setResponseCode(204);
+   }
+
+   private MockResponse validate(RecordedRequest request) {
+      JsonObject body = body(request);
+      if (!body.has("template"))
+         return error(400, body.has("template_url") || body.has("url") ? "Template urls cannot be fetched here"
+               : "No Template provided.");
+      JsonObject template = template(body.get("template"));
+      JsonObject validated = new JsonObject();
+      validated.addProperty("description", description(template));
+      JsonObject parameters = template == null ? null : section(template, "parameters", "Parameters");
+      validated.add("parameters", parameters == null ? new JsonObject() : parameters);
+      return json(200, validated.toString());
+   }
+
+   private MockResponse resource(StoredStack stack, String name, boolean metadata) {
+      JsonObject resources = stack.template == null ? null : section(stack.template, "resources", "Resources");
+      if (resources == null || !resources.has(name))
+         return error(404, "The Resource (" + name + ") could not be found in Stack " + stack.name() + ".");
+      if (!metadata)
+         return json(200, wrap("resource", resource(stack, name, resources)));
+      JsonObject declared = resources.getAsJsonObject(name);
+      JsonObject found = section(declared, "metadata", "Metadata");
+      return json(200, wrap("metadata", found == null ? new JsonObject() : found));
+   }
+
+   /**
+    * @return the stack, settled if its transition is over, or null if there is none with this id
+    */
+   private StoredStack read(String id, long now) {
+      StoredStack stored = store.get(id);
+      if (stored == null)
+         return null;
+      StoredStack settled = stored.settled(now);
+      if (settled != stored)
+         store.replace(id, stored, settled);
+      return settled;
+   }
+
+   /**
+    * @return the stack with this id, provided it has this name, or null
+    */
+   private StoredStack find(String name, String id) {
+      StoredStack stack = read(id, clock.get());
+      return stack == null || !name.equals(stack.name()) ? null : stack;
+   }
+
+   /**
+    * Must be called holding the lock on this.
+    *
+    * @return the stack, starting the action
+    */
+   private StoredStack transition(JsonObject stack, JsonObject template, String action) {
+      long now = clock.get();
+      JsonObject started = copy(stack);
+      started.addProperty("stack_status", action + "_IN_PROGRESS");
+      started.addProperty("stack_status_reason", "Stack " + action + " started");
+      // as in Heat, the update time is when an action other than the create starts, and is kept once it is over
+      if (!action.equals("CREATE"))
+         started.addProperty("updated_time", format(new Date(now)));
+      started.add("outputs", new JsonArray());
+      String name = string(stack, "stack_name");
+      Integer failures = failing.get(name);
+      if (failures != null) {
+         if (failures > 1)
+            failing.put(name, failures - 1);
+         else
+            failing.remove(name);
+      }
+      return new StoredStack(started, template, now + transitionMillis, failures != null);
+   }
+
+   private JsonObject newStack(String name, JsonObject template) {
+      String id = UUID.randomUUID().toString();
+      String now = format(new Date(clock.get()));
+      JsonObject link = new JsonObject();
+      link.addProperty("href", baseUrl + API_VERSION + "/" + TENANT_ID + STACKS + "/" + name + "/" + id);
+      link.addProperty("rel", "self");
+      JsonArray links = new JsonArray();
+      links.add(link);
+
+      JsonObject stack = new JsonObject();
+      stack.addProperty("id", id);
+      stack.addProperty("stack_name", name);
+      stack.addProperty("description", description(template));
+      stack.addProperty("template_description", description(template));
+      stack.addProperty("owner", OWNER);
+      stack.addProperty("project", TENANT_ID);
+      stack.add("capabilities", new JsonArray());
+      stack.add("notification_topics", new JsonArray());
+      stack.add("parameters", parameters(null, new JsonObject(), id, name));
+      stack.add("outputs", new JsonArray());
+      stack.addProperty("stack_status", "CREATE_COMPLETE");
+      stack.addProperty("stack_status_reason", "Stack CREATE completed successfully");
+      stack.addProperty("creation_time", now);
+      stack.add("updated_time", JsonNull.INSTANCE);
+      stack.addProperty("timeout_mins", 60);
+      stack.addProperty("disable_rollback", true);
+      stack.add("links", links);
+      return stack;
+   }
+
+   private JsonArray resources(StoredStack stack) {
+      JsonArray listed = new JsonArray();
+      JsonObject resources = stack.template == null ? null : section(stack.template, "resources", "Resources");
+      if (resources == null)
+         return listed;
+      for (Map.Entry<String, JsonElement> resource : resources.entrySet()) {
+         listed.add(resource(stack, resource.getKey(), resources));
+      }
+      return listed;
+   }
+
+   private JsonObject resource(StoredStack stack, String name, JsonObject resources) {
+      String stackUrl = string(stack.stack.getAsJsonArray("links").get(0).getAsJsonObject(), "href");
+      JsonArray requiredBy = new JsonArray();
+      for (Map.Entry<String, JsonElement> other : resources.entrySet()) {
+         JsonObject declared = other.getValue().getAsJsonObject();
+         JsonElement dependsOn = declared.has("depends_on") ? declared.get("depends_on") : declared.get("DependsOn");
+         if (dependsOn == null)
+            continue;
+         JsonArray dependencies = dependsOn.isJsonArray() ? dependsOn.getAsJsonArray() : new JsonArray();
+         if (dependsOn.isJsonPrimitive())
+            dependencies.add(dependsOn);
+         if (dependencies.contains(new JsonPrimitive(name)))
+            requiredBy.add(new JsonPrimitive(other.getKey()));
+      }
+      JsonObject declared = resources.getAsJsonObject(name);
+      JsonArray links = new JsonArray();
+      links.add(link(stackUrl + "/resources/" + name, "self"));
+      links.add(link(stackUrl, "stack"));
+
+      JsonObject resource = new JsonObject();
+      resource.addProperty("resource_name", name);
+      resource.addProperty("logical_resource_id", name);
+      resource.addProperty("physical_resource_id", physicalId(stack.id(), name));
+      resource.addProperty("resource_type", declared.has("type") ? string(declared, "type") : string(declared, "Type"));
+      resource.addProperty("resource_status", stack.status());
+      resource.addProperty("resource_status_reason", "state changed");
+      // the resources of a stack never updated were last changed when it was created
+      resource.addProperty("updated_time", string(stack.stack, "updated_time") != null
+            ? string(stack.stack, "updated_time") : string(stack.stack, "creation_time"));
+      resource.add("required_by", requiredBy);
+      resource.add("links", links);
+      return resource;
+   }
+
+   /**
+    * @return the outputs of a stack, whose values are the values declared when they are constants, the parameters or
+    *         physical ids they refer to, or made up from the attribute they refer to
+    */
+   private static JsonArray outputs(JsonObject stack, JsonObject template) {
+      JsonArray outputs = new JsonArray();
+      JsonObject declared = template == null ? null : section(template, "outputs", "Outputs");
+      if (declared == null)
+         return outputs;
+      String id = string(stack, "id");
+      JsonObject parameters = stack.getAsJsonObject("parameters");
+      for (Map.Entry<String, JsonElement> entry : declared.entrySet()) {
+         JsonObject output = entry.getValue().getAsJsonObject();
+         JsonElement value = output.has("value") ? output.get("value") : output.get("Value");
+         if (value != null && value.isJsonObject()) {
+            JsonObject function = value.getAsJsonObject();
+            if (function.has("get_param"))
+               value = parameters.get(function.get("get_param").getAsString());
+            else if (function.has("get_resource"))
+               value = new JsonPrimitive(physicalId(id, function.get("get_resource").getAsString()));
+            else if (function.has("get_attr"))
+               value = new JsonPrimitive(physicalId(id, function.getAsJsonArray("get_attr").get(0).getAsString())
+                     + "/" + function.getAsJsonArray("get_attr").get(1).getAsString());
+            else
+               value = new JsonPrimitive(id + "/" + entry.getKey());
+         }
+         JsonObject shown = new JsonObject();
+         shown.addProperty("output_key", entry.getKey());
+         shown.add("output_value", value == null ? JsonNull.INSTANCE : value);
+         shown.addProperty("description", output.has("description") ? string(output, "description")
+               : "No description given");
+         outputs.add(shown);
+      }
+      return outputs;
+   }
+
+   /**
+    * @return the parameters of a stack, from those given and the defaults of the template, if understood
+    * @throws IllegalArgumentException if a parameter without default is missing, or one is not declared
+    */
+   private static JsonObject parameters(JsonObject template, JsonObject given, String id, String name) {
+      JsonObject parameters = new JsonObject();
+      JsonObject declared = template == null ? null : section(template, "parameters", "Parameters");
+      if (declared != null) {
+         for (Map.Entry<String, JsonElement> parameter : declared.entrySet()) {
+            JsonObject declaration = parameter.getValue().getAsJsonObject();
+            JsonElement value = given.get(parameter.getKey());
+            if (value == null)
+               value = declaration.has("default") ? declaration.get("default") : declaration.get("Default");
+            checkArgument(value != null, "The Parameter (%s) was not provided.", parameter.getKey());
+            parameters.addProperty(parameter.getKey(), value.isJsonPrimitive() ? value.getAsString()
+                  : value.toString());
+         }
+      }
+      for (Map.Entry<String, JsonElement> parameter : given.entrySet()) {
+         checkArgument(template == null || declared != null && declared.has(parameter.getKey()),
+               "The Parameter (%s) was not defined in template.", parameter.getKey());
+         JsonElement value = parameter.getValue();
+         parameters.addProperty(parameter.getKey(), value.isJsonPrimitive() ? value.getAsString() : value.toString());
+      }
+      parameters.addProperty("OS::stack_id", id);
+      parameters.addProperty("OS::stack_name", name);
+      return parameters;
+   }
+
+   /**
+    * @return the template, if it is JSON, or null if it is YAML, which is not parsed, or if there is none
+    * @throws IllegalArgumentException if it is not a template
+    */
+   private static JsonObject template(JsonElement template) {
+      if (template == null || template.isJsonNull())
+         return null;
+      JsonObject parsed = null;
+      if (template.isJsonObject()) {
+         parsed = template.getAsJsonObject();
+      } else {
+         String text = template.getAsString();
+         try {
+            JsonElement element = new JsonParser().parse(text);
+            if (element.isJsonObject())
+               parsed = element.getAsJsonObject();
+         } catch (JsonParseException e) {
+            // YAML
+         }
+         if (parsed == null) {
+            checkArgument(text.contains("heat_template_version"), "Template format version not found.");
+            return null;
+         }
+      }
+      boolean versioned = false;
+      for (String version : VERSIONS) {
+         versioned |= parsed.has(version);
+      }
+      checkArgument(versioned, "Template format version not found.");
+      JsonObject resources = section(parsed, "resources", "Resources");
+      if (resources != null) {
+         for (Map.Entry<String, JsonElement> resource : resources.entrySet()) {
+            JsonElement declared = resource.getValue();
+            checkArgument(declared.isJsonObject() && (declared.getAsJsonObject().has("type")
+                  || declared.getAsJsonObject().has("Type")), "Resource %s has no type", resource.getKey());
+         }
+      }
+      return parsed;
+   }
+
+   private static String description(JsonObject template) {
+      if (template == null)
+         return "No description";
+      String description = template.has("description") ? string(template, "description")
+            : string(template, "Description");
+      return description == null ? "No description" : description;
+   }
+
+   private static JsonObject section(JsonObject object, String name, String alternative) {
+      JsonElement section = object.has(name) ? object.get(name) : object.get(alternative);
+      return section == null || !section.isJsonObject() ? null : section.getAsJsonObject();
+   }
+
+   private static String physicalId(String stackId, String resource) {
+      return UUID.nameUUIDFromBytes((stackId + "/" + resource).getBytes(Charsets.UTF_8)).toString();
+   }
+
+   private static JsonObject summary(JsonObject stack) {
+      JsonObject summary = new JsonObject();
+      for (String attribute : SUMMARY) {
+         if (stack.has(attribute))
+            summary.add(attribute, stack.get(attribute));
+      }
+      return summary;
+   }
+
+   private static JsonObject body(RecordedRequest request) {
+      return new JsonParser().parse(new String(request.getBody(), Charsets.UTF_8)).getAsJsonObject();
+   }
+
+   private static JsonObject link(String href, String relation) {
+      JsonObject link = new JsonObject();
+      link.addProperty("href", href);
+      link.addProperty("rel", relation);
+      return link;
+   }
+
+   private static int compareValues(String a, String b) {
+      if (a == null)
+         return b == null ? 0 : -1;
+      return b == null ? 1 : a.compareTo(b);
+   }
+
+   private static String format(Date date) {
+      SimpleDateFormat iso8601 = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.ENGLISH);
+      iso8601.setTimeZone(TimeZone.getTimeZone("UTC"));
+      return iso8601.format(date);
+   }
+
+   private static String first(Multimap<String, String> query, String key) {
+      return query.containsKey(key) ? query.get(key).iterator().next() : null;
+   }
+
+   private static String string(JsonObject object, String attribute) {
+      JsonElement value = object.get(attribute);
+      return value == null || value.isJsonNull() ? null : value.getAsString();
+   }
+
+   private static JsonObject copy(JsonObject object) {
+      JsonObject copy = new JsonObject();
+      for (Map.Entry<String, JsonElement> attribute : object.entrySet()) {
+         copy.add(attribute.getKey(), attribute.getValue());
+      }
+      return copy;
+   }
+
+   private static String wrap(String key, JsonElement value) {
+      JsonObject wrapper = new JsonObject();
+      wrapper.add(key, value);
+      return wrapper.toString();
+   }
+
+   private static Multimap<String, String> parseQuery(String query) {
+      Multimap<String, String> parameters = LinkedListMultimap.create();
+      for (String parameter : Splitter.on('&').omitEmptyStrings().split(query)) {
+         int equals = parameter.indexOf('=');
+         if (equals < 0)
+            parameters.put(decode(parameter), "");
+         else
+            parameters.put(decode(parameter.substring(0, equals)), decode(parameter.substring(equals + 1)));
+      }
+      return parameters;
+   }
+
+   private static String decode(String value) {
+      try {
+         return URLDecoder.decode(value, "UTF-8");
+      } catch (UnsupportedEncodingException e) {
+         throw new AssertionError(e);
+      }
+   }
+
+   private static String resource(String name) {
+      try {
+         return Resources.toString(InMemoryHeatDispatcher.class.getResource(name), Charsets.UTF_8);
+      } catch (IOException e) {
+         throw new IllegalStateException("missing test resource " + name, e);
+      }
+   }
+
+   private static MockResponse notFound(String stack) {
+      return error(404, "The Stack (" + stack + ") could not be found.");
+   }
+
+   /**
+    * @return an error as Heat reports them
+    */
+   private static MockResponse error(int code, String message) {
+      JsonObject error = new JsonObject();
+      error.addProperty("message", message);
+      error.addProperty("type", code == 404 ? "EntityNotFound" : code == 409 ? "Conflict" : "StackValidationFailed");
+      JsonObject body = new JsonObject();
+      body.addProperty("code", code);
+      body.addProperty("explanation", message);
+      body.add("error", error);
+      return json(code, body.toString());
+   }
+
+   private static MockResponse json(int code, String body) {
+      return new MockResponse().setResponseCode(code)
+            .addHeader("Content-Type", "application/json; charset=UTF-8")
+            .setBody(body);
+   }
+
+   /**
+    * A stack, as got, and its template. Never modified in place, so that concurrent readers always see a consistent
+    * stack; a transition in progress is settled by replacing the stack once it is over.
+    */
+   private static final class StoredStack {
+      private final JsonObject stack;
+      private final JsonObject template;
+      private final long completesAt;
+      private final boolean fails;
+
+      private StoredStack(JsonObject stack, JsonObject template, long completesAt, boolean fails) {
+         this.stack = stack;
+         this.template = template;
+         this.completesAt = completesAt;
+         this.fails = fails;
+      }
+
+      private String id() {
+         return string(stack, "id");
+      }
+
+      private String name() {
+         return string(stack, "stack_name");
+      }
+
+      private String status() {
+         return string(stack, "stack_status");
+      }
+
+      private boolean isInProgress() {
+         return status().endsWith("_IN_PROGRESS");
+      }
+
+      private boolean isDeleted() {
+         return "DELETE_COMPLETE".equals(status());
+      }
+
+      /**
+       * @return the stack, complete or failed if its transition is over by then
+       */
+      private StoredStack settled(long now) {
+         if (!isInProgress() || now < completesAt)
+            return this;
+         String action = status().substring(0, status().indexOf('_'));
+         JsonObject settled = copy(stack);
+         settled.addProperty("stack_status", action + (fails ? "_FAILED" : "_COMPLETE"));
+         settled.addProperty("stack_status_reason", fails ? "Resource " + action + " failed: simulated failure"
+               : "Stack " + action + " completed successfully");
+         if (!fails && !action.equals("DELETE"))
+            settled.add("outputs", outputs(settled, template));
+         return new StoredStack(settled, template, 0, false);
+      }
+   }
+}
@@ -0,0 +1,234 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.heat.v1.internal;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.testng.Assert.fail;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.jclouds.http.HttpResponseException;
+import org.jclouds.openstack.heat.v1.HeatApi;
+import org.jclouds.openstack.heat.v1.domain.Stack;
+import org.jclouds.openstack.heat.v1.domain.StackResource;
+import org.jclouds.openstack.heat.v1.domain.StackStatus;
+import org.jclouds.openstack.heat.v1.features.StackApi;
+import org.jclouds.openstack.heat.v1.options.CreateStack;
+import org.jclouds.openstack.heat.v1.options.ListStackOptions;
+import org.jclouds.openstack.heat.v1.options.UpdateStack;
+import org.jclouds.openstack.heat.v1.utils.StackStatusWatcher;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.gson.JsonObject;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+
+/**
+ * Tests {@code InMemoryHeatDispatcher} through the api, with thousands of stacks and with stacks transitioning while
+ * they are watched
+ */
+@Test(groups = "unit", testName = "InMemoryHeatDispatcherMockTest")
+public class InMemoryHeatDispatcherMockTest extends BaseHeatApiMockTest {
+
+   private static final String TEMPLATE = "{\"heat_template_version\":\"2013-05-23\",\"description\":\"app\","
+         + "\"parameters\":{\"flavor\":{\"type\":\"string\",\"default\":\"m1.small\"},\"size\":{\"type\":\"number\"}},"
+         + "\"resources\":{\"server\":{\"type\":\"OS::Nova::Server\",\"metadata\":{\"role\":\"web\"}},"
+         + "\"volume\":{\"type\":\"OS::Cinder::Volume\",\"depends_on\":\"server\"}},"
+         + "\"outputs\":{\"flavor\":{\"value\":{\"get_param\":\"flavor\"}},"
+         + "\"server\":{\"value\":{\"get_resource\":\"server\"}}}}";
+
+   public void testListsThousandsOfStacksInPages() throws Exception {
+      MockWebServer server = mockOpenStackServer();
+      InMemoryHeatDispatcher heat = new InMemoryHeatDispatcher(server.getUrl("/"));
+      server.setDispatcher(heat);
+      for (int i = 0; i < 2500; i++) {
+         JsonObject stack = new JsonObject();
+         stack.addProperty("stack_name", String.format("stack-%04d", i));
+         stack.addProperty("stack_status", i % 10 == 0 ? "CREATE_FAILED" : "CREATE_COMPLETE");
+         heat.seed(stack, null);
+      }
+
+      try {
+         StackApi stackApi = api(server.getUrl("/").toString(), "openstack-heat", overrides).getStackApi("RegionOne");
+
+         List<Stack> all = stackApi.listInPages(ListStackOptions.Builder.limit(100)).concat().toList();
+         List<Stack> failed = stackApi.listInPages(ListStackOptions.Builder.limit(100)
+               .status(StackStatus.CREATE_FAILED)).concat().toList();
+         Stack marker = stackApi.list(ListStackOptions.Builder.name("stack-0100")).get(0);
+         List<Stack> byName = stackApi.list(ListStackOptions.Builder.sortKey(ListStackOptions.SortKey.NAME)
+               .sortDirection(ListStackOptions.SortDirection.ASCENDING).limit(3).marker(marker.getId()));
+
+         /*
+          * Check response
+          */
+         Set<String> ids = Sets.newHashSet();
+         for (Stack stack : all) {
+            ids.add(stack.getId());
+         }
+         assertThat(ids).hasSize(2500);
+         assertThat(failed).hasSize(250);
+         assertThat(failed.get(0).getStatus()).isEqualTo(StackStatus.CREATE_FAILED);
+         assertThat(byName).extracting("name").containsExactly("stack-0101", "stack-0102", "stack-0103");
+         assertThat(heat.size()).isEqualTo(2500);
+
+         /*
+          * Check requests: 26 pages of all stacks, 3 of failed ones and two single lists, besides authentication
+          */
+         assertThat(heat.getRequestCount()).isEqualTo(1 + 26 + 3 + 2);
+      } finally {
+         server.shutdown();
+      }
+   }
+
+   public void testStacksTransitionWhileWatched() throws Exception {
+      MockWebServer server = mockOpenStackServer();
+      InMemoryHeatDispatcher heat = new InMemoryHeatDispatcher(server.getUrl("/"), 300, 1000);
+      server.setDispatcher(heat);
+      heat.failNext("app-3", 1);
+      ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+      ListeningExecutorService userExecutor = MoreExecutors.listeningDecorator(Executors.newCachedThreadPool());
+
+      try {
+         HeatApi heatApi = api(server.getUrl("/").toString(), "openstack-heat", overrides);
+         StackApi stackApi = heatApi.getStackApi("RegionOne");
+         StackStatusWatcher watcher = new StackStatusWatcher(heatApi, userExecutor, scheduler, 50, 200,
+               ListStackOptions.Builder.limit(10));
+
+         Map<String, Stack> stacks = Maps.newLinkedHashMap();
+         for (int i = 0; i < 20; i++) {
+            Stack created = stackApi.create(CreateStack.builder().name("app-" + i).template(TEMPLATE)
+                  .parameters(ImmutableMap.<String, Object> of("size", i)).build());
+            stacks.put("app-" + i, stackApi.get("app-" + i, created.getId()));
+         }
+         Map<String, ListenableFuture<Stack>> creates = Maps.newLinkedHashMap();
+         for (Stack stack : stacks.values()) {
+            creates.put(stack.getName(), watcher.watch("RegionOne", stack, StackStatus.CREATE_COMPLETE));
+         }
+
+         /*
+          * Check response: stacks are created in the background, outputs are shown once they are
+          */
+         assertThat(stacks.get("app-0").getStatus()).isEqualTo(StackStatus.CREATE_IN_PROGRESS);
+         assertThat(stacks.get("app-0").getParameters()).containsEntry("flavor", "m1.small").containsEntry("size", "0");
+         for (Map.Entry<String, ListenableFuture<Stack>> create : creates.entrySet()) {
+            if (create.getKey().equals("app-3")) {
+               try {
+                  create.getValue().get(5, TimeUnit.SECONDS);
+                  fail("app-3 failed to create");
+               } catch (ExecutionException expected) {
+                  assertThat(expected.getCause()).isInstanceOf(IllegalStateException.class);
+               }
+            } else {
+               Stack created = create.getValue().get(5, TimeUnit.SECONDS);
+               assertThat(created.getStatus()).isEqualTo(StackStatus.CREATE_COMPLETE);
+            }
+         }
+         Stack app = stacks.get("app-1");
+         assertThat(stackApi.get("app-1", app.getId()).getOutput("flavor")).isEqualTo("m1.small");
+
+         assertThat(stackApi.update("app-1", app.getId(), UpdateStack.builder()
+               .parameters(ImmutableMap.<String, Object> of("size", 2, "flavor", "m1.large")).build())).isTrue();
+         try {
+            stackApi.update("app-1", app.getId(), UpdateStack.builder().build());
+            fail("app-1 is being updated");
+         } catch (IllegalStateException expected) {
+         }
+         Stack updated = watcher.watch("RegionOne", app, StackStatus.UPDATE_COMPLETE).get(5, TimeUnit.SECONDS);
+         assertThat(updated.getOutput("flavor")).isEqualTo("m1.large");
+
+         Map<String, ListenableFuture<Stack>> deletes = Maps.newLinkedHashMap();
+         for (Stack stack : stacks.values()) {
+            assertThat(stackApi.delete(stack.getName(), stack.getId())).isTrue();
+            deletes.put(stack.getName(), watcher.watch("RegionOne", stack, StackStatus.DELETE_COMPLETE));
+         }
+         for (ListenableFuture<Stack> delete : deletes.values()) {
+            assertThat(delete.get(5, TimeUnit.SECONDS).getStatus()).isEqualTo(StackStatus.DELETE_COMPLETE);
+         }
+         assertThat(heat.size()).isEqualTo(0);
+         assertThat(stackApi.list()).isEmpty();
+         assertThat(stackApi.get("app-1", app.getId()).getStatus()).isEqualTo(StackStatus.DELETE_COMPLETE);
+         assertThat(watcher.size("RegionOne")).isEqualTo(0);
+      } finally {
+         userExecutor.shutdownNow();
+         scheduler.shutdownNow();
+         server.shutdown();
+      }
+   }
+
+   public void testServesResourcesTemplatesAndValidation() throws Exception {
+      MockWebServer server = mockOpenStackServer();
+      InMemoryHeatDispatcher heat = new InMemoryHeatDispatcher(server.getUrl("/"), 0, 1000);
+      server.setDispatcher(heat);
+
+      try {
+         HeatApi heatApi = api(server.getUrl("/").toString(), "openstack-heat", overrides);
+         StackApi stackApi = heatApi.getStackApi("RegionOne");
+         Stack stack = stackApi.create(CreateStack.builder().name("app").template(TEMPLATE)
+               .parameters(ImmutableMap.<String, Object> of("size", 1)).build());
+
+         /*
+          * Check response
+          */
+         List<StackResource> resources = stackApi.listStackResources("app", stack.getId());
+         assertThat(resources).hasSize(2);
+         StackResource server0 = stackApi.getStackResource("app", stack.getId(), "server");
+         assertThat(server0.getResourceType()).isEqualTo("OS::Nova::Server");
+         assertThat(server0.getRequiredBy()).containsExactly("volume");
+         assertThat(stackApi.get("app", stack.getId()).getOutput("server"))
+               .isEqualTo(server0.getPhysicalResourceId());
+         assertThat(stackApi.getStackResourceMetadata("app", stack.getId(), "server")).containsEntry("role", "web");
+         assertThat(stackApi.getTemplate("app", stack.getId()).getResources()).containsOnlyKeys("server", "volume");
+         assertThat(heatApi.getTemplateApi("RegionOne").validateTemplate(TEMPLATE).getParameters())
+               .containsOnlyKeys("flavor", "size");
+
+         try {
+            heatApi.getTemplateApi("RegionOne").validateTemplate("{\"resources\":{}}");
+            fail("the template has no version");
+         } catch (HttpResponseException expected) {
+            assertThat(expected.getResponse().getStatusCode()).isEqualTo(400);
+         }
+         try {
+            stackApi.create(CreateStack.builder().name("other").template(TEMPLATE).build());
+            fail("the size parameter is missing");
+         } catch (HttpResponseException expected) {
+            assertThat(expected.getResponse().getStatusCode()).isEqualTo(400);
+         }
+         try {
+            stackApi.create(CreateStack.builder().name("app").template(TEMPLATE)
+                  .parameters(ImmutableMap.<String, Object> of("size", 1)).build());
+            fail("app already exists");
+         } catch (IllegalStateException expected) {
+         }
+         assertThat(stackApi.listStackResources("app", "unknown")).isEmpty();
+         assertThat(ImmutableSet.copyOf(stackApi.list())).hasSize(1);
+      } finally {
+         server.shutdown();
+      }
+   }
+}
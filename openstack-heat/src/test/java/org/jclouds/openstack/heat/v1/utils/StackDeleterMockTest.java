@@ -0,0 +1,338 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.heat.v1.utils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.testng.Assert.fail;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.jclouds.openstack.heat.v1.HeatApi;
+import org.jclouds.openstack.heat.v1.domain.Stack;
+import org.jclouds.openstack.heat.v1.internal.BaseHeatApiMockTest;
+import org.jclouds.openstack.heat.v1.internal.InMemoryHeatDispatcher;
+import org.jclouds.openstack.heat.v1.options.ListStackOptions;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+/**
+ * Tests {@code StackDeleter} against a network stack, app stacks using its output, a frontend stack using the output
+ * of an app and unrelated stacks
+ */
+@Test(groups = "unit", testName = "StackDeleterMockTest")
+public class StackDeleterMockTest extends BaseHeatApiMockTest {
+
+   private static final String NETWORK = "{\"heat_template_version\":\"2013-05-23\","
+         + "\"resources\":{\"net\":{\"type\":\"OS::Neutron::Net\"}},"
+         + "\"outputs\":{\"network\":{\"value\":{\"get_resource\":\"net\"}}}}";
+
+   private static final String APP = "{\"heat_template_version\":\"2013-05-23\","
+         + "\"parameters\":{\"network\":{\"type\":\"string\"}},"
+         + "\"resources\":{\"server\":{\"type\":\"OS::Nova::Server\"}},"
+         + "\"outputs\":{\"url\":{\"value\":{\"get_resource\":\"server\"}}}}";
+
+   private static final String FRONTEND = "{\"heat_template_version\":\"2013-05-23\","
+         + "\"parameters\":{\"backend\":{\"type\":\"string\"}},"
+         + "\"resources\":{\"balancer\":{\"type\":\"OS::Neutron::LoadBalancer\"}}}";
+
+   private static final String FLAGGED_NETWORK = "{\"heat_template_version\":\"2013-05-23\","
+         + "\"parameters\":{\"enabled\":{\"type\":\"string\"}},"
+         + "\"resources\":{\"net\":{\"type\":\"OS::Neutron::Net\"}},"
+         + "\"outputs\":{\"network\":{\"value\":{\"get_resource\":\"net\"}}}}";
+
+   private static final String FLAGGED_APP = "{\"heat_template_version\":\"2013-05-23\","
+         + "\"parameters\":{\"network\":{\"type\":\"string\"}},"
+         + "\"resources\":{\"server\":{\"type\":\"OS::Nova::Server\"}},"
+         + "\"outputs\":{\"enabled\":{\"value\":\"true\"},\"port\":{\"value\":\"8080\"}}}";
+
+   public void testDeletesConsumersFirstAndRetriesFailedDeletes() throws Exception {
+      MockWebServer server = mockOpenStackServer();
+      InMemoryHeatDispatcher heat = new InMemoryHeatDispatcher(server.getUrl("/"), 100, 1000);
+      Map<String, String> ids = seed(heat);
+      OrderCheckingDispatcher dispatcher = new OrderCheckingDispatcher(heat, seededConsumers(ids));
+      server.setDispatcher(dispatcher);
+      heat.failNext("app-1", 1);
+      ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+      ListeningExecutorService userExecutor = MoreExecutors.listeningDecorator(Executors.newCachedThreadPool());
+
+      try {
+         HeatApi heatApi = api(server.getUrl("/").toString(), "openstack-heat", overrides);
+         List<Stack> listed = heatApi.getStackApi("RegionOne").list();
+         StackDeleter deleter = new StackDeleter(heatApi, userExecutor, scheduler, new StackStatusWatcher(heatApi,
+               userExecutor, scheduler, 50, 200, ListStackOptions.Builder.limit(100)));
+
+         Map<String, Stack> deleted = deleter.delete("RegionOne", listed, 4, 2, 100, TimeUnit.MILLISECONDS)
+               .get(10, TimeUnit.SECONDS);
+
+         /*
+          * Check response
+          */
+         assertThat(listed).hasSize(10);
+         assertThat(deleted.keySet()).containsOnlyElementsOf(ids.values()).hasSize(10);
+         assertThat(heat.size()).isEqualTo(0);
+
+         /*
+          * Check requests: every stack is deleted after the stacks using its outputs, app-1 twice
+          */
+         assertThat(dispatcher.violations).isEmpty();
+         assertThat(dispatcher.deletes.get("app-1")).hasSize(2);
+         assertThat(dispatcher.deletes.get("network")).hasSize(1);
+         assertThat(dispatcher.deletes.size()).isEqualTo(11);
+      } finally {
+         userExecutor.shutdownNow();
+         scheduler.shutdownNow();
+         server.shutdown();
+      }
+   }
+
+   public void testSkipsProducersOfStacksThatFailToDelete() throws Exception {
+      MockWebServer server = mockOpenStackServer();
+      InMemoryHeatDispatcher heat = new InMemoryHeatDispatcher(server.getUrl("/"), 100, 1000);
+      Map<String, String> ids = seed(heat);
+      OrderCheckingDispatcher dispatcher = new OrderCheckingDispatcher(heat, seededConsumers(ids));
+      server.setDispatcher(dispatcher);
+      heat.failNext("app-0", 2);
+      ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+      ListeningExecutorService userExecutor = MoreExecutors.listeningDecorator(Executors.newCachedThreadPool());
+
+      try {
+         HeatApi heatApi = api(server.getUrl("/").toString(), "openstack-heat", overrides);
+         List<Stack> listed = heatApi.getStackApi("RegionOne").list();
+         StackDeleter deleter = new StackDeleter(heatApi, userExecutor, scheduler, new StackStatusWatcher(heatApi,
+               userExecutor, scheduler, 50, 200, ListStackOptions.Builder.limit(100)));
+
+         try {
+            deleter.delete("RegionOne", listed, 10, 1, 50, TimeUnit.MILLISECONDS).get(10, TimeUnit.SECONDS);
+            fail("app-0 failed to delete");
+         } catch (ExecutionException expected) {
+            StackDeletionException failure = (StackDeletionException) expected.getCause();
+
+            /*
+             * Check response: the network is kept for app-0, every other stack is deleted
+             */
+            assertThat(failure.getFailed().keySet()).containsOnly(ids.get("app-0"));
+            assertThat(failure.getFailed().get(ids.get("app-0"))).isInstanceOf(IllegalStateException.class);
+            assertThat(failure.getSkipped()).containsOnly(ids.get("network"));
+            assertThat(failure.getDeleted()).hasSize(8).doesNotContainKey(ids.get("network"));
+            assertThat(failure.getDeleted()).containsKey(ids.get("frontend"));
+            assertThat(heat.size()).isEqualTo(2);
+         }
+
+         /*
+          * Check requests
+          */
+         assertThat(dispatcher.violations).isEmpty();
+         assertThat(dispatcher.deletes.get("app-0")).hasSize(2);
+         assertThat(dispatcher.deletes.containsKey("network")).isFalse();
+      } finally {
+         userExecutor.shutdownNow();
+         scheduler.shutdownNow();
+         server.shutdown();
+      }
+   }
+
+   public void testCommonOutputValuesDoNotMakeFalseCycles() throws Exception {
+      MockWebServer server = mockOpenStackServer();
+      InMemoryHeatDispatcher heat = new InMemoryHeatDispatcher(server.getUrl("/"), 100, 1000);
+      // the app really uses the network, while the network only shares a flag with an output of the app
+      JsonObject network = heat.seed(stack("network", parameter("enabled", "true")), FLAGGED_NETWORK);
+      String appId = heat.seed(stack("app", parameter("network", output(network, "network"))), FLAGGED_APP).get("id")
+            .getAsString();
+      OrderCheckingDispatcher dispatcher = new OrderCheckingDispatcher(heat,
+            ImmutableMap.<String, List<String>> of("network", ImmutableList.of(appId)));
+      server.setDispatcher(dispatcher);
+      ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+      ListeningExecutorService userExecutor = MoreExecutors.listeningDecorator(Executors.newCachedThreadPool());
+
+      try {
+         HeatApi heatApi = api(server.getUrl("/").toString(), "openstack-heat", overrides);
+         List<Stack> listed = heatApi.getStackApi("RegionOne").list();
+         StackDeleter deleter = new StackDeleter(heatApi, userExecutor, scheduler, new StackStatusWatcher(heatApi,
+               userExecutor, scheduler, 50, 200, ListStackOptions.Builder.limit(100)));
+
+         Map<String, Stack> deleted = deleter.delete("RegionOne", listed, 4, 0, 0, TimeUnit.MILLISECONDS)
+               .get(10, TimeUnit.SECONDS);
+
+         /*
+          * Check response
+          */
+         assertThat(deleted).hasSize(2);
+         assertThat(heat.size()).isEqualTo(0);
+
+         /*
+          * Check requests: the network is deleted after the app, rather than along with it
+          */
+         assertThat(dispatcher.violations).isEmpty();
+      } finally {
+         userExecutor.shutdownNow();
+         scheduler.shutdownNow();
+         server.shutdown();
+      }
+   }
+
+   public void testDeletesInTheOrderOfGivenDependencies() throws Exception {
+      MockWebServer server = mockOpenStackServer();
+      InMemoryHeatDispatcher heat = new InMemoryHeatDispatcher(server.getUrl("/"), 100, 1000);
+      heat.seed(stack("base", null), null);
+      String userId = heat.seed(stack("user", null), null).get("id").getAsString();
+      OrderCheckingDispatcher dispatcher = new OrderCheckingDispatcher(heat,
+            ImmutableMap.<String, List<String>> of("base", ImmutableList.of(userId)));
+      server.setDispatcher(dispatcher);
+      ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+      ListeningExecutorService userExecutor = MoreExecutors.listeningDecorator(Executors.newCachedThreadPool());
+
+      try {
+         HeatApi heatApi = api(server.getUrl("/").toString(), "openstack-heat", overrides);
+         List<Stack> listed = heatApi.getStackApi("RegionOne").list();
+         StackDeleter deleter = new StackDeleter(heatApi, userExecutor, scheduler, new StackStatusWatcher(heatApi,
+               userExecutor, scheduler, 50, 200, ListStackOptions.Builder.limit(100)));
+
+         // the stacks have no outputs, so only the given dependencies order them
+         Map<String, Stack> deleted = deleter.delete("RegionOne", listed, ImmutableMultimap.of("base", "user",
+               "missing", "base"), 4, 0, 0, TimeUnit.MILLISECONDS).get(10, TimeUnit.SECONDS);
+
+         /*
+          * Check response
+          */
+         assertThat(deleted).hasSize(2);
+         assertThat(heat.size()).isEqualTo(0);
+
+         /*
+          * Check requests
+          */
+         assertThat(dispatcher.violations).isEmpty();
+         assertThat(dispatcher.deletes.keySet()).containsOnly("base", "user");
+      } finally {
+         userExecutor.shutdownNow();
+         scheduler.shutdownNow();
+         server.shutdown();
+      }
+   }
+
+   /**
+    * Seeds the network, four apps using its output, a frontend using the output of app-0 and four unrelated stacks.
+    *
+    * @return the ids of the stacks, by name
+    */
+   private static Map<String, String> seed(InMemoryHeatDispatcher heat) {
+      Map<String, String> ids = Maps.newLinkedHashMap();
+      JsonObject network = heat.seed(stack("network", null), NETWORK);
+      ids.put("network", network.get("id").getAsString());
+      String app0Url = null;
+      for (int i = 0; i < 4; i++) {
+         JsonObject app = heat.seed(stack("app-" + i, parameter("network", output(network, "network"))), APP);
+         ids.put("app-" + i, app.get("id").getAsString());
+         if (i == 0)
+            app0Url = output(app, "url");
+      }
+      ids.put("frontend", heat.seed(stack("frontend", parameter("backend", app0Url)), FRONTEND).get("id")
+            .getAsString());
+      for (int i = 0; i < 4; i++) {
+         ids.put("misc-" + i, heat.seed(stack("misc-" + i, null), null).get("id").getAsString());
+      }
+      return ids;
+   }
+
+   /**
+    * @return the ids of the stacks using the outputs of the seeded stacks, by the name of the latter
+    */
+   private static Map<String, List<String>> seededConsumers(Map<String, String> ids) {
+      return ImmutableMap.<String, List<String>> of(
+            "network", ImmutableList.of(ids.get("app-0"), ids.get("app-1"), ids.get("app-2"), ids.get("app-3")),
+            "app-0", ImmutableList.of(ids.get("frontend")));
+   }
+
+   private static JsonObject stack(String name, JsonObject parameters) {
+      JsonObject stack = new JsonObject();
+      stack.addProperty("stack_name", name);
+      stack.addProperty("stack_status", "CREATE_COMPLETE");
+      if (parameters != null)
+         stack.add("parameters", parameters);
+      return stack;
+   }
+
+   private static JsonObject parameter(String key, String value) {
+      JsonObject parameters = new JsonObject();
+      parameters.addProperty(key, value);
+      return parameters;
+   }
+
+   private static String output(JsonObject stack, String key) {
+      for (JsonElement output : stack.getAsJsonArray("outputs")) {
+         if (output.getAsJsonObject().get("output_key").getAsString().equals(key))
+            return output.getAsJsonObject().get("output_value").getAsString();
+      }
+      throw new AssertionError("no output " + key);
+   }
+
+   /**
+    * Records the deletes, and whether the stacks using the outputs of a stack were deleted when it was.
+    */
+   private static final class OrderCheckingDispatcher extends Dispatcher {
+      private final InMemoryHeatDispatcher heat;
+      private final Map<String, List<String>> consumers;
+      private final ListMultimap<String, String> deletes = ArrayListMultimap.create();
+      private final List<String> violations = Collections.synchronizedList(Lists.<String> newArrayList());
+
+      /**
+       * @param consumers the ids of the stacks using the outputs of a stack, by the name of the latter
+       */
+      private OrderCheckingDispatcher(InMemoryHeatDispatcher heat, Map<String, List<String>> consumers) {
+         this.heat = heat;
+         this.consumers = consumers;
+      }
+
+      @Override
+      public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+         if ("DELETE".equals(request.getMethod())) {
+            String[] path = request.getPath().split("/");
+            String name = path[path.length - 2];
+            synchronized (deletes) {
+               deletes.put(name, path[path.length - 1]);
+            }
+            if (consumers.containsKey(name)) {
+               for (String consumer : consumers.get(name)) {
+                  if (!"DELETE_COMPLETE".equals(heat.get(consumer).get("stack_status").getAsString()))
+                     violations.add(name + " deleted before " + consumer);
+               }
+            }
+         }
+         return heat.dispatch(request);
+      }
+   }
+}
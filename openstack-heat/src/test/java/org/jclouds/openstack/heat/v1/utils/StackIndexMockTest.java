@@ -0,0 +1,151 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.heat.v1.utils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jclouds.openstack.heat.v1.HeatApi;
+import org.jclouds.openstack.heat.v1.domain.StackStatus;
+import org.jclouds.openstack.heat.v1.features.StackApi;
+import org.jclouds.openstack.heat.v1.internal.BaseHeatApiMockTest;
+import org.jclouds.openstack.heat.v1.internal.InMemoryHeatDispatcher;
+import org.jclouds.openstack.heat.v1.options.CreateStack;
+import org.jclouds.openstack.heat.v1.options.UpdateStack;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Supplier;
+import com.google.common.collect.Lists;
+import com.google.gson.JsonObject;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+
+/**
+ * Tests {@code StackIndex} against 500 stacks, a few of which change between refreshes
+ */
+@Test(groups = "unit", testName = "StackIndexMockTest")
+public class StackIndexMockTest extends BaseHeatApiMockTest {
+
+   public void testRefreshesListOnlyChangedStacks() throws Exception {
+      MockWebServer server = mockOpenStackServer();
+      // time only moves when told to, from the start of a second, as Heat reports times to the second
+      final AtomicLong now = new AtomicLong(System.currentTimeMillis() / 1000 * 1000);
+      InMemoryHeatDispatcher heat = new InMemoryHeatDispatcher(server.getUrl("/"), 1500, 1000, new Supplier<Long>() {
+         @Override
+         public Long get() {
+            return now.get();
+         }
+      });
+      server.setDispatcher(heat);
+      SimpleDateFormat iso8601 = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.ENGLISH);
+      iso8601.setTimeZone(TimeZone.getTimeZone("UTC"));
+      long start = iso8601.parse("2015-01-01T00:00:00Z").getTime();
+      List<JsonObject> seeded = Lists.newArrayList();
+      for (int i = 0; i < 500; i++) {
+         JsonObject stack = new JsonObject();
+         stack.addProperty("stack_name", String.format("stack-%03d", i));
+         stack.addProperty("owner", i % 2 == 0 ? "alice" : "bob");
+         stack.addProperty("project", i % 5 == 0 ? "ops" : "dev");
+         stack.addProperty("stack_status", i % 25 == 0 ? "CREATE_FAILED" : i % 50 == 1 ? "UPDATE_FAILED"
+               : "CREATE_COMPLETE");
+         String time = iso8601.format(new Date(start + TimeUnit.MINUTES.toMillis(i)));
+         stack.addProperty("creation_time", time);
+         stack.addProperty("updated_time", time);
+         seeded.add(heat.seed(stack, null));
+      }
+      String deleted = seeded.get(0).get("id").getAsString();
+      String updated = seeded.get(1).get("id").getAsString();
+      String gone = seeded.get(2).get("id").getAsString();
+      String later = seeded.get(3).get("id").getAsString();
+
+      try {
+         HeatApi heatApi = api(server.getUrl("/").toString(), "openstack-heat", overrides);
+         StackApi stackApi = heatApi.getStackApi("RegionOne");
+         StackIndex index = new StackIndex(heatApi);
+
+         StackInventory first = index.refresh("RegionOne");
+         long firstRequests = heat.getRequestCount();
+
+         stackApi.delete("stack-000", deleted);
+         stackApi.update("stack-001", updated, UpdateStack.builder().build());
+         // the update starts a second before the newest changes seen by the next refresh, and completes after it
+         now.addAndGet(1100);
+         stackApi.update("stack-003", later, UpdateStack.builder().build());
+         String fresh = stackApi.create(CreateStack.builder().name("fresh")
+               .template("{\"heat_template_version\":\"2013-05-23\"}").build()).getId();
+         long requests = heat.getRequestCount();
+         StackInventory second = index.refresh("RegionOne");
+         long secondRequests = heat.getRequestCount() - requests;
+
+         now.addAndGet(1600);
+         requests = heat.getRequestCount();
+         StackInventory third = index.refresh("RegionOne");
+         long thirdRequests = heat.getRequestCount() - requests;
+
+         stackApi.delete("stack-002", gone);
+         now.addAndGet(1600);
+         StackInventory fourth = index.refresh("RegionOne");
+         StackInventory rebuilt = index.rebuild("RegionOne");
+
+         /*
+          * Check response
+          */
+         assertThat(first.size()).isEqualTo(500);
+         assertThat(first.getByStatus(StackStatus.CREATE_FAILED)).hasSize(20);
+         assertThat(first.getFailed()).hasSize(30);
+         assertThat(first.getByOwner("alice")).hasSize(250);
+         assertThat(first.getByProject("ops")).hasSize(100);
+         assertThat(first.getCreatedBefore(new Date(start + TimeUnit.MINUTES.toMillis(100)))).hasSize(100);
+         assertThat(first.getOlderThan(1, TimeUnit.DAYS)).hasSize(500);
+         assertThat(first.getStacks().get(0).getName()).isEqualTo("stack-000");
+
+         assertThat(second.size()).isEqualTo(501);
+         assertThat(second.get(deleted).getStatus()).isEqualTo(StackStatus.DELETE_IN_PROGRESS);
+         assertThat(second.get(updated).getStatus()).isEqualTo(StackStatus.UPDATE_IN_PROGRESS);
+         assertThat(second.get(fresh).getStatus()).isEqualTo(StackStatus.CREATE_IN_PROGRESS);
+         assertThat(first.get(updated).getStatus()).isEqualTo(StackStatus.UPDATE_FAILED);
+
+         assertThat(third.size()).isEqualTo(500);
+         assertThat(third.get(deleted)).isNull();
+         assertThat(third.get(updated).getStatus()).isEqualTo(StackStatus.UPDATE_COMPLETE);
+         assertThat(third.get(later).getStatus()).isEqualTo(StackStatus.UPDATE_COMPLETE);
+         assertThat(third.get(fresh).getStatus()).isEqualTo(StackStatus.CREATE_COMPLETE);
+         assertThat(third.getOlderThan(1, TimeUnit.DAYS)).hasSize(499);
+
+         assertThat(fourth.get(gone)).isNotNull();
+         assertThat(rebuilt.get(gone)).isNull();
+         assertThat(rebuilt.size()).isEqualTo(499);
+         assertThat(index.get("RegionOne")).isSameAs(rebuilt);
+
+         /*
+          * Check requests: the first refresh lists every stack, the next ones a page of recently updated stacks, a
+          * page of recently created stacks and the stacks in progress that were not listed
+          */
+         assertThat(firstRequests).isEqualTo(1 + 6);
+         assertThat(secondRequests).isEqualTo(2);
+         assertThat(thirdRequests).isEqualTo(2 + 2);
+      } finally {
+         server.shutdown();
+      }
+   }
+}
@@ -0,0 +1,221 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.heat.v1.utils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.testng.Assert.fail;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.jclouds.openstack.heat.v1.HeatApi;
+import org.jclouds.openstack.heat.v1.domain.Stack;
+import org.jclouds.openstack.heat.v1.internal.BaseHeatApiMockTest;
+import org.jclouds.openstack.heat.v1.options.CreateStack;
+import org.jclouds.openstack.heat.v1.options.ListStackOptions;
+import org.jclouds.openstack.heat.v1.utils.StackOrchestrator.OnFailure;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+/**
+ * Tests {@code StackOrchestrator} against stacks that complete or fail the second time they are read
+ */
+@Test(groups = "unit", testName = "StackOrchestratorMockTest", singleThreaded = true)
+public class StackOrchestratorMockTest extends BaseHeatApiMockTest {
+
+   private final StackDeployment deployment = StackDeployment.builder()
+         .stack(spec("network")).stack(spec("database")).stack(spec("application"))
+         .bind("network", "network_id", "application", "network")
+         .dependsOn("application", "database")
+         .build();
+
+   public void testDeploymentOrder() {
+      assertThat(deployment.getOrder()).containsExactly("network", "database", "application");
+      assertThat(deployment.getDependentClosure("database")).containsExactly("database", "application");
+      try {
+         StackDeployment.builder().stack(spec("a")).stack(spec("b")).dependsOn("a", "b").dependsOn("b", "a").build();
+         fail("a cycle is not a deployment");
+      } catch (IllegalArgumentException expected) {
+      }
+   }
+
+   public void testCreatesDependentsWithOutputsOfTheirDependencies() throws Exception {
+      HeatStacks heat = new HeatStacks(ImmutableSet.<String> of());
+      MockWebServer server = mockOpenStackServer();
+      heat.setUp(server);
+      ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+      ListeningExecutorService userExecutor = MoreExecutors.listeningDecorator(Executors.newCachedThreadPool());
+
+      try {
+         HeatApi heatApi = api(server.getUrl("/").toString(), "openstack-heat", overrides);
+         StackOrchestrator orchestrator = new StackOrchestrator(heatApi, userExecutor,
+               new StackStatusWatcher(heatApi, userExecutor, scheduler, 20, 50, ListStackOptions.Builder.limit(100)));
+
+         Map<String, Stack> created = orchestrator.deploy("RegionOne", deployment, 2, OnFailure.ROLLBACK)
+               .get(10, TimeUnit.SECONDS);
+
+         /*
+          * Check response
+          */
+         assertThat(created.keySet()).containsOnly("network", "database", "application");
+         assertThat(created.get("application").getOutput("network_id")).isEqualTo("application-network");
+
+         /*
+          * Check requests: the application is created last, with the output of the network
+          */
+         assertThat(heat.created.get(2)).isEqualTo("application");
+         assertThat(heat.parameters.get("application").get("network").getAsString()).isEqualTo("network-network");
+         assertThat(heat.parameters.get("application").get("size").getAsString()).isEqualTo("small");
+         assertThat(heat.deleted).isEmpty();
+      } finally {
+         userExecutor.shutdownNow();
+         scheduler.shutdownNow();
+         server.shutdown();
+      }
+   }
+
+   public void testRollsBackTheSubgraphAffectedByAFailure() throws Exception {
+      StackDeployment monitored = StackDeployment.builder()
+            .stack(spec("network")).stack(spec("database")).stack(spec("application")).stack(spec("monitoring"))
+            .bind("network", "network_id", "application", "network")
+            .dependsOn("application", "database")
+            .dependsOn("monitoring", "network")
+            .build();
+      HeatStacks heat = new HeatStacks(ImmutableSet.of("database"));
+      MockWebServer server = mockOpenStackServer();
+      heat.setUp(server);
+      ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+      ListeningExecutorService userExecutor = MoreExecutors.listeningDecorator(Executors.newCachedThreadPool());
+
+      try {
+         HeatApi heatApi = api(server.getUrl("/").toString(), "openstack-heat", overrides);
+         StackOrchestrator orchestrator = new StackOrchestrator(heatApi, userExecutor,
+               new StackStatusWatcher(heatApi, userExecutor, scheduler, 20, 50, ListStackOptions.Builder.limit(100)));
+
+         try {
+            orchestrator.deploy("RegionOne", monitored, 1, OnFailure.ROLLBACK).get(10, TimeUnit.SECONDS);
+            fail("the database failed to create");
+         } catch (ExecutionException expected) {
+            StackDeploymentException failure = (StackDeploymentException) expected.getCause();
+
+            /*
+             * Check response
+             */
+            assertThat(failure.getFailed().keySet()).containsExactly("database");
+            assertThat(failure.getCancelled()).containsExactly("application");
+            assertThat(failure.getDeleted()).containsOnly("database");
+            assertThat(failure.getCreated().keySet()).containsOnly("network", "monitoring");
+         }
+
+         /*
+          * Check requests: the application is never created, the stacks independent of the database are kept
+          */
+         assertThat(heat.created).containsOnly("network", "database", "monitoring");
+         assertThat(heat.deleted).containsOnly("database");
+      } finally {
+         userExecutor.shutdownNow();
+         scheduler.shutdownNow();
+         server.shutdown();
+      }
+   }
+
+   private static CreateStack spec(String name) {
+      return CreateStack.builder().name(name).template("{}")
+            .parameters(ImmutableMap.<String, Object> of("size", "small")).build();
+   }
+
+   /**
+    * Stacks in progress the first time they are read, and complete or failed afterwards.
+    */
+   private final class HeatStacks extends Dispatcher {
+      private final Set<String> failing;
+      private final Map<String, Integer> reads = Maps.newHashMap();
+      private final Map<String, JsonObject> parameters = Maps.newHashMap();
+      private final List<String> created = Lists.newArrayList();
+      private final List<String> deleted = Lists.newArrayList();
+      private String access;
+
+      private HeatStacks(Set<String> failing) {
+         this.failing = failing;
+      }
+
+      private void setUp(MockWebServer server) {
+         access = stringFromResource("/access.json").replace("\"URL",
+               "\"" + server.getUrl("/").toString().replaceAll("/$", ""));
+         server.setDispatcher(this);
+      }
+
+      @Override
+      public synchronized MockResponse dispatch(RecordedRequest request) {
+         String path = request.getPath();
+         if (path.equals("/tokens"))
+            return new MockResponse().setBody(access);
+         if (request.getMethod().equals("POST")) {
+            JsonObject body = new JsonParser().parse(request.getUtf8Body()).getAsJsonObject();
+            String name = body.get("stack_name").getAsString();
+            created.add(name);
+            parameters.put(name, body.getAsJsonObject("parameters"));
+            reads.put(name, 0);
+            return new MockResponse().setResponseCode(201).setBody("{\"stack\":{\"id\":\"" + name
+                  + "-id\",\"links\":[]}}");
+         }
+         if (path.startsWith(BASE_URI + "/stacks?")) {
+            StringBuilder body = new StringBuilder();
+            for (String name : reads.keySet()) {
+               body.append(body.length() == 0 ? "" : ",").append(stack(name, false));
+            }
+            return new MockResponse().setBody("{\"stacks\":[" + body + "]}");
+         }
+         String name = path.substring(path.indexOf("/stacks/") + "/stacks/".length(), path.lastIndexOf('/'));
+         if (!reads.containsKey(name))
+            return new MockResponse().setResponseCode(404);
+         if (request.getMethod().equals("DELETE")) {
+            reads.remove(name);
+            deleted.add(name);
+            return new MockResponse().setResponseCode(204);
+         }
+         return new MockResponse().setBody("{\"stack\":" + stack(name, true) + "}");
+      }
+
+      private String stack(String name, boolean outputs) {
+         int read = reads.get(name) + 1;
+         reads.put(name, read);
+         String status = read == 1 ? "CREATE_IN_PROGRESS" : failing.contains(name) ? "CREATE_FAILED"
+               : "CREATE_COMPLETE";
+         return "{\"id\":\"" + name + "-id\",\"stack_name\":\"" + name + "\",\"stack_status\":\"" + status
+               + "\",\"links\":[]" + (outputs ? ",\"outputs\":[{\"output_key\":\"network_id\",\"output_value\":\""
+               + name + "-network\",\"description\":\"the network\"}]" : "") + "}";
+      }
+   }
+}
@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.heat.v1.utils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jclouds.openstack.heat.v1.HeatApi;
+import org.jclouds.openstack.heat.v1.domain.StackResourceStatus;
+import org.jclouds.openstack.heat.v1.internal.BaseHeatApiMockTest;
+import org.testng.annotations.Test;
+
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+/**
+ * Tests {@code StackResourceCrawler} against a stack with a resource group, nested in it, which is listed too
+ */
+@Test(groups = "unit", testName = "StackResourceCrawlerMockTest")
+public class StackResourceCrawlerMockTest extends BaseHeatApiMockTest {
+
+   public void testCrawlsNestedStacksOnce() throws Exception {
+      NestedStacks heat = new NestedStacks();
+      MockWebServer server = mockOpenStackServer();
+      heat.setUp(server);
+      ListeningExecutorService userExecutor = MoreExecutors.listeningDecorator(Executors.newCachedThreadPool());
+
+      try {
+         HeatApi heatApi = api(server.getUrl("/").toString(), "openstack-heat", overrides);
+         StackResourceCrawler crawler = new StackResourceCrawler(heatApi, userExecutor);
+
+         StackResourceInventory inventory = crawler.crawl("RegionOne", 2, true).get(10, TimeUnit.SECONDS);
+
+         /*
+          * Check response
+          */
+         assertThat(inventory.getStacks()).containsOnlyKeys("app-id", "group-id");
+         assertThat(inventory.getEntries()).hasSize(4);
+         assertThat(inventory.getByPhysicalId("server-2").getStackName()).isEqualTo("app-group");
+         assertThat(inventory.getByPhysicalId("server-2").getParentStackId()).isEqualTo("app-id");
+         assertThat(inventory.getByPhysicalId("server-2").getMetadata()).containsEntry("index", "1");
+         assertThat(inventory.getByType("OS::Nova::Server")).hasSize(3);
+         assertThat(inventory.getByStatus(StackResourceStatus.CREATE_FAILED)).hasSize(2);
+         assertThat(inventory.getByStack("group-id")).hasSize(2);
+         assertThat(inventory.getFailures()).isEmpty();
+
+         /*
+          * Check requests: each stack's resources are read once, and no more requests than allowed at a time
+          */
+         assertThat(heat.resourceLists.get()).isEqualTo(2);
+         assertThat(heat.maxConcurrent.get()).isLessThanOrEqualTo(2);
+      } finally {
+         userExecutor.shutdownNow();
+         server.shutdown();
+      }
+   }
+
+   /**
+    * Stack {@code app} with a server and a resource group, whose stack {@code app-group} has two servers.
+    */
+   private final class NestedStacks extends Dispatcher {
+      private final AtomicInteger resourceLists = new AtomicInteger();
+      private final AtomicInteger concurrent = new AtomicInteger();
+      private final AtomicInteger maxConcurrent = new AtomicInteger();
+      private String access;
+      private String url;
+
+      private void setUp(MockWebServer server) {
+         url = server.getUrl("/").toString().replaceAll("/$", "");
+         access = stringFromResource("/access.json").replace("\"URL", "\"" + url);
+         server.setDispatcher(this);
+      }
+
+      @Override
+      public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+         String path = request.getPath();
+         if (path.equals("/tokens"))
+            return new MockResponse().setBody(access);
+         if (path.startsWith(BASE_URI + "/stacks?"))
+            return new MockResponse().setBody("{\"stacks\":[" + stack("app", "app-id") + ","
+                  + stack("app-group", "group-id") + "]}");
+         int now = concurrent.incrementAndGet();
+         try {
+            synchronized (maxConcurrent) {
+               maxConcurrent.set(Math.max(maxConcurrent.get(), now));
+            }
+            Thread.sleep(50);
+            if (path.endsWith("/metadata"))
+               return new MockResponse().setBody("{\"metadata\":{\"index\":\""
+                     + (path.contains("/resources/1/") ? "1" : "0") + "\"}}");
+            resourceLists.incrementAndGet();
+            if (path.contains("/app-id/"))
+               return new MockResponse().setBody("{\"resources\":["
+                     + resource("server", "server-0", "OS::Nova::Server", "CREATE_COMPLETE", null) + ","
+                     + resource("group", "group-id", "OS::Heat::ResourceGroup", "CREATE_FAILED",
+                           url + BASE_URI + "/stacks/app-group/group-id") + "]}");
+            return new MockResponse().setBody("{\"resources\":["
+                  + resource("0", "server-1", "OS::Nova::Server", "CREATE_COMPLETE", null) + ","
+                  + resource("1", "server-2", "OS::Nova::Server", "CREATE_FAILED", null) + "]}");
+         } finally {
+            concurrent.decrementAndGet();
+         }
+      }
+
+      private String stack(String name, String id) {
+         return "{\"id\":\"" + id + "\",\"stack_name\":\"" + name + "\",\"stack_status\":\"CREATE_COMPLETE\","
+               + "\"links\":[]}";
+      }
+
+      private String resource(String name, String physicalId, String type, String status, String nested) {
+         return "{\"resource_name\":\"" + name + "\",\"logical_resource_id\":\"" + name + "\","
+               + "\"physical_resource_id\":\"" + physicalId + "\",\"resource_type\":\"" + type + "\","
+               + "\"resource_status\":\"" + status + "\",\"resource_status_reason\":\"state changed\","
+               + "\"updated_time\":\"2015-02-18T17:36:45Z\",\"required_by\":[],\"links\":["
+               + (nested != null ? "{\"href\":\"" + nested + "\",\"rel\":\"nested\"}" : "") + "]}";
+      }
+   }
+}
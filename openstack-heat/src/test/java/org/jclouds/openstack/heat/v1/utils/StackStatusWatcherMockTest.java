@@ -0,0 +1,158 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.heat.v1.utils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.testng.Assert.fail;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jclouds.openstack.heat.v1.HeatApi;
+import org.jclouds.openstack.heat.v1.domain.Stack;
+import org.jclouds.openstack.heat.v1.domain.StackStatus;
+import org.jclouds.openstack.heat.v1.internal.BaseHeatApiMockTest;
+import org.jclouds.openstack.heat.v1.options.ListStackOptions;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+/**
+ * Tests {@code StackStatusWatcher} against stacks whose status moves on every time they are read
+ */
+@Test(groups = "unit", testName = "StackStatusWatcherMockTest")
+public class StackStatusWatcherMockTest extends BaseHeatApiMockTest {
+
+   public void testSweepsResolveAndFailWatchedStacks() throws Exception {
+      MockWebServer server = mockOpenStackServer();
+      final String access = stringFromResource("/access.json").replace("\"URL", "\"" + server.getUrl("/").toString()
+            .replaceAll("/$", ""));
+      final Map<String, Iterator<StackStatus>> stacks = Maps.newLinkedHashMap();
+      stacks.put("alpha", ImmutableList.of(StackStatus.CREATE_IN_PROGRESS, StackStatus.CREATE_IN_PROGRESS,
+            StackStatus.CREATE_COMPLETE).iterator());
+      stacks.put("beta", ImmutableList.of(StackStatus.CREATE_COMPLETE).iterator());
+      stacks.put("gamma", ImmutableList.of(StackStatus.CREATE_IN_PROGRESS, StackStatus.CREATE_FAILED).iterator());
+      final Map<String, StackStatus> current = Maps.newHashMap();
+      final AtomicInteger lists = new AtomicInteger();
+      final AtomicInteger gets = new AtomicInteger();
+      server.setDispatcher(new Dispatcher() {
+         @Override
+         public synchronized MockResponse dispatch(RecordedRequest request) {
+            String path = request.getPath();
+            if (path.equals("/tokens"))
+               return new MockResponse().setBody(access);
+            if (path.startsWith(BASE_URI + "/stacks?")) {
+               lists.incrementAndGet();
+               StringBuilder body = new StringBuilder();
+               for (String name : stacks.keySet()) {
+                  body.append(body.length() == 0 ? "" : ",").append(stack(name, advance(name)));
+               }
+               return new MockResponse().setBody("{\"stacks\":[" + body + "]}");
+            }
+            gets.incrementAndGet();
+            String name = path.substring(path.lastIndexOf("/stacks/") + "/stacks/".length(), path.lastIndexOf('/'));
+            if (!stacks.containsKey(name))
+               return new MockResponse().setResponseCode(404);
+            return new MockResponse().setBody("{\"stack\":" + stack(name, advance(name)) + "}");
+         }
+
+         private StackStatus advance(String name) {
+            Iterator<StackStatus> statuses = stacks.get(name);
+            if (statuses.hasNext())
+               current.put(name, statuses.next());
+            return current.get(name);
+         }
+      });
+      ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+      ListeningExecutorService userExecutor = MoreExecutors.listeningDecorator(Executors.newCachedThreadPool());
+
+      try {
+         HeatApi heatApi = api(server.getUrl("/").toString(), "openstack-heat", overrides);
+         StackStatusWatcher watcher = new StackStatusWatcher(heatApi, userExecutor, scheduler, 100, 200,
+               ListStackOptions.Builder.limit(10));
+         final AtomicInteger transitions = new AtomicInteger();
+         final Set<Thread> listenerThreads = Sets.newConcurrentHashSet();
+         watcher.addListener(new StackStatusWatcher.Listener() {
+            @Override
+            public void onTransition(String region, Stack stack, StackStatus previous) {
+               transitions.incrementAndGet();
+               listenerThreads.add(Thread.currentThread());
+            }
+         });
+
+         ImmutableSet<StackStatus> created = ImmutableSet.of(StackStatus.CREATE_COMPLETE);
+         ListenableFuture<Stack> alpha = watcher.watch("RegionOne", "alpha", "alpha-id", created, 0, TimeUnit.SECONDS);
+         ListenableFuture<Stack> beta = watcher.watch("RegionOne", "beta", "beta-id", created, 0, TimeUnit.SECONDS);
+         ListenableFuture<Stack> gamma = watcher.watch("RegionOne", "gamma", "gamma-id", created, 0, TimeUnit.SECONDS);
+         ListenableFuture<Stack> delta = watcher.watch("RegionOne", "delta", "delta-id",
+               ImmutableSet.of(StackStatus.DELETE_COMPLETE), 0, TimeUnit.SECONDS);
+
+         /*
+          * Check response
+          */
+         assertThat(alpha.get(5, TimeUnit.SECONDS).getStatus()).isEqualTo(StackStatus.CREATE_COMPLETE);
+         assertThat(beta.get(5, TimeUnit.SECONDS).getName()).isEqualTo("beta");
+         assertThat(delta.get(5, TimeUnit.SECONDS)).isNull();
+         try {
+            gamma.get(5, TimeUnit.SECONDS);
+            fail("gamma failed to create");
+         } catch (ExecutionException expected) {
+            assertThat(expected.getCause()).isInstanceOf(IllegalStateException.class);
+         }
+         assertThat(transitions.get()).isEqualTo(5);
+         assertThat(listenerThreads).doesNotContain(scheduler.submit(new Callable<Thread>() {
+            @Override
+            public Thread call() {
+               return Thread.currentThread();
+            }
+         }).get());
+
+         /*
+          * Check requests: two sweeps for the four stacks, then single gets for the stacks missing from them or left
+          */
+         assertThat(lists.get()).isEqualTo(2);
+         assertThat(gets.get()).isEqualTo(2);
+         assertThat(watcher.size("RegionOne")).isEqualTo(0);
+      } finally {
+         userExecutor.shutdownNow();
+         scheduler.shutdownNow();
+         server.shutdown();
+      }
+   }
+
+   private static String stack(String name, StackStatus status) {
+      return "{\"id\":\"" + name + "-id\",\"stack_name\":\"" + name + "\",\"stack_status\":\"" + status.name()
+            + "\",\"creation_time\":\"2014-06-03T20:59:46Z\",\"links\":[]}";
+   }
+}
@@ -0,0 +1,236 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.heat.v1.utils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jclouds.ContextBuilder;
+import org.jclouds.openstack.heat.v1.HeatApi;
+import org.jclouds.openstack.heat.v1.domain.Stack;
+import org.jclouds.openstack.heat.v1.internal.BaseHeatApiMockTest;
+import org.jclouds.openstack.heat.v1.options.UpdateStack;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.inject.Injector;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+/**
+ * Tests {@code StackUpdatePlanner} against the stack of {@code template_get_response.json}, with default parameters,
+ * unless another template is given
+ */
+@Test(groups = "unit", testName = "StackUpdatePlannerMockTest")
+public class StackUpdatePlannerMockTest extends BaseHeatApiMockTest {
+
+   private static final String STACK = "{\"stack\":{\"id\":\"3095aefc-09fb-4bc7-b1f0-f21a304e864c\","
+         + "\"stack_name\":\"simple_stack\",\"stack_status\":\"CREATE_COMPLETE\",\"links\":[],\"parameters\":{"
+         + "\"OS::stack_id\":\"3095aefc-09fb-4bc7-b1f0-f21a304e864c\",\"OS::stack_name\":\"simple_stack\","
+         + "\"compute_flavor\":\"2 GB General Purpose v1\",\"compute_image\":\"Ubuntu 13.10 (Saucy Salamander)\"}}}";
+
+   public void testSkipsUpdatesThatChangeNothing() throws Exception {
+      HeatStack heat = new HeatStack();
+      MockWebServer server = mockOpenStackServer();
+      heat.setUp(server);
+
+      try {
+         Injector injector = injector(server);
+         Stack stack = injector.getInstance(HeatApi.class).getStackApi("RegionOne")
+               .get("simple_stack", "3095aefc-09fb-4bc7-b1f0-f21a304e864c");
+         // the same template, compacted and with its sections in another order
+         JsonObject template = new JsonParser().parse(stringFromResource("/template_get_response.json"))
+               .getAsJsonObject();
+         JsonObject reordered = new JsonObject();
+         reordered.add("resources", template.get("resources"));
+         reordered.add("parameters", template.get("parameters"));
+         reordered.add("heat_template_version", template.get("heat_template_version"));
+         reordered.add("description", template.get("description"));
+
+         StackUpdatePlan plan = injector.getInstance(StackUpdatePlanner.class).update("RegionOne", stack,
+               UpdateStack.builder().template(reordered.toString())
+                     .parameters(ImmutableMap.<String, Object> of("compute_flavor", "2 GB General Purpose v1"))
+                     .build());
+
+         /*
+          * Check response
+          */
+         assertThat(plan.isNoOp()).isTrue();
+
+         /*
+          * Check requests: the update is not sent
+          */
+         assertThat(heat.updates.get()).isEqualTo(0);
+      } finally {
+         server.shutdown();
+      }
+   }
+
+   public void testReportsChangesBeforeUpdating() throws Exception {
+      HeatStack heat = new HeatStack();
+      MockWebServer server = mockOpenStackServer();
+      heat.setUp(server);
+
+      try {
+         Injector injector = injector(server);
+         Stack stack = injector.getInstance(HeatApi.class).getStackApi("RegionOne")
+               .get("simple_stack", "3095aefc-09fb-4bc7-b1f0-f21a304e864c");
+         JsonObject template = new JsonParser().parse(stringFromResource("/template_get_response.json"))
+               .getAsJsonObject();
+         JsonObject resources = template.getAsJsonObject("resources");
+         resources.add("volume", new JsonParser().parse("{\"type\":\"OS::Cinder::Volume\"}"));
+
+         StackUpdatePlan plan = injector.getInstance(StackUpdatePlanner.class).update("RegionOne", stack,
+               UpdateStack.builder().template(template.toString())
+                     .parameters(ImmutableMap.<String, Object> of("compute_flavor", "4 GB General Purpose v1"))
+                     .build());
+
+         /*
+          * Check response
+          */
+         assertThat(plan.isNoOp()).isFalse();
+         assertThat(plan.getResourceDifference().entriesOnlyOnRight().keySet()).containsExactly("volume");
+         assertThat(plan.getResourceDifference().entriesDiffering()).isEmpty();
+         assertThat(plan.getParameterDifference().entriesDiffering().keySet()).containsExactly("compute_flavor");
+         assertThat(plan.getChangedSections()).isEmpty();
+
+         /*
+          * Check requests: the update is sent
+          */
+         assertThat(heat.updates.get()).isEqualTo(1);
+      } finally {
+         server.shutdown();
+      }
+   }
+
+   public void testSendsUpdatesThatCannotBeCompared() throws Exception {
+      HeatStack heat = new HeatStack();
+      MockWebServer server = mockOpenStackServer();
+      heat.setUp(server);
+
+      try {
+         Injector injector = injector(server);
+         Stack stack = injector.getInstance(HeatApi.class).getStackApi("RegionOne")
+               .get("simple_stack", "3095aefc-09fb-4bc7-b1f0-f21a304e864c");
+
+         StackUpdatePlan plan = injector.getInstance(StackUpdatePlanner.class).update("RegionOne", stack,
+               UpdateStack.builder().template("heat_template_version: 2014-10-16\nresources: {}\n").build());
+
+         /*
+          * Check response
+          */
+         assertThat(plan.isComparable()).isFalse();
+         assertThat(plan.isNoOp()).isFalse();
+
+         /*
+          * Check requests: the template is not read, and the update is sent
+          */
+         assertThat(heat.templates.get()).isEqualTo(0);
+         assertThat(heat.updates.get()).isEqualTo(1);
+      } finally {
+         server.shutdown();
+      }
+   }
+
+   public void testSendsUpdatesOfStacksWithSectionsThatCannotBeCompared() throws Exception {
+      JsonObject current = new JsonParser().parse(stringFromResource("/template_get_response.json")).getAsJsonObject();
+      current.add("conditions", new JsonParser().parse("{\"large\":{\"equals\":[{\"get_param\":\"compute_flavor\"},"
+            + "\"4 GB General Purpose v1\"]}}"));
+      HeatStack heat = new HeatStack(current.toString());
+      MockWebServer server = mockOpenStackServer();
+      heat.setUp(server);
+
+      try {
+         Injector injector = injector(server);
+         Stack stack = injector.getInstance(HeatApi.class).getStackApi("RegionOne")
+               .get("simple_stack", "3095aefc-09fb-4bc7-b1f0-f21a304e864c");
+
+         // the current template without its conditions
+         StackUpdatePlan plan = injector.getInstance(StackUpdatePlanner.class).update("RegionOne", stack,
+               UpdateStack.builder().template(stringFromResource("/template_get_response.json"))
+                     .parameters(ImmutableMap.<String, Object> of("compute_flavor", "2 GB General Purpose v1"))
+                     .build());
+
+         /*
+          * Check response
+          */
+         assertThat(plan.isComparable()).isFalse();
+         assertThat(plan.isNoOp()).isFalse();
+
+         /*
+          * Check requests: the update is sent
+          */
+         assertThat(heat.templates.get()).isEqualTo(1);
+         assertThat(heat.updates.get()).isEqualTo(1);
+      } finally {
+         server.shutdown();
+      }
+   }
+
+   private Injector injector(MockWebServer server) {
+      return ContextBuilder.newBuilder("openstack-heat")
+            .credentials("jclouds:joe", "letmein")
+            .endpoint(server.getUrl("/").toString())
+            .overrides(overrides)
+            .buildInjector();
+   }
+
+   /**
+    * A single stack, counting the reads of its template and its updates.
+    */
+   private final class HeatStack extends Dispatcher {
+      private final AtomicInteger templates = new AtomicInteger();
+      private final AtomicInteger updates = new AtomicInteger();
+      private final String template;
+      private String access;
+
+      private HeatStack() {
+         this(stringFromResource("/template_get_response.json"));
+      }
+
+      private HeatStack(String template) {
+         this.template = template;
+      }
+
+      private void setUp(MockWebServer server) {
+         access = stringFromResource("/access.json").replace("\"URL",
+               "\"" + server.getUrl("/").toString().replaceAll("/$", ""));
+         server.setDispatcher(this);
+      }
+
+      @Override
+      public MockResponse dispatch(RecordedRequest request) {
+         String path = request.getPath();
+         if (path.equals("/tokens"))
+            return new MockResponse().setBody(access);
+         if (request.getMethod().equals("PUT")) {
+            updates.incrementAndGet();
+            return new MockResponse().setResponseCode(202);
+         }
+         if (path.endsWith("/template")) {
+            templates.incrementAndGet();
+            return new MockResponse().setBody(template);
+         }
+         return new MockResponse().setBody(STACK);
+      }
+   }
+}
@@ -0,0 +1,195 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.heat.v1.utils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.testng.Assert.fail;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jclouds.ContextBuilder;
+import org.jclouds.http.HttpResponseException;
+import org.jclouds.openstack.heat.v1.domain.Template;
+import org.jclouds.openstack.heat.v1.internal.BaseHeatApiMockTest;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.Lists;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+/**
+ * Tests {@code TemplateValidationCache} against a Heat that rejects templates without resources
+ */
+@Test(groups = "unit", testName = "TemplateValidationCacheMockTest")
+public class TemplateValidationCacheMockTest extends BaseHeatApiMockTest {
+
+   private static final String TEMPLATE = "{\"heat_template_version\":\"2013-05-23\",\"resources\":{\"server\":{}}}";
+   private static final String REORDERED = "{ \"resources\" : { \"server\" : { } },\n"
+         + "  \"heat_template_version\" : \"2013-05-23\" }";
+   private static final String INVALID = "heat_template_version: 2013-05-23\r\n";
+
+   public void testValidatesEquivalentTemplatesOnce() throws Exception {
+      final HeatValidation heat = new HeatValidation();
+      MockWebServer server = mockOpenStackServer();
+      heat.setUp(server);
+      ExecutorService executor = Executors.newFixedThreadPool(4);
+
+      try {
+         final TemplateValidationCache cache = cache(server);
+
+         final CountDownLatch start = new CountDownLatch(1);
+         List<Future<Template>> validating = Lists.newArrayList();
+         for (int i = 0; i < 4; i++) {
+            final String template = i % 2 == 0 ? TEMPLATE : REORDERED;
+            validating.add(executor.submit(new Callable<Template>() {
+               @Override
+               public Template call() throws Exception {
+                  start.await();
+                  return cache.validate("RegionOne", template);
+               }
+            }));
+         }
+         start.countDown();
+
+         /*
+          * Check response: every caller gets the same immutable template
+          */
+         Template template = validating.get(0).get(10, TimeUnit.SECONDS);
+         for (Future<Template> other : validating) {
+            assertThat(other.get(10, TimeUnit.SECONDS)).isSameAs(template);
+         }
+         assertThat(template.getDescription())
+               .isEqualTo("A template implementation of a resource that provides a single MongoDB server instance");
+         try {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> flavor = (Map<String, Object>) template.getParameters().get("flavor");
+            flavor.put("Default", "512MB Standard Instance");
+            fail("cached templates are shared");
+         } catch (UnsupportedOperationException expected) {
+         }
+
+         /*
+          * Check requests: one validation for all
+          */
+         assertThat(heat.validations.get()).isEqualTo(1);
+      } finally {
+         executor.shutdownNow();
+         server.shutdown();
+      }
+   }
+
+   public void testRemembersRejectedTemplates() throws Exception {
+      HeatValidation heat = new HeatValidation();
+      MockWebServer server = mockOpenStackServer();
+      heat.setUp(server);
+
+      try {
+         TemplateValidationCache cache = cache(server);
+
+         for (String template : new String[] { INVALID, "heat_template_version: 2013-05-23  \n\n" }) {
+            try {
+               cache.validate("RegionOne", template);
+               fail("a template without resources is invalid");
+            } catch (HttpResponseException expected) {
+               assertThat(expected.getResponse().getStatusCode()).isEqualTo(400);
+            }
+         }
+
+         /*
+          * Check requests: the rejection is remembered, also for the same template with other whitespace
+          */
+         assertThat(heat.validations.get()).isEqualTo(1);
+      } finally {
+         server.shutdown();
+      }
+   }
+
+   public void testRevalidatesTemplateUrlsWhenTheirETagChanges() throws Exception {
+      HeatValidation heat = new HeatValidation();
+      MockWebServer server = mockOpenStackServer();
+      heat.setUp(server);
+
+      try {
+         TemplateValidationCache cache = cache(server);
+         String url = server.getUrl("/templates/mongodb.yaml").toString();
+
+         cache.validateUrl("RegionOne", url);
+         cache.validateUrl("RegionOne", url);
+         heat.etag = "\"v2\"";
+         cache.validateUrl("RegionOne", url);
+
+         /*
+          * Check requests: the template is validated again once it changed
+          */
+         assertThat(heat.validations.get()).isEqualTo(2);
+      } finally {
+         server.shutdown();
+      }
+   }
+
+   private TemplateValidationCache cache(MockWebServer server) {
+      return ContextBuilder.newBuilder("openstack-heat")
+            .credentials("jclouds:joe", "letmein")
+            .endpoint(server.getUrl("/").toString())
+            .overrides(overrides)
+            .buildInjector()
+            .getInstance(TemplateValidationCache.class);
+   }
+
+   /**
+    * Validates templates with resources, and rejects others.
+    */
+   private final class HeatValidation extends Dispatcher {
+      private final AtomicInteger validations = new AtomicInteger();
+      private volatile String etag = "\"v1\"";
+      private String access;
+
+      private void setUp(MockWebServer server) {
+         access = stringFromResource("/access.json").replace("\"URL",
+               "\"" + server.getUrl("/").toString().replaceAll("/$", ""));
+         server.setDispatcher(this);
+      }
+
+      @Override
+      public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+         if (request.getPath().equals("/tokens"))
+            return new MockResponse().setBody(access);
+         if (request.getMethod().equals("HEAD"))
+            return new MockResponse().addHeader("ETag", etag);
+         validations.incrementAndGet();
+         // leaves time for concurrent validations to pile up
+         Thread.sleep(200);
+         JsonObject body = new JsonParser().parse(request.getUtf8Body()).getAsJsonObject();
+         String template = body.has("template") ? body.get("template").getAsString() : "resources";
+         if (!template.contains("resources"))
+            return new MockResponse().setResponseCode(400).setBody("{\"error\":{\"message\":\"no resources\"}}");
+         return new MockResponse().setBody(stringFromResource("/template_validate_response.json"));
+      }
+   }
+}
@@ -0,0 +1,428 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.neutron.v2.utils;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.annotation.Resource;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.jclouds.Constants;
+import org.jclouds.logging.Logger;
+import org.jclouds.openstack.neutron.v2.NeutronApi;
+import org.jclouds.openstack.neutron.v2.domain.FloatingIP;
+import org.jclouds.openstack.neutron.v2.domain.Network;
+import org.jclouds.openstack.neutron.v2.domain.Port;
+import org.jclouds.openstack.neutron.v2.domain.Router;
+import org.jclouds.openstack.neutron.v2.domain.SecurityGroup;
+import org.jclouds.openstack.neutron.v2.domain.Subnet;
+import org.jclouds.openstack.neutron.v2.extensions.FloatingIPApi;
+import org.jclouds.openstack.neutron.v2.extensions.RouterApi;
+import org.jclouds.openstack.neutron.v2.extensions.SecurityGroupApi;
+
+import com.google.common.base.Function;
+import com.google.common.base.Optional;
+import com.google.common.base.Predicate;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.FluentIterable;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListeningExecutorService;
+
+/**
+ * Runs the same query against every configured region of a {@link NeutronApi} at once.
+ * <p/>
+ * The query for each region runs on the user executor, and the results are merged into a single lazy iterable, in
+ * the order in which the regions produce them, each tagged with its region. A global lookup therefore takes as long
+ * as the slowest region instead of the sum of all of them. A region that fails, or makes no progress within the
+ * timeout, is logged and cancelled so that it never holds up the others. The timeout bounds each request of a region,
+ * not the whole iteration, so slow consumers and long listings are not cut short. Once the results of the other
+ * regions are consumed, an iteration that missed some regions ends with a {@link MultiRegionQueryException} telling
+ * which, instead of passing for complete.
+ * <p/>
+ * For example, to find a port by MAC address in any region:
+ *
+ * <pre>
+ * Optional&lt;RegionAndResource&lt;Port&gt;&gt; port = query.find(query.ports(), new Predicate&lt;Port&gt;() {
+ *    public boolean apply(Port input) {
+ *       return mac.equals(input.getMacAddress());
+ *    }
+ * });
+ * </pre>
+ */
+@Singleton
+public class MultiRegionQuery {
+
+   public static final long DEFAULT_TIMEOUT_SECONDS = 60;
+
+   /**
+    * The results a region may produce ahead of the consumer before it has to wait.
+    */
+   private static final int BUFFER_SIZE = 1000;
+
+   @Resource
+   protected Logger logger = Logger.NULL;
+
+   private final NeutronApi api;
+   private final ListeningExecutorService userExecutor;
+   private final long timeoutNanos;
+
+   @Inject
+   public MultiRegionQuery(NeutronApi api, @Named(Constants.PROPERTY_USER_THREADS) ListeningExecutorService userExecutor) {
+      this(api, userExecutor, DEFAULT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+   }
+
+   public MultiRegionQuery(NeutronApi api, ListeningExecutorService userExecutor, long timeout, TimeUnit unit) {
+      checkArgument(timeout > 0, "timeout must be positive");
+      this.api = checkNotNull(api, "api");
+      this.userExecutor = checkNotNull(userExecutor, "userExecutor");
+      this.timeoutNanos = unit.toNanos(timeout);
+   }
+
+   /**
+    * @return a query over the same regions that gives each request of a region at most the given time to answer
+    */
+   public MultiRegionQuery withTimeout(long timeout, TimeUnit unit) {
+      MultiRegionQuery query = new MultiRegionQuery(api, userExecutor, timeout, unit);
+      query.logger = logger;
+      return query;
+   }
+
+   /**
+    * Lists resources in all regions. The regions are queried anew each time the returned iterable is iterated.
+    *
+    * @param perRegion the query to run in a single region
+    * @return the merged results of all regions, ending with a {@link MultiRegionQueryException} if some regions
+    *         failed or did not answer in time
+    */
+   public <T> FluentIterable<RegionAndResource<T>> list(final Function<String, ? extends Iterable<? extends T>> perRegion) {
+      checkNotNull(perRegion, "perRegion");
+      return new FluentIterable<RegionAndResource<T>>() {
+         @Override
+         public Iterator<RegionAndResource<T>> iterator() {
+            return new FanOut<T>(api.getConfiguredRegions(), perRegion);
+         }
+      };
+   }
+
+   /**
+    * Looks for a resource in all regions, and stops querying every region as soon as one is found.
+    *
+    * @param perRegion the query to run in a single region
+    * @param predicate the condition the resource must meet
+    * @return the first resource found, or absent if no region has a matching resource
+    * @throws MultiRegionQueryException if no resource was found and some regions failed or did not answer in time
+    */
+   public <T> Optional<RegionAndResource<T>> find(Function<String, ? extends Iterable<? extends T>> perRegion,
+         Predicate<? super T> predicate) {
+      checkNotNull(predicate, "predicate");
+      FanOut<T> results = new FanOut<T>(api.getConfiguredRegions(), checkNotNull(perRegion, "perRegion"));
+      try {
+         while (results.hasNext()) {
+            RegionAndResource<T> result = results.next();
+            if (predicate.apply(result.getResource()))
+               return Optional.of(result);
+         }
+         return Optional.absent();
+      } finally {
+         results.cancel();
+      }
+   }
+
+   /**
+    * Gets a single resource from every region, for example with {@code getPortApi(region).get(id)}.
+    *
+    * @param perRegion the lookup to run in a single region, returning null if the region has no such resource
+    * @return the resources found, keyed by region
+    * @throws MultiRegionQueryException if some regions failed or did not answer in time
+    */
+   public <T> Map<String, T> get(final Function<String, T> perRegion) {
+      checkNotNull(perRegion, "perRegion");
+      ImmutableMap.Builder<String, T> results = ImmutableMap.builder();
+      for (RegionAndResource<T> result : list(new Function<String, Iterable<T>>() {
+         @Override
+         public Iterable<T> apply(String region) {
+            return Optional.fromNullable(perRegion.apply(region)).asSet();
+         }
+      })) {
+         results.put(result.getRegion(), result.getResource());
+      }
+      return results.build();
+   }
+
+   /**
+    * @return the query listing all ports of a region
+    */
+   public Function<String, Iterable<Port>> ports() {
+      return new Function<String, Iterable<Port>>() {
+         @Override
+         public Iterable<Port> apply(String region) {
+            return api.getPortApi(region).list().concat();
+         }
+      };
+   }
+
+   /**
+    * @return the query listing all networks of a region
+    */
+   public Function<String, Iterable<Network>> networks() {
+      return new Function<String, Iterable<Network>>() {
+         @Override
+         public Iterable<Network> apply(String region) {
+            return api.getNetworkApi(region).list().concat();
+         }
+      };
+   }
+
+   /**
+    * @return the query listing all subnets of a region
+    */
+   public Function<String, Iterable<Subnet>> subnets() {
+      return new Function<String, Iterable<Subnet>>() {
+         @Override
+         public Iterable<Subnet> apply(String region) {
+            return api.getSubnetApi(region).list().concat();
+         }
+      };
+   }
+
+   /**
+    * @return the query listing all routers of a region, or none where the router extension is missing
+    */
+   public Function<String, Iterable<Router>> routers() {
+      return new Function<String, Iterable<Router>>() {
+         @Override
+         public Iterable<Router> apply(String region) {
+            Optional<RouterApi> routerApi = api.getRouterApi(region);
+            return routerApi.isPresent() ? routerApi.get().list().concat() : ImmutableSet.<Router>of();
+         }
+      };
+   }
+
+   /**
+    * @return the query listing all floating IPs of a region, or none where the floating IP extension is missing
+    */
+   public Function<String, Iterable<FloatingIP>> floatingIPs() {
+      return new Function<String, Iterable<FloatingIP>>() {
+         @Override
+         public Iterable<FloatingIP> apply(String region) {
+            Optional<FloatingIPApi> floatingIPApi = api.getFloatingIPApi(region);
+            return floatingIPApi.isPresent() ? floatingIPApi.get().list().concat() : ImmutableSet.<FloatingIP>of();
+         }
+      };
+   }
+
+   /**
+    * @return the query listing all security groups of a region, or none where the security group extension is missing
+    */
+   public Function<String, Iterable<SecurityGroup>> securityGroups() {
+      return new Function<String, Iterable<SecurityGroup>>() {
+         @Override
+         public Iterable<SecurityGroup> apply(String region) {
+            Optional<SecurityGroupApi> securityGroupApi = api.getSecurityGroupApi(region);
+            return securityGroupApi.isPresent() ? securityGroupApi.get().listSecurityGroups().concat()
+                  : ImmutableSet.<SecurityGroup>of();
+         }
+      };
+   }
+
+   /**
+    * Marks the end of the results of a region.
+    */
+   private static final class RegionDone {
+      private final String region;
+      private final Exception failure;
+
+      private RegionDone(String region, Exception failure) {
+         this.region = region;
+         this.failure = failure;
+      }
+   }
+
+   /**
+    * The query of a single region, and since when it has been waiting for an answer, or 0 while it is waiting for the
+    * consumer instead, or is done.
+    */
+   private static final class RegionQuery {
+      private final String region;
+      // the results the region may still produce before the consumer takes one
+      private final Semaphore buffer = new Semaphore(BUFFER_SIZE);
+      private volatile Future<?> future;
+      private volatile long busySince = System.nanoTime();
+      private volatile boolean cancelled;
+
+      private RegionQuery(String region) {
+         this.region = region;
+      }
+
+      private void cancel() {
+         cancelled = true;
+         if (future != null)
+            future.cancel(true);
+      }
+   }
+
+   /**
+    * Queries all regions concurrently and hands their results to a single consumer.
+    * <p/>
+    * A region times out when it produces nothing for the timeout, which bounds each of its requests rather than the
+    * whole iteration; the time it spends waiting for the consumer to catch up does not count. Each region may run
+    * ahead of the consumer by at most {@link #BUFFER_SIZE} results of its own, whatever the other regions have
+    * produced, and gives up once the consumer has taken none of them for the timeout, so an iteration that is
+    * abandoned early does not hold threads forever. Regions that failed or timed out end the iteration with a
+    * {@link MultiRegionQueryException}, once the results of the other regions have been consumed.
+    */
+   private final class FanOut<T> extends AbstractIterator<RegionAndResource<T>> {
+      private final BlockingQueue<Object> results = new LinkedBlockingQueue<Object>();
+      private final Map<String, RegionQuery> queries = Maps.newHashMap();
+      private final Map<String, RegionQuery> pending = Maps.newLinkedHashMap();
+      private final Map<String, Exception> failures = Maps.newLinkedHashMap();
+      private volatile boolean cancelled;
+
+      private FanOut(Set<String> regions, final Function<String, ? extends Iterable<? extends T>> perRegion) {
+         for (final String region : regions) {
+            final RegionQuery query = new RegionQuery(region);
+            queries.put(region, query);
+            pending.put(region, query);
+            query.future = userExecutor.submit(new Runnable() {
+               @Override
+               public void run() {
+                  produce(query, perRegion);
+               }
+
+               @Override
+               public String toString() {
+                  return "queryRegion(" + region + ")";
+               }
+            });
+         }
+      }
+
+      private void produce(RegionQuery query, Function<String, ? extends Iterable<? extends T>> perRegion) {
+         Exception failure = null;
+         query.busySince = System.nanoTime();
+         try {
+            for (T resource : perRegion.apply(query.region)) {
+               if (cancelled || query.cancelled)
+                  return;
+               query.busySince = 0;
+               if (!query.buffer.tryAcquire(timeoutNanos, TimeUnit.NANOSECONDS)) {
+                  failure = new TimeoutException("results of region " + query.region + " were not consumed in time");
+                  return;
+               }
+               results.add(new RegionAndResource<T>(query.region, resource));
+               query.busySince = System.nanoTime();
+            }
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         } catch (RuntimeException e) {
+            failure = e;
+         } finally {
+            query.busySince = 0;
+            results.add(new RegionDone(query.region, failure));
+         }
+      }
+
+      @Override
+      @SuppressWarnings("unchecked")
+      protected RegionAndResource<T> computeNext() {
+         while (!pending.isEmpty()) {
+            long wait = expireRegions();
+            if (pending.isEmpty())
+               break;
+            Object next;
+            try {
+               next = results.poll(wait, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+               cancel();
+               Thread.currentThread().interrupt();
+               return endOfData();
+            }
+            if (next == null)
+               continue;
+            if (next instanceof RegionDone) {
+               RegionDone done = (RegionDone) next;
+               // a region that timed out was already accounted for
+               if (pending.remove(done.region) != null && done.failure != null) {
+                  logger.warn(done.failure, "<< query of region %s failed", done.region);
+                  failures.put(done.region, done.failure);
+               }
+               continue;
+            }
+            RegionAndResource<T> result = (RegionAndResource<T>) next;
+            queries.get(result.getRegion()).buffer.release();
+            return result;
+         }
+         if (!failures.isEmpty())
+            throw new MultiRegionQueryException(failures);
+         return endOfData();
+      }
+
+      /**
+       * Cancels the regions that have been waiting for an answer for the timeout.
+       *
+       * @return how long to wait for the next result before the next region may time out
+       */
+      private long expireRegions() {
+         long now = System.nanoTime();
+         long wait = timeoutNanos;
+         for (Iterator<RegionQuery> it = pending.values().iterator(); it.hasNext();) {
+            RegionQuery query = it.next();
+            long busySince = query.busySince;
+            if (busySince == 0)
+               continue;
+            long left = busySince + timeoutNanos - now;
+            if (left <= 0) {
+               logger.warn("<< region %s did not answer within %sms", query.region,
+                     TimeUnit.NANOSECONDS.toMillis(timeoutNanos));
+               failures.put(query.region, new TimeoutException("region " + query.region + " did not answer within "
+                     + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + "ms"));
+               query.cancel();
+               it.remove();
+            } else {
+               wait = Math.min(wait, left);
+            }
+         }
+         return wait;
+      }
+
+      /**
+       * Stops querying the regions that have not finished yet.
+       */
+      private void cancel() {
+         cancelled = true;
+         for (RegionQuery query : pending.values()) {
+            query.cancel();
+         }
+         pending.clear();
+      }
+   }
+}
@@ -0,0 +1,47 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.neutron.v2.utils;
+
+import java.util.Map;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+
+/**
+ * Thrown at the end of a {@link MultiRegionQuery} that missed some regions, so that the results are not taken for
+ * complete.
+ */
+public class MultiRegionQueryException extends RuntimeException {
+
+   private static final long serialVersionUID = 1L;
+
+   private final Map<String, Exception> failures;
+
+   public MultiRegionQueryException(Map<String, Exception> failures) {
+      super(String.format("regions %s failed or did not answer in time", failures.keySet()),
+            Iterables.getFirst(failures.values(), null));
+      this.failures = ImmutableMap.copyOf(failures);
+   }
+
+   /**
+    * @return why each region was missed, a {@link java.util.concurrent.TimeoutException} for those that did not
+    *         answer in time, keyed by region
+    */
+   public Map<String, Exception> getFailures() {
+      return failures;
+   }
+}
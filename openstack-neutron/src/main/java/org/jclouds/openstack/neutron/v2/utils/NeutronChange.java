@@ -0,0 +1,115 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.neutron.v2.utils;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import org.jclouds.javax.annotation.Nullable;
+
+import com.google.common.base.Objects;
+
+/**
+ * A change to a Neutron resource, as published by {@link NeutronChangeFeed}.
+ */
+public class NeutronChange<T> {
+
+   public enum Kind {
+      CREATED, UPDATED, DELETED
+   }
+
+   private final Kind kind;
+   private final String region;
+   private final NeutronResourceType<T> resourceType;
+   private final String id;
+   private final T resource;
+
+   NeutronChange(Kind kind, String region, NeutronResourceType<T> resourceType, String id, @Nullable T resource) {
+      this.kind = checkNotNull(kind, "kind");
+      this.region = checkNotNull(region, "region");
+      this.resourceType = checkNotNull(resourceType, "resourceType");
+      this.id = checkNotNull(id, "id");
+      this.resource = resource;
+   }
+
+   /**
+    * @return whether the resource was created, updated or deleted
+    */
+   public Kind getKind() {
+      return kind;
+   }
+
+   /**
+    * @return the region of the resource
+    */
+   public String getRegion() {
+      return region;
+   }
+
+   /**
+    * @return the type of the resource
+    */
+   public NeutronResourceType<T> getResourceType() {
+      return resourceType;
+   }
+
+   /**
+    * @return the id of the resource
+    */
+   public String getId() {
+      return id;
+   }
+
+   /**
+    * @return the resource as it is now, or null if it was deleted
+    */
+   @Nullable
+   public T getResource() {
+      return resource;
+   }
+
+   @Override
+   public boolean equals(Object o) {
+      if (this == o)
+         return true;
+      if (o == null || getClass() != o.getClass())
+         return false;
+
+      NeutronChange<?> that = (NeutronChange<?>) o;
+
+      return Objects.equal(this.kind, that.kind) &&
+            Objects.equal(this.region, that.region) &&
+            Objects.equal(this.resourceType, that.resourceType) &&
+            Objects.equal(this.id, that.id) &&
+            Objects.equal(this.resource, that.resource);
+   }
+
+   @Override
+   public int hashCode() {
+      return Objects.hashCode(kind, region, resourceType, id, resource);
+   }
+
+   @Override
+   public String toString() {
+      return Objects.toStringHelper(this)
+            .add("kind", kind)
+            .add("region", region)
+            .add("resourceType", resourceType)
+            .add("id", id)
+            .add("resource", resource)
+            .toString();
+   }
+}
@@ -0,0 +1,394 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.neutron.v2.utils;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Resource;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.jclouds.Constants;
+import org.jclouds.json.Json;
+import org.jclouds.logging.Logger;
+import org.jclouds.openstack.neutron.v2.NeutronApi;
+import org.jclouds.openstack.neutron.v2.utils.NeutronChange.Kind;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.FutureFallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Publishes the creation, update and deletion of Neutron resources to in-process listeners.
+ * <p/>
+ * Each poll lists every subscribed resource type once per region, in parallel on the user executor, and compares the
+ * result with the snapshot of the previous poll. The scheduler only triggers polls; the listings, and the calls to the
+ * listeners, all run on the user executor, and no lock is held while they do. Snapshots only keep a content hash per
+ * resource id, so they stay small even for large regions; as a consequence, deletion events carry the id of the
+ * deleted resource only.
+ * <p/>
+ * The first poll of a region and resource type establishes the baseline and publishes nothing. A region that fails
+ * to answer keeps its previous snapshot, so an outage is never reported as mass deletion.
+ * <p/>
+ * A single feed can serve any number of listeners, so that the resources are polled once per process rather than once
+ * per interested component.
+ */
+@Singleton
+public class NeutronChangeFeed implements Closeable {
+
+   @Resource
+   protected Logger logger = Logger.NULL;
+
+   private final NeutronApi api;
+   private final Json json;
+   private final ListeningExecutorService userExecutor;
+   private final ScheduledExecutorService scheduler;
+   private final HashFunction hashFunction = Hashing.murmur3_128();
+   private final ConcurrentMap<NeutronResourceType<?>, List<NeutronChangeListener<?>>> listeners =
+         Maps.newConcurrentMap();
+   // guarded by this
+   private final Map<String, Map<String, HashCode>> snapshots = Maps.newHashMap();
+   private SettableFuture<Void> polling;
+   private Poller poller;
+
+   @Inject
+   public NeutronChangeFeed(NeutronApi api, Json json,
+         @Named(Constants.PROPERTY_USER_THREADS) ListeningExecutorService userExecutor,
+         @Named(Constants.PROPERTY_SCHEDULER_THREADS) ScheduledExecutorService scheduler) {
+      this.api = checkNotNull(api, "api");
+      this.json = checkNotNull(json, "json");
+      this.userExecutor = checkNotNull(userExecutor, "userExecutor");
+      this.scheduler = checkNotNull(scheduler, "scheduler");
+   }
+
+   /**
+    * Registers a listener for the changes of a resource type. The type is polled from the next poll on.
+    */
+   public synchronized <T> void subscribe(NeutronResourceType<T> type, NeutronChangeListener<T> listener) {
+      checkNotNull(type, "type");
+      checkNotNull(listener, "listener");
+      // registrations are serialized, so that a list is never dropped by unsubscribe while a listener is added to it
+      List<NeutronChangeListener<?>> registered = listeners.get(type);
+      if (registered == null) {
+         registered = new CopyOnWriteArrayList<NeutronChangeListener<?>>();
+         listeners.put(type, registered);
+      }
+      registered.add(listener);
+   }
+
+   /**
+    * Removes a listener. A resource type without listeners is no longer polled.
+    */
+   public synchronized <T> void unsubscribe(NeutronResourceType<T> type, NeutronChangeListener<T> listener) {
+      List<NeutronChangeListener<?>> registered = listeners.get(checkNotNull(type, "type"));
+      if (registered != null) {
+         registered.remove(listener);
+         if (registered.isEmpty())
+            listeners.remove(type);
+      }
+   }
+
+   /**
+    * Polls until the feed is closed, waiting {@code delay} between the end of a poll and the start of the next one.
+    */
+   public synchronized void start(long delay, TimeUnit unit) {
+      checkArgument(delay > 0, "delay must be positive");
+      checkNotNull(unit, "unit");
+      checkState(poller == null, "feed is already started");
+      poller = new Poller(delay, unit);
+      poller.schedule(0);
+   }
+
+   /**
+    * Polls all subscribed resource types in all regions once, in the background.
+    *
+    * @return a future completed once the changes found are published; while a poll is running, it is returned rather
+    *         than a new one started
+    */
+   public ListenableFuture<Void> poll() {
+      final SettableFuture<Void> done;
+      Map<String, Callable<Diff<?>>> diffs = Maps.newLinkedHashMap();
+      synchronized (this) {
+         if (polling != null)
+            return polling;
+         polling = done = SettableFuture.create();
+         Set<NeutronResourceType<?>> types = ImmutableSet.copyOf(listeners.keySet());
+         snapshots.keySet().retainAll(snapshotKeys(types));
+         for (String region : api.getConfiguredRegions()) {
+            for (NeutronResourceType<?> type : types) {
+               diffs.put(snapshotKey(region, type), diff(region, type));
+            }
+         }
+      }
+
+      List<ListenableFuture<Diff<?>>> listings = Lists.newArrayList();
+      for (Map.Entry<String, Callable<Diff<?>>> entry : diffs.entrySet()) {
+         ListenableFuture<Diff<?>> listing;
+         try {
+            listing = userExecutor.submit(entry.getValue());
+         } catch (RejectedExecutionException e) {
+            listing = Futures.immediateFailedFuture(e);
+         }
+         listings.add(Futures.withFallback(listing, keepSnapshot(entry.getKey())));
+      }
+      ListenableFuture<Void> published = Futures.transform(Futures.allAsList(listings),
+            new Function<List<Diff<?>>, Void>() {
+               @Override
+               public Void apply(List<Diff<?>> diffs) {
+                  publish(diffs);
+                  return null;
+               }
+            }, userExecutor);
+      Futures.addCallback(published, new FutureCallback<Void>() {
+         @Override
+         public void onSuccess(Void result) {
+            finish();
+            done.set(null);
+         }
+
+         @Override
+         public void onFailure(Throwable t) {
+            finish();
+            done.setException(t);
+         }
+      }, userExecutor);
+      return done;
+   }
+
+   /**
+    * Stops polling; a poll that is running completes in the background.
+    */
+   @Override
+   public synchronized void close() {
+      if (poller != null) {
+         poller.cancel();
+         poller = null;
+      }
+   }
+
+   private FutureFallback<Diff<?>> keepSnapshot(final String key) {
+      return new FutureFallback<Diff<?>>() {
+         @Override
+         public ListenableFuture<Diff<?>> create(Throwable t) {
+            logger.warn(t, "<< failed to poll %s, keeping its previous snapshot", key);
+            return Futures.immediateFuture(null);
+         }
+      };
+   }
+
+   private void publish(List<Diff<?>> diffs) {
+      synchronized (this) {
+         for (Diff<?> diff : diffs) {
+            if (diff != null)
+               snapshots.put(diff.key, diff.current);
+         }
+      }
+      for (Diff<?> diff : diffs) {
+         if (diff != null)
+            diff.publish();
+      }
+   }
+
+   private synchronized void finish() {
+      polling = null;
+   }
+
+   private <T> Callable<Diff<?>> diff(final String region, final NeutronResourceType<T> type) {
+      final Map<String, HashCode> previous = snapshots.get(snapshotKey(region, type));
+      return new Callable<Diff<?>>() {
+         @Override
+         public Diff<?> call() {
+            Map<String, HashCode> current = Maps.newHashMap();
+            List<NeutronChange<T>> changes = Lists.newArrayList();
+            for (T resource : type.list(api, region)) {
+               String id = type.getId(resource);
+               HashCode hash = hashFunction.hashString(json.toJson(resource), Charsets.UTF_8);
+               current.put(id, hash);
+               if (previous == null)
+                  continue;
+               HashCode before = previous.get(id);
+               if (before == null)
+                  changes.add(new NeutronChange<T>(Kind.CREATED, region, type, id, resource));
+               else if (!before.equals(hash))
+                  changes.add(new NeutronChange<T>(Kind.UPDATED, region, type, id, resource));
+            }
+            if (previous != null) {
+               for (String id : previous.keySet()) {
+                  if (!current.containsKey(id))
+                     changes.add(new NeutronChange<T>(Kind.DELETED, region, type, id, null));
+               }
+            }
+            return new Diff<T>(snapshotKey(region, type), type, current, changes);
+         }
+
+         @Override
+         public String toString() {
+            return "diff(" + region + ", " + type + ")";
+         }
+      };
+   }
+
+   private Set<String> snapshotKeys(Set<NeutronResourceType<?>> types) {
+      ImmutableSet.Builder<String> keys = ImmutableSet.builder();
+      for (String region : api.getConfiguredRegions()) {
+         for (NeutronResourceType<?> type : types) {
+            keys.add(snapshotKey(region, type));
+         }
+      }
+      return keys.build();
+   }
+
+   private static String snapshotKey(String region, NeutronResourceType<?> type) {
+      return region + "/" + type.getName();
+   }
+
+   /**
+    * The changes of one resource type in one region, and the snapshot they lead to.
+    */
+   private final class Diff<T> {
+      private final String key;
+      private final NeutronResourceType<T> type;
+      private final Map<String, HashCode> current;
+      private final List<NeutronChange<T>> changes;
+
+      private Diff(String key, NeutronResourceType<T> type, Map<String, HashCode> current,
+            List<NeutronChange<T>> changes) {
+         this.key = key;
+         this.type = type;
+         this.current = current;
+         this.changes = ImmutableList.copyOf(changes);
+      }
+
+      @SuppressWarnings("unchecked")
+      private void publish() {
+         List<NeutronChangeListener<?>> registered = listeners.get(type);
+         if (registered == null)
+            return;
+         for (NeutronChange<T> change : changes) {
+            for (NeutronChangeListener<?> listener : registered) {
+               try {
+                  ((NeutronChangeListener<T>) listener).onChange(change);
+               } catch (RuntimeException e) {
+                  logger.error(e, "<< listener %s failed on %s", listener, change);
+               }
+            }
+         }
+      }
+   }
+
+   /**
+    * Polls once per period, from the time it is started until the feed is closed. The scheduler only hands each poll
+    * to the user executor, and the next poll is scheduled once the previous one has published its changes.
+    */
+   private final class Poller implements Runnable {
+      private final long delay;
+      private final TimeUnit unit;
+      // guarded by the feed
+      private ScheduledFuture<?> next;
+
+      private final Runnable trigger = new Runnable() {
+         @Override
+         public void run() {
+            try {
+               userExecutor.execute(Poller.this);
+            } catch (RejectedExecutionException e) {
+               logger.warn(e, "<< could not poll neutron for changes");
+            }
+         }
+
+         @Override
+         public String toString() {
+            return "pollNeutronChanges()";
+         }
+      };
+
+      private Poller(long delay, TimeUnit unit) {
+         this.delay = delay;
+         this.unit = unit;
+      }
+
+      private void schedule(long after) {
+         try {
+            next = scheduler.schedule(trigger, after, unit);
+         } catch (RejectedExecutionException e) {
+            logger.warn(e, "<< could not schedule the next poll of neutron");
+         }
+      }
+
+      private void cancel() {
+         if (next != null)
+            next.cancel(false);
+      }
+
+      @Override
+      public void run() {
+         ListenableFuture<Void> polled;
+         try {
+            polled = poll();
+         } catch (RuntimeException e) {
+            polled = Futures.immediateFailedFuture(e);
+         }
+         Futures.addCallback(polled, new FutureCallback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+               scheduleNext();
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+               logger.error(t, "<< failed to poll neutron for changes");
+               scheduleNext();
+            }
+         }, userExecutor);
+      }
+
+      private void scheduleNext() {
+         synchronized (NeutronChangeFeed.this) {
+            // a feed closed, or closed and started again, meanwhile has no use for this poller
+            if (poller == this)
+               schedule(delay);
+         }
+      }
+   }
+}
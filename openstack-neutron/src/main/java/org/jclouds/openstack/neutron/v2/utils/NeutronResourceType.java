@@ -0,0 +1,154 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.neutron.v2.utils;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import org.jclouds.openstack.neutron.v2.NeutronApi;
+import org.jclouds.openstack.neutron.v2.domain.FloatingIP;
+import org.jclouds.openstack.neutron.v2.domain.Network;
+import org.jclouds.openstack.neutron.v2.domain.Port;
+import org.jclouds.openstack.neutron.v2.domain.Router;
+import org.jclouds.openstack.neutron.v2.domain.SecurityGroup;
+import org.jclouds.openstack.neutron.v2.domain.Subnet;
+import org.jclouds.openstack.neutron.v2.extensions.FloatingIPApi;
+import org.jclouds.openstack.neutron.v2.extensions.RouterApi;
+import org.jclouds.openstack.neutron.v2.extensions.SecurityGroupApi;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * A kind of Neutron resource that can be listed in a region, as watched by {@link NeutronChangeFeed}.
+ */
+public abstract class NeutronResourceType<T> {
+
+   public static final NeutronResourceType<Network> NETWORKS = new NeutronResourceType<Network>("networks", Network.class) {
+      @Override
+      public Iterable<Network> list(NeutronApi api, String region) {
+         return api.getNetworkApi(region).list().concat();
+      }
+
+      @Override
+      public String getId(Network resource) {
+         return resource.getId();
+      }
+   };
+
+   public static final NeutronResourceType<Subnet> SUBNETS = new NeutronResourceType<Subnet>("subnets", Subnet.class) {
+      @Override
+      public Iterable<Subnet> list(NeutronApi api, String region) {
+         return api.getSubnetApi(region).list().concat();
+      }
+
+      @Override
+      public String getId(Subnet resource) {
+         return resource.getId();
+      }
+   };
+
+   public static final NeutronResourceType<Port> PORTS = new NeutronResourceType<Port>("ports", Port.class) {
+      @Override
+      public Iterable<Port> list(NeutronApi api, String region) {
+         return api.getPortApi(region).list().concat();
+      }
+
+      @Override
+      public String getId(Port resource) {
+         return resource.getId();
+      }
+   };
+
+   public static final NeutronResourceType<Router> ROUTERS = new NeutronResourceType<Router>("routers", Router.class) {
+      @Override
+      public Iterable<Router> list(NeutronApi api, String region) {
+         Optional<RouterApi> routerApi = api.getRouterApi(region);
+         return routerApi.isPresent() ? routerApi.get().list().concat() : ImmutableSet.<Router>of();
+      }
+
+      @Override
+      public String getId(Router resource) {
+         return resource.getId();
+      }
+   };
+
+   public static final NeutronResourceType<FloatingIP> FLOATING_IPS =
+         new NeutronResourceType<FloatingIP>("floatingips", FloatingIP.class) {
+      @Override
+      public Iterable<FloatingIP> list(NeutronApi api, String region) {
+         Optional<FloatingIPApi> floatingIPApi = api.getFloatingIPApi(region);
+         return floatingIPApi.isPresent() ? floatingIPApi.get().list().concat() : ImmutableSet.<FloatingIP>of();
+      }
+
+      @Override
+      public String getId(FloatingIP resource) {
+         return resource.getId();
+      }
+   };
+
+   public static final NeutronResourceType<SecurityGroup> SECURITY_GROUPS =
+         new NeutronResourceType<SecurityGroup>("security_groups", SecurityGroup.class) {
+      @Override
+      public Iterable<SecurityGroup> list(NeutronApi api, String region) {
+         Optional<SecurityGroupApi> securityGroupApi = api.getSecurityGroupApi(region);
+         return securityGroupApi.isPresent() ? securityGroupApi.get().listSecurityGroups().concat()
+               : ImmutableSet.<SecurityGroup>of();
+      }
+
+      @Override
+      public String getId(SecurityGroup resource) {
+         return resource.getId();
+      }
+   };
+
+   private final String name;
+   private final Class<T> type;
+
+   protected NeutronResourceType(String name, Class<T> type) {
+      this.name = checkNotNull(name, "name");
+      this.type = checkNotNull(type, "type");
+   }
+
+   /**
+    * @return the name of the collection, such as {@code ports}
+    */
+   public String getName() {
+      return name;
+   }
+
+   /**
+    * @return the domain class of the resources
+    */
+   public Class<T> getType() {
+      return type;
+   }
+
+   /**
+    * @return all resources of this type in the region, or none if the region lacks the extension providing them
+    */
+   public abstract Iterable<T> list(NeutronApi api, String region);
+
+   /**
+    * @return the id of the resource
+    */
+   public abstract String getId(T resource);
+
+   @Override
+   public String toString() {
+      return name;
+   }
+}
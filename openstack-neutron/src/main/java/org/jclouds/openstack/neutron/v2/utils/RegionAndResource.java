@@ -0,0 +1,75 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.neutron.v2.utils;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.Objects;
+
+/**
+ * A resource together with the region it was found in, as returned by {@link MultiRegionQuery}.
+ */
+public class RegionAndResource<T> {
+
+   private final String region;
+   private final T resource;
+
+   public RegionAndResource(String region, T resource) {
+      this.region = checkNotNull(region, "region");
+      this.resource = checkNotNull(resource, "resource");
+   }
+
+   /**
+    * @return the region the resource lives in
+    */
+   public String getRegion() {
+      return region;
+   }
+
+   /**
+    * @return the resource
+    */
+   public T getResource() {
+      return resource;
+   }
+
+   @Override
+   public boolean equals(Object o) {
+      if (this == o)
+         return true;
+      if (o == null || getClass() != o.getClass())
+         return false;
+
+      RegionAndResource<?> that = (RegionAndResource<?>) o;
+
+      return Objects.equal(this.region, that.region) &&
+            Objects.equal(this.resource, that.resource);
+   }
+
+   @Override
+   public int hashCode() {
+      return Objects.hashCode(region, resource);
+   }
+
+   @Override
+   public String toString() {
+      return Objects.toStringHelper(this)
+            .add("region", region)
+            .add("resource", resource)
+            .toString();
+   }
+}
@@ -0,0 +1,213 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.neutron.v2.utils;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import org.jclouds.javax.annotation.Nullable;
+import org.jclouds.openstack.neutron.v2.domain.ExternalGatewayInfo;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * The desired interfaces and external gateway of a single router, as applied by {@link RouterPlanExecutor}.
+ */
+public class RouterPlan {
+
+   private final String routerId;
+   private final ExternalGatewayInfo externalGatewayInfo;
+   private final ImmutableSet<String> subnetIds;
+   private final ImmutableSet<String> portIds;
+   private final boolean removeUndeclared;
+
+   private RouterPlan(String routerId, ExternalGatewayInfo externalGatewayInfo, ImmutableSet<String> subnetIds,
+         ImmutableSet<String> portIds, boolean removeUndeclared) {
+      this.routerId = checkNotNull(routerId, "routerId");
+      this.externalGatewayInfo = externalGatewayInfo;
+      this.subnetIds = subnetIds;
+      this.portIds = portIds;
+      this.removeUndeclared = removeUndeclared;
+   }
+
+   /**
+    * @return the id of the router this plan applies to
+    */
+   public String getRouterId() {
+      return routerId;
+   }
+
+   /**
+    * @return the desired external gateway of the router, or null to leave the gateway untouched
+    */
+   @Nullable
+   public ExternalGatewayInfo getExternalGatewayInfo() {
+      return externalGatewayInfo;
+   }
+
+   /**
+    * @return the subnets the router must have an interface on
+    */
+   public ImmutableSet<String> getSubnetIds() {
+      return subnetIds;
+   }
+
+   /**
+    * @return the ports the router must have an interface on
+    */
+   public ImmutableSet<String> getPortIds() {
+      return portIds;
+   }
+
+   /**
+    * @return true if interfaces that are neither in {@link #getSubnetIds()} nor in {@link #getPortIds()} are removed
+    */
+   public boolean isRemoveUndeclared() {
+      return removeUndeclared;
+   }
+
+   @Override
+   public boolean equals(Object o) {
+      if (this == o)
+         return true;
+      if (o == null || getClass() != o.getClass())
+         return false;
+
+      RouterPlan that = (RouterPlan) o;
+
+      return Objects.equal(this.routerId, that.routerId) &&
+            Objects.equal(this.externalGatewayInfo, that.externalGatewayInfo) &&
+            Objects.equal(this.subnetIds, that.subnetIds) &&
+            Objects.equal(this.portIds, that.portIds) &&
+            this.removeUndeclared == that.removeUndeclared;
+   }
+
+   @Override
+   public int hashCode() {
+      return Objects.hashCode(routerId, externalGatewayInfo, subnetIds, portIds, removeUndeclared);
+   }
+
+   @Override
+   public String toString() {
+      return Objects.toStringHelper(this)
+            .add("routerId", routerId)
+            .add("externalGatewayInfo", externalGatewayInfo)
+            .add("subnetIds", subnetIds)
+            .add("portIds", portIds)
+            .add("removeUndeclared", removeUndeclared)
+            .toString();
+   }
+
+   /**
+    * @return the Builder for RouterPlan
+    */
+   public static Builder builder() {
+      return new Builder();
+   }
+
+   public static class Builder {
+      protected String routerId;
+      protected ExternalGatewayInfo externalGatewayInfo;
+      protected ImmutableSet.Builder<String> subnetIds = ImmutableSet.builder();
+      protected ImmutableSet.Builder<String> portIds = ImmutableSet.builder();
+      protected boolean removeUndeclared;
+
+      /**
+       * Provide the routerId to the RouterPlan's Builder.
+       *
+       * @return the Builder.
+       * @see RouterPlan#getRouterId()
+       */
+      public Builder routerId(String routerId) {
+         this.routerId = routerId;
+         return this;
+      }
+
+      /**
+       * Provide the externalGatewayInfo to the RouterPlan's Builder.
+       *
+       * @return the Builder.
+       * @see RouterPlan#getExternalGatewayInfo()
+       */
+      public Builder externalGatewayInfo(ExternalGatewayInfo externalGatewayInfo) {
+         this.externalGatewayInfo = externalGatewayInfo;
+         return this;
+      }
+
+      /**
+       * Adds a subnet to the RouterPlan's Builder.
+       *
+       * @return the Builder.
+       * @see RouterPlan#getSubnetIds()
+       */
+      public Builder subnetId(String subnetId) {
+         this.subnetIds.add(checkNotNull(subnetId, "subnetId"));
+         return this;
+      }
+
+      /**
+       * Adds subnets to the RouterPlan's Builder.
+       *
+       * @return the Builder.
+       * @see RouterPlan#getSubnetIds()
+       */
+      public Builder subnetIds(Iterable<String> subnetIds) {
+         this.subnetIds.addAll(checkNotNull(subnetIds, "subnetIds"));
+         return this;
+      }
+
+      /**
+       * Adds a port to the RouterPlan's Builder.
+       *
+       * @return the Builder.
+       * @see RouterPlan#getPortIds()
+       */
+      public Builder portId(String portId) {
+         this.portIds.add(checkNotNull(portId, "portId"));
+         return this;
+      }
+
+      /**
+       * Adds ports to the RouterPlan's Builder.
+       *
+       * @return the Builder.
+       * @see RouterPlan#getPortIds()
+       */
+      public Builder portIds(Iterable<String> portIds) {
+         this.portIds.addAll(checkNotNull(portIds, "portIds"));
+         return this;
+      }
+
+      /**
+       * Provide the removeUndeclared flag to the RouterPlan's Builder.
+       *
+       * @return the Builder.
+       * @see RouterPlan#isRemoveUndeclared()
+       */
+      public Builder removeUndeclared(boolean removeUndeclared) {
+         this.removeUndeclared = removeUndeclared;
+         return this;
+      }
+
+      /**
+       * @return a RouterPlan constructed with this Builder.
+       */
+      public RouterPlan build() {
+         return new RouterPlan(routerId, externalGatewayInfo, subnetIds.build(), portIds.build(), removeUndeclared);
+      }
+   }
+}
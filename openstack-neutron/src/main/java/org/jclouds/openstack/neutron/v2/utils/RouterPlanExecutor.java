@@ -0,0 +1,264 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.neutron.v2.utils;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.locks.Lock;
+
+import javax.annotation.Resource;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.jclouds.Constants;
+import org.jclouds.logging.Logger;
+import org.jclouds.openstack.neutron.v2.NeutronApi;
+import org.jclouds.openstack.neutron.v2.domain.ExternalGatewayInfo;
+import org.jclouds.openstack.neutron.v2.domain.IP;
+import org.jclouds.openstack.neutron.v2.domain.Port;
+import org.jclouds.openstack.neutron.v2.domain.Ports;
+import org.jclouds.openstack.neutron.v2.domain.Router;
+import org.jclouds.openstack.neutron.v2.domain.RouterInterface;
+import org.jclouds.openstack.neutron.v2.extensions.RouterApi;
+import org.jclouds.openstack.neutron.v2.features.PortApi;
+import org.jclouds.openstack.v2_0.options.PaginationOptions;
+import org.jclouds.rest.ResourceNotFoundException;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.Striped;
+
+/**
+ * Applies {@link RouterPlan}s to the routers of a region.
+ * <p/>
+ * Plans for different routers run in parallel on the user executor. Mutations of the same router are serialized,
+ * both within a single {@link #execute} call and across concurrent callers sharing this executor, so that
+ * interface and gateway updates to a router never race each other.
+ * <p/>
+ * The current interfaces of a router are discovered by listing its {@value #ROUTER_INTERFACE_DEVICE_OWNER} ports,
+ * so only the missing interfaces are added.
+ */
+@Singleton
+public class RouterPlanExecutor {
+
+   public static final String ROUTER_INTERFACE_DEVICE_OWNER = "network:router_interface";
+
+   @Resource
+   protected Logger logger = Logger.NULL;
+
+   private final NeutronApi api;
+   private final ListeningExecutorService userExecutor;
+   private final Striped<Lock> routerLocks = Striped.lazyWeakLock(256);
+
+   @Inject
+   public RouterPlanExecutor(NeutronApi api, @Named(Constants.PROPERTY_USER_THREADS) ListeningExecutorService userExecutor) {
+      this.api = checkNotNull(api, "api");
+      this.userExecutor = checkNotNull(userExecutor, "userExecutor");
+   }
+
+   /**
+    * Applies the plans to their routers and waits for all of them to complete.
+    *
+    * @param region the region the routers live in
+    * @param plans at most one plan per router
+    * @return the result of each plan, keyed by router id, in the order of the plans
+    */
+   public Map<String, RouterPlanResult> execute(String region, Iterable<RouterPlan> plans) {
+      Set<String> routerIds = Sets.newHashSet();
+      for (RouterPlan plan : plans) {
+         checkArgument(routerIds.add(plan.getRouterId()), "more than one plan for router %s", plan.getRouterId());
+      }
+
+      Map<String, ListenableFuture<RouterPlanResult>> futures = Maps.newLinkedHashMap();
+      for (RouterPlan plan : plans) {
+         futures.put(plan.getRouterId(), submit(region, plan));
+      }
+
+      ImmutableMap.Builder<String, RouterPlanResult> results = ImmutableMap.builder();
+      for (Map.Entry<String, ListenableFuture<RouterPlanResult>> entry : futures.entrySet()) {
+         results.put(entry.getKey(), Futures.getUnchecked(entry.getValue()));
+      }
+      return results.build();
+   }
+
+   /**
+    * Schedules a plan on the user executor. The plan starts once no other plan is being applied to the same router.
+    *
+    * @param region the region the router lives in
+    * @param plan the plan to apply
+    * @return the future result of the plan
+    */
+   public ListenableFuture<RouterPlanResult> submit(final String region, final RouterPlan plan) {
+      checkNotNull(region, "region");
+      checkNotNull(plan, "plan");
+      Optional<RouterApi> routerApi = api.getRouterApi(region);
+      checkState(routerApi.isPresent(), "router extension is not available in region %s", region);
+      final RouterApi routers = routerApi.get();
+      final PortApi ports = api.getPortApi(region);
+
+      return userExecutor.submit(new Callable<RouterPlanResult>() {
+         @Override
+         public RouterPlanResult call() {
+            Lock lock = routerLocks.get(region + "/" + plan.getRouterId());
+            lock.lock();
+            try {
+               return apply(routers, ports, plan);
+            } finally {
+               lock.unlock();
+            }
+         }
+
+         @Override
+         public String toString() {
+            return "applyRouterPlan(" + region + ", " + plan.getRouterId() + ")";
+         }
+      });
+   }
+
+   private RouterPlanResult apply(RouterApi routerApi, PortApi portApi, RouterPlan plan) {
+      String routerId = plan.getRouterId();
+      boolean gatewayUpdated = false;
+      List<RouterInterface> added = Lists.newArrayList();
+      List<String> removed = Lists.newArrayList();
+      Map<String, Exception> failures = Maps.newLinkedHashMap();
+
+      if (plan.getExternalGatewayInfo() != null) {
+         try {
+            Router router = routerApi.get(routerId);
+            if (router == null) {
+               failures.put("router:" + routerId, new ResourceNotFoundException("router " + routerId + " not found"));
+               return new RouterPlanResult(routerId, false, added, removed, failures);
+            }
+            if (!gatewayMatches(plan.getExternalGatewayInfo(), router.getExternalGatewayInfo())) {
+               routerApi.update(routerId, Router.updateBuilder().externalGatewayInfo(plan.getExternalGatewayInfo()).build());
+               gatewayUpdated = true;
+            }
+         } catch (RuntimeException e) {
+            logger.warn(e, "<< failed to update gateway of router %s", routerId);
+            failures.put("gateway", e);
+         }
+      }
+
+      Map<String, Set<String>> subnetsByPort;
+      try {
+         subnetsByPort = listInterfaces(portApi, routerId);
+      } catch (RuntimeException e) {
+         logger.warn(e, "<< failed to list interfaces of router %s", routerId);
+         failures.put("interfaces", e);
+         return new RouterPlanResult(routerId, gatewayUpdated, added, removed, failures);
+      }
+
+      Set<String> attachedSubnets = Sets.newHashSet();
+      for (Set<String> subnetIds : subnetsByPort.values()) {
+         attachedSubnets.addAll(subnetIds);
+      }
+
+      for (String subnetId : plan.getSubnetIds()) {
+         if (attachedSubnets.contains(subnetId))
+            continue;
+         try {
+            added.add(routerApi.addInterfaceForSubnet(routerId, subnetId));
+         } catch (RuntimeException e) {
+            logger.warn(e, "<< failed to add subnet %s to router %s", subnetId, routerId);
+            failures.put("subnet:" + subnetId, e);
+         }
+      }
+
+      for (String portId : plan.getPortIds()) {
+         if (subnetsByPort.containsKey(portId))
+            continue;
+         try {
+            added.add(routerApi.addInterfaceForPort(routerId, portId));
+         } catch (RuntimeException e) {
+            logger.warn(e, "<< failed to add port %s to router %s", portId, routerId);
+            failures.put("port:" + portId, e);
+         }
+      }
+
+      if (plan.isRemoveUndeclared()) {
+         for (Map.Entry<String, Set<String>> entry : subnetsByPort.entrySet()) {
+            String portId = entry.getKey();
+            if (plan.getPortIds().contains(portId) || !Collections.disjoint(entry.getValue(), plan.getSubnetIds()))
+               continue;
+            try {
+               if (routerApi.removeInterfaceForPort(routerId, portId))
+                  removed.add(portId);
+            } catch (RuntimeException e) {
+               logger.warn(e, "<< failed to remove port %s from router %s", portId, routerId);
+               failures.put("remove:" + portId, e);
+            }
+         }
+      }
+
+      return new RouterPlanResult(routerId, gatewayUpdated, added, removed, failures);
+   }
+
+   /**
+    * @return the subnets of each interface port of the router, keyed by port id
+    */
+   private static Map<String, Set<String>> listInterfaces(PortApi portApi, String routerId) {
+      Multimap<String, String> filter = ImmutableMultimap.of("device_id", routerId,
+            "device_owner", ROUTER_INTERFACE_DEVICE_OWNER);
+      Map<String, Set<String>> subnetsByPort = Maps.newLinkedHashMap();
+
+      Ports page = portApi.list(new PaginationOptions().queryParameters(filter));
+      while (true) {
+         for (Port port : page) {
+            // the filter is only honored by Neutron for the attributes it knows, so check again
+            if (!routerId.equals(port.getDeviceId()) || !ROUTER_INTERFACE_DEVICE_OWNER.equals(port.getDeviceOwner()))
+               continue;
+            Set<String> subnetIds = Sets.newHashSet();
+            if (port.getFixedIps() != null) {
+               for (IP ip : port.getFixedIps()) {
+                  if (ip.getSubnetId() != null)
+                     subnetIds.add(ip.getSubnetId());
+               }
+            }
+            subnetsByPort.put(port.getId(), subnetIds);
+         }
+         // the next marker holds the options of the next link, filter included
+         Optional<Object> next = page.nextMarker();
+         if (!next.isPresent())
+            return subnetsByPort;
+         page = portApi.list(PaginationOptions.class.cast(next.get()));
+      }
+   }
+
+   private static boolean gatewayMatches(ExternalGatewayInfo desired, ExternalGatewayInfo current) {
+      if (current == null)
+         return false;
+      return Objects.equal(desired.getNetworkId(), current.getNetworkId())
+            && (desired.getEnableSnat() == null || desired.getEnableSnat().equals(current.getEnableSnat()));
+   }
+}
@@ -0,0 +1,125 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.neutron.v2.utils;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Map;
+
+import org.jclouds.openstack.neutron.v2.domain.RouterInterface;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * The outcome of applying a {@link RouterPlan}.
+ * <p/>
+ * A plan is applied step by step; a failing step is recorded in {@link #getFailures()} and does not prevent the
+ * remaining steps from being attempted.
+ */
+public class RouterPlanResult {
+
+   private final String routerId;
+   private final boolean gatewayUpdated;
+   private final ImmutableList<RouterInterface> addedInterfaces;
+   private final ImmutableList<String> removedPortIds;
+   private final ImmutableMap<String, Exception> failures;
+
+   RouterPlanResult(String routerId, boolean gatewayUpdated, Iterable<RouterInterface> addedInterfaces,
+         Iterable<String> removedPortIds, Map<String, Exception> failures) {
+      this.routerId = checkNotNull(routerId, "routerId");
+      this.gatewayUpdated = gatewayUpdated;
+      this.addedInterfaces = ImmutableList.copyOf(addedInterfaces);
+      this.removedPortIds = ImmutableList.copyOf(removedPortIds);
+      this.failures = ImmutableMap.copyOf(failures);
+   }
+
+   /**
+    * @return the id of the router the plan was applied to
+    */
+   public String getRouterId() {
+      return routerId;
+   }
+
+   /**
+    * @return true if the external gateway of the router was changed
+    */
+   public boolean isGatewayUpdated() {
+      return gatewayUpdated;
+   }
+
+   /**
+    * @return the interfaces added to the router
+    */
+   public ImmutableList<RouterInterface> getAddedInterfaces() {
+      return addedInterfaces;
+   }
+
+   /**
+    * @return the ids of the interface ports removed from the router
+    */
+   public ImmutableList<String> getRemovedPortIds() {
+      return removedPortIds;
+   }
+
+   /**
+    * @return the failed steps, keyed by a description of the step such as {@code subnet:<id>}
+    */
+   public ImmutableMap<String, Exception> getFailures() {
+      return failures;
+   }
+
+   /**
+    * @return true if every step of the plan succeeded
+    */
+   public boolean isSuccessful() {
+      return failures.isEmpty();
+   }
+
+   @Override
+   public boolean equals(Object o) {
+      if (this == o)
+         return true;
+      if (o == null || getClass() != o.getClass())
+         return false;
+
+      RouterPlanResult that = (RouterPlanResult) o;
+
+      return Objects.equal(this.routerId, that.routerId) &&
+            this.gatewayUpdated == that.gatewayUpdated &&
+            Objects.equal(this.addedInterfaces, that.addedInterfaces) &&
+            Objects.equal(this.removedPortIds, that.removedPortIds) &&
+            Objects.equal(this.failures, that.failures);
+   }
+
+   @Override
+   public int hashCode() {
+      return Objects.hashCode(routerId, gatewayUpdated, addedInterfaces, removedPortIds, failures);
+   }
+
+   @Override
+   public String toString() {
+      return Objects.toStringHelper(this)
+            .add("routerId", routerId)
+            .add("gatewayUpdated", gatewayUpdated)
+            .add("addedInterfaces", addedInterfaces)
+            .add("removedPortIds", removedPortIds)
+            .add("failures", failures)
+            .toString();
+   }
+}
@@ -0,0 +1,668 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.neutron.v2.internal;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.LinkedListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
+import com.google.common.io.Resources;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+/**
+ * A stateful, in-memory stand-in for the Neutron v2.0 API, to be installed on a MockWebServer.
+ * <p/>
+ * Unlike the canned responses enqueued by the mock tests, resources created through the api are kept and can be
+ * read, listed, updated and deleted again. Lists are paginated with real markers, so the pagers can be exercised
+ * over any number of resources; use {@link #seed(Resource, JsonObject)} to load large data sets without a round trip
+ * per resource.
+ * <p/>
+ * Covers networks, subnets, ports, routers (including interfaces), floating IPs, security groups and rules,
+ * LBaaS v1 and FWaaS. Authentication and the extension list are answered from the {@code access.json} and
+ * {@code extension_list.json} test resources.
+ *
+ * <pre>
+ * MockWebServer server = mockOpenStackServer();
+ * InMemoryNeutronDispatcher neutron = new InMemoryNeutronDispatcher(server.getUrl("/"));
+ * server.setDispatcher(neutron);
+ * </pre>
+ */
+public class InMemoryNeutronDispatcher extends Dispatcher {
+
+   public static final String API_VERSION = "/v2.0";
+   public static final String TENANT_ID = "da0d12be20394afb851716e10a49e4a7";
+
+   /**
+    * The resource collections served, with the attributes a new resource gets unless the request sets them.
+    */
+   public enum Resource {
+      NETWORKS("/networks", "networks", "network",
+            "{\"name\":\"\",\"status\":\"ACTIVE\",\"admin_state_up\":true,\"shared\":false,\"subnets\":[]}"),
+      SUBNETS("/subnets", "subnets", "subnet",
+            "{\"name\":\"\",\"ip_version\":4,\"enable_dhcp\":true,\"gateway_ip\":null,\"allocation_pools\":[],"
+                  + "\"dns_nameservers\":[],\"host_routes\":[]}"),
+      PORTS("/ports", "ports", "port",
+            "{\"name\":\"\",\"status\":\"ACTIVE\",\"admin_state_up\":true,\"device_id\":\"\",\"device_owner\":\"\","
+                  + "\"fixed_ips\":[],\"security_groups\":[]}"),
+      ROUTERS("/routers", "routers", "router",
+            "{\"name\":\"\",\"status\":\"ACTIVE\",\"admin_state_up\":true,\"external_gateway_info\":null}"),
+      FLOATING_IPS("/floatingips", "floatingips", "floatingip",
+            "{\"port_id\":null,\"router_id\":null,\"fixed_ip_address\":null}"),
+      SECURITY_GROUPS("/security-groups", "security_groups", "security_group",
+            "{\"name\":\"\",\"description\":\"\",\"security_group_rules\":[]}"),
+      SECURITY_GROUP_RULES("/security-group-rules", "security_group_rules", "security_group_rule",
+            "{\"direction\":\"ingress\",\"ethertype\":\"IPv4\",\"protocol\":null,\"port_range_min\":null,"
+                  + "\"port_range_max\":null,\"remote_ip_prefix\":null,\"remote_group_id\":null}"),
+      POOLS("/lb/pools", "pools", "pool",
+            "{\"name\":\"\",\"description\":\"\",\"status\":\"ACTIVE\",\"admin_state_up\":true,\"vip_id\":null,"
+                  + "\"members\":[],\"health_monitors\":[],\"health_monitors_status\":[]}"),
+      MEMBERS("/lb/members", "members", "member",
+            "{\"status\":\"ACTIVE\",\"admin_state_up\":true,\"weight\":1}"),
+      HEALTH_MONITORS("/lb/health_monitors", "health_monitors", "health_monitor",
+            "{\"status\":\"ACTIVE\",\"admin_state_up\":true,\"pools\":[]}"),
+      VIPS("/lb/vips", "vips", "vip",
+            "{\"name\":\"\",\"description\":\"\",\"status\":\"ACTIVE\",\"admin_state_up\":true,"
+                  + "\"connection_limit\":-1,\"session_persistence\":null}"),
+      FIREWALLS("/fw/firewalls", "firewalls", "firewall",
+            "{\"name\":\"\",\"description\":\"\",\"status\":\"ACTIVE\",\"admin_state_up\":true,"
+                  + "\"firewall_policy_id\":null}"),
+      FIREWALL_POLICIES("/fw/firewall_policies", "firewall_policies", "firewall_policy",
+            "{\"name\":\"\",\"description\":\"\",\"shared\":false,\"audited\":false,\"firewall_rules\":[],"
+                  + "\"firewall_list\":[]}"),
+      FIREWALL_RULES("/fw/firewall_rules", "firewall_rules", "firewall_rule",
+            "{\"name\":\"\",\"description\":\"\",\"action\":\"deny\",\"enabled\":true,\"shared\":false,"
+                  + "\"ip_version\":4,\"protocol\":null,\"firewall_policy_id\":null,\"position\":null}");
+
+      private final String path;
+      private final String plural;
+      private final String singular;
+      private final JsonObject defaults;
+
+      private Resource(String path, String plural, String singular, String defaults) {
+         this.path = path;
+         this.plural = plural;
+         this.singular = singular;
+         this.defaults = new JsonParser().parse(defaults).getAsJsonObject();
+      }
+
+      public String getPath() {
+         return path;
+      }
+
+      public String getPlural() {
+         return plural;
+      }
+
+      public String getSingular() {
+         return singular;
+      }
+   }
+
+   private static final String ROUTER_INTERFACE = "network:router_interface";
+   private static final List<String> PAGING_PARAMETERS = Lists.newArrayList("limit", "marker", "page_reverse",
+         "fields", "sort_key", "sort_dir");
+
+   private final String baseUrl;
+   private final int maxPageSize;
+   private final Map<Resource, ConcurrentNavigableMap<String, JsonObject>> store =
+         new EnumMap<Resource, ConcurrentNavigableMap<String, JsonObject>>(Resource.class);
+   private final AtomicLong sequence = new AtomicLong();
+   private final AtomicLong requestCount = new AtomicLong();
+   private final String access;
+   private final String extensions;
+
+   /**
+    * @param serverUrl the url of the MockWebServer the dispatcher is installed on
+    */
+   public InMemoryNeutronDispatcher(URL serverUrl) {
+      this(serverUrl, 1000);
+   }
+
+   /**
+    * @param serverUrl the url of the MockWebServer the dispatcher is installed on
+    * @param maxPageSize the largest page returned by a list, whatever limit is requested
+    */
+   public InMemoryNeutronDispatcher(URL serverUrl, int maxPageSize) {
+      checkArgument(maxPageSize > 0, "maxPageSize must be positive");
+      String url = checkNotNull(serverUrl, "serverUrl").toString();
+      this.baseUrl = url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+      this.maxPageSize = maxPageSize;
+      for (Resource resource : Resource.values()) {
+         store.put(resource, new ConcurrentSkipListMap<String, JsonObject>());
+      }
+      this.access = resource("/access.json").replace("\"URL", "\"" + baseUrl);
+      this.extensions = resource("/extension_list.json");
+   }
+
+   /**
+    * Stores a resource directly, without going through the api.
+    *
+    * @param resource the collection to add to
+    * @param attributes the attributes of the resource; defaults are applied as for a create
+    * @return the stored resource, including its generated id
+    */
+   public JsonObject seed(Resource resource, JsonObject attributes) {
+      synchronized (this) {
+         return create(resource, attributes);
+      }
+   }
+
+   /**
+    * @return the stored resource, or null if there is none with this id
+    */
+   public JsonObject get(Resource resource, String id) {
+      return store.get(resource).get(id);
+   }
+
+   /**
+    * @return the number of stored resources of a collection
+    */
+   public int size(Resource resource) {
+      return store.get(resource).size();
+   }
+
+   /**
+    * @return the number of api requests answered, authentication included
+    */
+   public long getRequestCount() {
+      return requestCount.get();
+   }
+
+   @Override
+   public MockResponse dispatch(RecordedRequest request) {
+      requestCount.incrementAndGet();
+      try {
+         return route(request);
+      } catch (RuntimeException e) {
+         return error(400, e.getMessage());
+      }
+   }
+
+   private MockResponse route(RecordedRequest request) {
+      String method = request.getMethod();
+      String path = request.getPath();
+      Multimap<String, String> query = LinkedListMultimap.create();
+      int separator = path.indexOf('?');
+      if (separator >= 0) {
+         query = parseQuery(path.substring(separator + 1));
+         path = path.substring(0, separator);
+      }
+
+      if ("POST".equals(method) && path.endsWith("/tokens"))
+         return json(200, access);
+      if (!path.startsWith(API_VERSION))
+         return error(404, "no such path " + path);
+      path = path.substring(API_VERSION.length());
+      if ("GET".equals(method) && (path.equals("/extensions") || path.equals("/extensions/")))
+         return json(200, extensions);
+
+      for (Resource resource : Resource.values()) {
+         if (path.equals(resource.path)) {
+            if ("GET".equals(method))
+               return list(resource, query);
+            if ("POST".equals(method))
+               return post(resource, request);
+         } else if (path.startsWith(resource.path + "/")) {
+            List<String> segments = Lists.newArrayList(Splitter.on('/').split(path.substring(resource.path.length() + 1)));
+            String id = segments.get(0);
+            if (segments.size() == 1) {
+               if ("GET".equals(method))
+                  return show(resource, id);
+               if ("PUT".equals(method))
+                  return update(resource, id, request);
+               if ("DELETE".equals(method))
+                  return delete(resource, id);
+            } else {
+               return action(resource, id, segments.subList(1, segments.size()), method, request);
+            }
+         }
+      }
+      return error(404, "no such path " + path);
+   }
+
+   private MockResponse list(Resource resource, Multimap<String, String> query) {
+      int limit = maxPageSize;
+      if (query.containsKey("limit"))
+         limit = Math.min(limit, Math.max(1, Integer.parseInt(query.get("limit").iterator().next())));
+      NavigableMap<String, JsonObject> view = store.get(resource);
+      if (query.containsKey("marker"))
+         view = view.tailMap(query.get("marker").iterator().next(), false);
+
+      JsonArray page = new JsonArray();
+      String last = null;
+      boolean more = false;
+      for (JsonObject candidate : view.values()) {
+         if (!matches(candidate, query))
+            continue;
+         if (page.size() == limit) {
+            more = true;
+            break;
+         }
+         page.add(candidate);
+         last = candidate.get("id").getAsString();
+      }
+
+      JsonArray links = new JsonArray();
+      if (more) {
+         StringBuilder href = new StringBuilder(baseUrl).append(API_VERSION).append(resource.path)
+               .append("?limit=").append(limit).append("&marker=").append(encode(last));
+         for (Map.Entry<String, String> filter : query.entries()) {
+            if (!filter.getKey().equals("limit") && !filter.getKey().equals("marker"))
+               href.append('&').append(encode(filter.getKey())).append('=').append(encode(filter.getValue()));
+         }
+         JsonObject next = new JsonObject();
+         next.addProperty("href", href.toString());
+         next.addProperty("rel", "next");
+         links.add(next);
+      }
+
+      JsonObject body = new JsonObject();
+      body.add(resource.plural, page);
+      body.add(resource.plural + "_links", links);
+      return json(200, body.toString());
+   }
+
+   private MockResponse show(Resource resource, String id) {
+      JsonObject found = store.get(resource).get(id);
+      if (found == null)
+         return notFound(resource, id);
+      return json(200, wrap(resource.singular, found));
+   }
+
+   private MockResponse post(Resource resource, RecordedRequest request) {
+      JsonObject body = parse(request);
+      synchronized (this) {
+         if (body.has(resource.plural)) {
+            JsonArray created = new JsonArray();
+            for (JsonElement element : body.getAsJsonArray(resource.plural)) {
+               created.add(create(resource, element.getAsJsonObject()));
+            }
+            return json(201, wrap(resource.plural, created));
+         }
+         if (!body.has(resource.singular))
+            return error(400, "expected " + resource.singular + " or " + resource.plural);
+         return json(201, wrap(resource.singular, create(resource, body.getAsJsonObject(resource.singular))));
+      }
+   }
+
+   private MockResponse update(Resource resource, String id, RecordedRequest request) {
+      JsonObject body = parse(request);
+      if (!body.has(resource.singular))
+         return error(400, "expected " + resource.singular);
+      synchronized (this) {
+         JsonObject existing = store.get(resource).get(id);
+         if (existing == null)
+            return notFound(resource, id);
+         JsonObject updated = copy(existing);
+         for (Map.Entry<String, JsonElement> attribute : body.getAsJsonObject(resource.singular).entrySet()) {
+            if (!attribute.getKey().equals("id"))
+               updated.add(attribute.getKey(), attribute.getValue());
+         }
+         store.get(resource).put(id, updated);
+         return json(200, wrap(resource.singular, updated));
+      }
+   }
+
+   private MockResponse delete(Resource resource, String id) {
+      synchronized (this) {
+         JsonObject existing = store.get(resource).get(id);
+         if (existing == null)
+            return notFound(resource, id);
+         if (resource == Resource.NETWORKS) {
+            for (JsonObject port : store.get(Resource.PORTS).values()) {
+               if (id.equals(string(port, "network_id")))
+                  return error(409, "network " + id + " is in use by port " + string(port, "id"));
+            }
+            for (JsonElement subnetId : existing.getAsJsonArray("subnets")) {
+               store.get(Resource.SUBNETS).remove(subnetId.getAsString());
+            }
+         } else if (resource == Resource.SUBNETS) {
+            updateArray(Resource.NETWORKS, string(existing, "network_id"), "subnets", id, false);
+         } else if (resource == Resource.SECURITY_GROUP_RULES) {
+            removeRule(string(existing, "security_group_id"), id);
+         } else if (resource == Resource.MEMBERS) {
+            updateArray(Resource.POOLS, string(existing, "pool_id"), "members", id, false);
+         }
+         store.get(resource).remove(id);
+         return new MockResponse().setResponseCode(204);
+      }
+   }
+
+   private MockResponse action(Resource resource, String id, List<String> action, String method,
+         RecordedRequest request) {
+      synchronized (this) {
+         JsonObject existing = store.get(resource).get(id);
+         if (existing == null)
+            return notFound(resource, id);
+         if (resource == Resource.ROUTERS && action.size() == 1 && "PUT".equals(method)) {
+            if (action.get(0).equals("add_router_interface"))
+               return addRouterInterface(id, parse(request));
+            if (action.get(0).equals("remove_router_interface"))
+               return removeRouterInterface(id, parse(request));
+         } else if (resource == Resource.FIREWALL_POLICIES && action.size() == 1 && "PUT".equals(method)) {
+            String ruleId = string(parse(request), "firewall_rule_id");
+            JsonObject rule = store.get(Resource.FIREWALL_RULES).get(ruleId);
+            if (rule == null)
+               return notFound(Resource.FIREWALL_RULES, ruleId);
+            boolean insert = action.get(0).equals("insert_rule");
+            if (insert || action.get(0).equals("remove_rule")) {
+               JsonObject updatedRule = copy(rule);
+               updatedRule.add("firewall_policy_id", insert ? new JsonPrimitive(id) : JsonNull.INSTANCE);
+               store.get(Resource.FIREWALL_RULES).put(ruleId, updatedRule);
+               return json(200, updateArray(Resource.FIREWALL_POLICIES, id, "firewall_rules", ruleId, insert).toString());
+            }
+         } else if (resource == Resource.POOLS && action.get(0).equals("health_monitors")) {
+            if (action.size() == 1 && "POST".equals(method)) {
+               String monitorId = string(parse(request).getAsJsonObject("health_monitor"), "id");
+               if (store.get(Resource.HEALTH_MONITORS).get(monitorId) == null)
+                  return notFound(Resource.HEALTH_MONITORS, monitorId);
+               updateArray(Resource.POOLS, id, "health_monitors", monitorId, true);
+               updateArray(Resource.HEALTH_MONITORS, monitorId, "pools", id, true);
+               return json(201, "{\"health_monitor\":{}}");
+            }
+            if (action.size() == 2 && "DELETE".equals(method)) {
+               String monitorId = action.get(1);
+               updateArray(Resource.POOLS, id, "health_monitors", monitorId, false);
+               updateArray(Resource.HEALTH_MONITORS, monitorId, "pools", id, false);
+               return new MockResponse().setResponseCode(204);
+            }
+         }
+         return error(404, "no such action " + action + " on " + resource.singular);
+      }
+   }
+
+   private MockResponse addRouterInterface(String routerId, JsonObject body) {
+      JsonObject port;
+      String subnetId = string(body, "subnet_id");
+      if (subnetId != null) {
+         JsonObject subnet = store.get(Resource.SUBNETS).get(subnetId);
+         if (subnet == null)
+            return notFound(Resource.SUBNETS, subnetId);
+         if (findInterface(routerId, subnetId, null) != null)
+            return error(400, "router " + routerId + " already has an interface on subnet " + subnetId);
+         JsonObject ip = new JsonObject();
+         ip.addProperty("subnet_id", subnetId);
+         ip.add("ip_address", subnet.get("gateway_ip"));
+         JsonArray fixedIps = new JsonArray();
+         fixedIps.add(ip);
+         JsonObject attributes = new JsonObject();
+         attributes.addProperty("network_id", string(subnet, "network_id"));
+         attributes.add("fixed_ips", fixedIps);
+         attributes.addProperty("device_id", routerId);
+         attributes.addProperty("device_owner", ROUTER_INTERFACE);
+         port = create(Resource.PORTS, attributes);
+      } else {
+         String portId = string(body, "port_id");
+         JsonObject existing = portId == null ? null : store.get(Resource.PORTS).get(portId);
+         if (existing == null)
+            return notFound(Resource.PORTS, portId);
+         if (!"".equals(string(existing, "device_id")))
+            return error(409, "port " + portId + " is in use by " + string(existing, "device_id"));
+         port = copy(existing);
+         port.addProperty("device_id", routerId);
+         port.addProperty("device_owner", ROUTER_INTERFACE);
+         store.get(Resource.PORTS).put(portId, port);
+         subnetId = firstSubnet(port);
+      }
+
+      JsonObject routerInterface = new JsonObject();
+      routerInterface.addProperty("id", routerId);
+      routerInterface.addProperty("tenant_id", string(port, "tenant_id"));
+      routerInterface.addProperty("subnet_id", subnetId);
+      routerInterface.addProperty("port_id", string(port, "id"));
+      return json(200, routerInterface.toString());
+   }
+
+   private MockResponse removeRouterInterface(String routerId, JsonObject body) {
+      String subnetId = string(body, "subnet_id");
+      String portId = string(body, "port_id");
+      JsonObject port = findInterface(routerId, subnetId, portId);
+      if (port == null)
+         return error(404, "router " + routerId + " has no such interface");
+      store.get(Resource.PORTS).remove(string(port, "id"));
+
+      JsonObject routerInterface = new JsonObject();
+      routerInterface.addProperty("id", routerId);
+      routerInterface.addProperty("tenant_id", string(port, "tenant_id"));
+      routerInterface.addProperty("subnet_id", firstSubnet(port));
+      routerInterface.addProperty("port_id", string(port, "id"));
+      return json(200, routerInterface.toString());
+   }
+
+   private JsonObject findInterface(String routerId, String subnetId, String portId) {
+      if (portId != null) {
+         JsonObject port = store.get(Resource.PORTS).get(portId);
+         return port != null && routerId.equals(string(port, "device_id")) ? port : null;
+      }
+      for (JsonObject port : store.get(Resource.PORTS).values()) {
+         if (routerId.equals(string(port, "device_id")) && ROUTER_INTERFACE.equals(string(port, "device_owner"))
+               && subnetId != null && subnetId.equals(firstSubnet(port)))
+            return port;
+      }
+      return null;
+   }
+
+   /**
+    * Must be called holding the lock on this.
+    */
+   private JsonObject create(Resource resource, JsonObject attributes) {
+      JsonObject created = copy(resource.defaults);
+      for (Map.Entry<String, JsonElement> attribute : attributes.entrySet()) {
+         created.add(attribute.getKey(), attribute.getValue());
+      }
+      String id = UUID.randomUUID().toString();
+      created.addProperty("id", id);
+      if (!created.has("tenant_id"))
+         created.addProperty("tenant_id", TENANT_ID);
+
+      long n = sequence.incrementAndGet();
+      switch (resource) {
+         case PORTS:
+            if (!created.has("mac_address"))
+               created.addProperty("mac_address", String.format("fa:16:3e:%02x:%02x:%02x",
+                     (n >> 16) & 0xff, (n >> 8) & 0xff, n & 0xff));
+            break;
+         case FLOATING_IPS:
+            if (!created.has("floating_ip_address"))
+               created.addProperty("floating_ip_address", String.format("172.%d.%d.%d",
+                     16 + ((n >> 16) & 0x0f), (n >> 8) & 0xff, n & 0xff));
+            break;
+         case SUBNETS:
+            updateArray(Resource.NETWORKS, string(created, "network_id"), "subnets", id, true);
+            break;
+         case SECURITY_GROUP_RULES:
+            String groupId = string(created, "security_group_id");
+            JsonObject group = groupId == null ? null : store.get(Resource.SECURITY_GROUPS).get(groupId);
+            if (group != null) {
+               JsonObject updatedGroup = copy(group);
+               JsonArray rules = copy(group.getAsJsonArray("security_group_rules"));
+               rules.add(created);
+               updatedGroup.add("security_group_rules", rules);
+               store.get(Resource.SECURITY_GROUPS).put(groupId, updatedGroup);
+            }
+            break;
+         case MEMBERS:
+            updateArray(Resource.POOLS, string(created, "pool_id"), "members", id, true);
+            break;
+         default:
+            break;
+      }
+      store.get(resource).put(id, created);
+      return created;
+   }
+
+   private void removeRule(String groupId, String ruleId) {
+      JsonObject group = groupId == null ? null : store.get(Resource.SECURITY_GROUPS).get(groupId);
+      if (group == null)
+         return;
+      JsonArray rules = new JsonArray();
+      for (JsonElement rule : group.getAsJsonArray("security_group_rules")) {
+         if (!ruleId.equals(string(rule.getAsJsonObject(), "id")))
+            rules.add(rule);
+      }
+      JsonObject updatedGroup = copy(group);
+      updatedGroup.add("security_group_rules", rules);
+      store.get(Resource.SECURITY_GROUPS).put(groupId, updatedGroup);
+   }
+
+   /**
+    * Adds a value to, or removes it from, an array attribute of a stored resource. Stored resources are never
+    * modified in place, so that concurrent readers always see a consistent copy.
+    *
+    * @return the updated resource, or null if there is no such resource
+    */
+   private JsonObject updateArray(Resource resource, String id, String attribute, String value, boolean add) {
+      JsonObject existing = id == null ? null : store.get(resource).get(id);
+      if (existing == null)
+         return null;
+      JsonArray values = new JsonArray();
+      for (JsonElement element : existing.getAsJsonArray(attribute)) {
+         if (!value.equals(element.getAsString()))
+            values.add(element);
+      }
+      if (add)
+         values.add(new JsonPrimitive(value));
+      JsonObject updated = copy(existing);
+      updated.add(attribute, values);
+      store.get(resource).put(id, updated);
+      return updated;
+   }
+
+   private static boolean matches(JsonObject candidate, Multimap<String, String> query) {
+      for (String key : query.keySet()) {
+         if (PAGING_PARAMETERS.contains(key))
+            continue;
+         JsonElement value = candidate.get(key);
+         if (value == null || !value.isJsonPrimitive() || !query.get(key).contains(value.getAsString()))
+            return false;
+      }
+      return true;
+   }
+
+   private static String firstSubnet(JsonObject port) {
+      Iterator<JsonElement> ips = port.getAsJsonArray("fixed_ips").iterator();
+      return ips.hasNext() ? string(ips.next().getAsJsonObject(), "subnet_id") : null;
+   }
+
+   private static String string(JsonObject object, String attribute) {
+      JsonElement value = object.get(attribute);
+      return value == null || value.isJsonNull() ? null : value.getAsString();
+   }
+
+   private static JsonObject copy(JsonObject object) {
+      JsonObject copy = new JsonObject();
+      for (Map.Entry<String, JsonElement> attribute : object.entrySet()) {
+         copy.add(attribute.getKey(), attribute.getValue());
+      }
+      return copy;
+   }
+
+   private static JsonArray copy(JsonArray array) {
+      JsonArray copy = new JsonArray();
+      copy.addAll(array);
+      return copy;
+   }
+
+   private static String wrap(String key, JsonElement value) {
+      JsonObject wrapper = new JsonObject();
+      wrapper.add(key, value);
+      return wrapper.toString();
+   }
+
+   private static JsonObject parse(RecordedRequest request) {
+      return new JsonParser().parse(request.getUtf8Body()).getAsJsonObject();
+   }
+
+   private static Multimap<String, String> parseQuery(String query) {
+      Multimap<String, String> parameters = LinkedListMultimap.create();
+      for (String parameter : Splitter.on('&').omitEmptyStrings().split(query)) {
+         int equals = parameter.indexOf('=');
+         if (equals < 0)
+            parameters.put(decode(parameter), "");
+         else
+            parameters.put(decode(parameter.substring(0, equals)), decode(parameter.substring(equals + 1)));
+      }
+      return parameters;
+   }
+
+   private static String decode(String value) {
+      try {
+         return URLDecoder.decode(value, "UTF-8");
+      } catch (UnsupportedEncodingException e) {
+         throw new AssertionError(e);
+      }
+   }
+
+   private static String encode(String value) {
+      try {
+         return URLEncoder.encode(value, "UTF-8");
+      } catch (UnsupportedEncodingException e) {
+         throw new AssertionError(e);
+      }
+   }
+
+   private static String resource(String name) {
+      try {
+         return Resources.toString(InMemoryNeutronDispatcher.class.getResource(name), Charsets.UTF_8);
+      } catch (IOException e) {
+         throw new IllegalStateException("missing test resource " + name, e);
+      }
+   }
+
+   private static MockResponse notFound(Resource resource, String id) {
+      return error(404, resource.singular + " " + id + " could not be found");
+   }
+
+   private static MockResponse error(int code, String message) {
+      JsonObject error = new JsonObject();
+      error.addProperty("message", message);
+      return json(code, wrap("NeutronError", error));
+   }
+
+   private static MockResponse json(int code, String body) {
+      return new MockResponse().setResponseCode(code)
+            .addHeader("Content-Type", "application/json; charset=UTF-8")
+            .setBody(body);
+   }
+}
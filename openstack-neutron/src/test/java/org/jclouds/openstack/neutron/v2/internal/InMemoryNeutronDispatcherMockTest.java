@@ -0,0 +1,184 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.neutron.v2.internal;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+
+import org.jclouds.openstack.neutron.v2.NeutronApi;
+import org.jclouds.openstack.neutron.v2.domain.CreateFirewallPolicy;
+import org.jclouds.openstack.neutron.v2.domain.CreateFirewallRule;
+import org.jclouds.openstack.neutron.v2.domain.FirewallPolicy;
+import org.jclouds.openstack.neutron.v2.domain.FirewallRule;
+import org.jclouds.openstack.neutron.v2.domain.Network;
+import org.jclouds.openstack.neutron.v2.domain.Port;
+import org.jclouds.openstack.neutron.v2.domain.Ports;
+import org.jclouds.openstack.neutron.v2.domain.Router;
+import org.jclouds.openstack.neutron.v2.domain.RouterInterface;
+import org.jclouds.openstack.neutron.v2.domain.Subnet;
+import org.jclouds.openstack.neutron.v2.extensions.FWaaSApi;
+import org.jclouds.openstack.neutron.v2.extensions.RouterApi;
+import org.jclouds.openstack.neutron.v2.features.NetworkApi;
+import org.jclouds.openstack.neutron.v2.features.PortApi;
+import org.jclouds.openstack.neutron.v2.internal.InMemoryNeutronDispatcher.Resource;
+import org.jclouds.openstack.v2_0.options.PaginationOptions;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.gson.JsonObject;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+
+/**
+ * Tests the in-memory Neutron stand-in, driven through NeutronApi
+ */
+@Test
+public class InMemoryNeutronDispatcherMockTest extends BaseNeutronApiMockTest {
+
+   private static final int NETWORK_COUNT = 100000;
+
+   public void testListFollowsMarkersOverLargeCollection() throws IOException {
+      MockWebServer server = mockOpenStackServer();
+      InMemoryNeutronDispatcher neutron = new InMemoryNeutronDispatcher(server.getUrl("/"));
+      server.setDispatcher(neutron);
+      for (int i = 0; i < NETWORK_COUNT; i++) {
+         JsonObject network = new JsonObject();
+         network.addProperty("name", "network-" + i);
+         neutron.seed(Resource.NETWORKS, network);
+      }
+
+      try {
+         NeutronApi neutronApi = api(server.getUrl("/").toString(), "openstack-neutron", overrides);
+         NetworkApi api = neutronApi.getNetworkApi("RegionOne");
+
+         Set<String> ids = Sets.newHashSet();
+         String previous = "";
+         for (Network network : api.list().concat()) {
+            assertTrue(network.getId().compareTo(previous) > 0, "networks are listed in marker order");
+            previous = network.getId();
+            ids.add(network.getId());
+         }
+
+         /*
+          * Check response
+          */
+         assertEquals(ids.size(), NETWORK_COUNT);
+         // authentication and one request per page of 1000
+         assertEquals(neutron.getRequestCount(), 1 + NETWORK_COUNT / 1000);
+      } finally {
+         server.shutdown();
+      }
+   }
+
+   public void testCreateFilterAndDelete() throws IOException {
+      MockWebServer server = mockOpenStackServer();
+      InMemoryNeutronDispatcher neutron = new InMemoryNeutronDispatcher(server.getUrl("/"), 2);
+      server.setDispatcher(neutron);
+
+      try {
+         NeutronApi neutronApi = api(server.getUrl("/").toString(), "openstack-neutron", overrides);
+         Network network = neutronApi.getNetworkApi("RegionOne").create(Network.createBuilder("jclouds").build());
+         Subnet subnet = neutronApi.getSubnetApi("RegionOne").create(
+               Subnet.createBuilder(network.getId(), "10.0.0.0/24").ipVersion(4).name("jclouds").build());
+         PortApi portApi = neutronApi.getPortApi("RegionOne");
+         List<Port.CreatePort> ports = Lists.newArrayList();
+         for (int i = 0; i < 5; i++) {
+            ports.add(Port.createBuilder(network.getId()).name(i % 2 == 0 ? "even" : "odd").build());
+         }
+         List<Port> created = portApi.createBulk(ports).toList();
+
+         /*
+          * Check response
+          */
+         assertEquals(created.size(), 5);
+         assertEquals(neutronApi.getNetworkApi("RegionOne").get(network.getId()).getSubnets(),
+               ImmutableList.of(subnet.getId()));
+         Ports firstPage = portApi.list(new PaginationOptions().queryParameters(ImmutableMultimap.of("name", "even")));
+         assertEquals(firstPage.size(), 2);
+         assertTrue(firstPage.nextMarker().isPresent());
+         assertEquals(portApi.list().concat().filter(new Predicate<Port>() {
+            @Override
+            public boolean apply(Port input) {
+               return "even".equals(input.getName());
+            }
+         }).size(), 3);
+
+         try {
+            neutronApi.getNetworkApi("RegionOne").delete(network.getId());
+            fail("a network with ports is in use");
+         } catch (IllegalStateException expected) {
+         }
+         for (Port port : created) {
+            assertTrue(portApi.delete(port.getId()));
+         }
+         assertNull(portApi.get(created.get(0).getId()));
+         assertTrue(neutronApi.getNetworkApi("RegionOne").delete(network.getId()));
+         assertEquals(neutron.size(Resource.SUBNETS), 0);
+      } finally {
+         server.shutdown();
+      }
+   }
+
+   public void testRouterInterfacesAndFirewallRules() throws IOException {
+      MockWebServer server = mockOpenStackServer();
+      InMemoryNeutronDispatcher neutron = new InMemoryNeutronDispatcher(server.getUrl("/"));
+      server.setDispatcher(neutron);
+
+      try {
+         NeutronApi neutronApi = api(server.getUrl("/").toString(), "openstack-neutron", overrides);
+         Network network = neutronApi.getNetworkApi("RegionOne").create(Network.createBuilder("jclouds").build());
+         Subnet subnet = neutronApi.getSubnetApi("RegionOne").create(Subnet.createBuilder(network.getId(), "10.0.0.0/24")
+               .ipVersion(4).gatewayIp("10.0.0.1").build());
+         RouterApi routerApi = neutronApi.getRouterApi("RegionOne").get();
+         Router router = routerApi.create(Router.createBuilder().name("jclouds").build());
+
+         RouterInterface routerInterface = routerApi.addInterfaceForSubnet(router.getId(), subnet.getId());
+         Port port = neutronApi.getPortApi("RegionOne").get(routerInterface.getPortId());
+
+         FWaaSApi fwaasApi = neutronApi.getFWaaSApi("RegionOne").get();
+         FirewallRule rule = fwaasApi.createFirewallRule(CreateFirewallRule.builder().name("jclouds")
+               .protocol("tcp").action("allow").build());
+         FirewallPolicy policy = fwaasApi.createFirewallPolicy(CreateFirewallPolicy.builder().name("jclouds").build());
+         FirewallPolicy withRule = fwaasApi.insertFirewallRuleToPolicy(policy.getId(), rule.getId());
+
+         /*
+          * Check response
+          */
+         assertEquals(routerInterface.getSubnetId(), subnet.getId());
+         assertEquals(port.getDeviceId(), router.getId());
+         assertEquals(port.getDeviceOwner(), "network:router_interface");
+         assertEquals(port.getFixedIps().iterator().next().getIpAddress(), "10.0.0.1");
+         assertTrue(routerApi.removeInterfaceForSubnet(router.getId(), subnet.getId()));
+         assertNull(neutronApi.getPortApi("RegionOne").get(routerInterface.getPortId()));
+
+         assertEquals(withRule.getFirewallRules(), ImmutableList.of(rule.getId()));
+         assertEquals(fwaasApi.getFirewallRule(rule.getId()).getFirewallPolicyId(), policy.getId());
+         assertEquals(neutron.size(Resource.PORTS), 0);
+      } finally {
+         server.shutdown();
+      }
+   }
+}
@@ -0,0 +1,238 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.neutron.v2.utils;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.jclouds.openstack.neutron.v2.NeutronApi;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Function;
+import com.google.common.base.Optional;
+import com.google.common.base.Predicates;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.FluentIterable;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+@Test(groups = "unit", testName = "MultiRegionQueryTest")
+public class MultiRegionQueryTest {
+
+   private final ListeningExecutorService executor = MoreExecutors.listeningDecorator(Executors.newCachedThreadPool());
+
+   @AfterClass(alwaysRun = true)
+   public void shutdown() {
+      executor.shutdownNow();
+   }
+
+   public void testListMergesAllRegionsAndFlagsFailedOnes() {
+      MultiRegionQuery query = new MultiRegionQuery(api("RegionOne", "RegionTwo", "RegionThree"), executor);
+
+      Set<RegionAndResource<String>> results = Sets.newHashSet();
+      Iterator<RegionAndResource<String>> it = query.list(new Function<String, Iterable<String>>() {
+         @Override
+         public Iterable<String> apply(String region) {
+            if (region.equals("RegionTwo"))
+               throw new IllegalStateException("region is down");
+            return ImmutableList.of("a-" + region, "b-" + region);
+         }
+      }).iterator();
+      try {
+         while (it.hasNext()) {
+            results.add(it.next());
+         }
+         fail("RegionTwo failed");
+      } catch (MultiRegionQueryException expected) {
+         assertEquals(expected.getFailures().keySet(), ImmutableSet.of("RegionTwo"));
+         assertTrue(expected.getFailures().get("RegionTwo") instanceof IllegalStateException);
+      }
+
+      assertEquals(results, ImmutableSet.of(
+            new RegionAndResource<String>("RegionOne", "a-RegionOne"),
+            new RegionAndResource<String>("RegionOne", "b-RegionOne"),
+            new RegionAndResource<String>("RegionThree", "a-RegionThree"),
+            new RegionAndResource<String>("RegionThree", "b-RegionThree")));
+   }
+
+   public void testFindStopsQueryingOtherRegions() throws InterruptedException {
+      MultiRegionQuery query = new MultiRegionQuery(api("RegionOne", "RegionTwo"), executor);
+      final CountDownLatch started = new CountDownLatch(1);
+      final CountDownLatch interrupted = new CountDownLatch(1);
+
+      Optional<RegionAndResource<String>> found = query.find(new Function<String, Iterable<String>>() {
+         @Override
+         public Iterable<String> apply(String region) {
+            if (region.equals("RegionOne")) {
+               // answer once the slow region is running, so that it is interrupted rather than never started
+               Uninterruptibles.awaitUninterruptibly(started, 10, TimeUnit.SECONDS);
+               return ImmutableList.of("port-1", "port-2");
+            }
+            started.countDown();
+            try {
+               Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+            } catch (InterruptedException e) {
+               interrupted.countDown();
+            }
+            return ImmutableList.of();
+         }
+      }, Predicates.equalTo("port-2"));
+
+      assertEquals(found.get(), new RegionAndResource<String>("RegionOne", "port-2"));
+      assertTrue(interrupted.await(10, TimeUnit.SECONDS), "the slow region was not cancelled");
+   }
+
+   public void testFastRegionDoesNotUseUpTheBufferOfOthers() throws InterruptedException {
+      MultiRegionQuery query = new MultiRegionQuery(api("RegionOne", "RegionTwo"), executor);
+      final CountDownLatch oneAhead = new CountDownLatch(1000);
+      final CountDownLatch twoDone = new CountDownLatch(1);
+
+      // nothing is consumed while both regions produce
+      query.list(new Function<String, Iterable<Integer>>() {
+         @Override
+         public Iterable<Integer> apply(final String region) {
+            if (region.equals("RegionOne")) {
+               return new Iterable<Integer>() {
+                  @Override
+                  public Iterator<Integer> iterator() {
+                     return new AbstractIterator<Integer>() {
+                        private int next;
+
+                        @Override
+                        protected Integer computeNext() {
+                           oneAhead.countDown();
+                           return next++;
+                        }
+                     };
+                  }
+               };
+            }
+            // start once the first region has produced as many results as a region may run ahead
+            Uninterruptibles.awaitUninterruptibly(oneAhead, 10, TimeUnit.SECONDS);
+            return new Iterable<Integer>() {
+               @Override
+               public Iterator<Integer> iterator() {
+                  return new AbstractIterator<Integer>() {
+                     private int next;
+
+                     @Override
+                     protected Integer computeNext() {
+                        if (next == 3) {
+                           twoDone.countDown();
+                           return endOfData();
+                        }
+                        return next++;
+                     }
+                  };
+               }
+            };
+         }
+      }).iterator();
+
+      assertTrue(twoDone.await(10, TimeUnit.SECONDS), "the second region waited for the results of the first");
+   }
+
+   public void testSlowRegionTimesOut() {
+      MultiRegionQuery query = new MultiRegionQuery(api("RegionOne", "RegionTwo"), executor)
+            .withTimeout(200, TimeUnit.MILLISECONDS);
+      final Set<String> queried = Sets.newConcurrentHashSet();
+
+      long start = System.nanoTime();
+      try {
+         query.get(new Function<String, String>() {
+            @Override
+            public String apply(String region) {
+               queried.add(region);
+               if (region.equals("RegionTwo")) {
+                  try {
+                     Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+                  } catch (InterruptedException e) {
+                     Thread.currentThread().interrupt();
+                  }
+               }
+               return "network-" + region;
+            }
+         });
+         fail("RegionTwo did not answer in time");
+      } catch (MultiRegionQueryException expected) {
+         assertEquals(expected.getFailures().keySet(), ImmutableSet.of("RegionTwo"));
+         assertTrue(expected.getFailures().get("RegionTwo") instanceof TimeoutException);
+      }
+
+      assertEquals(queried, ImmutableSet.of("RegionOne", "RegionTwo"));
+      assertTrue(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) < 10, "waited for the slow region");
+   }
+
+   public void testTimeoutAppliesToEachRequest() {
+      MultiRegionQuery query = new MultiRegionQuery(api("RegionOne", "RegionTwo"), executor)
+            .withTimeout(200, TimeUnit.MILLISECONDS);
+
+      // every page takes half the timeout, and the consumer takes longer than the timeout between results
+      List<RegionAndResource<String>> results = Lists.newArrayList();
+      for (RegionAndResource<String> result : query.list(new Function<String, Iterable<String>>() {
+         @Override
+         public Iterable<String> apply(final String region) {
+            return new FluentIterable<String>() {
+               @Override
+               public Iterator<String> iterator() {
+                  return new AbstractIterator<String>() {
+                     private int page;
+
+                     @Override
+                     protected String computeNext() {
+                        if (page == 4)
+                           return endOfData();
+                        Uninterruptibles.sleepUninterruptibly(100, TimeUnit.MILLISECONDS);
+                        return "page-" + page++ + "-" + region;
+                     }
+                  };
+               }
+            };
+         }
+      })) {
+         Uninterruptibles.sleepUninterruptibly(250, TimeUnit.MILLISECONDS);
+         results.add(result);
+      }
+
+      assertEquals(results.size(), 8);
+   }
+
+   private static NeutronApi api(String... regions) {
+      NeutronApi api = createMock(NeutronApi.class);
+      expect(api.getConfiguredRegions()).andReturn(ImmutableSet.copyOf(regions)).anyTimes();
+      replay(api);
+      return api;
+   }
+}
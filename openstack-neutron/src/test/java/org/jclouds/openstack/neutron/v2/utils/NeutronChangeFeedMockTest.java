@@ -0,0 +1,154 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.neutron.v2.utils;
+
+import static org.easymock.EasyMock.createMock;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.jclouds.json.Json;
+import org.jclouds.json.config.GsonModule;
+import org.jclouds.openstack.neutron.v2.NeutronApi;
+import org.jclouds.openstack.neutron.v2.domain.Network;
+import org.jclouds.openstack.neutron.v2.domain.Port;
+import org.jclouds.openstack.neutron.v2.features.PortApi;
+import org.jclouds.openstack.neutron.v2.internal.BaseNeutronApiMockTest;
+import org.jclouds.openstack.neutron.v2.internal.InMemoryNeutronDispatcher;
+import org.jclouds.openstack.neutron.v2.utils.NeutronChange.Kind;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.inject.Guice;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+
+/**
+ * Tests NeutronChangeFeed against the in-memory Neutron stand-in
+ */
+@Test
+public class NeutronChangeFeedMockTest extends BaseNeutronApiMockTest {
+
+   public void testPublishesChangesBetweenPolls() throws Exception {
+      MockWebServer server = mockOpenStackServer();
+      server.setDispatcher(new InMemoryNeutronDispatcher(server.getUrl("/")));
+
+      try {
+         NeutronApi neutronApi = api(server.getUrl("/").toString(), "openstack-neutron", overrides);
+         Json json = Guice.createInjector(new GsonModule()).getInstance(Json.class);
+         NeutronChangeFeed feed = new NeutronChangeFeed(neutronApi, json, MoreExecutors.sameThreadExecutor(),
+               createMock(ScheduledExecutorService.class));
+         final List<NeutronChange<Port>> changes = Lists.newArrayList();
+         feed.subscribe(NeutronResourceType.PORTS, new NeutronChangeListener<Port>() {
+            @Override
+            public void onChange(NeutronChange<Port> change) {
+               changes.add(change);
+            }
+         });
+
+         Network network = neutronApi.getNetworkApi("RegionOne").create(Network.createBuilder("jclouds").build());
+         PortApi portApi = neutronApi.getPortApi("RegionOne");
+         Port unchanged = portApi.create(Port.createBuilder(network.getId()).name("unchanged").build());
+         Port renamed = portApi.create(Port.createBuilder(network.getId()).name("renamed").build());
+         Port deleted = portApi.create(Port.createBuilder(network.getId()).name("deleted").build());
+
+         feed.poll().get();
+         assertTrue(changes.isEmpty(), "the first poll only takes the baseline");
+
+         portApi.update(renamed.getId(), Port.updateBuilder().name("renamed-again").build());
+         assertTrue(portApi.delete(deleted.getId()));
+         Port created = portApi.create(Port.createBuilder(network.getId()).name("created").build());
+         feed.poll().get();
+
+         /*
+          * Check response
+          */
+         assertEquals(changes.size(), 3);
+         for (NeutronChange<Port> change : changes) {
+            assertEquals(change.getRegion(), "RegionOne");
+            assertTrue(!change.getId().equals(unchanged.getId()));
+            if (change.getKind() == Kind.UPDATED) {
+               assertEquals(change.getId(), renamed.getId());
+               assertEquals(change.getResource().getName(), "renamed-again");
+            } else if (change.getKind() == Kind.DELETED) {
+               assertEquals(change.getId(), deleted.getId());
+               assertNull(change.getResource());
+            } else {
+               assertEquals(change.getId(), created.getId());
+               assertEquals(change.getResource().getName(), "created");
+            }
+         }
+
+         changes.clear();
+         feed.poll().get();
+         assertTrue(changes.isEmpty(), "nothing changed since the last poll");
+      } finally {
+         server.shutdown();
+      }
+   }
+
+   @Test(timeOut = 10000)
+   public void testSchedulerOnlyTriggersPollsAndCloseDoesNotWaitForThem() throws Exception {
+      MockWebServer server = mockOpenStackServer();
+      server.setDispatcher(new InMemoryNeutronDispatcher(server.getUrl("/")));
+      ListeningExecutorService userExecutor = MoreExecutors.listeningDecorator(Executors.newCachedThreadPool());
+      ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("scheduler-%d").build());
+
+      try {
+         NeutronApi neutronApi = api(server.getUrl("/").toString(), "openstack-neutron", overrides);
+         Json json = Guice.createInjector(new GsonModule()).getInstance(Json.class);
+         NeutronChangeFeed feed = new NeutronChangeFeed(neutronApi, json, userExecutor, scheduler);
+         final CountDownLatch published = new CountDownLatch(1);
+         final CountDownLatch release = new CountDownLatch(1);
+         final List<String> threads = Lists.newCopyOnWriteArrayList();
+         feed.subscribe(NeutronResourceType.NETWORKS, new NeutronChangeListener<Network>() {
+            @Override
+            public void onChange(NeutronChange<Network> change) {
+               threads.add(Thread.currentThread().getName());
+               published.countDown();
+               Uninterruptibles.awaitUninterruptibly(release);
+            }
+         });
+         feed.poll().get();
+         neutronApi.getNetworkApi("RegionOne").create(Network.createBuilder("jclouds").build());
+
+         feed.start(1, TimeUnit.MILLISECONDS);
+         published.await();
+
+         // the listener holds up the poll, which neither blocks the feed nor runs on the scheduler
+         assertFalse(feed.poll().isDone(), "the running poll is joined");
+         feed.close();
+         assertFalse(threads.get(0).startsWith("scheduler-"), threads.get(0));
+         release.countDown();
+      } finally {
+         scheduler.shutdownNow();
+         userExecutor.shutdownNow();
+         server.shutdown();
+      }
+   }
+}
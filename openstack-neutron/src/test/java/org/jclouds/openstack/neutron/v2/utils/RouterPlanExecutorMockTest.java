@@ -0,0 +1,243 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.openstack.neutron.v2.utils;
+
+import static org.easymock.EasyMock.createMock;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.jclouds.openstack.neutron.v2.NeutronApi;
+import org.jclouds.openstack.neutron.v2.domain.ExternalGatewayInfo;
+import org.jclouds.openstack.neutron.v2.domain.Network;
+import org.jclouds.openstack.neutron.v2.domain.Router;
+import org.jclouds.openstack.neutron.v2.domain.Subnet;
+import org.jclouds.openstack.neutron.v2.internal.BaseNeutronApiMockTest;
+import org.jclouds.openstack.neutron.v2.internal.InMemoryNeutronDispatcher;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+
+/**
+ * Tests RouterPlanExecutor against the mock Neutron server
+ */
+@Test
+public class RouterPlanExecutorMockTest extends BaseNeutronApiMockTest {
+
+   private static final String ROUTER_ID = "a9254bdb-2613-4a13-ac4c-adc581fba50d";
+
+   public void testExecutePlan() throws IOException, InterruptedException, URISyntaxException {
+      MockWebServer server = mockOpenStackServer();
+      server.enqueue(addCommonHeaders(new MockResponse().setBody(stringFromResource("/access.json"))));
+      server.enqueue(addCommonHeaders(new MockResponse().setBody(stringFromResource("/extension_list.json"))));
+      server.enqueue(addCommonHeaders(new MockResponse().setBody(stringFromResource("/router_get_response.json"))));
+      server.enqueue(addCommonHeaders(new MockResponse().setBody(stringFromResource("/router_update_response.json"))));
+      server.enqueue(addCommonHeaders(new MockResponse().setBody(stringFromResource("/router_interface_port_list_response.json"))));
+      server.enqueue(addCommonHeaders(new MockResponse().setBody(stringFromResource("/router_add_interface_response.json"))));
+      server.enqueue(addCommonHeaders(new MockResponse().setResponseCode(200)));
+
+      try {
+         NeutronApi neutronApi = api(server.getUrl("/").toString(), "openstack-neutron", overrides);
+         RouterPlanExecutor executor = new RouterPlanExecutor(neutronApi, MoreExecutors.sameThreadExecutor());
+
+         RouterPlan plan = RouterPlan.builder()
+               .routerId(ROUTER_ID)
+               .externalGatewayInfo(ExternalGatewayInfo.builder().networkId("8ca37218-28ff-41cb-9b10-039601ea7e6b").build())
+               .subnetId("a2f1f29d-571b-4533-907f-5803ab96ead1")
+               .subnetId("5a2ac3b7-3b68-4a2d-8b1a-d9a4ad0d1f3c")
+               .removeUndeclared(true)
+               .build();
+
+         Map<String, RouterPlanResult> results = executor.execute("RegionOne", ImmutableList.of(plan));
+
+         /*
+          * Check request
+          */
+         assertEquals(server.getRequestCount(), 7);
+         assertAuthentication(server);
+         assertExtensions(server, uriApiVersion + "");
+         assertRequest(server.takeRequest(), "GET", uriApiVersion + "/routers/" + ROUTER_ID);
+         assertRequest(server.takeRequest(), "PUT", uriApiVersion + "/routers/" + ROUTER_ID, "/router_update_request.json");
+         assertRequest(server.takeRequest(), "GET", uriApiVersion + "/ports?device_id=" + ROUTER_ID
+               + "&device_owner=network%3Arouter_interface");
+         assertRequest(server.takeRequest(), "PUT", uriApiVersion + "/routers/" + ROUTER_ID + "/add_router_interface",
+               "/router_add_interface_request.json");
+         assertRequest(server.takeRequest(), "PUT", uriApiVersion + "/routers/" + ROUTER_ID + "/remove_router_interface",
+               "/router_plan_remove_interface_request.json");
+
+         /*
+          * Check response
+          */
+         RouterPlanResult result = results.get(ROUTER_ID);
+         assertTrue(result.isSuccessful());
+         assertTrue(result.isGatewayUpdated());
+         assertEquals(result.getAddedInterfaces().size(), 1);
+         assertEquals(result.getAddedInterfaces().get(0).getSubnetId(), "a2f1f29d-571b-4533-907f-5803ab96ead1");
+         assertEquals(result.getRemovedPortIds(), ImmutableList.of("d4ae1a2f-7b3c-4f8e-a1d2-6c5b4a3e2f10"));
+      } finally {
+         server.shutdown();
+      }
+   }
+
+   public void testExecutePlanRecordsFailures() throws IOException, InterruptedException, URISyntaxException {
+      MockWebServer server = mockOpenStackServer();
+      server.enqueue(addCommonHeaders(new MockResponse().setBody(stringFromResource("/access.json"))));
+      server.enqueue(addCommonHeaders(new MockResponse().setBody(stringFromResource("/extension_list.json"))));
+      server.enqueue(addCommonHeaders(new MockResponse().setBody(stringFromResource("/router_interface_port_list_response.json"))));
+      server.enqueue(addCommonHeaders(new MockResponse().setResponseCode(400)));
+      server.enqueue(addCommonHeaders(new MockResponse().setBody(stringFromResource("/router_add_interface_response.json"))));
+
+      try {
+         NeutronApi neutronApi = api(server.getUrl("/").toString(), "openstack-neutron", overrides);
+         RouterPlanExecutor executor = new RouterPlanExecutor(neutronApi, MoreExecutors.sameThreadExecutor());
+
+         RouterPlan plan = RouterPlan.builder()
+               .routerId(ROUTER_ID)
+               .subnetId("11111111-2222-3333-4444-555555555555")
+               .portId("3a44f4e5-1694-493a-a1fb-393881c673a4")
+               .build();
+
+         RouterPlanResult result = executor.execute("RegionOne", ImmutableList.of(plan)).get(ROUTER_ID);
+
+         /*
+          * Check request
+          */
+         assertEquals(server.getRequestCount(), 5);
+
+         /*
+          * Check response
+          */
+         assertFalse(result.isSuccessful());
+         assertFalse(result.isGatewayUpdated());
+         assertTrue(result.getFailures().containsKey("subnet:11111111-2222-3333-4444-555555555555"));
+         assertEquals(result.getAddedInterfaces().size(), 1);
+         assertTrue(result.getRemovedPortIds().isEmpty());
+      } finally {
+         server.shutdown();
+      }
+   }
+
+   public void testExecutePlanFollowsInterfacePages() throws IOException, InterruptedException, URISyntaxException {
+      MockWebServer server = mockOpenStackServer();
+      server.enqueue(addCommonHeaders(new MockResponse().setBody(stringFromResource("/access.json"))));
+      server.enqueue(addCommonHeaders(new MockResponse().setBody(stringFromResource("/extension_list.json"))));
+      server.enqueue(addCommonHeaders(new MockResponse().setBody(
+            stringFromResource("/router_interface_port_list_response_paged1.json"))));
+      server.enqueue(addCommonHeaders(new MockResponse().setBody(
+            stringFromResource("/router_interface_port_list_response_paged2.json"))));
+      server.enqueue(addCommonHeaders(new MockResponse().setBody(stringFromResource("/router_add_interface_response.json"))));
+
+      try {
+         NeutronApi neutronApi = api(server.getUrl("/").toString(), "openstack-neutron", overrides);
+         RouterPlanExecutor executor = new RouterPlanExecutor(neutronApi, MoreExecutors.sameThreadExecutor());
+
+         RouterPlan plan = RouterPlan.builder()
+               .routerId(ROUTER_ID)
+               .subnetId("a2f1f29d-571b-4533-907f-5803ab96ead1")
+               .subnetId("5a2ac3b7-3b68-4a2d-8b1a-d9a4ad0d1f3c")
+               .subnetId("0f3b1c55-85a4-4b3c-9a2e-1d7f6e2b9c40")
+               .build();
+
+         RouterPlanResult result = executor.execute("RegionOne", ImmutableList.of(plan)).get(ROUTER_ID);
+
+         /*
+          * Check request
+          */
+         assertEquals(server.getRequestCount(), 5);
+         assertAuthentication(server);
+         assertExtensions(server, uriApiVersion + "");
+         assertRequest(server.takeRequest(), "GET", uriApiVersion + "/ports?device_id=" + ROUTER_ID
+               + "&device_owner=network%3Arouter_interface");
+         assertRequest(server.takeRequest(), "GET", uriApiVersion + "/ports?device_id=" + ROUTER_ID
+               + "&device_owner=network%3Arouter_interface&limit=1&marker=8c7e6b5e-6e5f-4c7b-9f4b-3c4c9e0f5d21");
+         assertRequest(server.takeRequest(), "PUT", uriApiVersion + "/routers/" + ROUTER_ID + "/add_router_interface",
+               "/router_add_interface_request.json");
+
+         /*
+          * Check response: only the subnet on neither page is added
+          */
+         assertTrue(result.isSuccessful());
+         assertEquals(result.getAddedInterfaces().size(), 1);
+         assertEquals(result.getAddedInterfaces().get(0).getSubnetId(), "a2f1f29d-571b-4533-907f-5803ab96ead1");
+      } finally {
+         server.shutdown();
+      }
+   }
+
+   public void testConcurrentPlansForRouterAreSerialized() throws Exception {
+      MockWebServer server = mockOpenStackServer();
+      // pages of one port, so that every plan lists the interfaces over several requests
+      InMemoryNeutronDispatcher neutron = new InMemoryNeutronDispatcher(server.getUrl("/"), 1);
+      server.setDispatcher(neutron);
+      ListeningExecutorService userExecutor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(4));
+
+      try {
+         NeutronApi neutronApi = api(server.getUrl("/").toString(), "openstack-neutron", overrides);
+         Network network = neutronApi.getNetworkApi("RegionOne").create(Network.createBuilder("jclouds").build());
+         RouterPlan.Builder builder = RouterPlan.builder();
+         for (int i = 0; i < 3; i++) {
+            builder.subnetId(neutronApi.getSubnetApi("RegionOne").create(Subnet.createBuilder(network.getId(),
+                  "10.0." + i + ".0/24").ipVersion(4).gatewayIp("10.0." + i + ".1").build()).getId());
+         }
+         Router router = neutronApi.getRouterApi("RegionOne").get().create(Router.createBuilder().name("jclouds")
+               .build());
+         RouterPlan plan = builder.routerId(router.getId()).removeUndeclared(true).build();
+         RouterPlanExecutor executor = new RouterPlanExecutor(neutronApi, userExecutor);
+
+         List<ListenableFuture<RouterPlanResult>> futures = Lists.newArrayList();
+         for (int i = 0; i < 8; i++) {
+            futures.add(executor.submit("RegionOne", plan));
+         }
+         int added = 0;
+         for (ListenableFuture<RouterPlanResult> future : futures) {
+            RouterPlanResult result = future.get(30, TimeUnit.SECONDS);
+            assertTrue(result.isSuccessful(), "plan failed with " + result.getFailures());
+            assertTrue(result.getRemovedPortIds().isEmpty());
+            added += result.getAddedInterfaces().size();
+         }
+
+         /*
+          * Check response: each subnet is added once, by whichever plan ran first
+          */
+         assertEquals(added, 3);
+         assertEquals(neutronApi.getPortApi("RegionOne").list().concat().size(), 3);
+      } finally {
+         userExecutor.shutdownNow();
+         server.shutdown();
+      }
+   }
+
+   @Test(expectedExceptions = IllegalArgumentException.class)
+   public void testDuplicatePlansRejected() {
+      RouterPlanExecutor executor = new RouterPlanExecutor(createMock(NeutronApi.class), MoreExecutors.sameThreadExecutor());
+      RouterPlan plan = RouterPlan.builder().routerId(ROUTER_ID).build();
+      executor.execute("RegionOne", ImmutableList.of(plan, plan));
+   }
+}